@@ -20,6 +20,8 @@ tasks.jar {
 // NOTE: Pass --console=plain to prevent Gradle progress bar from interfering with stdout when using the CLI
 tasks.named<JavaExec>("run") {
     standardInput = System.`in` // Gradle sends empty stream by default
+    // Forward node configuration, e.g. ./gradlew run -Dvoting.server.mode=nio
+    systemProperties(providers.systemPropertiesPrefixedBy("voting.").get())
 }
 
 dependencies {
@@ -0,0 +1,356 @@
+package com.github.muteebaa.app;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpRequest.Builder;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Non-blocking access to the session registry. Every call returns at once with a future, and
+ * retries, hedging and failover between registries are scheduled rather than waited for, so a node
+ * can create its session, register peers and heartbeat at the same time without parking a thread
+ * on each HTTP request.
+ *
+ * {@link SessionRegistry} is the blocking form of this class and shares its registries, statistics
+ * and session cache.
+ */
+public final class AsyncSessionRegistry {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    static final HttpClient client = HttpClient.newHttpClient();
+    static final Gson gson = new Gson(); // Thread-safe, and costly to build per call
+    static final RegistryClient registry = new RegistryClient(client, NodeConfig.registryServers(),
+            NodeConfig.registryAttempts(), NodeConfig.registryHedgeDelayMs());
+
+    // The registry holding this node's session, requests may still be served by any registry
+    private static volatile String currRegistry = registry.best().getUrl();
+    private static final LongAdder switches = new LongAdder();
+
+    // Streamed bodies are parsed here as they arrive, off the HTTP client's own threads
+    private static final Executor parser = new NodeExecutors(NodeConfig.threadMode()).newExecutor("registry-parser",
+            2);
+
+    static final SessionCache cache = new SessionCache(new SessionCache.Loader() {
+        @Override
+        public CompletableFuture<SessionCache.Fetch> load(String code, String etag) {
+            return fetchSession(code, etag);
+        }
+
+        @Override
+        public CompletableFuture<Collection<Session>> loadAll() {
+            return fetchSessions();
+        }
+    }, NodeConfig.sessionCacheSize(), NodeConfig.sessionCacheTtlMs(), NodeConfig.sessionCacheNegativeTtlMs());
+
+    private AsyncSessionRegistry() {
+    }
+
+    /**
+     * Registers a new session.
+     *
+     * @param host    The leader's IP address.
+     * @param port    The leader's port.
+     * @param options The comma-separated voting options.
+     * @return A future completed with the session code, or failed with an {@link IOException}.
+     */
+    public static CompletableFuture<String> saveSession(String host, int port, String options) {
+        // FIXME: Handle port number properly
+        SessionRegistry._options = options;
+        Session session = new Session(host, port, Arrays.asList(options.split(",")));
+
+        HttpRequest req = buildRegistryReq("/sessions")
+                .POST(BodyPublishers.ofString(gson.toJson(session)))
+                .build();
+
+        return registry.sendAsync(req, BodyHandlers.ofString()).thenApply(resp -> {
+            if (resp.statusCode() / 100 != 2) {
+                throw new CompletionException(new IOException("Registry returned status " + resp.statusCode()));
+            }
+            String code = gson.fromJson(resp.body(), String.class);
+            if (code != null && !code.isEmpty()) {
+                session.setId(code);
+                cache.put(session);
+            }
+            return code;
+        });
+    }
+
+    /**
+     * Registers a new session, resolving the leader's host name first.
+     *
+     * @param address The leader's address, as host:port.
+     * @param options The comma-separated voting options.
+     * @return A future completed with the session code, or failed with an {@link IOException}.
+     */
+    public static CompletableFuture<String> saveSession(String address, String options) {
+        String host = address.split(":")[0];
+        int port = Integer.parseInt(address.split(":")[1]);
+        // IP must be resolved client-side since server could be contacting different
+        // DNS server
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return InetAddress.getByName(host).getHostAddress();
+            } catch (UnknownHostException e) {
+                throw new CompletionException(e);
+            }
+        }, parser).thenCompose(ip -> saveSession(ip, port, options));
+    }
+
+    /**
+     * Renews the lease of this node's session, and records the leader's current address with it.
+     *
+     * @param sessionCode The session code.
+     * @param host        The leader's IP address.
+     * @param port        The leader's port.
+     * @return A future completed with the lease granted ({@link Duration#ZERO} if the registry does
+     *         not expire sessions), or empty if the registry does not know the session, e.g. because
+     *         it failed over to a registry that never had it. Failed with an {@link IOException} if no
+     *         registry could be reached.
+     */
+    public static CompletableFuture<Optional<Duration>> renewSession(String sessionCode, String host, int port) {
+        Map<String, Object> update = new HashMap<>();
+        update.put("host", host);
+        update.put("port", port);
+        HttpRequest req = buildRegistryReq("/sessions/" + sessionCode)
+                .method("PATCH", BodyPublishers.ofString(gson.toJson(update)))
+                .build();
+
+        return registry.sendAsync(req, BodyHandlers.discarding()).thenApply(resp -> {
+            if (resp.statusCode() == 404) {
+                return Optional.empty();
+            }
+            if (resp.statusCode() / 100 != 2) {
+                throw new CompletionException(new IOException("Registry returned status " + resp.statusCode()));
+            }
+            return Optional.of(lease(resp));
+        });
+    }
+
+    /**
+     * Stores this node's session under its existing code, on whichever registry now serves requests,
+     * so peers keep using the code they already have.
+     *
+     * @param sessionCode The session code.
+     * @param host        The leader's IP address.
+     * @param port        The leader's port.
+     * @param options     The comma-separated voting options.
+     * @return A future completed with the lease granted, or failed with an {@link IOException}.
+     */
+    public static CompletableFuture<Duration> restoreSession(String sessionCode, String host, int port,
+            String options) {
+        Session session = new Session(host, port, Arrays.asList(options.split(",")));
+        HttpRequest req = buildRegistryReq("/sessions/" + sessionCode)
+                .PUT(BodyPublishers.ofString(gson.toJson(session)))
+                .build();
+
+        return registry.sendAsync(req, BodyHandlers.discarding()).thenApply(resp -> {
+            if (resp.statusCode() / 100 != 2) {
+                throw new CompletionException(new IOException("Registry returned status " + resp.statusCode()));
+            }
+            session.setId(sessionCode);
+            cache.put(session);
+            return lease(resp);
+        });
+    }
+
+    private static Duration lease(HttpResponse<?> resp) {
+        return resp.headers().firstValue("Session-Lease")
+                .map(seconds -> Duration.ofSeconds(Long.parseLong(seconds.trim())))
+                .orElse(Duration.ZERO);
+    }
+
+    /**
+     * Looks up a single session, served from the session cache while it is fresh.
+     *
+     * @param sessionCode The session code.
+     * @return A future completed with the session, or empty if the code is unknown or the registry
+     *         cannot be reached. It never fails.
+     */
+    public static CompletableFuture<Optional<Session>> findSession(String sessionCode) {
+        return cache.getAsync(sessionCode);
+    }
+
+    /**
+     * @param sessionCode The session code.
+     * @return A future completed with the session's voting options, or an empty list.
+     */
+    public static CompletableFuture<List<String>> getVotingOptions(String sessionCode) {
+        return findSession(sessionCode).thenApply(
+                session -> session.map(s -> s.options).orElseGet(ArrayList::new));
+    }
+
+    /**
+     * Lists every session, served from the session cache while it is fresh.
+     *
+     * @return A future completed with the details ("host:port,options") of every session, keyed by
+     *         session code. It never fails.
+     */
+    public static CompletableFuture<Map<String, String>> loadSessions() {
+        return cache.getAllAsync().thenApply(sessionList -> {
+            Map<String, String> sessions = new HashMap<>();
+            for (Session e : sessionList) {
+                sessions.put(e.getId(), String.format("%s:%d,%s", e.host, e.port, String.join(",", e.options)));
+            }
+            return sessions;
+        });
+    }
+
+    /**
+     * Asynchronous {@link SessionRegistry#streamSessions}. The consumer is called on a parser thread.
+     *
+     * @return A future completed with the number of sessions delivered, or failed with an
+     *         {@link IOException}.
+     */
+    public static CompletableFuture<Integer> streamSessions(Predicate<Session> filter, int offset, int limit,
+            Consumer<Session> consumer) {
+        return registry.sendAsync(buildRegistryReq("/sessions").build(), BodyHandlers.ofInputStream())
+                .thenApplyAsync(resp -> {
+                    try {
+                        return readSessions(resp, filter, offset, limit, consumer);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, parser);
+    }
+
+    /**
+     * Reads a session list response incrementally, handing each session to a consumer as soon as it
+     * is parsed, and stops downloading as soon as the requested page is complete.
+     */
+    static int readSessions(HttpResponse<InputStream> resp, Predicate<Session> filter, int offset, int limit,
+            Consumer<Session> consumer) throws IOException {
+        try (JsonReader reader = new JsonReader(
+                new BufferedReader(new InputStreamReader(resp.body(), StandardCharsets.UTF_8), 65536))) {
+            if (resp.statusCode() != 200) {
+                throw new IOException("Registry returned status " + resp.statusCode());
+            }
+
+            int skipped = 0;
+            int delivered = 0;
+            reader.beginArray();
+            while (delivered < limit && reader.hasNext()) {
+                Session session = gson.fromJson(reader, Session.class);
+                if (!filter.test(session)) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                consumer.accept(session);
+                delivered++;
+            }
+            return delivered;
+        } catch (JsonParseException | IllegalStateException e) {
+            // Gson reports malformed JSON unchecked
+            throw new IOException("Malformed session list: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return A future completed with true if the current registry answers its ping. It never fails.
+     */
+    public static CompletableFuture<Boolean> checkHealth() {
+        for (RegistryClient.Registry r : registry.ranked()) {
+            if (r.getUrl().equals(currRegistry)) {
+                return registry.pingAsync(r, TIMEOUT);
+            }
+        }
+        return CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * Pings every registry at once and switches to the best one.
+     *
+     * @return A future completed with true if the best registry changed. It never fails.
+     */
+    public static CompletableFuture<Boolean> chooseRegistry() {
+        return registry.probeAllAsync(TIMEOUT).thenApply(ignored -> {
+            RegistryClient.Registry best = registry.best();
+            if (best.isHealthy() && !currRegistry.equals(best.getUrl())) {
+                currRegistry = best.getUrl();
+                switches.increment();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Reports the registry client's counters, the number of switches to another registry and the
+     * session cache's counters.
+     *
+     * @param out Receives the metrics.
+     */
+    public static void collectMetrics(Metrics.Writer out) {
+        registry.collectMetrics(out);
+        out.counter("voting_registry_switches_total", "Switches of this node's session to another registry.",
+                switches.sum());
+        cache.getStats().forEach((name, value) -> {
+            if (name.equals("size")) {
+                out.gauge("voting_registry_cache_sessions", "Sessions in the session cache.", value);
+            } else {
+                out.counter("voting_registry_cache_events_total", "Session cache lookups and evictions, by kind.",
+                        value, "event", name);
+            }
+        });
+    }
+
+    private static CompletableFuture<SessionCache.Fetch> fetchSession(String sessionCode, String etag) {
+        Builder builder = buildRegistryReq("/sessions/" + sessionCode);
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        return registry.sendAsync(builder.build(), BodyHandlers.ofString()).thenApply(resp -> {
+            switch (resp.statusCode()) {
+                case 200:
+                    return SessionCache.Fetch.found(gson.fromJson(resp.body(), Session.class),
+                            resp.headers().firstValue("ETag").orElse(null));
+                case 304:
+                    return SessionCache.Fetch.notModified();
+                case 404:
+                    return SessionCache.Fetch.missing();
+                default:
+                    throw new CompletionException(new IOException("Registry returned status " + resp.statusCode()));
+            }
+        });
+    }
+
+    private static CompletableFuture<Collection<Session>> fetchSessions() {
+        List<Session> sessions = new ArrayList<>();
+        return streamSessions(session -> true, 0, Integer.MAX_VALUE, sessions::add).thenApply(count -> sessions);
+    }
+
+    static Builder buildRegistryReq(String path) {
+        URI uri = URI.create(currRegistry + path);
+        return HttpRequest.newBuilder(uri).timeout(TIMEOUT).header("Content-Type", "application/json");
+    }
+}
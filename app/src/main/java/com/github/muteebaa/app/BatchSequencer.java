@@ -0,0 +1,90 @@
+package com.github.muteebaa.app;
+
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Applies numbered batches strictly in sequence order on a follower.
+ * Batches that arrive early are held back until the missing ones show up, repeated batches are
+ * dropped, and gaps are reported so the follower knows it is behind.
+ */
+public class BatchSequencer {
+    private final Consumer<Message> applier;
+    private final TreeMap<Long, Message> pending = new TreeMap<>();
+    private long applied;
+
+    /**
+     * @param applier Applies a single batch. Called with the sequencer's lock held.
+     */
+    public BatchSequencer(Consumer<Message> applier) {
+        this.applier = applier;
+    }
+
+    /**
+     * Accepts a received batch, applying it and any held-back successors if it is next in line.
+     *
+     * @param batch The received batch.
+     * @return The number of batches still missing before the held-back ones, 0 if there is no gap.
+     */
+    public synchronized long accept(Message batch) {
+        long sequence = batch.getSequence();
+        if (sequence <= applied) {
+            return missing();
+        }
+        pending.put(sequence, batch);
+
+        Message next;
+        while ((next = pending.remove(applied + 1)) != null) {
+            applier.accept(next);
+            applied++;
+        }
+
+        long gap = missing();
+        if (gap > 0) {
+            System.err.println("Missing vote batches " + (applied + 1) + " to " + (applied + gap));
+        }
+        return gap;
+    }
+
+    /**
+     * Jumps ahead to a snapshot of the leader's state, then applies any held-back batches that follow it.
+     *
+     * @param sequence The last batch the snapshot reflects.
+     * @param install  Replaces the follower's state with the snapshot. Called with the sequencer's lock held.
+     * @return true if the snapshot was installed, false if this follower was already past it.
+     */
+    public synchronized boolean reset(long sequence, Runnable install) {
+        if (sequence <= applied) {
+            return false;
+        }
+        install.run();
+        applied = sequence;
+        pending.headMap(sequence, true).clear();
+
+        Message next;
+        while ((next = pending.remove(applied + 1)) != null) {
+            applier.accept(next);
+            applied++;
+        }
+        return true;
+    }
+
+    private long missing() {
+        return pending.isEmpty() ? 0 : pending.firstKey() - applied - 1;
+    }
+
+    /**
+     * @return How many batches the newest batch received is ahead of the last one applied, 0 if
+     *         none is held back.
+     */
+    public synchronized long getLag() {
+        return pending.isEmpty() ? 0 : pending.lastKey() - applied;
+    }
+
+    /**
+     * @return The sequence number of the last batch applied.
+     */
+    public synchronized long getAppliedSequence() {
+        return applied;
+    }
+}
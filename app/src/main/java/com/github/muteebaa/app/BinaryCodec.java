@@ -0,0 +1,432 @@
+package com.github.muteebaa.app;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compact length-prefixed binary encoding of {@link Message}s.
+ *
+ * A binary connection starts with the two byte preamble {@link #MAGIC}, {@link #VERSION}; since text
+ * messages always start with an ASCII letter the receiver can tell the formats apart from the first
+ * byte. Every frame is a type tag byte, a 4 byte body length and the body. Strings are UTF-8 with a
+ * 2 byte length, UUIDs are two longs and voted options are sent as indices into the option table
+ * that the sender announced earlier on the same connection through an OPTIONS control frame.
+ * Frames carrying a request ID set the top bit of their tag and start their body with the ID.
+ */
+public final class BinaryCodec {
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    // Control frame announcing the sender's option table, consumed by the decoder itself
+    private static final byte OPTIONS_TAG = 0x7F;
+    private static final int REQUEST_ID_FLAG = 0x80;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes messages for one outbound connection.
+     * Remembers which option table the receiver knows about so it is only sent when it changes.
+     */
+    public static class Encoder {
+        private VotingOptions sentOptions;
+
+        /**
+         * Forgets the announced option table. Must be called whenever a new connection is opened.
+         */
+        public void reset() {
+            sentOptions = null;
+        }
+
+        /**
+         * Encodes a message, preceded by an OPTIONS frame if the option table changed since the last call.
+         *
+         * @param message The message to encode.
+         * @param options The sender's current option table, or null if unknown.
+         * @return A buffer ready to be written, holding one or two frames.
+         */
+        public ByteBuffer encode(Message message, VotingOptions options) {
+            ByteBuffer out = ByteBuffer.allocate(128);
+            if (options != null && options != sentOptions) {
+                out = writeOptions(out, options);
+                sentOptions = options;
+            }
+            out = writeMessage(out, message, sentOptions);
+            out.flip();
+            return out;
+        }
+    }
+
+    /**
+     * Decodes frames received on one inbound connection.
+     */
+    public static class Decoder {
+        private VotingOptions options;
+
+        /**
+         * Decodes every complete frame in the buffer and leaves a trailing partial frame unread.
+         *
+         * @param buffer A buffer in read mode positioned at the start of a frame.
+         * @param sink   Receives every decoded message in order.
+         * @throws IllegalArgumentException If a frame is malformed or too large.
+         */
+        public void decodeAll(ByteBuffer buffer, Consumer<Message> sink) {
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                byte tag = buffer.get(start);
+                int length = buffer.getInt(start + 1);
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    throw new IllegalArgumentException("Invalid frame length " + length);
+                }
+                if (buffer.remaining() < HEADER_SIZE + length) {
+                    return;
+                }
+
+                ByteBuffer body = buffer.duplicate();
+                body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+                buffer.position(start + HEADER_SIZE + length);
+
+                Message message = decode(tag, body);
+                if (message != null) {
+                    sink.accept(message);
+                }
+            }
+        }
+
+        /**
+         * Decodes a single frame body.
+         *
+         * @param tag  The frame's type tag.
+         * @param body The frame body, positioned at its start and limited to its length.
+         * @return The decoded message, or null for control frames.
+         * @throws IllegalArgumentException If the frame is malformed.
+         */
+        public Message decode(byte tag, ByteBuffer body) {
+            try {
+                if (tag == OPTIONS_TAG) {
+                    int count = Short.toUnsignedInt(body.getShort());
+                    List<String> list = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        list.add(getString(body));
+                    }
+                    options = VotingOptions.of(list);
+                    return null;
+                }
+
+                if ((tag & REQUEST_ID_FLAG) != 0) {
+                    long requestId = body.getLong();
+                    Message message = decode((byte) (tag & ~REQUEST_ID_FLAG), body);
+                    if (message == null) {
+                        throw new IllegalArgumentException("Control frames cannot carry a request ID");
+                    }
+                    return message.withRequestId(requestId);
+                }
+
+                MessageType type = MessageType.fromTag(tag);
+                if (type == null) {
+                    throw new IllegalArgumentException("Unknown frame type " + tag);
+                }
+                switch (type) {
+                    case REGISTER:
+                    case LEADER_CHANGED:
+                    case SHARD_FLUSH: {
+                        String host = getString(body);
+                        return new Message(type, host, Short.toUnsignedInt(body.getShort()), 0, 0, -1, null, null,
+                                null, null);
+                    }
+                    case UPDATE_NEW_PEER:
+                    case SHARD_MAP: {
+                        int count = body.getInt();
+                        List<String> peers = new ArrayList<>(Math.min(count, 1024));
+                        for (int i = 0; i < count; i++) {
+                            peers.add(getString(body));
+                        }
+                        // Older senders leave out the index and always send the whole list
+                        long index = body.remaining() >= 8 ? body.getLong() : 0;
+                        return type == MessageType.SHARD_MAP ? Message.shardMap(index, peers)
+                                : Message.updateNewPeer(index, peers);
+                    }
+                    case VOTE: {
+                        String host = getString(body);
+                        int port = Short.toUnsignedInt(body.getShort());
+                        long msb = body.getLong();
+                        long lsb = body.getLong();
+                        int index = body.getInt();
+                        String option = index < 0 ? getString(body) : null;
+                        return new Message(type, host, port, msb, lsb, index, option, options, null, null);
+                    }
+                    case UPDATE_VOTE_TALLY: {
+                        long msb = body.getLong();
+                        long lsb = body.getLong();
+                        int index = body.getInt();
+                        String option = index < 0 ? getString(body) : null;
+                        return new Message(type, null, 0, msb, lsb, index, option, options, null, null);
+                    }
+                    case UPDATE_VOTE_BATCH:
+                    case SHARD_BATCH:
+                    case BULK_VOTE: {
+                        String host = null;
+                        int port = 0;
+                        if (type != MessageType.UPDATE_VOTE_BATCH) {
+                            host = getString(body);
+                            port = Short.toUnsignedInt(body.getShort());
+                        }
+                        long sequence = body.getLong();
+                        int count = body.getInt();
+                        List<Message.VoteEntry> entries = new ArrayList<>(Math.min(count, 4096));
+                        for (int i = 0; i < count; i++) {
+                            long msb = body.getLong();
+                            long lsb = body.getLong();
+                            int index = body.getInt();
+                            // Resolving against the table only hands out references to existing Strings
+                            String option = index < 0 ? getString(body) : options == null ? null : options.get(index);
+                            entries.add(new Message.VoteEntry(msb, lsb, option));
+                        }
+                        return new Message(type, host, port, 0, 0, -1, null, null, null, null).withSequence(sequence)
+                                .withEntries(Collections.unmodifiableList(entries));
+                    }
+                    case RELAY: {
+                        int count = body.getInt();
+                        List<String> targets = new ArrayList<>(Math.min(count, 1024));
+                        for (int i = 0; i < count; i++) {
+                            targets.add(getString(body));
+                        }
+                        // The wrapped message is a complete frame of its own
+                        byte innerTag = body.get();
+                        int innerLength = body.getInt();
+                        if ((innerTag & ~REQUEST_ID_FLAG) == OPTIONS_TAG || innerTag == MessageType.RELAY.tag
+                                || innerLength < 0
+                                || innerLength > body.remaining()) {
+                            throw new IllegalArgumentException("Invalid relayed frame");
+                        }
+                        ByteBuffer innerBody = body.slice();
+                        innerBody.limit(innerLength);
+                        return Message.relay(targets, decode(innerTag, innerBody));
+                    }
+                    case SYNC_REQUEST: {
+                        String host = getString(body);
+                        int port = Short.toUnsignedInt(body.getShort());
+                        return Message.syncRequest(host, port, body.getLong(), body.getInt());
+                    }
+                    case ELECTION:
+                    case ELECTION_ANSWER:
+                    case COORDINATOR:
+                    case HEARTBEAT: {
+                        String host = getString(body);
+                        int port = Short.toUnsignedInt(body.getShort());
+                        int nodeId = body.getInt();
+                        long term = body.getLong();
+                        return Message.election(type, host, port, nodeId, term, body.getLong());
+                    }
+                    case SYNC_SNAPSHOT: {
+                        long sequence = body.getLong();
+                        boolean more = body.get() != 0;
+                        int countCount = body.getInt();
+                        Map<String, Long> counts = null;
+                        if (countCount >= 0) {
+                            counts = new LinkedHashMap<>();
+                            for (int i = 0; i < countCount; i++) {
+                                counts.put(getString(body), body.getLong());
+                            }
+                        }
+                        int voterCount = body.getInt();
+                        if (voterCount < 0 || voterCount > body.remaining() / 16) {
+                            throw new BufferUnderflowException();
+                        }
+                        long[] voters = new long[voterCount * 2];
+                        body.asLongBuffer().get(voters);
+                        return Message.syncSnapshot(sequence, counts, voters, more);
+                    }
+                    default:
+                        return new Message(type, null, 0, 0, 0, -1, null, null, null, getLongString(body));
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated frame of type " + tag, e);
+            }
+        }
+    }
+
+    private static ByteBuffer writeOptions(ByteBuffer out, VotingOptions options) {
+        int start = out.position();
+        out = ensure(out, HEADER_SIZE + 2);
+        out.put(OPTIONS_TAG).putInt(0).putShort((short) options.size());
+        for (String option : options.asList()) {
+            out = putString(out, option);
+        }
+        out.putInt(start + 1, out.position() - start - HEADER_SIZE);
+        return out;
+    }
+
+    private static ByteBuffer writeMessage(ByteBuffer out, Message message, VotingOptions options) {
+        int start = out.position();
+        out = ensure(out, HEADER_SIZE + 8);
+        if (message.getRequestId() != 0) {
+            out.put((byte) (message.getType().tag | REQUEST_ID_FLAG)).putInt(0).putLong(message.getRequestId());
+        } else {
+            out.put(message.getType().tag).putInt(0);
+        }
+
+        switch (message.getType()) {
+            case REGISTER:
+            case LEADER_CHANGED:
+            case SHARD_FLUSH:
+                out = putString(out, message.getHost());
+                out = ensure(out, 2);
+                out.putShort((short) message.getPort());
+                break;
+            case UPDATE_NEW_PEER:
+            case SHARD_MAP:
+                out = ensure(out, 4);
+                out.putInt(message.getPeers().size());
+                for (String peer : message.getPeers()) {
+                    out = putString(out, peer);
+                }
+                out = ensure(out, 8);
+                out.putLong(message.getSequence());
+                break;
+            case VOTE:
+                out = putString(out, message.getHost());
+                out = ensure(out, 2);
+                out.putShort((short) message.getPort());
+                out = putVote(out, message, options);
+                break;
+            case UPDATE_VOTE_TALLY:
+                out = putVote(out, message, options);
+                break;
+            case SHARD_BATCH:
+            case BULK_VOTE:
+                out = putString(out, message.getHost());
+                out = ensure(out, 2);
+                out.putShort((short) message.getPort());
+                // Falls through to the batch itself
+            case UPDATE_VOTE_BATCH:
+                out = ensure(out, 12);
+                out.putLong(message.getSequence()).putInt(message.getEntries().size());
+                for (Message.VoteEntry entry : message.getEntries()) {
+                    out = putVote(out, entry.uuidMsb, entry.uuidLsb, entry.option, options);
+                }
+                break;
+            case RELAY:
+                out = ensure(out, 4);
+                out.putInt(message.getPeers().size());
+                for (String target : message.getPeers()) {
+                    out = putString(out, target);
+                }
+                out = writeMessage(out, message.getInner(), options);
+                break;
+            case SYNC_REQUEST:
+                out = putString(out, message.getHost());
+                out = ensure(out, 14);
+                out.putShort((short) message.getPort()).putLong(message.getSequence())
+                        .putInt(message.getSync().knownPeers);
+                break;
+            case ELECTION:
+            case ELECTION_ANSWER:
+            case COORDINATOR:
+            case HEARTBEAT:
+                out = putString(out, message.getHost());
+                out = ensure(out, 22);
+                out.putShort((short) message.getPort()).putInt(message.getElection().nodeId)
+                        .putLong(message.getElection().term).putLong(message.getSequence());
+                break;
+            case SYNC_SNAPSHOT: {
+                Message.Sync sync = message.getSync();
+                out = ensure(out, 13);
+                out.putLong(message.getSequence()).put((byte) (sync.more ? 1 : 0))
+                        .putInt(sync.counts == null ? -1 : sync.counts.size());
+                if (sync.counts != null) {
+                    for (Map.Entry<String, Long> count : sync.counts.entrySet()) {
+                        out = putString(out, count.getKey());
+                        out = ensure(out, 8);
+                        out.putLong(count.getValue());
+                    }
+                }
+                out = ensure(out, 4 + sync.voters.length * 8);
+                out.putInt(sync.voters.length / 2);
+                out.asLongBuffer().put(sync.voters);
+                out.position(out.position() + sync.voters.length * 8);
+                break;
+            }
+            default:
+                out = putLongString(out, message.getText());
+        }
+
+        out.putInt(start + 1, out.position() - start - HEADER_SIZE);
+        return out;
+    }
+
+    private static ByteBuffer putVote(ByteBuffer out, Message message, VotingOptions options) {
+        return putVote(out, message.getUuidMostSignificantBits(), message.getUuidLeastSignificantBits(),
+                message.getOption(), options);
+    }
+
+    private static ByteBuffer putVote(ByteBuffer out, long uuidMsb, long uuidLsb, String option,
+            VotingOptions options) {
+        int index = options == null || option == null ? -1 : options.indexOf(option);
+        out = ensure(out, 20);
+        out.putLong(uuidMsb).putLong(uuidLsb).putInt(index);
+        // Options unknown to the table (e.g. invalid votes) are still carried verbatim
+        return index < 0 ? putString(out, option == null ? "" : option) : out;
+    }
+
+    private static ByteBuffer putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String field exceeds 65535 bytes");
+        }
+        out = ensure(out, 2 + bytes.length);
+        return out.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static ByteBuffer putLongString(ByteBuffer out, String value) {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out = ensure(out, 4 + bytes.length);
+        return out.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        return readUtf8(in, Short.toUnsignedInt(in.getShort()));
+    }
+
+    private static String getLongString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return readUtf8(in, length);
+    }
+
+    private static String readUtf8(ByteBuffer in, int length) {
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(in.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer out, int needed) {
+        if (out.remaining() >= needed) {
+            return out;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+        out.flip();
+        return bigger.put(out);
+    }
+}
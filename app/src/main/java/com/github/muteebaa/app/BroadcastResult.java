@@ -0,0 +1,70 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-peer outcome of a broadcast.
+ */
+public class BroadcastResult {
+    /**
+     * What happened to the message for a single peer.
+     */
+    public enum Status {
+        /** Written to the peer's connection. */
+        DELIVERED,
+        /** Handed to another peer to forward (tree fan-out only). */
+        RELAYED,
+        /** The peer could not be reached. */
+        FAILED,
+        /** The send did not finish within the broadcast timeout. */
+        TIMED_OUT
+    }
+
+    private final Map<String, Status> statuses = new LinkedHashMap<>();
+
+    synchronized void put(String peer, Status status) {
+        statuses.put(peer, status);
+    }
+
+    synchronized void putAll(BroadcastResult other) {
+        statuses.putAll(other.getStatuses());
+    }
+
+    /**
+     * @return The outcome for every peer, in the order they were reported.
+     */
+    public synchronized Map<String, Status> getStatuses() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(statuses));
+    }
+
+    /**
+     * @param status The outcome to look for.
+     * @return Every peer with that outcome.
+     */
+    public synchronized List<String> getPeers(Status status) {
+        List<String> peers = new ArrayList<>();
+        statuses.forEach((peer, s) -> {
+            if (s == status) {
+                peers.add(peer);
+            }
+        });
+        return peers;
+    }
+
+    /**
+     * @return true if no peer failed or timed out.
+     */
+    public boolean isComplete() {
+        return getPeers(Status.FAILED).isEmpty() && getPeers(Status.TIMED_OUT).isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("delivered=%d relayed=%d failed=%s timedOut=%s", getPeers(Status.DELIVERED).size(),
+                getPeers(Status.RELAYED).size(), getPeers(Status.FAILED), getPeers(Status.TIMED_OUT));
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.muteebaa.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a JSON API controlling a {@link HeadlessNode}, so scripts and load tests can run an
+ * election without the console menu:
+ *
+ * <ul>
+ * <li>GET /status: the node's address, session, leader and election state;</li>
+ * <li>POST /session with {"options": [...]}: starts and leads a new session;</li>
+ * <li>POST /session/join or /session/resume with {"session": code}: joins or resumes a session;</li>
+ * <li>POST /voting/start and /voting/end: starts or ends voting, on the leader;</li>
+ * <li>POST /votes with [{"option": ..., "voter": uuid}, ...]: sends the votes to the leader in bulk
+ * and answers with each vote's result, in order, once all are answered. A vote without a voter is
+ * cast as the node itself;</li>
+ * <li>GET /tally: the node's tally, by option;</li>
+ * <li>POST /shutdown: stops the node.</li>
+ * </ul>
+ *
+ * Failed requests are answered with {"error": message}. The API has no authentication, so it
+ * should only be served on a loopback or otherwise trusted address.
+ */
+public class ControlServer implements Closeable {
+    private final HttpServer server;
+    private final HeadlessNode node;
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    /**
+     * Starts serving.
+     *
+     * @param node The node to control.
+     * @param host The address to listen on.
+     * @param port The port to listen on, or 0 for any free port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public ControlServer(HeadlessNode node, String host, int port) throws IOException {
+        this.node = node;
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String route = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+        try {
+            switch (route) {
+                case "GET /status":
+                    respond(exchange, 200, node.status());
+                    break;
+                case "GET /tally":
+                    respond(exchange, 200, node.tally());
+                    break;
+                case "POST /session":
+                    JsonElement options = body(exchange).get("options");
+                    String code = node.lead(options != null && options.isJsonArray()
+                            ? String.join(",", gson.fromJson(options, String[].class))
+                            : requireString(options, "options"));
+                    respond(exchange, 200, Map.of("session", code));
+                    break;
+                case "POST /session/join":
+                    node.join(requireString(body(exchange).get("session"), "session"));
+                    respond(exchange, 200, node.status());
+                    break;
+                case "POST /session/resume":
+                    node.resume(requireString(body(exchange).get("session"), "session"));
+                    respond(exchange, 200, node.status());
+                    break;
+                case "POST /voting/start":
+                    node.startVoting();
+                    respond(exchange, 200, node.status());
+                    break;
+                case "POST /voting/end":
+                    node.endVoting();
+                    respond(exchange, 200, node.tally());
+                    break;
+                case "POST /votes":
+                    vote(exchange);
+                    break;
+                case "POST /shutdown":
+                    respond(exchange, 200, node.status());
+                    node.shutdown();
+                    break;
+                default:
+                    respond(exchange, 404, Map.of("error", "No such request: " + route));
+            }
+        } catch (IllegalArgumentException | JsonParseException e) {
+            respond(exchange, 400, Map.of("error", String.valueOf(e.getMessage())));
+        } catch (IllegalStateException e) {
+            respond(exchange, 409, Map.of("error", String.valueOf(e.getMessage())));
+        } catch (RuntimeException e) {
+            System.err.println("Control request " + route + " failed: " + e);
+            respond(exchange, 500, Map.of("error", e.toString()));
+        }
+    }
+
+    /**
+     * Answers once every vote is answered, from whichever thread completes the last one, so the
+     * server thread is free for other requests meanwhile.
+     */
+    private void vote(HttpExchange exchange) throws IOException {
+        JsonArray entries = gson.fromJson(read(exchange), JsonArray.class);
+        if (entries == null) {
+            throw new IllegalArgumentException("Expected an array of votes");
+        }
+        List<HeadlessNode.Vote> votes = new ArrayList<>(entries.size());
+        for (JsonElement entry : entries) {
+            if (!entry.isJsonObject()) {
+                throw new IllegalArgumentException("Expected a vote, got " + entry);
+            }
+            JsonObject vote = entry.getAsJsonObject();
+            JsonElement voter = vote.get("voter");
+            votes.add(new HeadlessNode.Vote(requireString(vote.get("option"), "option"),
+                    voter == null || voter.isJsonNull() ? null : UUID.fromString(requireString(voter, "voter"))));
+        }
+        node.vote(votes).thenAccept(results -> {
+            Map<String, Object> answer = new LinkedHashMap<>();
+            List<Map<String, Object>> list = new ArrayList<>(results.size());
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (VoteReceipt.Status status : VoteReceipt.Status.values()) {
+                counts.put(status.toString(), 0);
+            }
+            counts.put("FAILED", 0);
+            for (HeadlessNode.Result result : results) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                VoteReceipt receipt = result.getReceipt();
+                if (receipt == null) {
+                    item.put("status", "FAILED");
+                    item.put("error", result.getError());
+                } else {
+                    item.put("status", receipt.getStatus().toString());
+                    item.put("attempts", receipt.getAttempts());
+                    item.put("latencyMicros", receipt.getLatencyNanos() / 1000);
+                }
+                counts.merge((String) item.get("status"), 1, Integer::sum);
+                list.add(item);
+            }
+            counts.forEach((status, count) -> answer.put(status.toLowerCase(), count));
+            answer.put("results", list);
+            try {
+                respond(exchange, 200, answer);
+            } catch (IOException e) {
+                System.err.println("Failed to answer a control request: " + e.getMessage());
+            }
+        });
+    }
+
+    private JsonObject body(HttpExchange exchange) throws IOException {
+        JsonObject body = gson.fromJson(read(exchange), JsonObject.class);
+        if (body == null) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        return body;
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        return new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static String requireString(JsonElement value, String name) {
+        if (value == null || !value.isJsonPrimitive() || value.getAsString().isBlank()) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return value.getAsString().trim();
+    }
+
+    private void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A node run without the console menu, as a service or from scripts and load tests. It is set up
+ * from {@link NodeConfig} and driven either by its configured role or through a {@link ControlServer}.
+ *
+ * A node takes part in at most one session: it either leads a new one, resumes leading one, or joins
+ * one. Votes it is given are sent to the leader in bulk, so a batch of votes costs about one round
+ * trip instead of one per vote.
+ */
+public class HeadlessNode {
+    private final PeerNode peer;
+    private final int port;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private boolean inSession; // Guarded by this
+    private volatile VotingOptions options; // Known once leading or once voting started, for the status
+
+    /**
+     * A voter's vote, as given to {@link #vote(List)}.
+     */
+    public static final class Vote {
+        final String option;
+        final UUID voter;
+
+        /**
+         * @param option The option voted for.
+         * @param voter  The voter's UUID, or null to vote as this node.
+         */
+        public Vote(String option, UUID voter) {
+            this.option = option;
+            this.voter = voter;
+        }
+    }
+
+    /**
+     * What became of a vote: the leader's receipt, or why no receipt came.
+     */
+    public static final class Result {
+        private final VoteReceipt receipt;
+        private final String error;
+
+        Result(VoteReceipt receipt, String error) {
+            this.receipt = receipt;
+            this.error = error;
+        }
+
+        /**
+         * @return The leader's answer, or null if the vote failed.
+         */
+        public VoteReceipt getReceipt() {
+            return receipt;
+        }
+
+        /**
+         * @return Why the vote failed, or null if the leader answered.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Creates the node, which does not listen for peers until it takes part in a session.
+     *
+     * @param port The port the node listens for peers on.
+     */
+    public HeadlessNode(int port) {
+        this.port = port;
+        peer = new PeerNode(port, NodeConfig.nodeId(port));
+        // Votes come through the control API, never from standard input
+        peer.setVotePrompt(options -> {
+            this.options = options;
+            System.out.println("Voting started! Voting options: " + options);
+        });
+    }
+
+    /**
+     * Takes the configured role, if any.
+     *
+     * @throws IllegalStateException If the role is missing its session or options, or fails.
+     */
+    public void startRole() {
+        switch (NodeConfig.role()) {
+            case LEAD:
+                String options = NodeConfig.options();
+                if (options == null || options.isBlank()) {
+                    throw new IllegalStateException("voting.options must be set to lead a session");
+                }
+                System.out.println("Session created! Share this code: " + lead(options));
+                break;
+            case JOIN:
+                join(requireSession());
+                System.out.println("Joined session " + peer.getSessionCode() + ", led by " + peer.getLeaderAddress());
+                break;
+            case RESUME:
+                resume(requireSession());
+                System.out.println("Session resumed! Share this code: " + peer.getSessionCode());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String requireSession() {
+        String session = NodeConfig.session();
+        if (session == null || session.isBlank()) {
+            throw new IllegalStateException("voting.session must be set to join or resume a session");
+        }
+        return session.trim();
+    }
+
+    /**
+     * Starts a new session led by this node.
+     *
+     * @param options The comma-separated voting options.
+     * @return The session code.
+     * @throws IllegalStateException If the node is already in a session or the registry failed.
+     */
+    public synchronized String lead(String options) {
+        enterSession();
+        peer.startServer();
+        String sessionCode = peer.startNewSession(NodeConfig.host(), port, options);
+        if (sessionCode.isEmpty()) {
+            throw new IllegalStateException("The registry did not save the session");
+        }
+        this.options = peer.getVoteTally().getOptions();
+        peer.startHeartbeat(scheduler);
+        return sessionCode;
+    }
+
+    /**
+     * Resumes leading a session from this node's vote log.
+     *
+     * @param sessionCode The session to resume.
+     * @throws IllegalStateException If the node is already in a session or has no log of it.
+     */
+    public synchronized void resume(String sessionCode) {
+        enterSession();
+        peer.startServer();
+        if (!peer.resumeSession(sessionCode)) {
+            throw new IllegalStateException("No logged state found for session " + sessionCode);
+        }
+        options = peer.getVoteTally().getOptions();
+        peer.startHeartbeat(scheduler);
+    }
+
+    /**
+     * Joins an existing session.
+     *
+     * @param sessionCode The session to join.
+     * @throws IllegalStateException If the node is already in a session or the session is unknown.
+     */
+    public synchronized void join(String sessionCode) {
+        if (SessionRegistry.findSession(sessionCode).isEmpty()) {
+            throw new IllegalStateException("Unknown session " + sessionCode);
+        }
+        enterSession();
+        peer.setSessionCode(sessionCode);
+        peer.startPeer();
+    }
+
+    private void enterSession() {
+        if (inSession) {
+            throw new IllegalStateException("Already in session " + peer.getSessionCode());
+        }
+        inSession = true;
+    }
+
+    /**
+     * Starts voting on every node of the session.
+     *
+     * @throws IllegalStateException If this node does not lead a session.
+     */
+    public void startVoting() {
+        requireLeader();
+        peer.startVoting();
+    }
+
+    /**
+     * Ends voting and sends the results to every node of the session.
+     *
+     * @throws IllegalStateException If this node does not lead a session.
+     */
+    public void endVoting() {
+        requireLeader();
+        peer.endVoting();
+    }
+
+    private void requireLeader() {
+        if (!peer.hasLeaderToken()) {
+            throw new IllegalStateException("Only the session's leader can start or end voting");
+        }
+    }
+
+    /**
+     * Sends votes to the leader in bulk, see {@link PeerNode#submitVotes(List)}.
+     *
+     * @param votes The votes to send.
+     * @return A future completed with each vote's result, in the order given, once every vote was
+     *         answered or failed.
+     * @throws IllegalStateException If the node is not in a session.
+     */
+    public CompletableFuture<List<Result>> vote(List<Vote> votes) {
+        synchronized (this) {
+            if (!inSession) {
+                throw new IllegalStateException("Not in a session");
+            }
+        }
+        List<Message.VoteEntry> entries = new ArrayList<>(votes.size());
+        for (Vote vote : votes) {
+            UUID voter = vote.voter != null ? vote.voter : peer.getUuid();
+            entries.add(new Message.VoteEntry(voter.getMostSignificantBits(), voter.getLeastSignificantBits(),
+                    vote.option));
+        }
+        List<CompletableFuture<Result>> pending = new ArrayList<>(votes.size());
+        for (CompletableFuture<VoteReceipt> sent : peer.submitVotes(entries)) {
+            pending.add(sent.handle((receipt, error) -> {
+                if (error == null) {
+                    return new Result(receipt, null);
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                return new Result(null, cause.toString());
+            }));
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<Result> results = new ArrayList<>(pending.size());
+            pending.forEach(result -> results.add(result.join()));
+            return results;
+        });
+    }
+
+    /**
+     * @return The node's current tally, by option.
+     */
+    public Map<String, Long> tally() {
+        return peer.tallySnapshot();
+    }
+
+    /**
+     * @return The node's address, session, leader and election state.
+     */
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("address", peer.getAddress());
+        status.put("session", peer.getSessionCode());
+        status.put("leader", peer.getLeaderAddress());
+        status.put("leading", peer.hasLeaderToken());
+        status.put("role", peer.getElection().getRole().toString());
+        status.put("term", peer.getElection().getTerm());
+        VotingOptions known = options;
+        status.put("options", known != null ? known.asList() : List.of());
+        status.put("votes", peer.getVoteTally().total());
+        return status;
+    }
+
+    /**
+     * @return The node this runs.
+     */
+    public PeerNode getPeer() {
+        return peer;
+    }
+
+    /**
+     * Stops the node, as {@link PeerNode#shutdown()} does, and releases {@link #awaitShutdown()}.
+     */
+    public void shutdown() {
+        peer.shutdown();
+        scheduler.shutdownNow();
+        stopped.countDown();
+    }
+
+    /**
+     * Waits until {@link #shutdown()} is called.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+}
@@ -0,0 +1,389 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Elects the session's leader among its nodes with the bully algorithm, numbered by terms.
+ *
+ * The leader sends a HEARTBEAT to every peer each interval. A follower that hears nothing from it
+ * for the election timeout (plus random jitter, so followers rarely start at once) starts an
+ * election in a new term: it sends ELECTION to every peer, and any peer that outranks it answers and
+ * takes the election over. A candidate that gets no answer within two intervals announces itself
+ * with COORDINATOR. Nodes rank by the last vote batch they applied and then by node ID, so the
+ * follower holding the most replicated votes wins and the new leader is always as up to date as
+ * any survivor.
+ *
+ * A higher term supersedes every claim of a lower one. Two leaders in the same term (e.g. after a
+ * partition heals) are settled by rank, and a leader that hears from a stale one tells it about
+ * itself so it steps down.
+ */
+public class LeaderElection {
+    /**
+     * Told about every change of leader. Called on the election's thread, one call at a time.
+     */
+    public interface Listener {
+        /**
+         * @param term The term this node now leads.
+         */
+        void onElected(long term);
+
+        /**
+         * @param leader The new leader's address, as host:port.
+         * @param term   The leader's term.
+         */
+        void onLeader(String leader, long term);
+    }
+
+    /**
+     * The part a node plays in the election.
+     */
+    public enum Role {
+        FOLLOWER, CANDIDATE, LEADER
+    }
+
+    private final NodeCommunication nodeComm;
+    private final Supplier<List<String>> peers;
+    private final String host;
+    private final int port;
+    private final int nodeId;
+    private final LongSupplier progress;
+    private final Listener listener;
+    private final long intervalMs;
+    private final long timeoutMs;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private Role role = Role.FOLLOWER;
+    private long term;
+    private String leader;
+    private long lastHeard; // System.nanoTime() of the leader's last sign of life
+    private long timeoutNanos; // Jittered again after every election
+    private long deadline; // When a candidate stops waiting for answers or for the winner
+    private boolean answered;
+    private boolean started;
+
+    /**
+     * Creates an election using the configured heartbeat interval and election timeout.
+     *
+     * @param nodeComm The communicator used to reach peers.
+     * @param peers    Supplies the current peer list.
+     * @param host     The host peers reach this node at.
+     * @param port     The port peers reach this node at.
+     * @param nodeId   This node's ID, unique within the session.
+     * @param progress Supplies the last vote batch this node applied (or, as the leader, sent).
+     * @param listener Told about every change of leader.
+     */
+    public LeaderElection(NodeCommunication nodeComm, Supplier<List<String>> peers, String host, int port,
+            int nodeId, LongSupplier progress, Listener listener) {
+        this(nodeComm, peers, host, port, nodeId, progress, listener, NodeConfig.electionIntervalMs(),
+                NodeConfig.electionTimeoutMs());
+    }
+
+    /**
+     * Creates an election.
+     *
+     * @param nodeComm   The communicator used to reach peers.
+     * @param peers      Supplies the current peer list.
+     * @param host       The host peers reach this node at.
+     * @param port       The port peers reach this node at.
+     * @param nodeId     This node's ID, unique within the session.
+     * @param progress   Supplies the last vote batch this node applied (or, as the leader, sent).
+     * @param listener   Told about every change of leader.
+     * @param intervalMs The time between the leader's heartbeats, in milliseconds.
+     * @param timeoutMs  The time without a heartbeat after which a follower starts an election, in
+     *                   milliseconds.
+     */
+    public LeaderElection(NodeCommunication nodeComm, Supplier<List<String>> peers, String host, int port,
+            int nodeId, LongSupplier progress, Listener listener, long intervalMs, long timeoutMs) {
+        this.nodeComm = nodeComm;
+        this.peers = peers;
+        this.host = host;
+        this.port = port;
+        this.nodeId = nodeId;
+        this.progress = progress;
+        this.listener = listener;
+        this.intervalMs = Math.max(1, intervalMs);
+        this.timeoutMs = Math.max(this.intervalMs * 2, timeoutMs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "leader-election-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts leading the session, e.g. as its creator. Starts the heartbeats if they are not running.
+     */
+    public void lead() {
+        synchronized (this) {
+            role = Role.LEADER;
+            leader = address();
+        }
+        start();
+    }
+
+    /**
+     * Starts following a leader found some other way, e.g. through the registry. Its term is
+     * learned from its first heartbeat. Starts watching for its failure if not already watching.
+     *
+     * @param leaderAddress The leader's address, as host:port.
+     */
+    public void follow(String leaderAddress) {
+        synchronized (this) {
+            role = Role.FOLLOWER;
+            leader = leaderAddress;
+            lastHeard = System.nanoTime();
+        }
+        start();
+    }
+
+    private void start() {
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+            lastHeard = System.nanoTime();
+            timeoutNanos = jitteredTimeout();
+        }
+        scheduler.scheduleWithFixedDelay(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops taking part in elections. The node neither sends heartbeats nor starts elections again.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return The election's thread, for other periodic work of the node (e.g. registry heartbeats).
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public synchronized Role getRole() {
+        return role;
+    }
+
+    public synchronized long getTerm() {
+        return term;
+    }
+
+    /**
+     * @return The current leader's address, or null while an election is running.
+     */
+    public synchronized String getLeader() {
+        return role == Role.CANDIDATE ? null : leader;
+    }
+
+    /**
+     * Handles a received ELECTION, ELECTION_ANSWER, COORDINATOR or HEARTBEAT.
+     *
+     * @param message The received message.
+     */
+    public void handle(Message message) {
+        // Work is handed to the election's thread, so listener calls and sends never race each other
+        try {
+            scheduler.execute(() -> {
+                try {
+                    receive(message);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // Stopped
+        }
+    }
+
+    private void receive(Message message) {
+        Message.Election claim = message.getElection();
+        String sender = message.getAddress();
+        switch (message.getType()) {
+            case ELECTION:
+                onElection(sender, claim, message.getSequence());
+                break;
+            case ELECTION_ANSWER:
+                synchronized (this) {
+                    if (role == Role.CANDIDATE && claim.term >= term) {
+                        // A better candidate took over, wait for it to announce itself
+                        answered = true;
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                    }
+                }
+                break;
+            case COORDINATOR:
+            case HEARTBEAT:
+                onLeaderClaim(sender, claim, message.getSequence());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onElection(String candidate, Message.Election claim, long sequence) {
+        long mine = progress.getAsLong();
+        MessageType reply = null;
+        boolean run = false;
+        long replyTerm;
+        synchronized (this) {
+            if (role == Role.LEADER) {
+                // Still alive: the candidate just lost touch, and follows once it hears of this term
+                term = Math.max(term, claim.term);
+                reply = MessageType.COORDINATOR;
+            } else if (outranks(mine, nodeId, sequence, claim.nodeId)) {
+                reply = MessageType.ELECTION_ANSWER;
+                // While the leader still beats, it answers the candidate itself
+                boolean leaderAlive = role == Role.FOLLOWER && System.nanoTime() - lastHeard <= timeoutNanos;
+                run = !leaderAlive && (role != Role.CANDIDATE || term < claim.term);
+                term = Math.max(term, claim.term);
+            } else if (claim.term > term) {
+                // Let the better candidate win instead of timing out against it
+                term = claim.term;
+                role = Role.FOLLOWER;
+                lastHeard = System.nanoTime();
+            }
+            replyTerm = term;
+        }
+        if (reply != null) {
+            nodeComm.sendMessage(Message.election(reply, host, port, nodeId, replyTerm, mine), candidate);
+        }
+        if (run) {
+            startElection();
+        }
+    }
+
+    private void onLeaderClaim(String claimant, Message.Election claim, long sequence) {
+        boolean changed = false;
+        boolean contest = false;
+        long newTerm;
+        synchronized (this) {
+            boolean follow;
+            if (claim.term > term) {
+                follow = true;
+            } else if (claim.term < term) {
+                follow = false;
+                contest = role == Role.LEADER; // A stale leader, tell it who leads now
+            } else if (role == Role.LEADER && !claimant.equals(leader)) {
+                // Two leaders in one term: the better one keeps it
+                follow = outranks(sequence, claim.nodeId, progress.getAsLong(), nodeId);
+                contest = !follow;
+            } else {
+                follow = true;
+            }
+            if (follow) {
+                changed = role == Role.LEADER || !claimant.equals(leader);
+                role = Role.FOLLOWER;
+                term = claim.term;
+                leader = claimant;
+                lastHeard = System.nanoTime();
+            }
+            newTerm = term;
+        }
+        if (contest) {
+            nodeComm.sendMessage(Message.election(MessageType.COORDINATOR, host, port, nodeId, newTerm,
+                    progress.getAsLong()), claimant);
+        }
+        if (changed) {
+            System.out.printf("Following leader %s in term %d%n", claimant, newTerm);
+            listener.onLeader(claimant, newTerm);
+        }
+    }
+
+    /**
+     * Runs every interval: the leader sends heartbeats, a follower checks on the leader and a
+     * candidate checks on its election.
+     */
+    private void tick() {
+        try {
+            Role current;
+            long now = System.nanoTime();
+            boolean elected = false;
+            boolean restart = false;
+            long currentTerm;
+            synchronized (this) {
+                current = role;
+                if (role == Role.FOLLOWER && now - lastHeard > timeoutNanos) {
+                    restart = true;
+                    System.out.println("Lost contact with leader " + leader + ", starting an election");
+                } else if (role == Role.CANDIDATE && now - deadline > 0) {
+                    if (answered) {
+                        restart = true; // The better candidate failed too
+                    } else {
+                        role = Role.LEADER;
+                        leader = address();
+                        elected = true;
+                    }
+                }
+                currentTerm = term;
+            }
+
+            if (restart) {
+                startElection();
+            } else if (elected) {
+                System.out.printf("Elected leader in term %d%n", currentTerm);
+                listener.onElected(currentTerm);
+                broadcast(MessageType.COORDINATOR, currentTerm);
+            } else if (current == Role.LEADER) {
+                broadcast(MessageType.HEARTBEAT, currentTerm);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startElection() {
+        long newTerm;
+        synchronized (this) {
+            role = Role.CANDIDATE;
+            newTerm = ++term;
+            answered = false;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMs * 2);
+            timeoutNanos = jitteredTimeout();
+        }
+        broadcast(MessageType.ELECTION, newTerm);
+    }
+
+    private void broadcast(MessageType type, long currentTerm) {
+        List<String> targets = new ArrayList<>(peers.get());
+        String current;
+        synchronized (this) {
+            current = leader;
+        }
+        // A follower's peer list leaves out the leader, which must hear of elections while it is alive
+        if (current != null && !current.equals(address()) && !targets.contains(current)) {
+            targets.add(current);
+        }
+        if (!targets.isEmpty()) {
+            // Without waiting, so a dead peer never holds up the scheduler past a follower's timeout
+            nodeComm.broadcastMessageAsync(Message.election(type, host, port, nodeId, currentTerm,
+                    progress.getAsLong()), targets);
+        }
+    }
+
+    private long jitteredTimeout() {
+        return TimeUnit.MILLISECONDS.toNanos(timeoutMs + ThreadLocalRandom.current().nextLong(timeoutMs / 2 + 1));
+    }
+
+    private String address() {
+        return host + ":" + port;
+    }
+
+    /**
+     * @return true if a node that applied batches up to sequence a with ID idA should lead instead
+     *         of one that applied up to b with ID idB.
+     */
+    static boolean outranks(long a, int idA, long b, int idB) {
+        return a != b ? a > b : idA > idB;
+    }
+}
@@ -0,0 +1,792 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A single message exchanged between peers, independent of its wire format.
+ * Text messages keep the original "TYPE:payload" layout, while the binary format (see
+ * {@link BinaryCodec}) carries the same fields with UUIDs as two longs and options as indices.
+ */
+public final class Message {
+    private final MessageType type;
+    private final String host;
+    private final int port;
+    private final long uuidMsb;
+    private final long uuidLsb;
+    private final int optionIndex;
+    private final String option;
+    private final VotingOptions options;
+    private final List<String> peers;
+    private final String text;
+    private final long sequence;
+    private final List<VoteEntry> entries;
+    private final Message inner;
+    private final Sync sync;
+    private final Election election;
+    private final long requestId;
+
+    Message(MessageType type, String host, int port, long uuidMsb, long uuidLsb, int optionIndex, String option,
+            VotingOptions options, List<String> peers, String text) {
+        this(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text, 0, null, null, null, null,
+                0);
+    }
+
+    private Message(MessageType type, String host, int port, long uuidMsb, long uuidLsb, int optionIndex,
+            String option, VotingOptions options, List<String> peers, String text, long sequence,
+            List<VoteEntry> entries, Message inner, Sync sync, Election election, long requestId) {
+        this.type = type;
+        this.host = host;
+        this.port = port;
+        this.uuidMsb = uuidMsb;
+        this.uuidLsb = uuidLsb;
+        this.optionIndex = optionIndex;
+        this.option = option;
+        this.options = options;
+        this.peers = peers;
+        this.text = text;
+        this.sequence = sequence;
+        this.entries = entries;
+        this.inner = inner;
+        this.sync = sync;
+        this.election = election;
+        this.requestId = requestId;
+    }
+
+    /**
+     * Tags a copy of this message with a request ID, so a response can be matched to its request.
+     * Responses (ACK, DUPLICATE, INVALID) carry the ID of the request they answer.
+     *
+     * @param requestId The request ID, or 0 for none.
+     * @return The tagged copy.
+     */
+    public Message withRequestId(long requestId) {
+        return requestId == this.requestId ? this
+                : new Message(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text,
+                        sequence, entries, inner, sync, election, requestId);
+    }
+
+    /**
+     * @param sequence A batch sequence, peer list index, shard map epoch or last applied batch.
+     * @return A copy of this message carrying the number.
+     */
+    Message withSequence(long sequence) {
+        return new Message(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text,
+                sequence, entries, inner, sync, election, requestId);
+    }
+
+    /**
+     * @param entries The votes of a batch or bulk vote, not copied.
+     * @return A copy of this message carrying the votes.
+     */
+    Message withEntries(List<VoteEntry> entries) {
+        return new Message(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text,
+                sequence, entries, inner, sync, election, requestId);
+    }
+
+    private Message withInner(Message inner) {
+        return new Message(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text,
+                sequence, entries, inner, sync, election, requestId);
+    }
+
+    private Message withSync(Sync sync) {
+        return new Message(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text,
+                sequence, entries, inner, sync, election, requestId);
+    }
+
+    private Message withElection(Election election) {
+        return new Message(type, host, port, uuidMsb, uuidLsb, optionIndex, option, options, peers, text,
+                sequence, entries, inner, sync, election, requestId);
+    }
+
+    /**
+     * @return The request ID this message carries or answers, 0 if it has none.
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    private static Message ofText(MessageType type, String text) {
+        return new Message(type, null, 0, 0, 0, -1, null, null, null, text);
+    }
+
+    public static Message register(String host, int port) {
+        return new Message(MessageType.REGISTER, host, port, 0, 0, -1, null, null, null, null);
+    }
+
+    public static Message updateNewPeer(List<String> peers) {
+        return updateNewPeer(0, peers);
+    }
+
+    /**
+     * Tells peers about peers that joined, without resending the ones they already know.
+     *
+     * @param index The position of the first of {@code peers} in the leader's peer list.
+     * @param peers Consecutive peers of the leader's peer list.
+     * @return The message.
+     */
+    public static Message updateNewPeer(long index, List<String> peers) {
+        return new Message(MessageType.UPDATE_NEW_PEER, null, 0, 0, 0, -1, null, null,
+                Collections.unmodifiableList(new ArrayList<>(peers)), null).withSequence(index);
+    }
+
+    /**
+     * Tells peers which node coordinates each shard of the voters.
+     *
+     * @param epoch        The map's version, raised on every reassignment.
+     * @param coordinators The coordinator of every shard, by shard number.
+     * @return The message.
+     */
+    public static Message shardMap(long epoch, List<String> coordinators) {
+        return new Message(MessageType.SHARD_MAP, null, 0, 0, 0, -1, null, null,
+                Collections.unmodifiableList(new ArrayList<>(coordinators)), null).withSequence(epoch);
+    }
+
+    /**
+     * Creates a batch of votes accepted by a shard coordinator, forwarded to the leader. An empty
+     * batch tells the leader the coordinator is alive.
+     *
+     * @param host    The coordinator's host.
+     * @param port    The coordinator's port.
+     * @param epoch   The epoch of the shard map the votes were accepted under.
+     * @param entries The accepted votes in acceptance order.
+     * @return The batch message.
+     */
+    public static Message shardBatch(String host, int port, long epoch, List<VoteEntry> entries) {
+        return new Message(MessageType.SHARD_BATCH, host, port, 0, 0, -1, null, null, null, null).withSequence(epoch)
+                .withEntries(Collections.unmodifiableList(new ArrayList<>(entries)));
+    }
+
+    /**
+     * Asks a shard coordinator to forward every vote it accepted to the leader, answered once they
+     * are on their way.
+     */
+    public static Message shardFlush(String host, int port) {
+        return new Message(MessageType.SHARD_FLUSH, host, port, 0, 0, -1, null, null, null, null);
+    }
+
+    /**
+     * Creates a request carrying many voters' votes at once, e.g. from a kiosk forwarding the votes
+     * it collected. It is answered with a single BULK_VOTE_RESULT.
+     *
+     * @param host    The sender's host.
+     * @param port    The sender's port.
+     * @param entries The votes.
+     * @return The request.
+     */
+    public static Message bulkVote(String host, int port, List<VoteEntry> entries) {
+        return new Message(MessageType.BULK_VOTE, host, port, 0, 0, -1, null, null, null, null)
+                .withEntries(Collections.unmodifiableList(new ArrayList<>(entries)));
+    }
+
+    /**
+     * Answers a BULK_VOTE with one status per vote, in the order of the request. Each status is
+     * sent as a single character, its name's initial.
+     *
+     * @param results The status of every vote.
+     * @return The response.
+     */
+    public static Message bulkVoteResult(List<VoteReceipt.Status> results) {
+        StringBuilder sb = new StringBuilder(results.size());
+        for (VoteReceipt.Status status : results) {
+            sb.append(status.name().charAt(0));
+        }
+        return ofText(MessageType.BULK_VOTE_RESULT, sb.toString());
+    }
+
+    public static Message ack(String text) {
+        return ofText(MessageType.ACK, text);
+    }
+
+    public static Message duplicate(String text) {
+        return ofText(MessageType.DUPLICATE, text);
+    }
+
+    /**
+     * @param text Why the vote was rejected.
+     * @return The answer to a vote for an option the session does not have.
+     */
+    public static Message invalid(String text) {
+        return ofText(MessageType.INVALID, text);
+    }
+
+    public static Message vote(String host, int port, String option, UUID voter) {
+        return new Message(MessageType.VOTE, host, port, voter.getMostSignificantBits(),
+                voter.getLeastSignificantBits(), -1, option, null, null, null);
+    }
+
+    public static Message updateVoteTally(UUID voter, String option) {
+        return new Message(MessageType.UPDATE_VOTE_TALLY, null, 0, voter.getMostSignificantBits(),
+                voter.getLeastSignificantBits(), -1, option, null, null, null);
+    }
+
+    /**
+     * Creates a batch of accepted votes replicated by the leader.
+     *
+     * @param sequence The batch's position in the leader's stream of batches, starting at 1.
+     * @param entries  The accepted votes in acceptance order.
+     * @return The batch message.
+     */
+    public static Message voteBatch(long sequence, List<VoteEntry> entries) {
+        return new Message(MessageType.UPDATE_VOTE_BATCH, null, 0, 0, 0, -1, null, null, null, null)
+                .withSequence(sequence).withEntries(Collections.unmodifiableList(new ArrayList<>(entries)));
+    }
+
+    /**
+     * Wraps a message for tree fan-out: the receiver handles the inner message and forwards it to the targets.
+     *
+     * @param targets The peers the receiver is responsible for forwarding to.
+     * @param inner   The message being broadcast.
+     * @return The relay message.
+     */
+    public static Message relay(List<String> targets, Message inner) {
+        return new Message(MessageType.RELAY, null, 0, 0, 0, -1, null, null,
+                Collections.unmodifiableList(new ArrayList<>(targets)), null).withInner(inner);
+    }
+
+    /**
+     * Tells peers the leader now listens at a different address.
+     *
+     * @param host The leader's host.
+     * @param port The leader's port.
+     * @return The message.
+     */
+    public static Message leaderChanged(String host, int port) {
+        return new Message(MessageType.LEADER_CHANGED, host, port, 0, 0, -1, null, null, null, null);
+    }
+
+    /**
+     * Asks the leader for everything a follower missed.
+     *
+     * @param host       The follower's host.
+     * @param port       The follower's port.
+     * @param sequence   The last vote batch the follower applied.
+     * @param knownPeers The number of the leader's peers the follower knows, in the leader's order.
+     * @return The message.
+     */
+    public static Message syncRequest(String host, int port, long sequence, int knownPeers) {
+        return new Message(MessageType.SYNC_REQUEST, host, port, 0, 0, -1, null, null, null, null)
+                .withSequence(sequence).withSync(new Sync(knownPeers, null, new long[0], false));
+    }
+
+    /**
+     * Carries the leader's vote state to a follower too far behind for the missed batches to be
+     * resent. Large voter sets are split over several messages; only the first has the counts.
+     *
+     * @param sequence The last vote batch the state reflects.
+     * @param counts   The vote count of every option, or null on all but the first message.
+     * @param voters   Voter UUIDs as pairs of most and least significant bits.
+     * @param more     Whether more voters follow in another message.
+     * @return The message.
+     */
+    public static Message syncSnapshot(long sequence, Map<String, Long> counts, long[] voters, boolean more) {
+        return new Message(MessageType.SYNC_SNAPSHOT, null, 0, 0, 0, -1, null, null, null, null)
+                .withSequence(sequence)
+                .withSync(new Sync(0, counts == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(counts)),
+                        voters, more));
+    }
+
+    /**
+     * Creates one of the leader election messages: ELECTION, ELECTION_ANSWER, COORDINATOR or HEARTBEAT.
+     *
+     * @param type     The election message type.
+     * @param host     The sender's host.
+     * @param port     The sender's port.
+     * @param nodeId   The sender's node ID.
+     * @param term     The election term the sender is in.
+     * @param sequence The last vote batch the sender applied (or, for a leader, sent).
+     * @return The message.
+     */
+    public static Message election(MessageType type, String host, int port, int nodeId, long term, long sequence) {
+        return new Message(type, host, port, 0, 0, -1, null, null, null, null).withSequence(sequence)
+                .withElection(new Election(nodeId, term));
+    }
+
+    public static Message startVoting(String text) {
+        return ofText(MessageType.START_VOTING, text);
+    }
+
+    public static Message votingEnded(String text) {
+        return ofText(MessageType.VOTING_ENDED, text);
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The sender's address in the format "host:port".
+     */
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public long getUuidMostSignificantBits() {
+        return uuidMsb;
+    }
+
+    public long getUuidLeastSignificantBits() {
+        return uuidLsb;
+    }
+
+    public UUID getUuid() {
+        return new UUID(uuidMsb, uuidLsb);
+    }
+
+    /**
+     * Resolves the voted option, looking it up in the session's option table if the message
+     * only carried an index.
+     *
+     * @return The option name, or null if the index cannot be resolved.
+     */
+    public String getOption() {
+        if (option != null) {
+            return option;
+        }
+        return options == null ? null : options.get(optionIndex);
+    }
+
+    /**
+     * @return The option index as sent, or -1 if the option was sent by name.
+     */
+    public int getOptionIndex() {
+        return optionIndex;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public List<VoteEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The status of every vote of the BULK_VOTE a BULK_VOTE_RESULT answers, in order.
+     * @throws IllegalArgumentException If a status is unknown.
+     */
+    public List<VoteReceipt.Status> getResults() {
+        List<VoteReceipt.Status> results = new ArrayList<>(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            results.add(VoteReceipt.Status.fromInitial(text.charAt(i)));
+        }
+        return results;
+    }
+
+    /**
+     * @return The wrapped message of a RELAY.
+     */
+    public Message getInner() {
+        return inner;
+    }
+
+    /**
+     * @return The sender's node ID and term in an election message.
+     */
+    public Election getElection() {
+        return election;
+    }
+
+    /**
+     * @return The state of a SYNC_REQUEST or SYNC_SNAPSHOT.
+     */
+    public Sync getSync() {
+        return sync;
+    }
+
+    /**
+     * Encodes this message in the newline-free text format.
+     *
+     * @return The text form of the message.
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder(type.name());
+        if (requestId != 0) {
+            sb.append('#').append(requestId);
+        }
+        sb.append(':');
+        switch (type) {
+            case REGISTER:
+            case LEADER_CHANGED:
+            case SHARD_FLUSH:
+                sb.append(host).append(':').append(port);
+                break;
+            case UPDATE_NEW_PEER:
+            case SHARD_MAP:
+                sb.append(sequence).append(':').append(peers);
+                break;
+            case VOTE:
+                sb.append(host).append(':').append(port).append(':').append(getOption()).append(':').append(getUuid());
+                break;
+            case UPDATE_VOTE_TALLY:
+                sb.append(getUuid()).append(':').append(getOption());
+                break;
+            case SHARD_BATCH:
+            case BULK_VOTE:
+                // The host is length-prefixed since the batch that follows it is ':'-separated
+                sb.append(port).append(':').append(host.length()).append(':').append(host).append(':');
+                // Falls through to the batch itself
+            case UPDATE_VOTE_BATCH:
+                // Options are length-prefixed so they may contain any character
+                sb.append(sequence).append(':').append(entries.size());
+                for (VoteEntry entry : entries) {
+                    sb.append(':').append(entry.getUuid()).append(':').append(entry.option.length()).append(':')
+                            .append(entry.option);
+                }
+                break;
+            case RELAY: {
+                // The target list is length-prefixed since addresses contain ':'
+                String targets = String.join(",", peers);
+                sb.append(targets.length()).append(':').append(targets).append(':').append(inner.toText());
+                break;
+            }
+            case SYNC_REQUEST:
+                sb.append(host).append(':').append(port).append(':').append(sequence).append(':')
+                        .append(sync.knownPeers);
+                break;
+            case ELECTION:
+            case ELECTION_ANSWER:
+            case COORDINATOR:
+            case HEARTBEAT:
+                sb.append(host).append(':').append(port).append(':').append(election.nodeId).append(':')
+                        .append(election.term).append(':').append(sequence);
+                break;
+            case SYNC_SNAPSHOT: {
+                sb.append(sequence).append(':').append(sync.more ? 1 : 0).append(':');
+                if (sync.counts == null) {
+                    sb.append(-1);
+                } else {
+                    sb.append(sync.counts.size());
+                    sync.counts.forEach((option, count) -> sb.append(':').append(option.length()).append(':')
+                            .append(option).append(':').append(count));
+                }
+                sb.append(':').append(sync.voters.length / 2);
+                for (int i = 0; i < sync.voters.length; i += 2) {
+                    sb.append(':').append(new UUID(sync.voters[i], sync.voters[i + 1]));
+                }
+                break;
+            }
+            default:
+                sb.append(text);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    /**
+     * Parses a text message. Options may contain ':' since the UUID is always the last field of a VOTE.
+     * The type may be followed by a request ID, as in "VOTE#12:...".
+     *
+     * @param line A single received line.
+     * @return The parsed message.
+     * @throws IllegalArgumentException If the type is unknown or the payload is malformed.
+     */
+    public static Message parse(String line) {
+        int colon = line.indexOf(':');
+        int prefixEnd = colon < 0 ? line.length() : colon;
+        int hash = line.lastIndexOf('#', prefixEnd);
+        String prefix = line.substring(0, hash < 0 ? prefixEnd : hash);
+        MessageType type = MessageType.fromPrefix(prefix);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown message type: " + prefix);
+        }
+        String payload = colon < 0 ? "" : line.substring(colon + 1);
+
+        if (hash >= 0) {
+            try {
+                return parse(type, line, payload).withRequestId(Long.parseLong(line, hash + 1, prefixEnd, 10));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed request ID: " + line, e);
+            }
+        }
+        return parse(type, line, payload);
+    }
+
+    private static Message parse(MessageType type, String line, String payload) {
+
+        try {
+            switch (type) {
+                case REGISTER:
+                case LEADER_CHANGED:
+                case SHARD_FLUSH: {
+                    int sep = payload.lastIndexOf(':');
+                    return new Message(type, payload.substring(0, sep),
+                            Integer.parseInt(payload.substring(sep + 1).trim()), 0, 0, -1, null, null, null, null);
+                }
+                case UPDATE_NEW_PEER: {
+                    // Peer lists used to be sent without an index, as the whole list
+                    String list = payload.trim();
+                    if (list.startsWith("[")) {
+                        return updateNewPeer(parsePeerList(list));
+                    }
+                    int sep = list.indexOf(':');
+                    return updateNewPeer(Long.parseLong(list, 0, sep, 10), parsePeerList(list.substring(sep + 1)));
+                }
+                case SHARD_MAP: {
+                    int sep = payload.indexOf(':');
+                    return shardMap(Long.parseLong(payload, 0, sep, 10), parsePeerList(payload.substring(sep + 1)));
+                }
+                case SHARD_BATCH:
+                case BULK_VOTE: {
+                    int portEnd = payload.indexOf(':');
+                    int lengthEnd = payload.indexOf(':', portEnd + 1);
+                    int hostEnd = lengthEnd + 1 + Integer.parseInt(payload, portEnd + 1, lengthEnd, 10);
+                    Message batch = parseVoteBatch(payload.substring(hostEnd + 1));
+                    return new Message(type, payload.substring(lengthEnd + 1, hostEnd),
+                            Integer.parseInt(payload, 0, portEnd, 10), 0, 0, -1, null, null, null, null)
+                            .withSequence(batch.getSequence()).withEntries(batch.getEntries());
+                }
+                case VOTE: {
+                    int hostEnd = payload.indexOf(':');
+                    int portEnd = payload.indexOf(':', hostEnd + 1);
+                    int uuidStart = payload.lastIndexOf(':');
+                    if (hostEnd < 0 || portEnd < 0 || uuidStart <= portEnd) {
+                        throw new IllegalArgumentException("Malformed vote: " + line);
+                    }
+                    long[] uuid = parseUuid(payload, uuidStart + 1, payload.length());
+                    return new Message(type, payload.substring(0, hostEnd),
+                            Integer.parseInt(payload, hostEnd + 1, portEnd, 10), uuid[0], uuid[1], -1,
+                            payload.substring(portEnd + 1, uuidStart), null, null, null);
+                }
+                case UPDATE_VOTE_TALLY: {
+                    int sep = payload.indexOf(':');
+                    if (sep < 0) {
+                        throw new IllegalArgumentException("Malformed tally update: " + line);
+                    }
+                    long[] uuid = parseUuid(payload, 0, sep);
+                    return new Message(type, null, 0, uuid[0], uuid[1], -1, payload.substring(sep + 1).trim(), null,
+                            null, null);
+                }
+                case UPDATE_VOTE_BATCH:
+                    return parseVoteBatch(payload);
+                case RELAY: {
+                    int lengthEnd = payload.indexOf(':');
+                    int targetsEnd = lengthEnd + 1 + Integer.parseInt(payload, 0, lengthEnd, 10);
+                    List<String> targets = parsePeerList(payload.substring(lengthEnd + 1, targetsEnd));
+                    return relay(targets, parse(payload.substring(targetsEnd + 1)));
+                }
+                case SYNC_REQUEST: {
+                    int knownStart = payload.lastIndexOf(':');
+                    int seqStart = payload.lastIndexOf(':', knownStart - 1);
+                    int portStart = payload.lastIndexOf(':', seqStart - 1);
+                    return syncRequest(payload.substring(0, portStart),
+                            Integer.parseInt(payload, portStart + 1, seqStart, 10),
+                            Long.parseLong(payload, seqStart + 1, knownStart, 10),
+                            Integer.parseInt(payload, knownStart + 1, payload.length(), 10));
+                }
+                case SYNC_SNAPSHOT:
+                    return parseSyncSnapshot(payload);
+                case ELECTION:
+                case ELECTION_ANSWER:
+                case COORDINATOR:
+                case HEARTBEAT: {
+                    // The host may contain ':' (IPv6), so the fields are read from the right
+                    int seqStart = payload.lastIndexOf(':');
+                    int termStart = payload.lastIndexOf(':', seqStart - 1);
+                    int idStart = payload.lastIndexOf(':', termStart - 1);
+                    int portStart = payload.lastIndexOf(':', idStart - 1);
+                    return election(type, payload.substring(0, portStart),
+                            Integer.parseInt(payload, portStart + 1, idStart, 10),
+                            Integer.parseInt(payload, idStart + 1, termStart, 10),
+                            Long.parseLong(payload, termStart + 1, seqStart, 10),
+                            Long.parseLong(payload, seqStart + 1, payload.length(), 10));
+                }
+                default:
+                    return ofText(type, payload);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed message: " + line, e);
+        }
+    }
+
+    private static Message parseVoteBatch(String payload) {
+        int seqEnd = payload.indexOf(':');
+        int countEnd = payload.indexOf(':', seqEnd + 1);
+        long sequence = Long.parseLong(payload, 0, seqEnd, 10);
+        int count = Integer.parseInt(payload, seqEnd + 1, countEnd < 0 ? payload.length() : countEnd, 10);
+
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative vote count: " + count);
+        }
+
+        // Like the binary decoder, only trust the count as far as entries actually arrive
+        List<VoteEntry> entries = new ArrayList<>(Math.min(count, 4096));
+        int pos = countEnd + 1;
+        for (int i = 0; i < count; i++) {
+            long[] uuid = parseUuid(payload, pos, pos + 36);
+            int lengthEnd = payload.indexOf(':', pos + 37);
+            int length = Integer.parseInt(payload, pos + 37, lengthEnd, 10);
+            entries.add(new VoteEntry(uuid[0], uuid[1], payload.substring(lengthEnd + 1, lengthEnd + 1 + length)));
+            pos = lengthEnd + 2 + length;
+        }
+        return new Message(MessageType.UPDATE_VOTE_BATCH, null, 0, 0, 0, -1, null, null, null, null)
+                .withSequence(sequence).withEntries(Collections.unmodifiableList(entries));
+    }
+
+    private static Message parseSyncSnapshot(String payload) {
+        int[] pos = { 0 };
+        long sequence = Long.parseLong(nextField(payload, pos));
+        boolean more = "1".equals(nextField(payload, pos));
+        int countCount = Integer.parseInt(nextField(payload, pos));
+        Map<String, Long> counts = null;
+        if (countCount >= 0) {
+            counts = new LinkedHashMap<>();
+            for (int i = 0; i < countCount; i++) {
+                String option = lengthPrefixed(payload, pos);
+                counts.put(option, Long.parseLong(nextField(payload, pos)));
+            }
+        }
+        int voterCount = Integer.parseInt(nextField(payload, pos));
+        // Every voter takes a UUID and its separator, so a larger count cannot be genuine
+        if (voterCount < 0 || voterCount > (payload.length() - pos[0] + 1) / 37) {
+            throw new IllegalArgumentException("Invalid voter count: " + voterCount);
+        }
+        long[] voters = new long[voterCount * 2];
+        for (int i = 0; i < voterCount; i++) {
+            long[] uuid = parseUuid(payload, pos[0], pos[0] + 36);
+            voters[i * 2] = uuid[0];
+            voters[i * 2 + 1] = uuid[1];
+            pos[0] += 37;
+        }
+        return syncSnapshot(sequence, counts, voters, more);
+    }
+
+    // Reads up to the next ':' (or the end) and moves past it
+    private static String nextField(String payload, int[] pos) {
+        int end = payload.indexOf(':', pos[0]);
+        if (end < 0) {
+            end = payload.length();
+        }
+        String field = payload.substring(pos[0], end);
+        pos[0] = end + 1;
+        return field;
+    }
+
+    // Reads a "length:value" field whose value may contain ':'
+    private static String lengthPrefixed(String payload, int[] pos) {
+        int length = Integer.parseInt(nextField(payload, pos));
+        String value = payload.substring(pos[0], pos[0] + length);
+        pos[0] += length + 1;
+        return value;
+    }
+
+    private static List<String> parsePeerList(String list) {
+        // Peer lists are sent as List.toString(), e.g. "[localhost:5000, localhost:5001]"
+        if (list.startsWith("[") && list.endsWith("]")) {
+            list = list.substring(1, list.length() - 1);
+        }
+        List<String> peers = new ArrayList<>();
+        for (String peer : list.split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        return Collections.unmodifiableList(peers);
+    }
+
+    /**
+     * Parses a UUID in canonical 8-4-4-4-12 form straight into its two halves.
+     */
+    private static long[] parseUuid(String s, int from, int to) {
+        if (to - from != 36 || s.charAt(from + 8) != '-' || s.charAt(from + 13) != '-'
+                || s.charAt(from + 18) != '-' || s.charAt(from + 23) != '-') {
+            UUID uuid = UUID.fromString(s.substring(from, to).trim());
+            return new long[] { uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() };
+        }
+        long msb = parseHex(s, from, from + 8) << 32 | parseHex(s, from + 9, from + 13) << 16
+                | parseHex(s, from + 14, from + 18);
+        long lsb = parseHex(s, from + 19, from + 23) << 48 | parseHex(s, from + 24, from + 36);
+        return new long[] { msb, lsb };
+    }
+
+    private static long parseHex(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid UUID: " + s.substring(from, to));
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * The state synchronization fields of a SYNC_REQUEST or SYNC_SNAPSHOT.
+     */
+    public static final class Sync {
+        /** The number of the leader's peers the requesting follower knows. */
+        public final int knownPeers;
+        /** The vote count of every option, only in the first SYNC_SNAPSHOT of a transfer. */
+        public final Map<String, Long> counts;
+        /** Voter UUIDs as pairs of most and least significant bits. */
+        public final long[] voters;
+        /** Whether more SYNC_SNAPSHOT messages of the same transfer follow. */
+        public final boolean more;
+
+        Sync(int knownPeers, Map<String, Long> counts, long[] voters, boolean more) {
+            this.knownPeers = knownPeers;
+            this.counts = counts;
+            this.voters = voters;
+            this.more = more;
+        }
+    }
+
+    /**
+     * The sender's identity in a leader election message.
+     */
+    public static final class Election {
+        /** The sender's node ID, which breaks ties between equally up-to-date candidates. */
+        public final int nodeId;
+        /** The election term; a higher term supersedes every leader of a lower one. */
+        public final long term;
+
+        Election(int nodeId, long term) {
+            this.nodeId = nodeId;
+            this.term = term;
+        }
+    }
+
+    /**
+     * A single vote inside a replicated, forwarded or bulk batch.
+     */
+    public static final class VoteEntry {
+        public final long uuidMsb;
+        public final long uuidLsb;
+        public final String option;
+
+        public VoteEntry(long uuidMsb, long uuidLsb, String option) {
+            this.uuidMsb = uuidMsb;
+            this.uuidLsb = uuidLsb;
+            this.option = option;
+        }
+
+        public UUID getUuid() {
+            return new UUID(uuidMsb, uuidLsb);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.muteebaa.app;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Routes parsed messages to the handler registered for their type.
+ * Handlers live in an array indexed by the type's ordinal, so dispatch is a single lookup, and
+ * every type keeps a message counter and a histogram of its handling time.
+ */
+public class MessageDispatcher {
+    private static final MessageType[] TYPES = MessageType.values();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final Consumer<Message>[] handlers = new Consumer[TYPES.length];
+    private final LongAdder[] counts = new LongAdder[TYPES.length];
+    private final LatencyHistogram[] timings = new LatencyHistogram[TYPES.length];
+    private final LongAdder unhandled = new LongAdder();
+
+    public MessageDispatcher() {
+        for (int i = 0; i < TYPES.length; i++) {
+            counts[i] = new LongAdder();
+            timings[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Registers the handler for a message type, replacing any previous one.
+     *
+     * @param type    The message type.
+     * @param handler The handler.
+     * @return This dispatcher, for chaining.
+     */
+    public MessageDispatcher register(MessageType type, Consumer<Message> handler) {
+        handlers[type.ordinal()] = handler;
+        return this;
+    }
+
+    /**
+     * Runs the handler registered for the message's type.
+     *
+     * @param message The message to handle.
+     * @return false if no handler is registered for the message's type.
+     */
+    public boolean dispatch(Message message) {
+        int slot = message.getType().ordinal();
+        Consumer<Message> handler = handlers[slot];
+        if (handler == null) {
+            unhandled.increment();
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            handler.accept(message);
+        } finally {
+            timings[slot].record(System.nanoTime() - start);
+            counts[slot].increment();
+        }
+        return true;
+    }
+
+    /**
+     * @param type The message type.
+     * @return The number of messages of that type handled so far.
+     */
+    public long getCount(MessageType type) {
+        return counts[type.ordinal()].sum();
+    }
+
+    /**
+     * @param type The message type.
+     * @return The handling time histogram of that type.
+     */
+    public LatencyHistogram getTimings(MessageType type) {
+        return timings[type.ordinal()];
+    }
+
+    /**
+     * @return The number of messages dropped because no handler was registered for their type.
+     */
+    public long getUnhandledCount() {
+        return unhandled.sum();
+    }
+
+    /**
+     * @return A human-readable summary of every message type seen so far.
+     */
+    public Map<MessageType, String> getStats() {
+        Map<MessageType, String> stats = new EnumMap<>(MessageType.class);
+        for (MessageType type : TYPES) {
+            if (getCount(type) > 0) {
+                stats.put(type, getTimings(type).toString());
+            }
+        }
+        return stats;
+    }
+}
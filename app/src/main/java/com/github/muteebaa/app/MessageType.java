@@ -0,0 +1,71 @@
+package com.github.muteebaa.app;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The kinds of messages exchanged between peers.
+ * Each type has a text prefix (the part before the first ':' of a text message) and a tag byte
+ * identifying it in the binary wire format.
+ */
+public enum MessageType {
+    REGISTER(1),
+    UPDATE_NEW_PEER(2),
+    ACK(3),
+    VOTE(4),
+    DUPLICATE(5),
+    UPDATE_VOTE_TALLY(6),
+    START_VOTING(7),
+    VOTING_ENDED(8),
+    UPDATE_VOTE_BATCH(9),
+    RELAY(10),
+    LEADER_CHANGED(11),
+    SYNC_REQUEST(12),
+    SYNC_SNAPSHOT(13),
+    ELECTION(14),
+    ELECTION_ANSWER(15),
+    COORDINATOR(16),
+    HEARTBEAT(17),
+    SHARD_MAP(18),
+    SHARD_BATCH(19),
+    SHARD_FLUSH(20),
+    BULK_VOTE(21),
+    BULK_VOTE_RESULT(22),
+    INVALID(23);
+
+    private static final MessageType[] BY_TAG = new MessageType[128];
+    private static final Map<String, MessageType> BY_PREFIX = new HashMap<>();
+
+    static {
+        for (MessageType type : values()) {
+            BY_TAG[type.tag] = type;
+            BY_PREFIX.put(type.name(), type);
+        }
+    }
+
+    public final byte tag;
+
+    MessageType(int tag) {
+        this.tag = (byte) tag;
+    }
+
+    /**
+     * Looks up a type by its binary tag.
+     *
+     * @param tag The tag byte.
+     * @return The matching type, or null if the tag is unknown.
+     */
+    public static MessageType fromTag(byte tag) {
+        return tag > 0 ? BY_TAG[tag] : null;
+    }
+
+    /**
+     * Looks up a type by its text prefix.
+     *
+     * @param prefix The text before the first ':' of a message.
+     * @return The matching type, or null if the prefix is unknown.
+     */
+    public static MessageType fromPrefix(String prefix) {
+        return BY_PREFIX.get(prefix);
+    }
+}
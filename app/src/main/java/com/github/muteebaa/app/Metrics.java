@@ -0,0 +1,162 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A node's counters, gauges and latency histograms, rendered in the Prometheus text format.
+ *
+ * Nothing is stored here. Each registered collector reads the counters its component already keeps
+ * whenever the metrics are scraped, so instrumented code pays only for its own increments and
+ * nothing at all while no one is scraping.
+ */
+public class Metrics {
+    // Histogram buckets reported, from about 1 microsecond to about 69 seconds
+    private static final int FIRST_BUCKET = 9;
+    private static final int LAST_BUCKET = 35;
+
+    /**
+     * Reports the current values of a component's metrics.
+     */
+    @FunctionalInterface
+    public interface Collector {
+        void collect(Writer out);
+    }
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param collector Reports metrics on every scrape from now on.
+     */
+    public void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    /**
+     * Collects every metric.
+     *
+     * @return The metrics in the Prometheus text format, version 0.0.4.
+     */
+    public String scrape() {
+        Writer out = new Writer();
+        for (Collector collector : collectors) {
+            try {
+                collector.collect(out);
+            } catch (RuntimeException e) {
+                // One broken collector must not hide every other metric
+                System.err.println("Failed to collect metrics: " + e);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Gathers samples by metric family, so a family reported by several collectors still comes out
+     * as one block, as the format requires. Labels are given as name, value pairs.
+     */
+    public static final class Writer {
+        private final Map<String, Family> families = new LinkedHashMap<>();
+
+        /**
+         * Reports a value that only grows. The name should end in _total.
+         */
+        public Writer counter(String name, String help, double value, String... labels) {
+            family(name, "counter", help).samples.add(sample(name, labels, null, value));
+            return this;
+        }
+
+        /**
+         * Reports a value that can go up and down.
+         */
+        public Writer gauge(String name, String help, double value, String... labels) {
+            family(name, "gauge", help).samples.add(sample(name, labels, null, value));
+            return this;
+        }
+
+        /**
+         * Reports a latency histogram in seconds. The name should end in _seconds.
+         */
+        public Writer histogram(String name, String help, LatencyHistogram histogram, String... labels) {
+            List<String> samples = family(name, "histogram", help).samples;
+            long[] counts = histogram.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (i >= FIRST_BUCKET && i <= LAST_BUCKET) {
+                    samples.add(sample(name + "_bucket", labels,
+                            format(LatencyHistogram.upperBound(i) / 1e9), cumulative));
+                }
+            }
+            samples.add(sample(name + "_bucket", labels, "+Inf", cumulative));
+            samples.add(sample(name + "_sum", labels, null, histogram.getSum() / 1e9));
+            samples.add(sample(name + "_count", labels, null, cumulative));
+            return this;
+        }
+
+        private Family family(String name, String type, String help) {
+            Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException(name + " is already reported as a " + family.type);
+            }
+            return family;
+        }
+
+        private static String sample(String name, String[] labels, String le, double value) {
+            StringBuilder sb = new StringBuilder(name);
+            if (labels.length > 0 || le != null) {
+                sb.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    sb.append(i == 0 ? "" : ",").append(labels[i]).append("=\"").append(escape(labels[i + 1]))
+                            .append('"');
+                }
+                if (le != null) {
+                    sb.append(labels.length > 0 ? "," : "").append("le=\"").append(le).append('"');
+                }
+                sb.append('}');
+            }
+            return sb.append(' ').append(format(value)).toString();
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        private static String format(double value) {
+            if (Double.isNaN(value)) {
+                return "NaN";
+            }
+            if (Double.isInfinite(value)) {
+                return value > 0 ? "+Inf" : "-Inf";
+            }
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                return Long.toString((long) value);
+            }
+            return Double.toString(value);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            families.forEach((name, family) -> {
+                sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                family.samples.forEach(sample -> sb.append(sample).append('\n'));
+            });
+            return sb.toString();
+        }
+    }
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final List<String> samples = new ArrayList<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.github.muteebaa.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking server for peer messages.
+ * A single selector thread accepts connections and reads from all of them into one reusable
+ * direct buffer. Complete lines or binary frames are handed to a fixed set of handler threads;
+ * every connection is pinned to one of them so its messages are still handled in the order they
+ * were sent.
+ *
+ * The selector thread never waits for a handler thread. Once one has a full queue, the connections
+ * pinned to it are no longer read until it has worked through half of its queue, so a slow handler
+ * only holds up its own peers.
+ */
+public class NioMessageServer implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MESSAGE_LENGTH = BinaryCodec.MAX_FRAME_SIZE + BinaryCodec.HEADER_SIZE;
+
+    private final Consumer<String> lineHandler;
+    private final Consumer<Message> messageHandler;
+    private final Worker[] workers;
+    private final Queue<SelectionKey> resumed = new ConcurrentLinkedQueue<>(); // To read again, by the selector
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /**
+     * Binds the server socket. Nothing is accepted until {@link #run()} is called.
+     *
+     * @param port           The port to listen on.
+     * @param lineHandler    A callback to handle received text messages.
+     * @param messageHandler A callback to handle received binary messages.
+     * @param workerCount    The number of handler threads.
+     * @param queueCapacity  The number of messages each handler thread may have queued before its
+     *                       connections stop being read.
+     * @throws IOException If the port cannot be bound.
+     */
+    public NioMessageServer(int port, Consumer<String> lineHandler, Consumer<Message> messageHandler,
+            int workerCount, int queueCapacity) throws IOException {
+        this.lineHandler = lineHandler;
+        this.messageHandler = messageHandler;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, queueCapacity);
+        }
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Runs the selector loop on the calling thread until the server is closed.
+     */
+    public void run() {
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+                SelectionKey drained;
+                while ((drained = resumed.poll()) != null) {
+                    if (drained.isValid()) {
+                        drained.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+            // Server was closed
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+            channel.register(selector, SelectionKey.OP_READ, new ConnectionReader(worker));
+            connectionsAccepted.increment();
+            openConnections.incrementAndGet();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ConnectionReader reader = (ConnectionReader) key.attachment();
+        try {
+            int n;
+            do {
+                readBuffer.clear();
+                n = channel.read(readBuffer);
+                if (n > 0) {
+                    bytesReceived.add(n);
+                    readBuffer.flip();
+                    reader.consume(readBuffer);
+                }
+            } while (n == READ_BUFFER_SIZE && !reader.worker.isFull());
+
+            if (n < 0) {
+                closeChannel(key);
+            } else if (reader.worker.isFull()) {
+                reader.worker.pause(key);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Peer went away mid-stream or sent garbage, it will reconnect on its next send
+            System.err.println("Connection closed by peer: " + e.getMessage());
+            closeChannel(key);
+        }
+    }
+
+    private void closeChannel(SelectionKey key) {
+        openConnections.decrementAndGet();
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Channel is being discarded anyways
+        }
+    }
+
+    /**
+     * @return The number of connections accepted so far.
+     */
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    /**
+     * @return The number of accepted connections still open.
+     */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * @return The number of bytes read from all connections so far.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @return The number of received messages waiting for a handler thread.
+     */
+    public int getQueuedMessages() {
+        int queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.queued.get();
+        }
+        return queued;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close(); // Peers see the connection drop instead of writing into the void
+        }
+        selector.close();
+        for (Worker worker : workers) {
+            worker.executor.shutdown();
+        }
+    }
+
+    /**
+     * Reassembles the messages of one connection from its partial reads.
+     * The first byte decides whether the connection carries text lines or binary frames.
+     */
+    private class ConnectionReader {
+        private final Worker worker;
+        private Boolean binary;
+        private boolean versionChecked;
+        private byte[] pending = new byte[256];
+        private int length;
+        private BinaryCodec.Decoder decoder;
+
+        ConnectionReader(Worker worker) {
+            this.worker = worker;
+        }
+
+        void consume(ByteBuffer buffer) throws IOException {
+            if (binary == null && buffer.hasRemaining()) {
+                binary = buffer.get(buffer.position()) == BinaryCodec.MAGIC;
+                if (binary) {
+                    buffer.get();
+                    decoder = new BinaryCodec.Decoder();
+                }
+            }
+            if (Boolean.TRUE.equals(binary)) {
+                consumeFrames(buffer);
+            } else {
+                consumeLines(buffer);
+            }
+        }
+
+        private void consumeLines(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    emitLine();
+                    continue;
+                }
+                append(b);
+            }
+        }
+
+        private void consumeFrames(ByteBuffer buffer) throws IOException {
+            if (!versionChecked && buffer.hasRemaining()) {
+                byte version = buffer.get();
+                if (version != BinaryCodec.VERSION) {
+                    throw new IOException("Unsupported binary protocol version " + version);
+                }
+                versionChecked = true;
+            }
+            int n = buffer.remaining();
+            ensureCapacity(length + n);
+            buffer.get(pending, length, n);
+            length += n;
+
+            ByteBuffer frames = ByteBuffer.wrap(pending, 0, length);
+            decoder.decodeAll(frames, message -> worker.execute(() -> handle(messageHandler, message)));
+            // Keep the trailing partial frame for the next read
+            int consumed = frames.position();
+            System.arraycopy(pending, consumed, pending, 0, length - consumed);
+            length -= consumed;
+        }
+
+        private void append(byte b) throws IOException {
+            ensureCapacity(length + 1);
+            pending[length++] = b;
+        }
+
+        private void ensureCapacity(int needed) throws IOException {
+            if (needed <= pending.length) {
+                return;
+            }
+            if (needed > MAX_MESSAGE_LENGTH + READ_BUFFER_SIZE) {
+                throw new IOException("Message exceeds " + MAX_MESSAGE_LENGTH + " bytes");
+            }
+            pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+        }
+
+        private void emitLine() {
+            int end = length;
+            if (end > 0 && pending[end - 1] == '\r') {
+                end--;
+            }
+            length = 0;
+            if (end == 0) {
+                return;
+            }
+            String message = new String(pending, 0, end, StandardCharsets.UTF_8);
+            worker.execute(() -> handle(lineHandler, message));
+        }
+    }
+
+    /**
+     * One handler thread, and the connections whose reads wait for it to catch up.
+     */
+    private class Worker {
+        final ThreadPoolExecutor executor;
+        final AtomicInteger queued = new AtomicInteger(); // Messages handed over and not handled yet
+        private final int capacity;
+        private final Queue<SelectionKey> paused = new ConcurrentLinkedQueue<>();
+
+        Worker(int index, int capacity) {
+            this.capacity = capacity;
+            // Unbounded, as the messages of a read are handed over whole; reads pause instead
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "nio-handler-" + index);
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+        }
+
+        void execute(Runnable task) {
+            queued.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    if (queued.decrementAndGet() <= capacity / 2) {
+                        resume();
+                    }
+                }
+            });
+        }
+
+        boolean isFull() {
+            return queued.get() >= capacity;
+        }
+
+        /**
+         * Stops reading a connection until this worker catches up. Called on the selector thread.
+         */
+        void pause(SelectionKey key) {
+            key.interestOps(0);
+            paused.add(key);
+            // The queue may have drained before the key was added, with nobody left to resume it
+            if (queued.get() <= capacity / 2) {
+                resume();
+            }
+        }
+
+        private void resume() {
+            SelectionKey key;
+            boolean any = false;
+            while ((key = paused.poll()) != null) {
+                resumed.add(key);
+                any = true;
+            }
+            if (any) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private static <T> void handle(Consumer<T> handler, T message) {
+        try {
+            handler.accept(message);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -2,150 +2,589 @@ package com.github.muteebaa.app;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 
 //String filePath = System.getProperty("user.home")
 /**
  * Handles peer-to-peer communication between nodes.
- * Supports message sending, receiving, peer tracking, and voting tallying.
+ * Supports message sending, receiving and broadcasting to peers.
  */
 public class NodeCommunication {
+    private static final long FAILURE_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final NodeConfig.ServerMode serverMode;
+    private final NodeConfig.WireFormat wireFormat;
+    private volatile VotingOptions votingOptions; // Lets the binary format send options as indices
     private ServerSocket serverSocket;
-    private Socket clientSocket;
-    private final Map<String, Integer> voteTally = new HashMap<>();
-    private Consumer<String> messageHandler; // Callback function for message handling
+    private volatile NioMessageServer nioServer; // Read by metrics scrapes
+    private volatile int localPort = -1;
+    private volatile boolean stopped;
+    private final Set<Socket> accepted = ConcurrentHashMap.newKeySet(); // Inbound connections in blocking mode
+    private final LongAdder connectionsAccepted = new LongAdder(); // In blocking mode
+    private final LongAdder bytesReceived = new LongAdder(); // In blocking mode
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>(); // Keyed by "host:port"
+    // The last asynchronous send to each peer, which the next one to that peer waits for
+    private final Map<String, CompletableFuture<BroadcastResult>> sendQueues = new ConcurrentHashMap<>();
+    // Per peer: System.nanoTime() of the last logged broadcast failure, and the failures not logged since
+    private final Map<String, long[]> failureLogs = new ConcurrentHashMap<>();
+    private final NodeConfig.BroadcastMode broadcastMode = NodeConfig.broadcastMode();
+    private final NodeExecutors executors;
+    private final ExecutorService broadcastPool;
+    private Consumer<Message> messageHandler; // Callback function for message handling
+
+    /**
+     * Creates a node communicator using the server mode and wire format chosen at startup.
+     */
+    public NodeCommunication() {
+        this(NodeConfig.serverMode(), NodeConfig.wireFormat());
+    }
+
+    /**
+     * Creates a node communicator that sends text messages.
+     *
+     * @param serverMode How inbound peer connections are accepted and read.
+     */
+    public NodeCommunication(NodeConfig.ServerMode serverMode) {
+        this(serverMode, NodeConfig.WireFormat.TEXT);
+    }
 
     /**
-     * Starts a server to listen for incoming peer connections.
+     * Creates a node communicator running on the thread mode chosen at startup.
+     *
+     * @param serverMode How inbound peer connections are accepted and read.
+     * @param wireFormat The format outgoing messages are encoded in.
+     */
+    public NodeCommunication(NodeConfig.ServerMode serverMode, NodeConfig.WireFormat wireFormat) {
+        this(serverMode, wireFormat, new NodeExecutors(NodeConfig.threadMode()));
+    }
+
+    /**
+     * Creates a node communicator.
+     *
+     * @param serverMode How inbound peer connections are accepted and read.
+     * @param wireFormat The format outgoing messages are encoded in.
+     * @param executors  Supplies the threads that read connections in blocking mode and send broadcasts.
+     */
+    public NodeCommunication(NodeConfig.ServerMode serverMode, NodeConfig.WireFormat wireFormat,
+            NodeExecutors executors) {
+        this.serverMode = serverMode;
+        this.wireFormat = wireFormat;
+        this.executors = executors;
+        this.broadcastPool = executors.newExecutor("broadcast", NodeConfig.broadcastThreads());
+    }
+
+    /**
+     * @return The source of this node's network threads.
+     */
+    public NodeExecutors getExecutors() {
+        return executors;
+    }
+
+    /**
+     * Sets the option table of the current session so binary messages can refer to options by index.
+     *
+     * @param votingOptions The session's options.
+     */
+    public void setVotingOptions(VotingOptions votingOptions) {
+        this.votingOptions = votingOptions;
+    }
+
+    /**
+     * @return The option table of the current session, or null if it is not known yet.
+     */
+    public VotingOptions getVotingOptions() {
+        return votingOptions;
+    }
+
+    /**
+     * Starts a server to listen for incoming peer connections. Blocks until the server stops.
+     * Each connection may use either the text or the binary wire format.
      *
      * @param port    The port to listen on.
      * @param handler A callback to handle received messages.
      */
-    public void startServer(int port, Consumer<String> handler) {
+    public void startServer(int port, Consumer<Message> handler) {
         this.messageHandler = handler;
-        
+
+        if (serverMode == NodeConfig.ServerMode.NIO) {
+            startNioServer(port);
+            return;
+        }
+
         try {
             serverSocket = new ServerSocket(port);
+            localPort = serverSocket.getLocalPort();
             while (true) {
                 Socket socket = serverSocket.accept();
-                new Thread(() -> handleIncomingMessage(socket)).start(); // Run message handling on a new thread
+                accepted.add(socket);
+                connectionsAccepted.increment();
+                // One thread per connection; cheap enough for tens of thousands of peers with virtual threads
+                executors.start("peer-" + socket.getRemoteSocketAddress(), () -> {
+                    try {
+                        handleIncomingMessage(socket);
+                    } finally {
+                        accepted.remove(socket);
+                    }
+                });
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!stopped) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Establishes a connection to another node.
+     * Stops the server and drops every connection, so peers notice this node is gone on their next
+     * send. Nothing is sent from then on.
+     */
+    public void stop() {
+        stopped = true;
+        closeConnections();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to stop the server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The port the server listens on, or -1 if it has not started yet.
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Runs the selector-based server, dispatching complete messages to the message handler.
      *
-     * @param host The hostname or IP address.
-     * @param port The port number.
+     * @param port The port to listen on.
      */
-    public void connectToNode(String host, int port) {
+    private void startNioServer(int port) {
         try {
-            clientSocket = new Socket(host, port);
+            nioServer = new NioMessageServer(port, this::dispatchLine, this::dispatch, NodeConfig.serverWorkers(),
+                    NodeConfig.serverQueueCapacity());
+            localPort = nioServer.getLocalPort();
+            nioServer.run();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Sends a message through the specified socket.
+     * Sends a message to another node, reusing the pooled connection to it if one is open.
      *
-     * @param message The message to send.
-     * @param socket  The socket to send through.
+     * @param message     The message to send.
+     * @param peerAddress The peer address in the format "host:port".
+     * @return true if the message was written to the peer's connection.
      */
-    public void sendMessage(String message, Socket socket) {
-        try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(message);
-        } catch (IOException e) {
-            e.printStackTrace(); // Print the full exception stack trace
+    public boolean sendMessage(Message message, String peerAddress) {
+        if (stopped) {
+            return false;
         }
+        PeerConnection connection = connections.computeIfAbsent(peerAddress.trim(),
+                address -> new PeerConnection(address, wireFormat));
+        return connection.send(message, votingOptions);
+    }
+
+    /**
+     * Sends a message to another node.
+     *
+     * @param message The message to send.
+     * @param host    The hostname or IP address.
+     * @param port    The port number.
+     * @return true if the message was written to the peer's connection.
+     */
+    public boolean sendMessage(Message message, String host, int port) {
+        return sendMessage(message, host + ":" + port);
     }
 
     /**
-     * Handles an incoming message from a peer.
+     * Handles incoming messages from a peer until it closes the connection. Messages are handled on
+     * this thread in the order they arrive, so handlers that may block hand their work to threads of
+     * their own.
      *
-     * @param socket The socket receiving the message.
+     * @param socket The socket receiving the messages.
      */
     private void handleIncomingMessage(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String message = in.readLine();
-            if (messageHandler != null) {
-                messageHandler.accept(message);
-            } else {
-                processMessage(message);
+        try (BufferedInputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()))) {
+            // The first byte tells binary connections (magic byte) apart from text ones (ASCII letter)
+            in.mark(1);
+            int first = in.read();
+            if (first == (BinaryCodec.MAGIC & 0xFF)) {
+                readBinaryMessages(new DataInputStream(in));
+                return;
             }
-        } catch (IOException e) {
+            in.reset();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String message;
+            while ((message = reader.readLine()) != null) {
+                if (!message.isEmpty()) {
+                    String line = message;
+                    handleSafely(() -> dispatchLine(line));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Peer went away mid-stream or sent garbage, it will reconnect on its next send
+            System.err.println("Connection closed by peer: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads binary frames until the peer closes the connection.
+     *
+     * @param in The connection's stream, positioned after the magic byte.
+     */
+    private void readBinaryMessages(DataInputStream in) throws IOException {
+        int version = in.read();
+        if (version != BinaryCodec.VERSION) {
+            throw new IOException("Unsupported binary protocol version " + version);
+        }
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+        byte[] body = new byte[256];
+        while (true) {
+            int tag = in.read();
+            if (tag < 0) {
+                return;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > BinaryCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (length > body.length) {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+            in.readFully(body, 0, length);
+            Message message = decoder.decode((byte) tag, ByteBuffer.wrap(body, 0, length));
+            if (message != null) {
+                handleSafely(() -> dispatch(message));
+            }
+        }
+    }
+
+    /**
+     * Runs a handler on a connection's reader, so that a handler failing only loses its own message
+     * and not every later one of the connection.
+     *
+     * @param handler Handles one received message.
+     */
+    private static void handleSafely(Runnable handler) {
+        try {
+            handler.run();
+        } catch (RuntimeException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Processes incoming messages such as peer registration and votes.
+     * Parses a received text message and dispatches it, dropping it if it is malformed.
+     *
+     * @param line The received line.
+     */
+    private void dispatchLine(String line) {
+        Message message;
+        try {
+            message = Message.parse(line);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Dropping malformed message: " + e.getMessage());
+            return;
+        }
+        dispatch(message);
+    }
+
+    /**
+     * Passes a received message to the registered handler, if any.
      *
      * @param message The received message.
      */
-    private void processMessage(String message) {
-        if (message.startsWith("REGISTER:")) {
-            String peer = message.substring(9, message.length() - 1);
-            int peerId = Integer.parseInt(message.substring(message.length() - 1));
-        } else if (message.startsWith("VOTE:")) {
-            updateVoteTally(message.substring(5));
+    private void dispatch(Message message) {
+        if (message.getType() == MessageType.RELAY) {
+            // Pass it down our part of the broadcast tree without waiting, handling our copy may block
+            // (e.g. START_VOTING)
+            fanOutAsync(message.getInner(), message.getPeers(), true);
+            dispatch(message.getInner());
+            return;
+        }
+        if (messageHandler != null) {
+            messageHandler.accept(message);
         } else {
             System.out.println("Received: " + message);
         }
     }
 
     /**
-     * Updates the vote tally with a new vote.
+     * Broadcasts a message to all known peers, excluding the sender.
+     * Peers are contacted in parallel and each one gets at most the broadcast timeout; in tree mode
+     * only a few peers are contacted directly and they forward the message to the rest.
      *
-     * @param vote The vote received.
+     * @param message       The message to broadcast.
+     * @param peerAddresses The list of peer addresses.
+     * @return The outcome for every peer.
      */
-    public void updateVoteTally(String vote) {
-        voteTally.put(vote, voteTally.getOrDefault(vote, 0) + 1);
+    public BroadcastResult broadcastMessage(Message message, List<String> peerAddresses) {
+        BroadcastResult result = fanOut(message, targets(peerAddresses),
+                broadcastMode == NodeConfig.BroadcastMode.TREE);
+        report(result);
+        return result;
     }
 
     /**
-     * Broadcasts a message to all known peers, excluding the sender.
+     * Broadcasts a message as {@link #broadcastMessage} does, without waiting for the sends. For
+     * callers that do not act on the outcome, such as replication, heartbeats and shard map updates,
+     * so a slow or dead peer never holds up their thread.
      *
      * @param message       The message to broadcast.
      * @param peerAddresses The list of peer addresses.
+     * @return A future completed with the outcome for every peer once every send is done.
      */
-    public void broadcastMessage(String message, List<String> peerAddresses) {
+    public CompletableFuture<BroadcastResult> broadcastMessageAsync(Message message, List<String> peerAddresses) {
+        return fanOutAsync(message, targets(peerAddresses), broadcastMode == NodeConfig.BroadcastMode.TREE)
+                .thenApply(result -> {
+                    report(result);
+                    return result;
+                });
+    }
+
+    private List<String> targets(List<String> peerAddresses) {
+        List<String> targets = new ArrayList<>();
         for (String peer : peerAddresses) {
             String[] parts = peer.split(":");
-            String host = parts[0];
-            int port = Integer.parseInt(parts[1]);
-            if (port == serverSocket.getLocalPort())
+            int port = Integer.parseInt(parts[1].trim());
+            if (port == localPort)
                 continue;
-            try (Socket socket = new Socket(host, port)) {
-                sendMessage(message, socket);
-            } catch (IOException e) {
-                System.err.println("Failed to send message to " + peer);
+            targets.add(peer.trim());
+        }
+        return targets;
+    }
+
+    private void report(BroadcastResult result) {
+        for (String peer : result.getPeers(BroadcastResult.Status.FAILED)) {
+            logFailure(peer, "Failed to send message to ");
+        }
+        for (String peer : result.getPeers(BroadcastResult.Status.TIMED_OUT)) {
+            logFailure(peer, "Timed out sending message to ");
+        }
+        if (!failureLogs.isEmpty()) {
+            // A peer that is reached again has its next failure logged right away
+            result.getPeers(BroadcastResult.Status.DELIVERED).forEach(failureLogs::remove);
+        }
+    }
+
+    /**
+     * Logs a failed broadcast to a peer at most once per {@link #FAILURE_LOG_INTERVAL_NANOS}, so a dead
+     * peer does not flood the log with every vote batch. The send failure metric still counts each one.
+     */
+    private void logFailure(String peer, String what) {
+        long[] log = failureLogs.computeIfAbsent(peer,
+                p -> new long[] { System.nanoTime() - FAILURE_LOG_INTERVAL_NANOS, 0 });
+        long suppressed;
+        synchronized (log) {
+            long now = System.nanoTime();
+            if (now - log[0] < FAILURE_LOG_INTERVAL_NANOS) {
+                log[1]++;
+                return;
+            }
+            suppressed = log[1];
+            log[0] = now;
+            log[1] = 0;
+        }
+        System.err.println(what + peer + (suppressed > 0 ? " (" + suppressed + " more failure(s) not logged)" : ""));
+    }
+
+    /**
+     * Sends a message to every target in parallel and waits for the sends up to the broadcast timeout.
+     *
+     * @param message The message to send.
+     * @param targets The peers to reach.
+     * @param tree    Whether to split the targets into relayed subtrees instead of sending to each directly.
+     * @return The outcome for every target.
+     */
+    private BroadcastResult fanOut(Message message, List<String> targets, boolean tree) {
+        Map<List<String>, Future<BroadcastResult>> sends = new LinkedHashMap<>();
+        for (List<String> group : groups(targets, tree)) {
+            sends.put(group, broadcastPool.submit(() -> sendToGroup(message, group)));
+        }
+
+        BroadcastResult result = new BroadcastResult();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NodeConfig.broadcastTimeoutMs());
+        for (Map.Entry<List<String>, Future<BroadcastResult>> send : sends.entrySet()) {
+            try {
+                result.putAll(send.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                // The send keeps going in the background, its connection reports the final outcome
+                send.getKey().forEach(peer -> result.put(peer, BroadcastResult.Status.TIMED_OUT));
+            } catch (ExecutionException e) {
+                send.getKey().forEach(peer -> result.put(peer, BroadcastResult.Status.FAILED));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send.getKey().forEach(peer -> result.put(peer, BroadcastResult.Status.TIMED_OUT));
             }
         }
+        return result;
     }
 
-    
+    /**
+     * Sends a message to every target in parallel without waiting. Nothing times out: each send
+     * takes as long as its connection does. Sends to the same peer go out one after another, in
+     * the order they were asked for, so a follower gets vote batches in sequence.
+     *
+     * @param message The message to send.
+     * @param targets The peers to reach.
+     * @param tree    Whether to split the targets into relayed subtrees instead of sending to each directly.
+     * @return A future completed with the outcome for every target once every send is done.
+     */
+    private CompletableFuture<BroadcastResult> fanOutAsync(Message message, List<String> targets, boolean tree) {
+        List<CompletableFuture<BroadcastResult>> sends = new ArrayList<>();
+        for (List<String> group : groups(targets, tree)) {
+            CompletableFuture<BroadcastResult> send = sendQueues.compute(group.get(0), (peer, previous) ->
+                    (previous != null ? previous : CompletableFuture.<BroadcastResult>completedFuture(null))
+                            .handleAsync((ignored, error) -> sendToGroup(message, group), broadcastPool));
+            sends.add(send.exceptionally(e -> {
+                BroadcastResult failed = new BroadcastResult();
+                group.forEach(peer -> failed.put(peer, BroadcastResult.Status.FAILED));
+                return failed;
+            }));
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            BroadcastResult result = new BroadcastResult();
+            sends.forEach(send -> result.putAll(send.join()));
+            return result;
+        });
+    }
+
+    /**
+     * @return The targets split into relayed subtrees in tree mode, or one group per target otherwise.
+     */
+    private static List<List<String>> groups(List<String> targets, boolean tree) {
+        List<List<String>> groups = new ArrayList<>();
+        if (tree) {
+            int fanOut = NodeConfig.broadcastFanOut();
+            int groupSize = (targets.size() + fanOut - 1) / Math.max(1, fanOut);
+            for (int i = 0; i < targets.size(); i += groupSize) {
+                groups.add(targets.subList(i, Math.min(targets.size(), i + groupSize)));
+            }
+        } else {
+            targets.forEach(peer -> groups.add(List.of(peer)));
+        }
+        return groups;
+    }
+
+    /**
+     * Sends a message to the first reachable peer of a group, asking it to relay to the rest of the group.
+     * Unreachable peers are skipped so one dead peer does not cut off its whole subtree.
+     *
+     * @param message The message to send.
+     * @param group   The peers of one subtree, or a single peer for direct sends.
+     * @return The outcome for every peer in the group.
+     */
+    private BroadcastResult sendToGroup(Message message, List<String> group) {
+        BroadcastResult result = new BroadcastResult();
+        for (int i = 0; i < group.size(); i++) {
+            List<String> rest = group.subList(i + 1, group.size());
+            Message toSend = rest.isEmpty() ? message : Message.relay(rest, message);
+            if (sendMessage(toSend, group.get(i))) {
+                result.put(group.get(i), BroadcastResult.Status.DELIVERED);
+                rest.forEach(peer -> result.put(peer, BroadcastResult.Status.RELAYED));
+                return result;
+            }
+            result.put(group.get(i), BroadcastResult.Status.FAILED);
+        }
+        return result;
+    }
 
     /**
-     * Retrieves the current vote tally.
+     * Retrieves connection reuse statistics for every peer contacted so far.
      *
-     * @return A map of votes and their counts.
+     * @return A map of peer addresses to their connection statistics.
      */
-    public Map<String, Integer> getVoteTally() {
-        return voteTally;
+    public Map<String, PeerConnection.ConnectionStats> getConnectionStats() {
+        Map<String, PeerConnection.ConnectionStats> stats = new TreeMap<>();
+        connections.forEach((address, connection) -> stats.put(address, connection.getStats()));
+        return stats;
     }
 
     /**
-     * Gets the client socket instance.
+     * Reports connection, traffic and send failure counters, per peer for outbound connections.
      *
-     * @return The client socket.
+     * @param out Receives the metrics.
+     */
+    public void collectMetrics(Metrics.Writer out) {
+        getConnectionStats().forEach((address, stats) -> out
+                .counter("voting_peer_connections_opened_total", "Connections opened to a peer.",
+                        stats.connectionsOpened, "peer", address)
+                .counter("voting_peer_messages_sent_total", "Messages sent to a peer.", stats.messagesSent,
+                        "peer", address)
+                .counter("voting_peer_bytes_sent_total", "Bytes sent to a peer.", stats.bytesSent, "peer", address)
+                .counter("voting_peer_send_failures_total", "Failed writes to a peer, each followed by a reconnect.",
+                        stats.failures, "peer", address));
+
+        NioMessageServer nio = nioServer;
+        out.counter("voting_connections_accepted_total", "Inbound peer connections accepted.",
+                nio != null ? nio.getConnectionsAccepted() : connectionsAccepted.sum())
+                .gauge("voting_connections_open", "Inbound peer connections open.",
+                        nio != null ? nio.getOpenConnections() : accepted.size())
+                .counter("voting_bytes_received_total", "Bytes received from peers.",
+                        nio != null ? nio.getBytesReceived() : bytesReceived.sum());
+        if (nio != null) {
+            // Blocking mode hands every connection its own thread, so nothing waits for a handler there
+            out.gauge("voting_handler_queue_depth", "Received messages waiting for a handler thread.",
+                    nio.getQueuedMessages());
+        }
+    }
+
+    /**
+     * Closes every pooled peer connection.
      */
-    public Socket getClientSocket() {
-        return clientSocket;
+    public void closeConnections() {
+        connections.values().forEach(PeerConnection::close);
+        connections.clear();
+    }
+
+    /**
+     * Counts the bytes read from an inbound connection in blocking mode.
+     */
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesReceived.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesReceived.add(n);
+            }
+            return n;
+        }
     }
 }
@@ -0,0 +1,412 @@
+package com.github.muteebaa.app;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Startup configuration for a node.
+ * Values are read from system properties (e.g. -Dvoting.server.mode=nio) so they can be
+ * chosen without touching the interactive menu.
+ */
+public final class NodeConfig {
+    /**
+     * How a node accepts and reads inbound peer connections.
+     */
+    public enum ServerMode {
+        /** One blocking thread per accepted connection. */
+        BLOCKING,
+        /** A single selector thread plus a small, bounded pool of handler threads. */
+        NIO
+    }
+
+    /**
+     * How a node encodes the messages it sends. Inbound connections accept both formats.
+     */
+    public enum WireFormat {
+        /** Newline-terminated "TYPE:payload" strings. */
+        TEXT,
+        /** Length-prefixed frames, see {@link BinaryCodec}. */
+        BINARY
+    }
+
+    /**
+     * How a node delivers a broadcast to its peers.
+     */
+    public enum BroadcastMode {
+        /** Send to every peer directly, in parallel. */
+        DIRECT,
+        /** Send to a few peers, each of which forwards to a share of the remaining ones. */
+        TREE
+    }
+
+    /**
+     * What kind of threads run a node's blocking network work.
+     */
+    public enum ThreadMode {
+        /** Ordinary operating system threads. */
+        PLATFORM,
+        /** Virtual threads, when the node runs on Java 21 or newer. */
+        VIRTUAL
+    }
+
+    /**
+     * What a headless node does once started.
+     */
+    public enum Role {
+        /** Nothing until told over the control API. */
+        NONE,
+        /** Start a new session with the configured options and lead it. */
+        LEAD,
+        /** Join the configured session. */
+        JOIN,
+        /** Resume leading the configured session from its vote log. */
+        RESUME
+    }
+
+    private NodeConfig() {
+    }
+
+    public static ServerMode serverMode() {
+        String mode = System.getProperty("voting.server.mode", "blocking");
+        try {
+            return ServerMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown server mode '" + mode + "', falling back to blocking.");
+            return ServerMode.BLOCKING;
+        }
+    }
+
+    public static WireFormat wireFormat() {
+        String format = System.getProperty("voting.wire", "text");
+        try {
+            return WireFormat.valueOf(format.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown wire format '" + format + "', falling back to text.");
+            return WireFormat.TEXT;
+        }
+    }
+
+    /**
+     * @return The number of threads running message handlers in {@link ServerMode#NIO}.
+     */
+    public static int serverWorkers() {
+        int fallback = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return Math.max(1, Integer.getInteger("voting.server.workers", fallback));
+    }
+
+    /**
+     * @return The number of messages each NIO handler thread may have queued before reads pause.
+     */
+    public static int serverQueueCapacity() {
+        return Math.max(1, Integer.getInteger("voting.server.queue", 1024));
+    }
+
+    /**
+     * @return The number of accepted votes that makes the leader replicate a batch immediately.
+     */
+    public static int batchSize() {
+        return Math.max(1, Integer.getInteger("voting.batch.size", 64));
+    }
+
+    /**
+     * @return The longest time, in milliseconds, an accepted vote waits before being replicated.
+     */
+    public static long batchIntervalMs() {
+        return Math.max(1, Long.getLong("voting.batch.interval", 5));
+    }
+
+    /**
+     * @return The number of recent vote batches the leader keeps to resend to followers that missed them.
+     */
+    public static int syncHistory() {
+        return Math.max(0, Integer.getInteger("voting.sync.history", 4096));
+    }
+
+    /**
+     * @return The number of shards the leader splits voters into when voting starts, each
+     *         coordinated by a follower. 1 (the default) has the leader accept every vote itself.
+     */
+    public static int shards() {
+        return Math.max(1, Integer.getInteger("voting.shards", 1));
+    }
+
+    /**
+     * @param port The node's port.
+     * @return The node's ID in leader elections, unique among the session's nodes. Defaults to the port.
+     */
+    public static int nodeId(int port) {
+        return Integer.getInteger("voting.node.id", port);
+    }
+
+    /**
+     * @return The time, in milliseconds, between the leader's heartbeats to its followers.
+     */
+    public static long electionIntervalMs() {
+        return Math.max(10, Long.getLong("voting.election.interval", 500));
+    }
+
+    /**
+     * @return The time, in milliseconds, a follower waits without hearing from the leader before
+     *         starting an election.
+     */
+    public static long electionTimeoutMs() {
+        return Math.max(electionIntervalMs() * 2, Long.getLong("voting.election.timeout", 2000));
+    }
+
+    public static ThreadMode threadMode() {
+        String mode = System.getProperty("voting.threads", "platform");
+        try {
+            return ThreadMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown thread mode '" + mode + "', falling back to platform.");
+            return ThreadMode.PLATFORM;
+        }
+    }
+
+    public static BroadcastMode broadcastMode() {
+        String mode = System.getProperty("voting.broadcast.mode", "direct");
+        try {
+            return BroadcastMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown broadcast mode '" + mode + "', falling back to direct.");
+            return BroadcastMode.DIRECT;
+        }
+    }
+
+    /**
+     * @return The number of peers a node sends to itself in {@link BroadcastMode#TREE}.
+     */
+    public static int broadcastFanOut() {
+        return Math.max(1, Integer.getInteger("voting.broadcast.fanout", 4));
+    }
+
+    /**
+     * @return How long, in milliseconds, a broadcast waits for each peer before reporting it as timed out.
+     */
+    public static long broadcastTimeoutMs() {
+        return Math.max(1, Long.getLong("voting.broadcast.timeout", 2000));
+    }
+
+    /**
+     * @return The number of threads sending broadcasts in parallel.
+     */
+    public static int broadcastThreads() {
+        return Math.max(1, Integer.getInteger("voting.broadcast.threads", 16));
+    }
+
+    /**
+     * @return Whether the voter dedup set keeps its tables off-heap.
+     */
+    public static boolean offHeapDedup() {
+        return Boolean.getBoolean("voting.dedup.offheap");
+    }
+
+    /**
+     * @return How long, in milliseconds, a node waits for the leader to answer a vote or registration before resending it.
+     */
+    public static long requestTimeoutMs() {
+        return Math.max(1, Long.getLong("voting.request.timeout", 5000));
+    }
+
+    /**
+     * @return How many times an unanswered vote or registration is resent before it fails.
+     */
+    public static int requestRetries() {
+        return Math.max(0, Integer.getInteger("voting.request.retries", 2));
+    }
+
+    /**
+     * @return How many of the votes it accepted last a leader or coordinator remembers the request of, so a
+     *         resent request is answered like the first copy instead of as a duplicate.
+     */
+    public static int recentVotes() {
+        return Math.max(1, Integer.getInteger("voting.request.recent", 65536));
+    }
+
+    /**
+     * @return The most votes sent to the leader in a single BULK_VOTE message.
+     */
+    public static int bulkVoteSize() {
+        return Math.max(1, Integer.getInteger("voting.bulk.size", 1000));
+    }
+
+    /**
+     * @return The most registry sessions a node keeps cached.
+     */
+    public static int sessionCacheSize() {
+        return Math.max(1, Integer.getInteger("voting.registry.cache.size", 1024));
+    }
+
+    /**
+     * @return How long, in milliseconds, a cached session is used before it is checked with the registry again.
+     */
+    public static long sessionCacheTtlMs() {
+        return Math.max(0, Long.getLong("voting.registry.cache.ttl", 30000));
+    }
+
+    /**
+     * @return How long, in milliseconds, a session code the registry did not know is remembered as unknown.
+     */
+    public static long sessionCacheNegativeTtlMs() {
+        return Math.max(0, Long.getLong("voting.registry.cache.negative.ttl", 5000));
+    }
+
+    /**
+     * @return The base URLs of the equivalent registries a node may use.
+     */
+    public static List<String> registryServers() {
+        String servers = System.getProperty("voting.registry.servers",
+                "http://127.0.0.1:12020,http://127.0.0.1:12021,http://127.0.0.1:12022");
+        List<String> urls = new ArrayList<>();
+        for (String url : servers.split(",")) {
+            if (!url.isBlank()) {
+                urls.add(url.trim().replaceAll("/+$", ""));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @return The most times a registry request is sent, counting retries on other registries.
+     */
+    public static int registryAttempts() {
+        return Math.max(1, Integer.getInteger("voting.registry.attempts", 4));
+    }
+
+    /**
+     * @return The shortest time, in milliseconds, a registry read waits before also being sent to a second registry.
+     */
+    public static long registryHedgeDelayMs() {
+        return Math.max(1, Long.getLong("voting.registry.hedge.delay", 50));
+    }
+
+    /**
+     * @return The shortest time, in milliseconds, between session heartbeats, used after a registry failure.
+     */
+    public static long heartbeatMinMs() {
+        return Math.max(100, Long.getLong("voting.heartbeat.min", 2000));
+    }
+
+    /**
+     * @return The longest time, in milliseconds, between session heartbeats while the registry is stable.
+     */
+    public static long heartbeatMaxMs() {
+        return Math.max(heartbeatMinMs(), Long.getLong("voting.heartbeat.max", 20000));
+    }
+
+    /**
+     * @return Whether the leader logs its election state so it survives a restart. Off by default.
+     */
+    public static boolean wal() {
+        return Boolean.parseBoolean(System.getProperty("voting.wal", "false"));
+    }
+
+    /**
+     * @return The directory holding the vote logs, one subdirectory per session and, within it, one per node id.
+     */
+    public static Path walDir() {
+        String dir = System.getProperty("voting.wal.dir");
+        return dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".voting", "wal");
+    }
+
+    /**
+     * @return The number of logged records after which the leader writes a snapshot.
+     */
+    public static int walSnapshotRecords() {
+        return Math.max(1, Integer.getInteger("voting.wal.snapshot.records", 100_000));
+    }
+
+    /**
+     * @return The port a node serves its metrics on, or 0 if it serves none.
+     */
+    public static int metricsPort() {
+        return Math.max(0, Integer.getInteger("voting.metrics.port", 0));
+    }
+
+    /**
+     * @return The address a node serves its metrics on.
+     */
+    public static String metricsHost() {
+        return System.getProperty("voting.metrics.host", "127.0.0.1");
+    }
+
+    /**
+     * @return The host name or address this node's sessions are registered with, which other nodes
+     *         connect to.
+     */
+    public static String host() {
+        return System.getProperty("voting.host", "localhost");
+    }
+
+    /**
+     * @return The port a headless node listens for peers on.
+     */
+    public static int port() {
+        return Integer.getInteger("voting.port", 5000);
+    }
+
+    public static Role role() {
+        String role = System.getProperty("voting.role", "none");
+        try {
+            return Role.valueOf(role.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown role '" + role + "', falling back to none.");
+            return Role.NONE;
+        }
+    }
+
+    /**
+     * @return The session code a headless node joins or resumes, or null if none is configured.
+     */
+    public static String session() {
+        return System.getProperty("voting.session");
+    }
+
+    /**
+     * @return The comma-separated options of the session a headless node leads, or null if none
+     *         are configured.
+     */
+    public static String options() {
+        return System.getProperty("voting.options");
+    }
+
+    /**
+     * @return The port a headless node serves its control API on, or 0 if it serves none.
+     */
+    public static int controlPort() {
+        return Math.max(0, Integer.getInteger("voting.control.port", 0));
+    }
+
+    /**
+     * @return The address a headless node serves its control API on.
+     */
+    public static String controlHost() {
+        return System.getProperty("voting.control.host", "127.0.0.1");
+    }
+
+    /**
+     * Reads configuration from a properties file. Keys may leave out the "voting." prefix, and
+     * values already set as system properties, e.g. on the command line, take precedence.
+     *
+     * @param file The properties file.
+     * @throws IOException If the file cannot be read.
+     */
+    public static void load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String name = key.startsWith("voting.") ? key : "voting." + key;
+            if (System.getProperty(name) == null) {
+                System.setProperty(name, properties.getProperty(key).trim());
+            }
+        }
+    }
+}
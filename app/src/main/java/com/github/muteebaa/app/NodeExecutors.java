@@ -0,0 +1,102 @@
+package com.github.muteebaa.app;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that run a node's blocking network work, as platform or virtual threads.
+ *
+ * Networking code keeps its simple blocking style either way; only where the threads come from
+ * changes. Virtual threads are looked up reflectively so the node still builds and runs on Java 17,
+ * falling back to platform threads there.
+ */
+public final class NodeExecutors {
+    private static final ThreadFactory VIRTUAL_FACTORY = virtualThreadFactory();
+
+    private final NodeConfig.ThreadMode mode;
+
+    /**
+     * @param mode The kind of threads to create. {@link NodeConfig.ThreadMode#VIRTUAL} falls back to
+     *             platform threads if the running Java version has no virtual threads.
+     */
+    public NodeExecutors(NodeConfig.ThreadMode mode) {
+        if (mode == NodeConfig.ThreadMode.VIRTUAL && VIRTUAL_FACTORY == null) {
+            System.err.println("Virtual threads need Java 21 or newer, falling back to platform threads.");
+            mode = NodeConfig.ThreadMode.PLATFORM;
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * @return The kind of threads actually created.
+     */
+    public NodeConfig.ThreadMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return Whether the running Java version supports virtual threads.
+     */
+    public static boolean virtualThreadsAvailable() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Starts a thread for a long-running task, such as reading one peer connection.
+     *
+     * @param name The thread's name.
+     * @param task The task to run.
+     * @return The started thread.
+     */
+    public Thread start(String name, Runnable task) {
+        Thread t = mode == NodeConfig.ThreadMode.VIRTUAL ? VIRTUAL_FACTORY.newThread(task) : new Thread(task);
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Creates an executor for short blocking tasks.
+     * Platform threads are pooled and limited to {@code maxThreads}; virtual threads are cheap
+     * enough that every task gets its own, so {@code maxThreads} is ignored.
+     *
+     * @param name       The name prefix of the executor's threads.
+     * @param maxThreads The most platform threads to run at once.
+     * @return The executor.
+     */
+    public ExecutorService newExecutor(String name, int maxThreads) {
+        if (mode == NodeConfig.ThreadMode.VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, VIRTUAL_FACTORY);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual thread executor unavailable", e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.muteebaa.app;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived outbound connection to a single peer.
+ * Messages are framed (one per line, or length-prefixed in the binary format), so any number of
+ * them can share the same socket.
+ * The connection is (re)opened lazily whenever a send finds it closed or broken.
+ */
+public class PeerConnection implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Peers never write back on this socket, so a connection idle for this long may have
+    // been dropped on the other side without us noticing. Reopen instead of risking a lost line.
+    private static final long MAX_IDLE_NANOS = 30_000_000_000L;
+
+    private final String address;
+    private final String host;
+    private final int port;
+    private final NodeConfig.WireFormat format;
+    private final BinaryCodec.Encoder encoder = new BinaryCodec.Encoder();
+    // Not synchronized: a virtual thread blocked connecting or writing under a monitor would pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private Socket socket; // Guarded by lock
+    private OutputStream out;
+    private long lastUsed;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong reusedSends = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Creates a (not yet connected) connection to a peer.
+     *
+     * @param address The peer address in the format "host:port".
+     * @param format  The format messages are encoded in.
+     */
+    public PeerConnection(String address, NodeConfig.WireFormat format) {
+        this.address = address;
+        this.format = format;
+        String[] parts = address.split(":");
+        this.host = parts[0];
+        this.port = Integer.parseInt(parts[1].trim());
+    }
+
+    /**
+     * Sends a single message, reconnecting once if the current socket turns out to be broken.
+     *
+     * @param message The message to send.
+     * @param options The sender's current option table used by the binary format, or null if unknown.
+     * @return true if the message was written to the socket.
+     */
+    public boolean send(Message message, VotingOptions options) {
+        lock.lock();
+        try {
+            return sendLocked(message, options);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean sendLocked(Message message, VotingOptions options) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                boolean reused = ensureOpen();
+                int length;
+                if (format == NodeConfig.WireFormat.BINARY) {
+                    ByteBuffer frame = encoder.encode(message, options);
+                    out.write(frame.array(), frame.arrayOffset(), frame.limit());
+                    length = frame.limit();
+                } else {
+                    byte[] line = message.toText().getBytes(StandardCharsets.UTF_8);
+                    out.write(line);
+                    out.write('\n');
+                    length = line.length + 1;
+                }
+                out.flush();
+                lastUsed = System.nanoTime();
+                messagesSent.incrementAndGet();
+                bytesSent.addAndGet(length);
+                if (reused) {
+                    reusedSends.incrementAndGet();
+                }
+                return true;
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                closeSocket();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the socket if there is no usable one.
+     *
+     * @return true if an already open socket is being reused.
+     */
+    private boolean ensureOpen() throws IOException {
+        if (socket != null && !socket.isClosed() && System.nanoTime() - lastUsed < MAX_IDLE_NANOS) {
+            return true;
+        }
+        closeSocket();
+
+        Socket s = new Socket();
+        s.setTcpNoDelay(true);
+        s.setKeepAlive(true);
+        s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        socket = s;
+        out = new BufferedOutputStream(s.getOutputStream());
+        if (format == NodeConfig.WireFormat.BINARY) {
+            out.write(BinaryCodec.MAGIC);
+            out.write(BinaryCodec.VERSION);
+            encoder.reset();
+            bytesSent.addAndGet(2);
+        }
+        connectionsOpened.incrementAndGet();
+        return false;
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Socket is being discarded anyways
+            }
+        }
+        socket = null;
+        out = null;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closeSocket();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Takes a snapshot of this connection's usage counters.
+     *
+     * @return The current statistics.
+     */
+    public ConnectionStats getStats() {
+        return new ConnectionStats(address, connectionsOpened.get(), messagesSent.get(),
+                reusedSends.get(), failures.get(), bytesSent.get());
+    }
+
+    /**
+     * Point-in-time usage counters of a single peer connection.
+     */
+    public static class ConnectionStats {
+        public final String address;
+        public final long connectionsOpened;
+        public final long messagesSent;
+        public final long reusedSends;
+        public final long failures;
+        public final long bytesSent;
+
+        public ConnectionStats(String address, long connectionsOpened, long messagesSent, long reusedSends,
+                long failures, long bytesSent) {
+            this.address = address;
+            this.connectionsOpened = connectionsOpened;
+            this.messagesSent = messagesSent;
+            this.reusedSends = reusedSends;
+            this.failures = failures;
+            this.bytesSent = bytesSent;
+        }
+
+        /**
+         * @return The fraction of sent messages that did not need a new TCP connection.
+         */
+        public double reuseRatio() {
+            return messagesSent == 0 ? 0.0 : (double) reusedSends / messagesSent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: opened=%d sent=%d reused=%d (%.1f%%) failures=%d",
+                    address, connectionsOpened, messagesSent, reusedSends, reuseRatio() * 100, failures);
+        }
+    }
+}
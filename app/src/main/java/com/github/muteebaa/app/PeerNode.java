@@ -9,8 +9,22 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * Represents a peer node in a distributed voting system.
@@ -20,15 +34,47 @@ public class PeerNode {
     private static final Scanner scanner = new Scanner(System.in);
     private final NodeCommunication nodeComm;
     private final int port;
-    private final int nodeId; // will be used in leader election
+    private final int nodeId; // Breaks ties in leader elections
     private final List<String> peerNodes; // each peer will have a list of other peers
-    private Map<String, Integer> voteTally;
-    private boolean leaderToken;
-    private String leaderAddress;
-    private String sessionCode;
-    private boolean acknowledgment = false;
+    private volatile VoteTally voteTally = new VoteTally(VotingOptions.of(List.of()));
+    private volatile boolean leaderToken;
+    private volatile String leaderAddress; // Read by the session heartbeat
+    private volatile String sessionCode;
+    private SessionHeartbeat heartbeat; // Only set on the leader
+    private volatile VoteLog voteLog; // Only set on the leader, unless disabled
+    // Held shared while a state change is applied and logged, exclusively while a snapshot is cut or
+    // the tally is read whole
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ExecutorService durableTasks; // Acknowledges votes once logged, off the log's flusher thread
+    // Answers resent votes like their first copy, and holds back duplicates of votes still being logged
+    private final RecentVotes recentVotes = new RecentVotes(NodeConfig.recentVotes());
+    // Runs the vote prompt, which waits on the user and then on the leader's answer. On a connection's
+    // reader it would hold up that answer, and the heartbeats behind it, until the request timed out.
+    private final ExecutorService prompts;
     private String uuid;
-    private ConcurrentSkipListSet<String> uuidSet;
+    private final UuidSet uuidSet;
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private TallyReplicator replicator; // Only set on the leader
+    private final BatchSequencer batchSequencer = new BatchSequencer(this::applyVoteBatch);
+    // Guards appends to peerNodes, so every peer has a fixed position in the leader's list
+    private final Object membershipLock = new Object();
+    private int knownPeers; // On a follower, the leading part of the leader's peer list it has
+    private volatile long lastSyncRequest; // System.nanoTime() of the last SYNC_REQUEST sent
+    private final RequestTracker requests = new RequestTracker(NodeConfig.requestTimeoutMs(),
+            NodeConfig.requestRetries());
+    private final LeaderElection election;
+    private volatile boolean stopped;
+    private volatile ShardMap shardMap; // Set once votes are sharded across coordinators
+    private volatile ShardCoordinator shardCoordinator; // Set while this follower coordinates shards
+    // On the leader: System.nanoTime() of every coordinator's last batch
+    private final Map<String, Long> coordinatorsHeard = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> shardWatch; // Only set on the leader of a sharded session
+    private volatile Consumer<VotingOptions> votePrompt; // Replaces the console prompt when set
+    private final Metrics metrics = new Metrics();
+    private final LongAdder votesAccepted = new LongAdder(); // By this node, as leader or coordinator
+    private final LongAdder votesDuplicate = new LongAdder();
+    private MetricsServer metricsServer; // Only set if metrics are served
 
     /**
      * Initializes a new PeerNode instance.
@@ -40,7 +86,8 @@ public class PeerNode {
         this.nodeComm = new NodeCommunication();
         this.port = port;
         this.nodeId = nodeId;
-        this.peerNodes = new ArrayList<>();
+        // Read by the replicator thread while handler threads register new peers
+        this.peerNodes = new CopyOnWriteArrayList<>();
         try {
             this.uuid = loadUUID();
         } catch (FileNotFoundException e) {
@@ -49,7 +96,30 @@ public class PeerNode {
             System.out.println("Failed to load UUID. Application closing.");
             System.exit(-1);
         }
-        this.uuidSet = new ConcurrentSkipListSet<>();
+        this.uuidSet = new UuidSet(0, NodeConfig.offHeapDedup());
+        // Shared by every log this node opens, its idle threads time out
+        this.durableTasks = nodeComm.getExecutors().newExecutor("vote-log", NodeConfig.broadcastThreads());
+        this.prompts = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "vote-prompt-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        this.election = new LeaderElection(nodeComm, () -> peerNodes, "localhost", port, nodeId,
+                this::getProgress, new LeaderElection.Listener() {
+                    @Override
+                    public void onElected(long term) {
+                        promote(term);
+                    }
+
+                    @Override
+                    public void onLeader(String leader, long term) {
+                        followLeader(leader, term);
+                    }
+                });
+        registerHandlers();
+        metrics.register(this::collectMetrics);
+        metrics.register(nodeComm::collectMetrics);
+        metrics.register(AsyncSessionRegistry::collectMetrics);
     }
 
     /**
@@ -137,7 +207,7 @@ public class PeerNode {
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                content.append(line).append(System.lineSeparator());
+                content.append(line.trim());
             }
             if (content.length() == 0) {
                 return null;
@@ -145,6 +215,7 @@ public class PeerNode {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // No trailing line separator: the UUID is embedded in single-line messages
         return content.toString();   
     }
 
@@ -152,38 +223,111 @@ public class PeerNode {
         this.sessionCode = sessionCode;
     }
 
+    public String getSessionCode() {
+        return sessionCode;
+    }
+
     /**
      * Starts the peer as a server and registers with the leader.
      */
     public void startPeer() {
-        new Thread(() -> nodeComm.startServer(port, this::handleMessage)).start();
+        startServer();
         findLeader();
         registerWithLeader(leaderAddress);
     }
 
+    /**
+     * Starts listening for peers without joining a leader, e.g. on the node about to lead a session.
+     */
+    public void startServer() {
+        new Thread(() -> nodeComm.startServer(port, this::handleMessage)).start();
+        int metricsPort = NodeConfig.metricsPort();
+        if (metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(metrics, NodeConfig.metricsHost(), metricsPort);
+                System.out.println("Serving metrics at http://" + NodeConfig.metricsHost() + ":"
+                        + metricsServer.getPort() + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Failed to serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops this node as if it crashed: it stops listening, drops its connections and takes no more
+     * part in elections or replication.
+     */
+    public void shutdown() {
+        stopped = true;
+        election.stop();
+        nodeComm.stop(); // First, so votes still buffered for replication are lost as in a crash
+        stepDown();
+        durableTasks.shutdown();
+        prompts.shutdownNow();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+    }
+
     /**
      * Registers this peer with the leader node.
      *
      * @param leaderAddress The leader node's address in the format "host:port".
      */
-    public synchronized void registerWithLeader(String leaderAddress) {
-        this.acknowledgment = false;
+    public void registerWithLeader(String leaderAddress) {
+        try {
+            printResponse(registerWithLeaderAsync(leaderAddress).join());
+        } catch (CompletionException e) {
+            System.err.println("Failed to register with the leader: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Registers this peer with the leader node without waiting for its acknowledgment.
+     *
+     * @param leaderAddress The leader node's address in the format "host:port".
+     * @return A future completed once the leader acknowledges the registration.
+     */
+    public CompletableFuture<VoteReceipt> registerWithLeaderAsync(String leaderAddress) {
         this.leaderAddress = leaderAddress;
-        String registrationMessage = "REGISTER:localhost:" + port;
-        nodeComm.connectToNode(leaderAddress.split(":")[0], Integer.parseInt(leaderAddress.split(":")[1]));
-        nodeComm.sendMessage(registrationMessage, nodeComm.getClientSocket());
+        return requests.send(Message.register("localhost", port), m -> nodeComm.sendMessage(m, leaderAddress))
+                .whenComplete((receipt, error) -> {
+                    if (error == null) {
+                        election.follow(leaderAddress);
+                        requestSync(); // Whatever happened before this peer joined
+                    }
+                });
+    }
 
-        // Wait for acknowledgment from the leader
-        while (!acknowledgment) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Asks the leader for the votes and peers this follower missed. Requests are sent at most once
+     * per request timeout, since the answer to one may take a while to arrive.
+     */
+    public void requestSync() {
+        String leader = leaderAddress;
+        long now = System.nanoTime();
+        long last = lastSyncRequest;
+        if (leaderToken || leader == null
+                || last != 0 && now - last < NodeConfig.requestTimeoutMs() * 1_000_000L) {
+            return;
+        }
+        lastSyncRequest = now;
+        int known;
+        synchronized (membershipLock) {
+            known = knownPeers;
         }
+        nodeComm.sendMessage(Message.syncRequest("localhost", port, batchSequencer.getAppliedSequence(), known),
+                leader);
+    }
 
-        voteTally = new HashMap<>();
-        // TODO: Handle leader's response
+    /**
+     * Handles an incoming text message.
+     *
+     * @param message The received message.
+     * @throws IllegalArgumentException If the message is malformed.
+     */
+    public void handleMessage(String message) {
+        handleMessage(Message.parse(message));
     }
 
     /**
@@ -191,87 +335,647 @@ public class PeerNode {
      *
      * @param message The received message.
      */
-    public void handleMessage(String message) {
-        if (message.startsWith("REGISTER:")) {
-            String peer = message.substring(9);
-            peerNodes.add(peer);
-            nodeComm.broadcastMessage("UPDATE_NEW_PEER:" + peerNodes, peerNodes); 
-            System.out.println("My peer list: " + peerNodes);
-            nodeComm.connectToNode(peer.split(":")[0], Integer.parseInt(peer.split(":")[1]));
-            nodeComm.sendMessage("ACK: You are successfully registered.", nodeComm.getClientSocket());
-        }
-        else if (message.startsWith("UPDATE_NEW_PEER:")) {
-            System.out.println("My peer list before update: " + peerNodes);
-            // Extract the peer list from the message
-            String peerListString = message.substring("UPDATE_NEW_PEER:".length()).trim();
+    public void handleMessage(Message message) {
+        if (stopped) {
+            return;
+        }
+        if (!dispatcher.dispatch(message)) {
+            System.err.println("No handler for message: " + message.getType());
+        }
+    }
+
+    /**
+     * Registers the handler of every message type this node understands.
+     */
+    private void registerHandlers() {
+        dispatcher.register(MessageType.REGISTER, this::onRegister)
+                .register(MessageType.UPDATE_NEW_PEER, this::onUpdateNewPeer)
+                .register(MessageType.ACK, this::onAck)
+                .register(MessageType.VOTE, this::onVote)
+                .register(MessageType.DUPLICATE, this::onDuplicate)
+                .register(MessageType.UPDATE_VOTE_TALLY, this::onUpdateVoteTally)
+                .register(MessageType.UPDATE_VOTE_BATCH, message -> {
+                    // Once leading, batches still arriving from the deposed leader are dropped
+                    if (!leaderToken && batchSequencer.accept(message) > 0) {
+                        requestSync();
+                    }
+                })
+                .register(MessageType.START_VOTING, message -> prompts.execute(() -> {
+                    Consumer<VotingOptions> prompt = votePrompt;
+                    if (prompt == null) {
+                        promptForVote();
+                    } else {
+                        prompt.accept(loadVotingOptions());
+                    }
+                }))
+                .register(MessageType.VOTING_ENDED, this::onVotingEnded)
+                .register(MessageType.LEADER_CHANGED, this::onLeaderChanged)
+                .register(MessageType.SYNC_REQUEST, this::onSyncRequest)
+                .register(MessageType.SYNC_SNAPSHOT, this::onSyncSnapshot)
+                .register(MessageType.ELECTION, election::handle)
+                .register(MessageType.ELECTION_ANSWER, election::handle)
+                .register(MessageType.COORDINATOR, election::handle)
+                .register(MessageType.HEARTBEAT, election::handle)
+                .register(MessageType.SHARD_MAP, this::onShardMap)
+                .register(MessageType.SHARD_BATCH, this::onShardBatch)
+                .register(MessageType.SHARD_FLUSH, this::onShardFlush)
+                .register(MessageType.BULK_VOTE, this::onBulkVote)
+                .register(MessageType.BULK_VOTE_RESULT, this::onAck)
+                .register(MessageType.INVALID, this::onAck);
+    }
 
-            // Remove the square brackets [ ] if present
-            peerListString = peerListString.substring(1, peerListString.length() - 1);
+    private void onRegister(Message message) {
+        String peer = message.getAddress();
+        addPeer(peer);
+        System.out.println("My peer list: " + peerNodes);
+        nodeComm.sendMessage(Message.ack(" You are successfully registered.").withRequestId(message.getRequestId()),
+                peer);
+    }
 
-            // Split the peers by ", " and add them to the peerNodes list
-            List<String> newPeers = Arrays.asList(peerListString.split(", "));
-    
-            // Add only new peers that are not already in peerNodes
-            for (String peer : newPeers) {
+    /**
+     * Adds a peer to the leader's list, logging it and announcing it to the other peers.
+     *
+     * @param peer The peer's address in the format "host:port".
+     */
+    private void addPeer(String peer) {
+        VoteLog log = voteLog;
+        int index = -1;
+        if (log != null) {
+            stateLock.readLock().lock();
+        }
+        try {
+            synchronized (membershipLock) {
+                // A peer registering again, e.g. after a restart, keeps its place
                 if (!peerNodes.contains(peer)) {
                     peerNodes.add(peer);
+                    index = peerNodes.size() - 1;
+                    if (log != null) {
+                        log.appendPeer(peer);
+                    }
                 }
             }
+        } finally {
+            if (log != null) {
+                stateLock.readLock().unlock();
+            }
+        }
+        if (index >= 0) {
+            // Only the newcomer is announced, it asks for the rest of the list itself. Without waiting,
+            // since this runs on the reader of the newcomer's connection
+            List<String> others = new ArrayList<>(peerNodes);
+            others.remove(peer);
+            nodeComm.broadcastMessageAsync(Message.updateNewPeer(index, List.of(peer)), others);
+        }
+    }
+
+    private void onUpdateNewPeer(Message message) {
+        if (leaderToken) {
+            return; // The leader's own list is the one being announced
+        }
+        List<String> peers = message.getPeers();
+        boolean gap;
+        synchronized (membershipLock) {
+            System.out.println("My peer list before update: " + peerNodes);
+            long index = message.getSequence();
+            gap = index > knownPeers;
+            if (!gap) {
+                // Add only new peers that are not already in peerNodes
+                for (int i = (int) (knownPeers - index); i < peers.size(); i++) {
+                    if (!peerNodes.contains(peers.get(i))) {
+                        peerNodes.add(peers.get(i));
+                    }
+                }
+                knownPeers = (int) Math.max(knownPeers, index + peers.size());
+                System.out.println("Updated peer list: " + peerNodes);
+            }
+        }
+        if (gap) {
+            requestSync();
+        }
+    }
+
+    /**
+     * Answers a follower's SYNC_REQUEST with the peers it does not know yet, followed by the vote
+     * batches it missed or, if those are no longer kept, a snapshot of the votes.
+     */
+    private void onSyncRequest(Message message) {
+        TallyReplicator r = replicator;
+        if (!leaderToken || r == null) {
+            return;
+        }
+        String follower = message.getAddress();
+        addPeer(follower); // Followers of a previous leader never registered with this one
+        List<String> peers = new ArrayList<>(peerNodes);
+        int known = message.getSync().knownPeers;
+        if (known > peers.size()) {
+            known = 0; // The follower's list came from a different leader
+        }
+        if (known < peers.size()) {
+            nodeComm.sendMessage(Message.updateNewPeer(known, peers.subList(known, peers.size())), follower);
+        }
+        ShardMap map = shardMap;
+        if (map != null) {
+            nodeComm.sendMessage(map.toMessage(), follower);
+        }
+        boolean delta = r.sync(follower, message.getSequence(), uuidSet);
+        System.out.printf("Synced %s from batch %d with %s%n", follower, message.getSequence(),
+                delta ? "the missed batches" : "a snapshot");
+    }
+
+    private void onSyncSnapshot(Message message) {
+        Message.Sync sync = message.getSync();
+        long[] voters = sync.voters;
+        for (int i = 0; i < voters.length; i += 2) {
+            uuidSet.add(voters[i], voters[i + 1]);
+        }
+        if (sync.counts != null && batchSequencer.reset(message.getSequence(), () -> {
+            VoteTally tally = new VoteTally(voteTally.getOptions());
+            sync.counts.forEach(tally::add);
+            voteTally = tally;
+        })) {
+            System.out.println("Caught up with the leader as of vote batch " + message.getSequence());
+        }
+    }
 
-            System.out.println("Updated peer list: " + peerNodes);
+    private void onAck(Message message) {
+        if (!requests.complete(message)) {
+            System.out.println(message.toText());
+        }
+    }
+
+    /**
+     * Counts a vote, if its option is one of the session's, as {@link #onBulkVote} does for each vote
+     * of a bulk vote. A vote for any other option is answered as invalid without marking its voter
+     * as having voted.
+     */
+    private void onVote(Message message) {
+        String vote = message.getOption();
+        long msb = message.getUuidMostSignificantBits();
+        long lsb = message.getUuidLeastSignificantBits();
+        ShardMap map = shardMap;
+        if (map != null && !map.coordinatorOf(msb, lsb).equals(getAddress())) {
+            return; // The voter's shard map is out of date, it retries with the new one
         }
-        else if (message.startsWith("ACK:")) {
-            synchronized (this) {
-                acknowledgment = true;
-                notifyAll(); // Notify waiting threads
+        ShardCoordinator coordinator = leaderToken ? null : shardCoordinator;
+        if (!leaderToken && (map == null || coordinator == null)) {
+            return; // Sent to a leader that just moved or is still being elected; the voter retries at the new one
+        }
+        // A coordinator learns the options once voting starts; until then it lets every option through
+        VotingOptions options = nodeComm.getVotingOptions();
+        if (vote == null || options != null && options.indexOf(vote) < 0) {
+            nodeComm.sendMessage(Message.invalid(" Your vote is not for one of the session's options.")
+                    .withRequestId(message.getRequestId()), message.getHost(), message.getPort());
+            return;
+        }
+        UUID voter = new UUID(msb, lsb);
+        if (coordinator != null) {
+            boolean accepted = coordinator.accept(msb, lsb, vote);
+            boolean retry = false;
+            if (accepted) {
+                recentVotes.add(voter, message);
+                votesAccepted.increment();
+            } else {
+                RecentVotes.Vote earlier = recentVotes.get(voter);
+                retry = earlier != null && earlier.isRetry(message);
+                if (!retry) {
+                    votesDuplicate.increment();
+                }
             }
-            System.out.println(message);
-        }else if (message.startsWith("VOTE:")) {   
-            String[] parts = message.split(":");
-            String host = parts[1]; 
-            int port = Integer.parseInt(parts[2]); 
-            String vote = parts[3];
-            // Adding section for handling the UUID
-            String incomingUUID = parts[4];
-            if (!(this.uuidSet.contains(incomingUUID))) {
-                this.uuidSet.add(incomingUUID);
+            nodeComm.sendMessage((accepted || retry ? Message.ack(" Your vote was successfully counted.")
+                    : Message.duplicate(" A vote has already been cast with your UUID."))
+                    .withRequestId(message.getRequestId()), message.getHost(), message.getPort());
+            return;
+        }
+        VoteLog log = voteLog;
+        boolean added;
+        CompletableFuture<Void> durable = null;
+        CompletableFuture<Void> settled = null;
+        RecentVotes.Vote earlier = null;
+        if (log != null) {
+            stateLock.readLock().lock();
+        }
+        try {
+            // Check-and-insert is a single atomic step, so concurrent duplicates cannot both be counted
+            added = uuidSet.add(msb, lsb);
+            if (added) {
                 updateVoteTally(vote);
-                if (leaderToken) {                               
-                    nodeComm.broadcastMessage("UPDATE_VOTE_TALLY:" + incomingUUID + ":" + vote, peerNodes);    
-                    nodeComm.connectToNode(host, port);
-                    nodeComm.sendMessage("ACK: Your vote was successfully counted.", nodeComm.getClientSocket());
-                }    
-            }
-            else{
-                nodeComm.connectToNode(host, port);
-                nodeComm.sendMessage("DUPLICATE: A vote has already been cast with your UUID.", nodeComm.getClientSocket());
-            }
-                   
-        }else if(message.startsWith("DUPLICATE:")){
+                if (log != null) {
+                    settled = new CompletableFuture<>();
+                    recentVotes.add(voter, message, settled);
+                    durable = logVote(log, msb, lsb, vote);
+                } else {
+                    recentVotes.add(voter, message);
+                }
+            } else {
+                earlier = recentVotes.get(voter);
+            }
+        } finally {
+            if (log != null) {
+                stateLock.readLock().unlock();
+            }
+        }
+
+        if (!added) {
+            RecentVotes.Vote counted = earlier;
+            Runnable answer = () -> {
+                if (counted != null && counted.isRetry(message)) {
+                    // The first copy was counted, its answer was lost
+                    nodeComm.sendMessage(Message.ack(" Your vote was successfully counted.")
+                            .withRequestId(message.getRequestId()), message.getHost(), message.getPort());
+                    return;
+                }
+                votesDuplicate.increment();
+                nodeComm.sendMessage(Message.duplicate(" A vote has already been cast with your UUID.")
+                        .withRequestId(message.getRequestId()), message.getHost(), message.getPort());
+            };
+            if (earlier == null) {
+                answer.run();
+            } else {
+                // The vote this duplicates may still be waiting to be logged, and be taken back. Then this
+                // one is left unanswered, so the voter's retry is counted.
+                earlier.settled.whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        answer.run();
+                    }
+                });
+            }
+            return;
+        }
+
+        votesAccepted.increment();
+        boolean leading = leaderToken;
+        TallyReplicator r = replicator;
+        Runnable accept = () -> {
+            if (leading) {
+                r.add(msb, lsb, vote);
+                nodeComm.sendMessage(Message.ack(" Your vote was successfully counted.")
+                        .withRequestId(message.getRequestId()), message.getHost(), message.getPort());
+            }
+        };
+        if (durable == null) {
+            accept.run();
+        } else {
+            // A vote is only acknowledged and replicated once it survives a leader crash
+            CompletableFuture<Void> logged = settled;
+            durable.whenCompleteAsync((ignored, error) -> {
+                if (error != null) {
+                    takeBackVotes(List.of(new Message.VoteEntry(msb, lsb, vote)), error);
+                    logged.completeExceptionally(error);
+                } else {
+                    accept.run();
+                    logged.complete(null);
+                }
+            }, durableTasks);
+            if (leading && log.isSnapshotDue() && snapshotting.compareAndSet(false, true)) {
+                durableTasks.execute(this::snapshotVoteLog);
+            }
+        }
+    }
+
+    /**
+     * Deduplicates and counts a bulk vote's votes in one step and answers with one status per vote.
+     * A snapshot of the tally ({@link #tallySnapshot()}) or of the logged election state holds either
+     * all of them or none.
+     * The answer is sent once every accepted vote is logged, and accepted votes are replicated like
+     * single ones. Votes for options the session does not have are rejected without marking their
+     * voters as having voted. A resent bulk vote gets the answer of the first copy, as a resent single
+     * vote does.
+     */
+    private void onBulkVote(Message message) {
+        ShardMap map = shardMap;
+        ShardCoordinator coordinator = leaderToken ? null : shardCoordinator;
+        if (!leaderToken && (map == null || coordinator == null)) {
+            return; // As for a single vote, the sender retries at the new leader
+        }
+        List<Message.VoteEntry> entries = message.getEntries();
+        // A coordinator learns the options once voting starts; until then it lets every option through
+        VotingOptions options = nodeComm.getVotingOptions();
+        List<VoteReceipt.Status> results = new ArrayList<>(entries.size());
+        List<Message.VoteEntry> accepted = new ArrayList<>(entries.size());
+        VoteLog log = leaderToken ? voteLog : null;
+        CompletableFuture<Void> durable = null;
+        CompletableFuture<Void> settled = new CompletableFuture<>();
+        List<CompletableFuture<Void>> earlier = new ArrayList<>();
+        int retried = 0;
+        stateLock.readLock().lock();
+        try {
+            for (Message.VoteEntry entry : entries) {
+                VoteReceipt.Status status;
+                UUID voter = new UUID(entry.uuidMsb, entry.uuidLsb);
+                if (map != null && !map.coordinatorOf(entry.uuidMsb, entry.uuidLsb).equals(getAddress())) {
+                    status = VoteReceipt.Status.MOVED;
+                } else if (entry.option == null || options != null && options.indexOf(entry.option) < 0) {
+                    status = VoteReceipt.Status.INVALID;
+                } else if (coordinator != null ? coordinator.accept(entry.uuidMsb, entry.uuidLsb, entry.option)
+                        : uuidSet.add(entry.uuidMsb, entry.uuidLsb)) {
+                    if (coordinator == null) {
+                        updateVoteTally(entry.option);
+                        accepted.add(entry);
+                    }
+                    if (log != null) {
+                        recentVotes.add(voter, message, settled);
+                        durable = logVote(log, entry.uuidMsb, entry.uuidLsb, entry.option);
+                    } else {
+                        recentVotes.add(voter, message);
+                    }
+                    status = VoteReceipt.Status.ACCEPTED;
+                } else {
+                    RecentVotes.Vote counted = recentVotes.get(voter);
+                    if (counted != null && counted.isRetry(message)) {
+                        retried++;
+                        status = VoteReceipt.Status.ACCEPTED;
+                    } else {
+                        status = VoteReceipt.Status.DUPLICATE;
+                    }
+                    if (counted != null && !counted.settled.isDone()) {
+                        earlier.add(counted.settled);
+                    }
+                }
+                results.add(status);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+
+        votesAccepted.add(results.stream().filter(status -> status == VoteReceipt.Status.ACCEPTED).count() - retried);
+        votesDuplicate.add(results.stream().filter(status -> status == VoteReceipt.Status.DUPLICATE).count());
+        Message answer = Message.bulkVoteResult(results).withRequestId(message.getRequestId());
+        if (coordinator != null) {
+            nodeComm.sendMessage(answer, message.getHost(), message.getPort());
+            return;
+        }
+        TallyReplicator r = replicator;
+        Runnable replicate = () -> {
+            for (Message.VoteEntry entry : accepted) {
+                r.add(entry.uuidMsb, entry.uuidLsb, entry.option);
+            }
+        };
+        Runnable answerSender = () -> nodeComm.sendMessage(answer, message.getHost(), message.getPort());
+        if (durable == null && earlier.isEmpty()) {
+            replicate.run();
+            answerSender.run();
+            return;
+        }
+        // Records reach the disk in order, so the last vote's record being there covers the rest
+        CompletableFuture<Void> written = durable != null ? durable : CompletableFuture.completedFuture(null);
+        written.whenCompleteAsync((ignored, error) -> {
+            if (error != null) {
+                takeBackVotes(accepted, error);
+                settled.completeExceptionally(error);
+                return;
+            }
+            replicate.run();
+            settled.complete(null);
+            // As for a single vote, duplicates of votes still being logged are only answered once those
+            // are, and the whole answer is held back if one of those was taken back
+            CompletableFuture.allOf(earlier.toArray(new CompletableFuture<?>[0]))
+                    .whenCompleteAsync((ignoredEarlier, earlierError) -> {
+                        if (earlierError == null) {
+                            answerSender.run();
+                        }
+                    }, durableTasks);
+        }, durableTasks);
+        if (log != null && log.isSnapshotDue() && snapshotting.compareAndSet(false, true)) {
+            durableTasks.execute(this::snapshotVoteLog);
+        }
+    }
+
+    /**
+     * Logs an accepted vote. A log closed meanwhile, by this node stepping down, fails the vote like
+     * a failed write, so it is taken back.
+     */
+    private static CompletableFuture<Void> logVote(VoteLog log, long msb, long lsb, String option) {
+        try {
+            return log.appendVote(msb, lsb, option);
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Takes back accepted votes whose log records failed, neither acknowledged nor replicated, so
+     * the voters' retries are counted again instead of being answered as duplicates.
+     */
+    private void takeBackVotes(List<Message.VoteEntry> votes, Throwable error) {
+        System.err.println(votes.size() + " vote(s) could not be logged, not acknowledging them: "
+                + error.getMessage());
+        stateLock.readLock().lock();
+        try {
+            for (Message.VoteEntry entry : votes) {
+                if (uuidSet.remove(entry.uuidMsb, entry.uuidLsb)) {
+                    voteTally.add(entry.option, -1);
+                    votesAccepted.decrement();
+                }
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    private void onShardMap(Message message) {
+        ShardMap map = ShardMap.of(message);
+        ShardMap current = shardMap;
+        if (leaderToken || current != null && current.getEpoch() >= map.getEpoch()) {
+            return;
+        }
+        installShardMap(map);
+        System.out.println("Votes are sharded: " + map);
+    }
+
+    /**
+     * Switches to a new shard map, starting or stopping this follower's coordinator as needed.
+     */
+    private void installShardMap(ShardMap map) {
+        shardMap = map;
+        ShardCoordinator coordinator = shardCoordinator;
+        if (!leaderToken && map.isCoordinator(getAddress())) {
+            if (coordinator == null) {
+                coordinator = new ShardCoordinator(nodeComm, () -> leaderAddress, "localhost", port,
+                        voteTally.getOptions());
+                shardCoordinator = coordinator;
+            }
+            coordinator.setEpoch(map.getEpoch());
+        } else if (coordinator != null) {
+            shardCoordinator = null;
+            coordinator.close();
+        }
+    }
+
+    private void onShardBatch(Message message) {
+        if (!leaderToken) {
+            return; // The coordinator has not heard of the new leader yet, and sends to it next
+        }
+        coordinatorsHeard.put(message.getAddress(), System.nanoTime());
+        applyForwardedVotes(message.getEntries());
+    }
+
+    /**
+     * Applies votes a shard coordinator accepted to the session's tally, and replicates them.
+     * Votes the leader already has (resent after a leader change) are skipped.
+     */
+    private void applyForwardedVotes(List<Message.VoteEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        VoteLog log = voteLog;
+        TallyReplicator r = replicator;
+        stateLock.readLock().lock();
+        try {
+            for (Message.VoteEntry entry : entries) {
+                if (uuidSet.add(entry.uuidMsb, entry.uuidLsb)) {
+                    updateVoteTally(entry.option);
+                    if (log != null && entry.option != null) {
+                        logVote(log, entry.uuidMsb, entry.uuidLsb, entry.option);
+                    }
+                    if (r != null) {
+                        r.add(entry.uuidMsb, entry.uuidLsb, entry.option);
+                    }
+                }
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    private void onShardFlush(Message message) {
+        ShardCoordinator coordinator = shardCoordinator;
+        long accepted = 0;
+        if (coordinator != null) {
+            coordinator.flush();
+            accepted = coordinator.getAccepted();
+        }
+        // Answered on the connection the batches take, so the answer arrives after the last of them
+        nodeComm.sendMessage(Message.ack(" " + accepted).withRequestId(message.getRequestId()), leaderAddress);
+    }
+
+    private void onDuplicate(Message message) {
+        if (!requests.complete(message)) {
             System.out.println("A duplicate vote was detected with your UUID. The most recent vote was not submitted.");
         }
-        else if (message.startsWith("UPDATE_VOTE_TALLY:")) {
-            String incomingUUID = message.substring(18, 54);
-            String vote = message.substring(54).trim();
-            updateVoteTally(vote);
+    }
+
+    /**
+     * Prints the leader's answer to a request the way it was printed before requests were tracked.
+     */
+    private static void printResponse(VoteReceipt receipt) {
+        if (receipt.getStatus() == VoteReceipt.Status.DUPLICATE && receipt.getAttempts() > 1) {
+            // Resent to a new leader, which only knows the voter voted, not by which request
+            System.out.println("A vote with your UUID was already counted, possibly this one before the leader changed.");
+        } else if (receipt.getStatus() == VoteReceipt.Status.DUPLICATE) {
+            System.out.println("A duplicate vote was detected with your UUID. The most recent vote was not submitted.");
+        } else {
+            System.out.println(receipt.getResponse().getType() + ":" + receipt.getResponse().getText());
         }
-        else if (message.startsWith("START_VOTING")) {
-            promptForVote();
-        } else if (message.startsWith("VOTING_ENDED:")) {
-            System.out.println();
-            System.out.println(message.substring(13));
+    }
+
+    private void onUpdateVoteTally(Message message) {
+        updateVoteTally(message.getOption());
+    }
+
+    /**
+     * Applies a batch of votes replicated by the leader. Called in sequence order by the batch sequencer.
+     *
+     * @param batch The batch to apply.
+     */
+    private void applyVoteBatch(Message batch) {
+        for (Message.VoteEntry entry : batch.getEntries()) {
+            uuidSet.add(entry.uuidMsb, entry.uuidLsb);
+            updateVoteTally(entry.option);
         }
     }
 
+    private void onLeaderChanged(Message message) {
+        leaderAddress = message.getHost() + ":" + message.getPort();
+        System.out.println("The leader moved to " + leaderAddress);
+    }
+
+    private void onVotingEnded(Message message) {
+        System.out.println();
+        System.out.println(message.getText());
+    }
+
+    /**
+     * Retrieves per-type message counts and handling times.
+     *
+     * @return The dispatcher keeping the statistics.
+     */
+    public MessageDispatcher getMessageStats() {
+        return dispatcher;
+    }
+
+    /**
+     * @return This node's metrics, as served when voting.metrics.port is set.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reports the votes this node accepted, the wait for answers to its own requests, its place in
+     * the election and replication, and per-type message handling.
+     */
+    private void collectMetrics(Metrics.Writer out) {
+        out.counter("voting_votes_total", "Votes answered by this node, by result.", votesAccepted.sum(),
+                "result", "accepted")
+                .counter("voting_votes_total", "Votes answered by this node, by result.", votesDuplicate.sum(),
+                        "result", "duplicate")
+                .histogram("voting_ack_wait_seconds",
+                        "Time from sending a vote or registration to its answer, retries included.",
+                        requests.getAnswerTimes())
+                .gauge("voting_requests_pending", "Votes and registrations waiting for an answer.",
+                        requests.getPendingCount())
+                .counter("voting_requests_resent_total", "Votes and registrations resent for lack of an answer.",
+                        requests.getResentCount())
+                .counter("voting_requests_timed_out_total", "Votes and registrations never answered.",
+                        requests.getTimedOutCount())
+                .gauge("voting_leader", "1 while this node leads the session.", leaderToken ? 1 : 0)
+                .gauge("voting_election_term", "The election term this node is in.", election.getTerm())
+                .gauge("voting_replication_sequence",
+                        "The last vote batch sent, on the leader, or applied, on a follower.", getProgress())
+                .gauge("voting_replication_lag_batches",
+                        "Vote batches received by this follower but not yet applied, waiting for a missing one.",
+                        batchSequencer.getLag())
+                .gauge("voting_peers", "Peers this node knows.", peerNodes.size())
+                .gauge("voting_voters", "Distinct voters counted.", uuidSet.size());
+        voteTally.snapshot().forEach((option, count) -> out.gauge("voting_tally_votes", "Votes per option.", count,
+                "option", option));
+        for (MessageType type : MessageType.values()) {
+            long count = dispatcher.getCount(type);
+            if (count > 0) {
+                out.counter("voting_messages_handled_total", "Received messages handled, by type.", count,
+                        "type", type.name())
+                        .histogram("voting_message_handle_seconds", "Time spent handling a received message, by type.",
+                                dispatcher.getTimings(type), "type", type.name());
+            }
+        }
+    }
 
     public boolean updateUUID(String uuid) {
-        boolean succcess = uuidSet.add(uuid);
+        boolean succcess = uuidSet.add(UUID.fromString(uuid.trim()));
         return succcess;
     }
+
+    /**
+     * Retrieves the UUIDs of every voter seen so far.
+     *
+     * @return The voter dedup set.
+     */
+    public UuidSet getUuidSet() {
+        return uuidSet;
+    }
     /**
-     * Determines the leader node. (Currently hardcoded)
+     * Determines the leader node: the session's current leader as listed by the registry, which the
+     * leader keeps up to date, or localhost:5000 if there is no session to look up.
      */
     private void findLeader() {
+        String code = sessionCode;
+        if (code != null && !code.isEmpty()) {
+            Optional<Session> session = SessionRegistry.findSession(code);
+            if (session.isPresent()) {
+                leaderAddress = session.get().host + ":" + session.get().port;
+                return;
+            }
+        }
         leaderAddress = "localhost:5000";
     }
 
@@ -279,6 +983,36 @@ public class PeerNode {
         return leaderAddress;
     }
 
+    /**
+     * Moves the leader to a new address. On the leader, peers are told over their existing
+     * connections and the registry is updated right away instead of on the next heartbeat.
+     *
+     * @param leaderAddress The leader's new address in the format "host:port".
+     */
+    public void setLeaderAddress(String leaderAddress) {
+        String previous = this.leaderAddress;
+        this.leaderAddress = leaderAddress;
+        if (!leaderToken || leaderAddress.equals(previous)) {
+            return;
+        }
+        int sep = leaderAddress.lastIndexOf(':');
+        nodeComm.broadcastMessage(Message.leaderChanged(leaderAddress.substring(0, sep),
+                Integer.parseInt(leaderAddress.substring(sep + 1))), peerNodes);
+        if (heartbeat != null) {
+            heartbeat.wake();
+        }
+    }
+
+    /**
+     * Starts renewing this leader's session with the registry.
+     *
+     * @param scheduler Runs the heartbeats.
+     */
+    public void startHeartbeat(ScheduledExecutorService scheduler) {
+        heartbeat = new SessionHeartbeat(this, scheduler);
+        heartbeat.start();
+    }
+
     public boolean hasLeaderToken() {
         return leaderToken;
     }
@@ -288,33 +1022,177 @@ public class PeerNode {
     }
 
     /**
-     * Updates the vote tally for a given vote.
+     * Updates the vote tally for a given vote. Safe to call from any number of threads.
      *
      * @param vote The vote received.
-     * @return The updated vote tally.
      */
-    public Map<String, Integer> updateVoteTally(String vote) {
-        voteTally.put(vote, voteTally.getOrDefault(vote, 0) + 1);
+    public void updateVoteTally(String vote) {
+        if (vote == null) {
+            System.err.println("Ignoring vote for an unknown option index.");
+            return;
+        }
+        voteTally.increment(vote);
+    }
+
+    /**
+     * Retrieves the vote tally of the current session.
+     *
+     * @return The vote tally.
+     */
+    public VoteTally getVoteTally() {
         return voteTally;
     }
 
+    /**
+     * Takes a consistent snapshot of the tally, which holds either every vote of a bulk vote or none.
+     *
+     * @return The counts, as {@link VoteTally#snapshot()} returns them.
+     */
+    public Map<String, Long> tallySnapshot() {
+        stateLock.writeLock().lock();
+        try {
+            return voteTally.snapshot();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
     /**
      * Sends a vote to the leader node.
      *
      * @param vote The vote being submitted.
      */
-    public synchronized void sendVoteToLeader(String vote) {       
-        this.acknowledgment = false;
-        nodeComm.connectToNode(leaderAddress.split(":")[0], Integer.parseInt(leaderAddress.split(":")[1]));
-        nodeComm.sendMessage("VOTE:localhost:" + this.port + ":" + vote + ":" + this.uuid, nodeComm.getClientSocket());
-        // Wait for acknowledgment from the leader
-        while (!acknowledgment) {
-            try {
-                wait(); // Correct usage inside synchronized block
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    public void sendVoteToLeader(String vote) {
+        try {
+            printResponse(submitVote(vote).join());
+        } catch (CompletionException e) {
+            System.err.println("Failed to submit vote: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Sends this node's vote to the leader without waiting for the leader's answer.
+     *
+     * @param vote The vote being submitted.
+     * @return A future completed with the leader's answer.
+     */
+    public CompletableFuture<VoteReceipt> submitVote(String vote) {
+        return submitVote(vote, UUID.fromString(this.uuid));
+    }
+
+    /**
+     * @return The UUID this node's own votes are cast with.
+     */
+    public UUID getUuid() {
+        return UUID.fromString(this.uuid);
+    }
+
+    /**
+     * Sends a vote on behalf of any voter to the leader without waiting for the leader's answer.
+     * Any number of votes may be in flight at once, e.g. on a kiosk collecting votes for many voters.
+     *
+     * @param vote  The vote being submitted.
+     * @param voter The voter's UUID.
+     * @return A future completed with the leader's answer, or failed with a
+     *         {@link java.util.concurrent.TimeoutException} if the leader never answered.
+     */
+    public CompletableFuture<VoteReceipt> submitVote(String vote, UUID voter) {
+        // Looked up on every attempt, so a retry after a failover or reassignment reaches the new node
+        return requests.send(Message.vote("localhost", this.port, vote, voter),
+                m -> nodeComm.sendMessage(m, voteTarget(voter.getMostSignificantBits(),
+                        voter.getLeastSignificantBits())));
+    }
+
+    /**
+     * Sends many voters' votes at once, e.g. from a polling station forwarding the votes it
+     * collected. Votes go out in BULK_VOTE messages of up to voting.bulk.size votes, one stream per
+     * shard coordinator in a sharded session, so a thousand votes cost about one round trip instead
+     * of a thousand. Unanswered messages are resent like single votes.
+     *
+     * @param votes The votes, each with its voter's UUID.
+     * @return One future per vote, in the order given, completed with the vote's receipt or failed
+     *         with a {@link java.util.concurrent.TimeoutException} if its message was never answered.
+     */
+    public List<CompletableFuture<VoteReceipt>> submitVotes(List<Message.VoteEntry> votes) {
+        List<CompletableFuture<VoteReceipt>> receipts = new ArrayList<>(votes.size());
+        for (int i = 0; i < votes.size(); i++) {
+            receipts.add(new CompletableFuture<>());
+        }
+        sendBulkVotes(votes, receipts, NodeConfig.requestRetries());
+        return receipts;
+    }
+
+    /**
+     * Sends votes grouped by the node accepting them. Votes answered as belonging to another
+     * coordinator are sent again, right away if this node's shard map changed meanwhile and after a
+     * request timeout otherwise, until the resends run out.
+     */
+    private void sendBulkVotes(List<Message.VoteEntry> votes, List<CompletableFuture<VoteReceipt>> receipts,
+            int resends) {
+        Map<String, List<Integer>> byTarget = new LinkedHashMap<>();
+        for (int i = 0; i < votes.size(); i++) {
+            Message.VoteEntry vote = votes.get(i);
+            byTarget.computeIfAbsent(voteTarget(vote.uuidMsb, vote.uuidLsb), t -> new ArrayList<>()).add(i);
+        }
+        int size = NodeConfig.bulkVoteSize();
+        byTarget.forEach((target, indices) -> {
+            for (int from = 0; from < indices.size(); from += size) {
+                List<Message.VoteEntry> entries = new ArrayList<>();
+                List<CompletableFuture<VoteReceipt>> futures = new ArrayList<>();
+                for (int i : indices.subList(from, Math.min(indices.size(), from + size))) {
+                    entries.add(votes.get(i));
+                    futures.add(receipts.get(i));
+                }
+                Message.VoteEntry first = entries.get(0);
+                // Looked up on every attempt, as for a single vote
+                requests.send(Message.bulkVote("localhost", port, entries),
+                        m -> nodeComm.sendMessage(m, voteTarget(first.uuidMsb, first.uuidLsb)))
+                        .whenComplete((receipt, error) -> onBulkVoteAnswered(target, entries, futures, receipt,
+                                error, resends));
             }
-        }     
+        });
+    }
+
+    private void onBulkVoteAnswered(String target, List<Message.VoteEntry> entries,
+            List<CompletableFuture<VoteReceipt>> futures, VoteReceipt receipt, Throwable error, int resends) {
+        List<VoteReceipt.Status> results = error == null ? receipt.getResponse().getResults() : null;
+        if (results == null || results.size() != entries.size()) {
+            Throwable cause = error != null ? error
+                    : new IllegalStateException("Bulk vote answered with " + results.size() + " results for "
+                            + entries.size() + " votes");
+            futures.forEach(future -> future.completeExceptionally(cause));
+            return;
+        }
+        List<Message.VoteEntry> moved = new ArrayList<>();
+        List<CompletableFuture<VoteReceipt>> movedFutures = new ArrayList<>();
+        for (int k = 0; k < results.size(); k++) {
+            if (results.get(k) == VoteReceipt.Status.MOVED && resends > 0) {
+                moved.add(entries.get(k));
+                movedFutures.add(futures.get(k));
+            } else {
+                futures.get(k).complete(new VoteReceipt(receipt.getRequestId(), results.get(k), receipt.getResponse(),
+                        receipt.getLatencyNanos(), receipt.getAttempts()));
+            }
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+        Runnable resend = () -> sendBulkVotes(moved, movedFutures, resends - 1);
+        Message.VoteEntry first = moved.get(0);
+        if (target == null || target.equals(voteTarget(first.uuidMsb, first.uuidLsb))) {
+            // This node's shard map is the stale one, give it time to catch up
+            CompletableFuture.delayedExecutor(NodeConfig.requestTimeoutMs(), TimeUnit.MILLISECONDS).execute(resend);
+        } else {
+            resend.run();
+        }
+    }
+
+    /**
+     * @return The node accepting the voter's vote: the coordinator of its shard, or the leader.
+     */
+    private String voteTarget(long uuidMsb, long uuidLsb) {
+        ShardMap map = shardMap;
+        return map != null ? map.coordinatorOf(uuidMsb, uuidLsb) : leaderAddress;
     }
 
     /**
@@ -323,13 +1201,15 @@ public class PeerNode {
     public void startVoting() {
         // System.out.println("starting voting");
         // System.out.println("peer nodes: " + nodeComm.getPeerAddresses());
-        nodeComm.broadcastMessage("START_VOTING:" + voteTally.keySet(),
-                peerNodes);
+        if (leaderToken && shardMap == null && NodeConfig.shards() > 1) {
+            shardVoting(NodeConfig.shards());
+        }
+        nodeComm.broadcastMessage(Message.startVoting(voteTally.getOptions().toString()), peerNodes);
 
     }
 
     public void promptForVote() {
-        String options = SessionRegistry.getVotingOptions(sessionCode).toString();
+        VotingOptions options = loadVotingOptions();
         System.out.println("\nVoting started!");
         System.out.println("Voting options: " + options);
 
@@ -346,13 +1226,140 @@ public class PeerNode {
         }
     }
 
+    /**
+     * Replaces the console prompt shown when voting starts, e.g. to cast votes from a load test
+     * instead of standard input.
+     *
+     * @param prompt Called on a handler thread with the session's options once voting starts, or
+     *               null to prompt on the console again.
+     */
+    public void setVotePrompt(Consumer<VotingOptions> prompt) {
+        this.votePrompt = prompt;
+    }
+
+    /**
+     * Looks up the session's options and encodes votes with them from now on.
+     */
+    private VotingOptions loadVotingOptions() {
+        VotingOptions options = VotingOptions.of(SessionRegistry.getVotingOptions(sessionCode));
+        nodeComm.setVotingOptions(options);
+        return options;
+    }
+
     /**
      * Ends the voting process and broadcasts results.
      */
     public void endVoting() {
-        String results = "VOTING_ENDED:Thanks for voting! Voting results: " + voteTally;
-        System.out.println(results.substring(13));
-        nodeComm.broadcastMessage(results, peerNodes);
+        ShardMap map = shardMap;
+        if (map != null) {
+            flushShards(map);
+        }
+        // Followers must have every accepted vote before the results go out
+        if (replicator != null) {
+            replicator.flush();
+        }
+        String results = "Thanks for voting! Voting results: " + tallySnapshot();
+        System.out.println(results);
+        nodeComm.broadcastMessage(Message.votingEnded(results), peerNodes);
+    }
+
+    /**
+     * Splits the voters into shards, each coordinated by a follower (or the leader, once every
+     * follower has one), and tells every peer. Coordinators accept the votes of their shards and
+     * forward them to the leader, whose tally merges every shard's.
+     *
+     * @param shards The number of shards.
+     */
+    public void shardVoting(int shards) {
+        List<String> nodes = new ArrayList<>(peerNodes);
+        nodes.remove(getAddress());
+        nodes.add(getAddress());
+        ShardMap map = ShardMap.assign(shards, nodes);
+        shardMap = map;
+        nodeComm.broadcastMessageAsync(map.toMessage(), peerNodes);
+        watchShards();
+        System.out.println("Votes are sharded: " + map);
+    }
+
+    /**
+     * Checks on the shard coordinators every election interval. The shards of a coordinator that
+     * has not sent a batch (or keepalive) within the election timeout move to the leader, which has
+     * the votes it forwarded.
+     */
+    private synchronized void watchShards() {
+        if (shardWatch != null) {
+            shardWatch.cancel(false);
+        }
+        coordinatorsHeard.clear();
+        long interval = NodeConfig.electionIntervalMs();
+        shardWatch = election.getScheduler().scheduleWithFixedDelay(() -> {
+            ShardMap map = shardMap;
+            if (!leaderToken || map == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            ShardMap moved = map;
+            for (String coordinator : new LinkedHashSet<>(map.getCoordinators())) {
+                if (coordinator.equals(getAddress())) {
+                    continue;
+                }
+                Long heard = coordinatorsHeard.putIfAbsent(coordinator, now); // Counted from the first check
+                if (heard != null && now - heard > TimeUnit.MILLISECONDS.toNanos(NodeConfig.electionTimeoutMs())) {
+                    System.err.println("Shard coordinator " + coordinator + " is not responding, the leader takes"
+                            + " its shards over");
+                    moved = moved.reassign(coordinator, getAddress());
+                    coordinatorsHeard.remove(coordinator);
+                }
+            }
+            if (moved != map) {
+                shardMap = moved;
+                nodeComm.broadcastMessageAsync(moved.toMessage(), peerNodes);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Has every shard coordinator forward the votes it still holds, so the leader's tally merges
+     * every shard's before the results go out.
+     */
+    private void flushShards(ShardMap map) {
+        Map<String, CompletableFuture<VoteReceipt>> flushes = new LinkedHashMap<>();
+        for (String coordinator : new LinkedHashSet<>(map.getCoordinators())) {
+            if (!coordinator.equals(getAddress())) {
+                flushes.put(coordinator, requests.send(Message.shardFlush("localhost", port),
+                        m -> nodeComm.sendMessage(m, coordinator)));
+            }
+        }
+        flushes.forEach((coordinator, flush) -> {
+            try {
+                flush.join();
+            } catch (CompletionException e) {
+                System.err.println("Shard coordinator " + coordinator + " did not forward its last votes: "
+                        + e.getCause().getMessage());
+            }
+        });
+        System.out.printf("Merged the tallies of %d shards%n", map.size());
+    }
+
+    /**
+     * @return The shard map, or null if votes are not sharded.
+     */
+    public ShardMap getShardMap() {
+        return shardMap;
+    }
+
+    /**
+     * @return The coordinator of this follower's shards, or null if it coordinates none.
+     */
+    public ShardCoordinator getShardCoordinator() {
+        return shardCoordinator;
+    }
+
+    /**
+     * @return The address peers know this node by.
+     */
+    public String getAddress() {
+        return "localhost:" + port;
     }
 
     /**
@@ -364,15 +1371,277 @@ public class PeerNode {
      * @return The generated session code.
      */
     public String startNewSession(String ip, int port, String options) {
-        String sessionCode = SessionRegistry.saveSession(ip, port, options);
-        for (String option : options.split(",")) {
-            voteTally.put(option.trim(), 0);
+        // The registry round trip runs while the tally and replicator are set up
+        CompletableFuture<String> saved = AsyncSessionRegistry.saveSession(ip, port, options);
+        leaderAddress = ip + ":" + port;
+        VotingOptions votingOptions = VotingOptions.parse(options);
+        voteTally = new VoteTally(votingOptions);
+        nodeComm.setVotingOptions(votingOptions);
+        setLeaderToken(true); // Leader token is initially with the session creator
+        replicator = new TallyReplicator(nodeComm, () -> peerNodes, NodeConfig.batchSize(),
+                NodeConfig.batchIntervalMs());
+        election.lead();
+
+        String sessionCode;
+        try {
+            sessionCode = saved.join();
+        } catch (CompletionException e) {
+            // FIXME: Ignored exception
+            e.getCause().printStackTrace();
+            sessionCode = "";
         }
         this.sessionCode = sessionCode;
-        setLeaderToken(true); // Leader token is initially with the session creator
+        if (NodeConfig.wal() && !sessionCode.isEmpty()) {
+            openVoteLog(sessionCode, null);
+            if (voteLog != null) {
+                voteLog.appendSession(sessionCode, ip, port, votingOptions.asList());
+            }
+        }
         return sessionCode;
     }
 
+    /**
+     * Resumes leading a session after a restart, from the state this node logged while leading it.
+     *
+     * @param sessionCode The session to resume.
+     * @return true if the session's log was found and recovered.
+     */
+    public boolean resumeSession(String sessionCode) {
+        if (!Files.isDirectory(voteLogDir(sessionCode))) {
+            return false;
+        }
+        long start = System.nanoTime();
+        VoteLog.Recovery recovery = new VoteLog.Recovery();
+        openVoteLog(sessionCode, recovery);
+        if (voteLog == null || recovery.getSessionCode() == null) {
+            return false;
+        }
+
+        VotingOptions votingOptions = VotingOptions.of(recovery.getOptions());
+        VoteTally tally = new VoteTally(votingOptions);
+        recovery.getCounts().forEach(tally::add);
+        voteTally = tally;
+        nodeComm.setVotingOptions(votingOptions);
+        for (String peer : recovery.getPeers()) {
+            if (!peerNodes.contains(peer)) {
+                peerNodes.add(peer);
+            }
+        }
+        this.sessionCode = sessionCode;
+        leaderAddress = recovery.getHost() + ":" + recovery.getPort();
+        SessionRegistry._options = String.join(",", recovery.getOptions());
+        setLeaderToken(true);
+        replicator = new TallyReplicator(nodeComm, () -> peerNodes, NodeConfig.batchSize(),
+                NodeConfig.batchIntervalMs());
+        election.lead();
+        System.out.printf("Recovered %s in %d ms%n", recovery, (System.nanoTime() - start) / 1_000_000);
+
+        // The session's lease may have run out while this node was down
+        AsyncSessionRegistry.restoreSession(sessionCode, recovery.getHost(), recovery.getPort(),
+                SessionRegistry._options).exceptionally(e -> {
+                    System.err.println("Failed to list the session again: " + e.getMessage());
+                    return null;
+                });
+        return true;
+    }
+
+    /**
+     * Takes over the session after winning an election. Replication continues from the last batch
+     * this node applied, which the election made sure no surviving follower is past.
+     *
+     * @param term The term this node won.
+     */
+    private void promote(long term) {
+        if (leaderToken) {
+            return;
+        }
+        String previous = leaderAddress;
+        long sequence;
+        Map<String, Long> counts;
+        synchronized (batchSequencer) { // No batch is applied between the two reads
+            sequence = batchSequencer.getAppliedSequence();
+            counts = voteTally.snapshot();
+        }
+        TallyReplicator r = new TallyReplicator(nodeComm, () -> peerNodes, NodeConfig.batchSize(),
+                NodeConfig.batchIntervalMs());
+        r.continueFrom(sequence, counts);
+        replicator = r;
+        leaderAddress = "localhost:" + port;
+        if (previous != null) {
+            peerNodes.remove(previous);
+        }
+        setLeaderToken(true);
+        System.out.printf("Leading the session in term %d from vote batch %d%n", term, sequence);
+        ShardCoordinator coordinator = shardCoordinator;
+        if (coordinator != null) {
+            // The votes this node accepted but had not forwarded yet are the leader's own now
+            shardCoordinator = null;
+            List<Message.VoteEntry> pending = coordinator.drain();
+            coordinator.close();
+            applyForwardedVotes(pending);
+        }
+        ShardMap map = shardMap;
+        if (map != null) {
+            // The shards the failed leader coordinated come along with its role
+            ShardMap moved = previous == null ? map : map.reassign(previous, getAddress());
+            shardMap = moved;
+            if (moved != map) {
+                nodeComm.broadcastMessageAsync(moved.toMessage(), peerNodes);
+            }
+            watchShards();
+        }
+
+        String code = sessionCode;
+        if (code == null || code.isEmpty()) {
+            return;
+        }
+        if (NodeConfig.wal()) {
+            createVoteLog(code);
+            VoteLog log = voteLog;
+            if (log != null) {
+                log.appendSession(code, NodeConfig.host(), port, voteTally.getOptions().asList());
+                // The replicated state so far goes into the log in one go
+                snapshotting.set(true);
+                durableTasks.execute(this::snapshotVoteLog);
+            }
+        }
+        AsyncSessionRegistry.getVotingOptions(code).thenAccept(options -> {
+            if (!options.isEmpty()) {
+                SessionRegistry._options = String.join(",", options); // Used if the session must be restored
+            }
+            // Points the session at this node right away
+            heartbeat = new SessionHeartbeat(this, election.getScheduler());
+            heartbeat.wake();
+        });
+    }
+
+    /**
+     * Follows a newly elected leader, stepping down first if this node was leading, and asks it for
+     * whatever this node is missing.
+     */
+    private void followLeader(String leader, long term) {
+        stepDown();
+        leaderAddress = leader;
+        synchronized (membershipLock) {
+            knownPeers = 0; // The new leader's list is ordered differently
+        }
+        lastSyncRequest = 0;
+        requestSync();
+    }
+
+    private void stepDown() {
+        if (!leaderToken) {
+            return;
+        }
+        setLeaderToken(false);
+        synchronized (this) {
+            if (shardWatch != null) {
+                shardWatch.cancel(false);
+                shardWatch = null;
+            }
+        }
+        if (replicator != null) {
+            replicator.close();
+            replicator = null;
+        }
+        if (heartbeat != null) {
+            heartbeat.stop();
+            heartbeat = null;
+        }
+        VoteLog log = voteLog;
+        if (log != null) {
+            voteLog = null;
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the vote log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return How far this node's state goes, which ranks it in elections: the last vote batch it
+     *         sent as the leader, or applied as a follower.
+     */
+    private long getProgress() {
+        TallyReplicator r = replicator;
+        return leaderToken && r != null ? r.getSequence() : batchSequencer.getAppliedSequence();
+    }
+
+    /**
+     * @return This node's part in leader elections.
+     */
+    public LeaderElection getElection() {
+        return election;
+    }
+
+    /**
+     * @return This node's own log directory for a session, so nodes sharing a host and
+     *         {@code voting.wal.dir} never read each other's logs.
+     */
+    private Path voteLogDir(String sessionCode) {
+        return NodeConfig.walDir().resolve(sessionCode).resolve(Integer.toString(nodeId));
+    }
+
+    private void openVoteLog(String sessionCode, VoteLog.Recovery recovery) {
+        try {
+            voteLog = VoteLog.open(voteLogDir(sessionCode), uuidSet, NodeConfig.walSnapshotRecords(), recovery);
+        } catch (IOException e) {
+            System.err.println("Failed to open the vote log, votes will not survive a restart: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts a new log for a session this node now leads with replicated state, which supersedes
+     * anything it logged while leading the session before.
+     */
+    private void createVoteLog(String sessionCode) {
+        try {
+            voteLog = VoteLog.create(voteLogDir(sessionCode), NodeConfig.walSnapshotRecords());
+        } catch (IOException e) {
+            System.err.println("Failed to open the vote log, votes will not survive a restart: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a snapshot of the election state to the vote log, so older log segments can be dropped.
+     * Votes are held back only while the state is copied, not while it is written.
+     */
+    private void snapshotVoteLog() {
+        VoteLog log = voteLog;
+        try {
+            long cut;
+            Map<String, Long> counts;
+            List<String> peers;
+            long[] voters;
+            stateLock.writeLock().lock();
+            try {
+                cut = log.cut();
+                counts = voteTally.snapshot();
+                peers = new ArrayList<>(peerNodes);
+                voters = uuidSet.toArray();
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            String[] leader = leaderAddress.split(":");
+            log.writeSnapshot(new VoteLog.Snapshot(cut, sessionCode, leader[0], Integer.parseInt(leader[1]),
+                    voteTally.getOptions().asList(), counts, peers, uuidSet.getBase(), voters));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to snapshot the vote log: " + e.getMessage());
+        } finally {
+            snapshotting.set(false);
+        }
+    }
+
+    /**
+     * Retrieves the leader's write-ahead log.
+     *
+     * @return The vote log, or null if this node does not log votes.
+     */
+    public VoteLog getVoteLog() {
+        return voteLog;
+    }
+
     /**
      * Displays available voting sessions.
      */
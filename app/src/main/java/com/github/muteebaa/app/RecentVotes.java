@@ -0,0 +1,107 @@
+package com.github.muteebaa.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The votes a node accepted most recently, each with the request that carried it.
+ *
+ * A request resent because its answer was lost carries the same request ID as the first copy, and
+ * is found here to be answered the same way instead of as a duplicate. A vote also keeps a future
+ * completed once it is acknowledged, or failed once it is taken back because it could not be
+ * logged, which its duplicates wait on before being answered.
+ *
+ * The oldest votes are forgotten first once more than the capacity are held. The votes are split
+ * across stripes by voter, so concurrent votes seldom contend for the same lock.
+ */
+public class RecentVotes {
+    private static final int STRIPES = 16;
+    private static final CompletableFuture<Void> SETTLED = CompletableFuture.completedFuture(null);
+
+    /**
+     * An accepted vote.
+     */
+    public static final class Vote {
+        private final String host;
+        private final int port;
+        private final long requestId;
+        final CompletableFuture<Void> settled;
+
+        Vote(String host, int port, long requestId, CompletableFuture<Void> settled) {
+            this.host = host;
+            this.port = port;
+            this.requestId = requestId;
+            this.settled = settled;
+        }
+
+        /**
+         * @return Whether a request is a resend of the one this vote arrived in.
+         */
+        boolean isRetry(Message request) {
+            return requestId != 0 && request.getRequestId() == requestId && request.getPort() == port
+                    && Objects.equals(host, request.getHost());
+        }
+    }
+
+    private final Map<UUID, Vote>[] stripes;
+
+    /**
+     * @param capacity The number of votes remembered.
+     */
+    @SuppressWarnings("unchecked")
+    public RecentVotes(int capacity) {
+        int perStripe = Math.max(1, capacity / STRIPES);
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, Vote> eldest) {
+                    return size() > perStripe;
+                }
+            };
+        }
+    }
+
+    /**
+     * Remembers an accepted vote that needs no logging, or is already logged.
+     *
+     * @param voter   The voter.
+     * @param request The message the vote arrived in.
+     */
+    public void add(UUID voter, Message request) {
+        add(voter, request, SETTLED);
+    }
+
+    /**
+     * Remembers an accepted vote.
+     *
+     * @param voter   The voter.
+     * @param request The message the vote arrived in.
+     * @param settled Completed once the vote is acknowledged, failed once it is taken back.
+     */
+    public void add(UUID voter, Message request, CompletableFuture<Void> settled) {
+        Vote vote = new Vote(request.getHost(), request.getPort(), request.getRequestId(), settled);
+        Map<UUID, Vote> stripe = stripe(voter);
+        synchronized (stripe) {
+            stripe.put(voter, vote);
+        }
+    }
+
+    /**
+     * @param voter The voter.
+     * @return The voter's vote, or null if it was not accepted recently.
+     */
+    public Vote get(UUID voter) {
+        Map<UUID, Vote> stripe = stripe(voter);
+        synchronized (stripe) {
+            return stripe.get(voter);
+        }
+    }
+
+    private Map<UUID, Vote> stripe(UUID voter) {
+        return stripes[(voter.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+}
@@ -0,0 +1,457 @@
+package com.github.muteebaa.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends requests to whichever of several equivalent registries currently answers best.
+ *
+ * Every registry keeps an exponentially weighted moving average of its latency and error rate, and
+ * requests go to the fastest registry that is not failing. A GET that takes longer than the
+ * registry's usual (95th percentile) latency is hedged by sending it to the next best registry as
+ * well, and whichever answers first wins. Failed requests are retried on the next registry with
+ * jittered exponential backoff, but only while the shared retry budget lasts, so a registry outage
+ * cannot multiply the load on the remaining registries.
+ */
+public class RegistryClient {
+    private static final double LATENCY_WEIGHT = 0.2; // Weight of the newest sample in the latency average
+    private static final double ERROR_WEIGHT = 0.3; // Weight of the newest outcome in the error rate
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    private static final long UNKNOWN_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int MIN_HEDGE_SAMPLES = 20; // Below this the p95 is not trusted
+    private static final double MAX_RETRY_TOKENS = 10;
+    private static final double TOKENS_PER_REQUEST = 0.1; // Retries may add at most 10% to steady load
+    private static final long BASE_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    private final HttpClient client;
+    private final List<Registry> registries = new ArrayList<>();
+    private final int maxAttempts;
+    private final long minHedgeDelayNanos;
+
+    private final Object budgetLock = new Object();
+    private double retryTokens = MAX_RETRY_TOKENS;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    /**
+     * Latency and error statistics of a single registry.
+     */
+    public static final class Registry {
+        private final String url;
+        private final int position;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private double latencyEwma = -1; // Nanoseconds, -1 until the first success
+        private double errorEwma;
+
+        Registry(String url, int position) {
+            this.url = url;
+            this.position = position;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        synchronized void recordSuccess(long nanos) {
+            latencies.record(nanos);
+            latencyEwma = latencyEwma < 0 ? nanos : latencyEwma + LATENCY_WEIGHT * (nanos - latencyEwma);
+            errorEwma -= ERROR_WEIGHT * errorEwma;
+        }
+
+        // Failures only move the error rate: a refused connection fails fast and would look like a fast registry
+        synchronized void recordFailure() {
+            failures.increment();
+            errorEwma += ERROR_WEIGHT * (1 - errorEwma);
+        }
+
+        /**
+         * @return The average latency in milliseconds, or -1 if no request has succeeded yet.
+         */
+        public synchronized double getLatencyMs() {
+            return latencyEwma < 0 ? -1 : latencyEwma / 1e6;
+        }
+
+        /**
+         * @return The recent fraction of failed requests, between 0 and 1.
+         */
+        public synchronized double getErrorRate() {
+            return errorEwma;
+        }
+
+        public synchronized boolean isHealthy() {
+            return errorEwma < UNHEALTHY_ERROR_RATE;
+        }
+
+        // Unhealthy registries sort after every healthy one, otherwise by latency inflated by errors
+        synchronized double rankKey() {
+            double latency = latencyEwma < 0 ? UNKNOWN_LATENCY_NANOS : latencyEwma;
+            return (errorEwma < UNHEALTHY_ERROR_RATE ? 0 : 1e15) + latency * (1 + 4 * errorEwma);
+        }
+
+        synchronized long hedgeDelayNanos(long minimum) {
+            if (latencies.getCount() < MIN_HEDGE_SAMPLES) {
+                // Too few samples for a percentile, allow twice the usual latency instead
+                return Math.max(minimum, 2 * (long) (latencyEwma < 0 ? UNKNOWN_LATENCY_NANOS : latencyEwma));
+            }
+            return Math.max(minimum, latencies.getPercentile(0.95));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%.1fms errors=%.0f%% p95=%.1fms", getLatencyMs(),
+                    getErrorRate() * 100, latencies.getPercentile(0.95) / 1e6);
+        }
+    }
+
+    /**
+     * @param client          The HTTP client to send with.
+     * @param urls            The registries' base URLs (scheme and authority), in order of preference.
+     * @param maxAttempts     The most times a single request is sent, including retries.
+     * @param minHedgeDelayMs The shortest time to wait for a GET before hedging it, in milliseconds.
+     */
+    public RegistryClient(HttpClient client, List<String> urls, int maxAttempts, long minHedgeDelayMs) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one registry is required");
+        }
+        this.client = client;
+        for (int i = 0; i < urls.size(); i++) {
+            registries.add(new Registry(urls.get(i), i));
+        }
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, minHedgeDelayMs));
+    }
+
+    /**
+     * @return The registries, best first: healthy before unhealthy, then by latency and error rate.
+     */
+    public List<Registry> ranked() {
+        // Keys are snapshotted first, statistics changing mid-sort would break the comparator
+        Map<Registry, Double> keys = new HashMap<>();
+        for (Registry registry : registries) {
+            keys.put(registry, registry.rankKey());
+        }
+        List<Registry> ranked = new ArrayList<>(registries);
+        ranked.sort(Comparator.comparingDouble((Registry r) -> keys.get(r)).thenComparingInt(r -> r.position));
+        return ranked;
+    }
+
+    /**
+     * @return The registry requests currently go to first.
+     */
+    public Registry best() {
+        return ranked().get(0);
+    }
+
+    /**
+     * Sends a request to the best registry, hedging, retrying and failing over as needed.
+     * Responses with a 5xx status count as failures; any other response is returned.
+     *
+     * @param request The request. Only its path and query are kept, the registry is chosen here.
+     * @param handler Handles the response body.
+     * @return The first successful response.
+     * @throws IOException If every attempt failed or the retry budget ran out.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        return await(sendAsync(request, handler));
+    }
+
+    /**
+     * Asynchronous {@link #send}: hedges, backoff delays and retries are all scheduled rather than
+     * waited for, so no thread is blocked while a request is in flight.
+     *
+     * @param request The request. Only its path and query are kept, the registry is chosen here.
+     * @param handler Handles the response body.
+     * @return A future completed with the first successful response, or failed with an
+     *         {@link IOException} if every attempt failed or the retry budget ran out.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+        requests.increment();
+        depositRetryToken();
+        List<Registry> order = ranked();
+        // Only reads are hedged, a hedged POST could create the same session twice
+        boolean hedge = request.method().equals("GET") && order.size() > 1;
+
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        attempt(request, handler, order, hedge, 0, result);
+        return result;
+    }
+
+    private <T> void attempt(HttpRequest request, BodyHandler<T> handler, List<Registry> order, boolean hedge,
+            int attempt, CompletableFuture<HttpResponse<T>> result) {
+        if (result.isDone()) {
+            return; // Cancelled by the caller
+        }
+        Registry primary = order.get(attempt % order.size());
+        Registry secondary = hedge ? order.get((attempt + 1) % order.size()) : null;
+        hedged(request, handler, primary, secondary).whenComplete((response, error) -> {
+            if (error == null) {
+                if (!result.complete(response)) {
+                    discard(response);
+                }
+                return;
+            }
+            IOException failure = asIOException(error instanceof CompletionException ? error.getCause() : error);
+            if (attempt + 1 >= maxAttempts) {
+                result.completeExceptionally(new IOException("Every registry attempt failed", failure));
+            } else if (!takeRetryToken()) {
+                budgetExhausted.increment();
+                result.completeExceptionally(new IOException("Registry retry budget exhausted", failure));
+            } else {
+                retries.increment();
+                CompletableFuture.delayedExecutor(backoffMs(attempt + 1), TimeUnit.MILLISECONDS)
+                        .execute(() -> attempt(request, handler, order, hedge, attempt + 1, result));
+            }
+        });
+    }
+
+    /**
+     * Sends to the primary registry, and also to the secondary one if the primary has not answered
+     * within its hedge delay. A primary failure before that point fails the attempt right away.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> hedged(HttpRequest request, BodyHandler<T> handler,
+            Registry primary, Registry secondary) {
+        CompletableFuture<HttpResponse<T>> first = sendTo(primary, request, handler);
+        // Hedging to a failing registry would only add load to it
+        if (secondary == null || secondary == primary || !secondary.isHealthy()) {
+            return first;
+        }
+
+        CompletableFuture<HttpResponse<T>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicBoolean hedgeDecided = new AtomicBoolean();
+        first.whenComplete((response, error) -> {
+            if (error != null && hedgeDecided.compareAndSet(false, true)) {
+                winner.completeExceptionally(error);
+            } else {
+                race(winner, failures, null).accept(response, error);
+            }
+        });
+        CompletableFuture.delayedExecutor(primary.hedgeDelayNanos(minHedgeDelayNanos), TimeUnit.NANOSECONDS)
+                .execute(() -> {
+                    if (!winner.isDone() && hedgeDecided.compareAndSet(false, true)) {
+                        hedges.increment();
+                        sendTo(secondary, request, handler).whenComplete(race(winner, failures, hedgeWins));
+                    }
+                });
+        return winner;
+    }
+
+    /**
+     * Completes the winner with the first successful response, or with the last failure once both failed.
+     */
+    private static <T> BiConsumer<HttpResponse<T>, Throwable> race(CompletableFuture<HttpResponse<T>> winner,
+            AtomicInteger failures, LongAdder wins) {
+        return (response, error) -> {
+            if (error != null) {
+                if (failures.incrementAndGet() == 2) {
+                    winner.completeExceptionally(error);
+                }
+            } else if (winner.complete(response)) {
+                if (wins != null) {
+                    wins.increment();
+                }
+            } else {
+                discard(response);
+            }
+        };
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendTo(Registry registry, HttpRequest request,
+            BodyHandler<T> handler) {
+        HttpRequest rebased = HttpRequest.newBuilder(request, (name, value) -> true)
+                .uri(rebase(request.uri(), registry.url))
+                .build();
+        long start = System.nanoTime();
+        return client.sendAsync(rebased, handler).handle((response, error) -> {
+            if (error != null) {
+                registry.recordFailure();
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                throw new CompletionException(cause instanceof IOException ? cause
+                        : new IOException("Request to " + registry.url + " failed", cause));
+            }
+            if (response.statusCode() >= 500) {
+                registry.recordFailure();
+                discard(response);
+                throw new CompletionException(
+                        new IOException("Registry " + registry.url + " returned status " + response.statusCode()));
+            }
+            registry.recordSuccess(System.nanoTime() - start);
+            return response;
+        });
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    private static IOException asIOException(Throwable cause) {
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    // A losing or failed response may hold a streamed body open, which would leak its connection
+    private static void discard(HttpResponse<?> response) {
+        if (response.body() instanceof Closeable) {
+            try {
+                ((Closeable) response.body()).close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    private static URI rebase(URI uri, String base) {
+        String rebased = base + uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            rebased += "?" + uri.getRawQuery();
+        }
+        return URI.create(rebased);
+    }
+
+    private void depositRetryToken() {
+        synchronized (budgetLock) {
+            retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + TOKENS_PER_REQUEST);
+        }
+    }
+
+    private boolean takeRetryToken() {
+        synchronized (budgetLock) {
+            if (retryTokens < 1) {
+                return false;
+            }
+            retryTokens--;
+            return true;
+        }
+    }
+
+    private static long backoffMs(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(20, attempt - 1));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * Pings every registry in parallel, updating their statistics.
+     *
+     * @param timeout How long to wait for each ping.
+     */
+    public void probeAll(Duration timeout) {
+        probeAllAsync(timeout).join();
+    }
+
+    /**
+     * Asynchronous {@link #probeAll}.
+     *
+     * @param timeout How long to wait for each ping.
+     * @return A future completed once every registry has answered or timed out.
+     */
+    public CompletableFuture<Void> probeAllAsync(Duration timeout) {
+        List<CompletableFuture<Boolean>> pings = new ArrayList<>();
+        for (Registry registry : registries) {
+            pings.add(pingAsync(registry, timeout));
+        }
+        return CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Pings a single registry, updating its statistics.
+     *
+     * @param registry The registry to ping.
+     * @param timeout  How long to wait for the ping.
+     * @return true if the registry answered with status 200.
+     */
+    public boolean ping(Registry registry, Duration timeout) {
+        return pingAsync(registry, timeout).join();
+    }
+
+    /**
+     * Asynchronous {@link #ping}. The future never fails, an unreachable registry gives false.
+     *
+     * @param registry The registry to ping.
+     * @param timeout  How long to wait for the ping.
+     * @return A future completed with true if the registry answered with status 200.
+     */
+    public CompletableFuture<Boolean> pingAsync(Registry registry, Duration timeout) {
+        HttpRequest req = HttpRequest.newBuilder(URI.create(registry.url + "/ping")).timeout(timeout).build();
+        long start = System.nanoTime();
+        return client.sendAsync(req, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+            if (error == null && response.statusCode() == 200) {
+                registry.recordSuccess(System.nanoTime() - start);
+                return true;
+            }
+            registry.recordFailure();
+            return false;
+        });
+    }
+
+    /**
+     * Reports request, failover and hedge counters, and the latency and errors of every registry.
+     *
+     * @param out Receives the metrics.
+     */
+    public void collectMetrics(Metrics.Writer out) {
+        out.counter("voting_registry_requests_total", "Registry requests made.", requests.sum())
+                .counter("voting_registry_failovers_total", "Registry requests retried on the next registry.",
+                        retries.sum())
+                .counter("voting_registry_budget_exhausted_total",
+                        "Registry requests failed because the retry budget ran out.", budgetExhausted.sum())
+                .counter("voting_registry_hedges_total", "Registry reads also sent to a second registry.",
+                        hedges.sum())
+                .counter("voting_registry_hedge_wins_total", "Hedged registry reads the second registry answered first.",
+                        hedgeWins.sum());
+        for (Registry registry : registries) {
+            out.histogram("voting_registry_request_seconds", "Latency of successful requests to a registry.",
+                    registry.latencies, "registry", registry.url)
+                    .counter("voting_registry_errors_total", "Failed requests to a registry.",
+                            registry.failures.sum(), "registry", registry.url)
+                    .gauge("voting_registry_healthy", "1 if a registry is healthy enough to be used first.",
+                            registry.isHealthy() ? 1 : 0, "registry", registry.url);
+        }
+    }
+
+    /**
+     * @return Request, retry and hedge counters, followed by the statistics of every registry.
+     */
+    public Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("requests", String.valueOf(requests.sum()));
+        stats.put("retries", String.valueOf(retries.sum()));
+        stats.put("budgetExhausted", String.valueOf(budgetExhausted.sum()));
+        stats.put("hedges", String.valueOf(hedges.sum()));
+        stats.put("hedgeWins", String.valueOf(hedgeWins.sum()));
+        for (Registry registry : registries) {
+            stats.put(registry.url, registry.toString());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.muteebaa.app;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Matches responses to outstanding requests by request ID.
+ *
+ * Every request is tagged with a fresh ID before it is sent, and the receiver echoes that ID on its
+ * ACK, DUPLICATE, INVALID or BULK_VOTE_RESULT reply, so any number of requests can be in flight at once and
+ * replies may arrive in any order. A request that is not answered within the timeout is resent with
+ * the same ID, by which the leader recognizes a vote it already counted and answers it as it did the
+ * first time; once its retries are used up its future fails with a {@link TimeoutException}.
+ */
+public class RequestTracker {
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final long timeoutMs;
+    private final int retries;
+    private final LatencyHistogram answerTimes = new LatencyHistogram();
+    private final LongAdder resent = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * @param timeoutMs How long to wait for each attempt's response, in milliseconds.
+     * @param retries   How many times an unanswered request is resent.
+     */
+    public RequestTracker(long timeoutMs, int retries) {
+        this.timeoutMs = Math.max(1, timeoutMs);
+        this.retries = Math.max(0, retries);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "request-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sends a request and tracks its response.
+     *
+     * @param request   The request. Any request ID it already carries is replaced.
+     * @param transport Sends the tagged request, returning false if it could not be written. Called
+     *                  once on the caller's thread and again from the timer thread for every retry.
+     * @return A future completed with the receipt once the response arrives.
+     */
+    public CompletableFuture<VoteReceipt> send(Message request, Predicate<Message> transport) {
+        long id = nextId.incrementAndGet();
+        Pending p = new Pending(id, request.withRequestId(id), transport);
+        // Registered before sending, so a fast response cannot arrive for an unknown ID
+        pending.put(id, p);
+        p.attempt();
+        return p.future;
+    }
+
+    /**
+     * Completes the request a response answers.
+     *
+     * @param response A received ACK, DUPLICATE, INVALID or BULK_VOTE_RESULT message.
+     * @return true if the response answered a request that was still outstanding.
+     */
+    public boolean complete(Message response) {
+        long id = response.getRequestId();
+        if (id == 0) {
+            return false;
+        }
+        Pending p = pending.remove(id);
+        if (p == null) {
+            return false;
+        }
+        p.cancelTimeout();
+        long latency = System.nanoTime() - p.started;
+        answerTimes.record(latency);
+        p.future.complete(new VoteReceipt(id, response, latency, p.attempts));
+        return true;
+    }
+
+    /**
+     * @return The number of requests still waiting for a response.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The time from sending each answered request to its answer, retries included.
+     */
+    public LatencyHistogram getAnswerTimes() {
+        return answerTimes;
+    }
+
+    /**
+     * @return The number of times a request was resent for lack of an answer.
+     */
+    public long getResentCount() {
+        return resent.sum();
+    }
+
+    /**
+     * @return The number of requests that failed because no answer ever came.
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Fails every outstanding request and stops the retry timer.
+     */
+    public void close() {
+        timer.shutdownNow();
+        pending.values().forEach(p -> p.future.completeExceptionally(new IllegalStateException("Tracker closed")));
+        pending.clear();
+    }
+
+    private class Pending {
+        final long id;
+        final Message request;
+        final Predicate<Message> transport;
+        final CompletableFuture<VoteReceipt> future = new CompletableFuture<>();
+        final long started = System.nanoTime();
+        volatile int attempts;
+        private ScheduledFuture<?> timeout;
+
+        Pending(long id, Message request, Predicate<Message> transport) {
+            this.id = id;
+            this.request = request;
+            this.transport = transport;
+        }
+
+        void attempt() {
+            attempts++;
+            // A failed write is retried on the same schedule as a lost response
+            if (!transport.test(request)) {
+                System.err.println("Failed to send request " + id + " (attempt " + attempts + ")");
+            }
+            synchronized (this) {
+                if (pending.containsKey(id)) {
+                    timeout = timer.schedule(this::expire, timeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        synchronized void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        private void expire() {
+            if (!pending.containsKey(id)) {
+                return;
+            }
+            if (attempts <= retries) {
+                resent.increment();
+                attempt();
+            } else if (pending.remove(id, this)) {
+                timedOut.increment();
+                future.completeExceptionally(new TimeoutException(
+                        "No response to request " + id + " after " + attempts + " attempt(s)"));
+            }
+        }
+    }
+}
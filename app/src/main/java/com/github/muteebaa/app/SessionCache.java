@@ -0,0 +1,324 @@
+package com.github.muteebaa.app;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process cache of registry sessions, so that thousands of peers joining at once do not each
+ * ask the registry for the same session.
+ *
+ * Entries are evicted least recently used first once the cache is full, and expire after a TTL.
+ * Unknown session codes are remembered for a shorter TTL so repeated bad codes do not reach the
+ * registry either. Expired entries are revalidated with their ETag, which costs the registry no
+ * body if the session did not change, and are still served if the registry cannot be reached.
+ * Concurrent lookups of the same code share a single registry request.
+ */
+public class SessionCache {
+    /**
+     * Fetches sessions from the registry without blocking.
+     */
+    public interface Loader {
+        /**
+         * @param code The session code.
+         * @param etag The ETag of the cached copy, or null to fetch unconditionally.
+         * @return The registry's answer.
+         */
+        CompletableFuture<Fetch> load(String code, String etag);
+
+        /**
+         * @return Every session known to the registry.
+         */
+        CompletableFuture<Collection<Session>> loadAll();
+    }
+
+    /**
+     * The registry's answer to a single session lookup.
+     */
+    public static final class Fetch {
+        private static final Fetch MISSING = new Fetch(null, null, false);
+        private static final Fetch NOT_MODIFIED = new Fetch(null, null, true);
+
+        final Session session;
+        final String etag;
+        final boolean notModified;
+
+        private Fetch(Session session, String etag, boolean notModified) {
+            this.session = session;
+            this.etag = etag;
+            this.notModified = notModified;
+        }
+
+        public static Fetch found(Session session, String etag) {
+            return new Fetch(session, etag, false);
+        }
+
+        public static Fetch missing() {
+            return MISSING;
+        }
+
+        public static Fetch notModified() {
+            return NOT_MODIFIED;
+        }
+    }
+
+    private static final class Entry {
+        final Session session; // null for an unknown code
+        final String etag;
+        final long expiresAt;
+
+        Entry(Session session, String etag, long expiresAt) {
+            this.session = session;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Loader loader;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private final Object listLock = new Object();
+    private List<Session> list;
+    private long listExpiresAt;
+    private CompletableFuture<List<Session>> listInFlight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidated = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder staleServed = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param loader        Fetches sessions from the registry.
+     * @param maxEntries    The most sessions to keep.
+     * @param ttlMs         How long a session is served before being revalidated, in milliseconds.
+     * @param negativeTtlMs How long an unknown code is remembered, in milliseconds.
+     */
+    public SessionCache(Loader loader, int maxEntries, long ttlMs, long negativeTtlMs) {
+        this.loader = loader;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlNanos = Math.max(0, ttlMs) * 1_000_000;
+        this.negativeTtlNanos = Math.max(0, negativeTtlMs) * 1_000_000;
+    }
+
+    /**
+     * Looks up a session, asking the registry only if there is no fresh cached copy.
+     *
+     * @param code The session code.
+     * @return The session, or empty if the registry does not know it or cannot be reached.
+     */
+    public Optional<Session> get(String code) {
+        return getAsync(code).join();
+    }
+
+    /**
+     * Asynchronous {@link #get}. The future never fails; registry errors give the stale copy or empty.
+     *
+     * @param code The session code.
+     * @return A future completed with the session, or empty.
+     */
+    public CompletableFuture<Optional<Session>> getAsync(String code) {
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(code);
+        }
+        if (cached != null && System.nanoTime() - cached.expiresAt < 0) {
+            (cached.session != null ? hits : negativeHits).increment();
+            return CompletableFuture.completedFuture(Optional.ofNullable(cached.session));
+        }
+
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> running = inFlight.putIfAbsent(code, mine);
+        if (running != null) {
+            coalesced.increment();
+            return running.handle((entry, error) -> error == null ? Optional.ofNullable(entry.session) : stale(cached));
+        }
+
+        misses.increment();
+        String etag = cached != null && cached.session != null ? cached.etag : null;
+        loader.load(code, etag).thenApply(fetch -> store(code, toEntry(fetch, cached))).whenComplete((entry, error) -> {
+            inFlight.remove(code, mine);
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(entry);
+            }
+        });
+        return mine.handle((entry, error) -> {
+            if (error != null) {
+                System.err.println("Failed to look up session " + code + ": " + cause(error).getMessage());
+                return stale(cached);
+            }
+            return Optional.ofNullable(entry.session);
+        });
+    }
+
+    private Entry toEntry(Fetch fetch, Entry cached) {
+        if (fetch.notModified && cached != null) {
+            revalidated.increment();
+            return new Entry(cached.session, cached.etag, System.nanoTime() + ttlNanos);
+        } else if (fetch.session == null) {
+            return new Entry(null, null, System.nanoTime() + negativeTtlNanos);
+        }
+        return new Entry(fetch.session, fetch.etag, System.nanoTime() + ttlNanos);
+    }
+
+    private Optional<Session> stale(Entry cached) {
+        if (cached != null && cached.session != null) {
+            staleServed.increment();
+            return Optional.of(cached.session);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Lists every session, asking the registry only if the cached list has expired.
+     * Concurrent callers share a single registry request.
+     *
+     * @return Every session, or the last known list (possibly empty) if the registry cannot be reached.
+     */
+    public List<Session> getAll() {
+        return getAllAsync().join();
+    }
+
+    /**
+     * Asynchronous {@link #getAll}. The future never fails; registry errors give the last known list.
+     *
+     * @return A future completed with every session.
+     */
+    public CompletableFuture<List<Session>> getAllAsync() {
+        CompletableFuture<List<Session>> mine = new CompletableFuture<>();
+        CompletableFuture<List<Session>> running;
+        synchronized (listLock) {
+            if (list != null && System.nanoTime() - listExpiresAt < 0) {
+                hits.increment();
+                return CompletableFuture.completedFuture(list);
+            }
+            running = listInFlight;
+            if (running == null) {
+                listInFlight = mine;
+            }
+        }
+        if (running != null) {
+            coalesced.increment();
+            return running.handle((loaded, error) -> error == null ? loaded : lastList());
+        }
+
+        misses.increment();
+        loader.loadAll().thenApply(sessions -> {
+            List<Session> loaded = List.copyOf(sessions);
+            for (Session session : loaded) {
+                put(session);
+            }
+            synchronized (listLock) {
+                list = loaded;
+                listExpiresAt = System.nanoTime() + ttlNanos;
+            }
+            return loaded;
+        }).whenComplete((loaded, error) -> {
+            synchronized (listLock) {
+                listInFlight = null;
+            }
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(loaded);
+            }
+        });
+        return mine.handle((loaded, error) -> {
+            if (error != null) {
+                System.err.println("Failed to list sessions: " + cause(error).getMessage());
+                return lastList();
+            }
+            return loaded;
+        });
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private List<Session> lastList() {
+        synchronized (listLock) {
+            if (list != null) {
+                staleServed.increment();
+                return list;
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Caches a session this node already knows, e.g. one it just created.
+     *
+     * @param session The session, which must have its ID set.
+     */
+    public void put(Session session) {
+        store(session.getId(), new Entry(session, null, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Drops a cached session (or unknown code) and the cached session list.
+     *
+     * @param code The session code.
+     */
+    public void invalidate(String code) {
+        synchronized (this) {
+            entries.remove(code);
+        }
+        synchronized (listLock) {
+            list = null;
+        }
+    }
+
+    private synchronized Entry store(String code, Entry entry) {
+        entries.put(code, entry);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+            evictions.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * @return The number of cached sessions and unknown codes.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Hit, miss and eviction counters, keyed by name.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("negativeHits", negativeHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("revalidated", revalidated.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("staleServed", staleServed.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("size", (long) size());
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return getStats().toString();
+    }
+}
@@ -1,24 +1,158 @@
 package com.github.muteebaa.app;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the leader's session listed by renewing its registry lease.
+ *
+ * The interval adapts to the registry: it doubles after every successful renewal, up to the
+ * configured maximum and never beyond a third of the lease, and drops back to the minimum after a
+ * failure so a registry outage is noticed and repaired quickly. If the serving registry no longer
+ * knows the session (it failed over to a registry that never had it, or the lease ran out), the
+ * session is restored there under the same code, so peers never need a new one. Each beat only
+ * chains registry requests and does not hold a scheduler thread while they are in flight.
+ */
 public class SessionHeartbeat implements Runnable {
     private final PeerNode node;
+    private final ScheduledExecutorService scheduler;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile long intervalMs;
+    private volatile ScheduledFuture<?> next;
+    private volatile boolean stopped;
+
+    public SessionHeartbeat(PeerNode node, ScheduledExecutorService scheduler) {
+        this(node, scheduler, NodeConfig.heartbeatMinMs(), NodeConfig.heartbeatMaxMs());
+    }
 
-    public SessionHeartbeat(PeerNode node) {
+    /**
+     * @param node          The leader whose session is kept alive.
+     * @param scheduler     Runs the beats.
+     * @param minIntervalMs The interval after a failure, in milliseconds.
+     * @param maxIntervalMs The longest interval while the registry is stable, in milliseconds.
+     */
+    public SessionHeartbeat(PeerNode node, ScheduledExecutorService scheduler, long minIntervalMs,
+            long maxIntervalMs) {
         this.node = node;
+        this.scheduler = scheduler;
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+        this.intervalMs = minIntervalMs;
+    }
+
+    /**
+     * Schedules the first beat.
+     */
+    public void start() {
+        schedule(intervalMs);
+    }
+
+    /**
+     * Beats right away, e.g. because the leader's address changed.
+     */
+    public void wake() {
+        schedule(0);
+    }
+
+    /**
+     * Stops beating. A beat already in flight still completes.
+     */
+    public void stop() {
+        stopped = true;
+        ScheduledFuture<?> pending = next;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
+
+    /**
+     * @return The time until the next beat after the current one, in milliseconds.
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (stopped) {
+            return;
+        }
+        ScheduledFuture<?> pending = next;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        next = scheduler.schedule(this, delayMs, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void run() {
-        boolean isHealthy = SessionRegistry.checkHealth();
-        if (isHealthy) {
+        if (!running.compareAndSet(false, true)) {
+            woken.set(true); // Woken during a beat, which beats again as soon as it completes
+            return;
+        }
+        String sessionCode = node.getSessionCode();
+        String leader = node.getLeaderAddress();
+        if (sessionCode == null || sessionCode.isEmpty() || leader == null) {
+            finish(minIntervalMs);
             return;
         }
 
-        boolean updated = SessionRegistry.chooseRegistry();
-        if (updated) {
-            // TODO: Invalidate old session
-            String sessionCode = SessionRegistry.saveSession(node.getLeaderAddress(), SessionRegistry._options);
-            System.out.println("Session code updated! Share this code: " + sessionCode);
+        String host;
+        int port;
+        try {
+            int sep = leader.lastIndexOf(':');
+            // The registry stores an IP, resolved here since it could be using a different DNS server
+            host = InetAddress.getByName(leader.substring(0, sep)).getHostAddress();
+            port = Integer.parseInt(leader.substring(sep + 1));
+        } catch (UnknownHostException | RuntimeException e) {
+            System.err.println("Cannot renew the session of leader " + leader + ": " + e.getMessage());
+            finish(minIntervalMs);
+            return;
         }
+
+        AsyncSessionRegistry.renewSession(sessionCode, host, port)
+                .thenCompose(lease -> {
+                    if (lease.isPresent()) {
+                        return CompletableFuture.completedFuture(nextInterval(lease.get()));
+                    }
+                    return AsyncSessionRegistry.restoreSession(sessionCode, host, port, SessionRegistry._options)
+                            .thenApply(restored -> {
+                                System.out.println("Session " + sessionCode + " restored on the registry.");
+                                return minIntervalMs; // Check again soon, the registries just changed
+                            });
+                })
+                .whenComplete((interval, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        System.err.println("Session heartbeat failed: " + cause.getMessage());
+                        finish(minIntervalMs);
+                    } else {
+                        finish(interval);
+                    }
+                });
+    }
+
+    private long nextInterval(Duration lease) {
+        long next = Math.min(intervalMs * 2, maxIntervalMs);
+        if (!lease.isZero()) {
+            // Leaves room for two failed renewals before the lease runs out
+            next = Math.min(next, lease.toMillis() / 3);
+        }
+        return Math.max(minIntervalMs, next);
+    }
+
+    private void finish(long nextIntervalMs) {
+        intervalMs = nextIntervalMs;
+        running.set(false);
+        schedule(woken.getAndSet(false) ? 0 : nextIntervalMs);
     }
 }
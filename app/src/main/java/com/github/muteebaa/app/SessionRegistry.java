@@ -1,250 +1,143 @@
 package com.github.muteebaa.app;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
 import java.io.*;
-import java.net.InetAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.UnknownHostException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest.Builder;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.net.http.HttpRequest.BodyPublishers;
-import java.net.http.HttpResponse.BodyHandler;
-import java.net.http.HttpResponse.BodyHandlers;
-import java.time.Duration;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * Blocking access to the session registry, for callers that need the answer before going on.
+ * Each call waits on the matching {@link AsyncSessionRegistry} future.
+ */
 public class SessionRegistry {
     public static PeerNode peerNode;
     // FIXME: Hack to persist options list
     public static String _options;
 
-    private static HttpClient client = HttpClient.newHttpClient();
-    private static final List<String> registryServers = List.of(
-            "http://127.0.0.1:12020",
-            "http://127.0.0.1:12021",
-            "http://127.0.0.1:12022");
-
-    private static String currRegistry = registryServers.get(0);
-
     public static String saveSession(String host, int port, String options) {
-        // FIXME: Handle port number properly
-        _options = options;
-        Session session = new Session(host, port, Arrays.asList(options.split(",")));
-        Gson gson = new Gson();
-
-        HttpRequest req = buildRegistryReq("/sessions")
-                .POST(BodyPublishers.ofString(gson.toJson(session)))
-                .build();
-
-        String sessionId;
         try {
-            // TODO: Handle failing status codes
-            HttpResponse<String> resp = sendWithRetry(req, BodyHandlers.ofString());
-            sessionId = resp.body();
+            return await(AsyncSessionRegistry.saveSession(host, port, options));
         } catch (InterruptedException | IOException e) {
             // FIXME: Ignored exception
             e.printStackTrace();
             return "";
         }
-
-        return gson.fromJson(sessionId, String.class);
     }
 
     public static String saveSession(String address, String options) {
-        String host = address.split(":")[0];
-        // IP must be resolved client-side since server could be contacting different
-        // DNS server
-        InetAddress hostIp;
-
-        try {
-            hostIp = InetAddress.getByName(host);
-        } catch (UnknownHostException ignored) {
-            // Should be unreachable, unable to confirm
-            throw new RuntimeException("FIXME: I have made an incorrect assumption");
-        }
-
-        Integer port = Integer.parseInt(address.split(":")[1]);
-        return saveSession(hostIp.getHostAddress(), port, options);
-    }
-
-    public static Map<String, String> loadSessions() {
-        Map<String, String> sessions = new HashMap<>();
-
-        HttpRequest req = buildRegistryReq("/sessions").build();
-        HttpResponse<String> resp;
         try {
-            // TODO: Handle failing status codes
-            resp = sendWithRetry(req, BodyHandlers.ofString());
+            return await(AsyncSessionRegistry.saveSession(address, options));
         } catch (InterruptedException | IOException e) {
             // FIXME: Ignored exception
             e.printStackTrace();
-            return sessions;
+            return "";
         }
+    }
 
-        Gson gson = new Gson();
-        TypeToken<Collection<Session>> collectionType = new TypeToken<Collection<Session>>() {
-        };
-        Collection<Session> sessionList = gson.fromJson(resp.body(), collectionType);
-
-        sessionList.parallelStream()
-                .forEach(e -> {
-                    String details = String.format("%s:%d,%s", e.host, e.port, String.join(",", e.options));
-                    sessions.put(e.getId(), details);
-                });
-
-        return sessions;
+    /**
+     * Lists every session, served from the session cache while it is fresh.
+     *
+     * @return The details ("host:port,options") of every session, keyed by session code.
+     */
+    public static Map<String, String> loadSessions() {
+        return AsyncSessionRegistry.loadSessions().join();
     }
 
     public static void displayAvailableSessions() {
-        HttpRequest req = buildRegistryReq("/sessions").build();
-        HttpResponse<String> resp;
+        int shown;
         try {
-            // TODO: Handle failing status codes
-            resp = sendWithRetry(req, BodyHandlers.ofString());
+            // Printed as they are read, so a large registry shows up without first being loaded whole
+            shown = streamSessions(session -> true, 0, Integer.MAX_VALUE, new Consumer<Session>() {
+                private boolean first = true;
+
+                @Override
+                public void accept(Session session) {
+                    if (first) {
+                        System.out.println("Available sessions: ");
+                        first = false;
+                    }
+                    System.out.println(session);
+                }
+            });
         } catch (InterruptedException | IOException e) {
             // FIXME: Ignored exception
             e.printStackTrace();
             return;
         }
 
-        Gson gson = new Gson();
-        TypeToken<Collection<Session>> collectionType = new TypeToken<Collection<Session>>() {
-        };
-        Collection<Session> sessionList = gson.fromJson(resp.body(), collectionType);
-
-        if (sessionList.isEmpty()) {
+        if (shown == 0) {
             System.out.println("No available sessions found.");
-        } else {
-            System.out.println("Available sessions: ");
-            sessionList.forEach(System.out::println);
         }
     }
 
-    public static List<String> getVotingOptions(String sessionCode) {
-        HttpRequest req = buildRegistryReq("/sessions/" + sessionCode).build();
-        HttpResponse<String> resp;
-        try {
-            // TODO: Handle failing status codes
-            resp = sendWithRetry(req, BodyHandlers.ofString());
-        } catch (InterruptedException | IOException e) {
-            // FIXME: Ignored exception
-            e.printStackTrace();
-            return new ArrayList<>();
-        }
-
-        Gson gson = new Gson();
-        Session session = gson.fromJson(resp.body(), Session.class);
-        return session.options;
+    /**
+     * Reads the registry's session list incrementally, handing each session to a consumer as soon as
+     * it is parsed. Neither the response nor the list is ever held in memory as a whole, and the
+     * download stops as soon as the requested page is complete.
+     *
+     * @param filter   Selects the sessions to deliver.
+     * @param offset   The number of matching sessions to skip.
+     * @param limit    The most sessions to deliver.
+     * @param consumer Receives each delivered session, in registry order.
+     * @return The number of sessions delivered.
+     * @throws IOException If the registry cannot be reached, fails, or sends malformed JSON.
+     */
+    public static int streamSessions(Predicate<Session> filter, int offset, int limit, Consumer<Session> consumer)
+            throws IOException, InterruptedException {
+        return await(AsyncSessionRegistry.streamSessions(filter, offset, limit, consumer));
     }
 
-    private static <T> HttpResponse<T> sendWithRetry(HttpRequest req, BodyHandler<T> handler)
-            throws InterruptedException, IOException {
-        int maxRetries = 3;
-        for (int i = 0; i < maxRetries; i++) {
-            try {
-                return client.send(req, handler);
-            } catch (InterruptedException | IOException ignored) {
-                // Ignored since registry should be swapped if server keeps 5xx-ing anyways
-            }
-        }
-
-        chooseRegistry();
-        try {
-            URI newUri = replaceHost(req.uri(), currRegistry);
-            // Creates new req w/ only URI changed
-            HttpRequest newReq = HttpRequest.newBuilder(req, (e1, e2) -> true)
-                    .uri(newUri)
-                    .build();
-
-            return sendWithRetry(newReq, handler);
-        } catch (URISyntaxException e) {
-            // NOTE: Unreachable unless the hardcoded URLs are wrong
-            e.printStackTrace();
-        }
-
-        // Unreachable
-        return null;
+    /**
+     * Looks up a single session, served from the session cache while it is fresh.
+     *
+     * @param sessionCode The session code.
+     * @return The session, or empty if the code is unknown or the registry cannot be reached.
+     */
+    public static Optional<Session> findSession(String sessionCode) {
+        return AsyncSessionRegistry.findSession(sessionCode).join();
     }
 
-    private static URI replaceHost(URI uri, String host) throws URISyntaxException {
-        // NOTE: Building a String rather than using URI constructors because hosts are
-        // hardcoded as scheme + authority. If that changes this can be made into a
-        // one-liner
-        String newUri = host + uri.getPath();
-
-        if (uri.getQuery() != null) {
-            newUri += uri.getQuery();
-        }
-
-        if (uri.getFragment() != null) {
-            newUri += uri.getFragment();
-        }
+    public static List<String> getVotingOptions(String sessionCode) {
+        return AsyncSessionRegistry.getVotingOptions(sessionCode).join();
+    }
 
-        return URI.create(newUri);
+    /**
+     * @return Hit, miss and eviction counters of the session cache.
+     */
+    public static Map<String, Long> getCacheStats() {
+        return AsyncSessionRegistry.cache.getStats();
     }
 
     public static boolean checkHealth() {
-        HttpRequest req = buildRegistryReq(currRegistry, "/ping").build();
-
-        try {
-            HttpResponse<Void> resp = client.send(req, HttpResponse.BodyHandlers.discarding());
-            if (resp.statusCode() != 200) {
-                return false;
-            }
-        } catch (InterruptedException | IOException e) {
-            return false;
-        }
-
-        return true;
+        return AsyncSessionRegistry.checkHealth().join();
     }
 
+    /**
+     * Pings every registry and switches to the best one.
+     *
+     * @return true if the best registry changed.
+     */
     public static boolean chooseRegistry() {
-        CompletableFuture<String> server = registryServers.stream()
-                // Asynchronously ping each server
-                .map(url -> {
-                    HttpRequest req = buildRegistryReq(url, "/ping").build();
-                    return client.sendAsync(req, HttpResponse.BodyHandlers.discarding())
-                            .thenApply(resp -> resp.statusCode() == 200 ? url : null)
-                            .exceptionally(e -> null);
-                })
-                // Chooses a single server based off the url's position in the list
-                .reduce((r1, r2) -> r1.thenCombine(r2, (s1, s2) -> s1 != null ? s1 : s2))
-                .orElse(CompletableFuture.completedFuture(null));
-
-        try {
-            String chosenServer = server.get();
-            if (chosenServer != null && !currRegistry.equals(chosenServer)) {
-                currRegistry = chosenServer;
-                return true;
-            }
-        } catch (InterruptedException | ExecutionException e) {
-            // FIXME: Ignored exception
-            e.printStackTrace();
-        }
-
-        return false;
+        return AsyncSessionRegistry.chooseRegistry().join();
     }
 
-    private static Builder buildRegistryReq(String path) {
-        return buildRegistryReq(currRegistry, path).header("Content-Type", "application/json");
+    /**
+     * @return Retry and hedge counters plus the latency and error rate of every registry.
+     */
+    public static Map<String, String> getRegistryStats() {
+        return AsyncSessionRegistry.registry.getStats();
     }
 
-    private static Builder buildRegistryReq(String hostname, String path) {
-        URI uri = URI.create(hostname + path);
-        Duration timeout = Duration.ofSeconds(5);
-
-        return HttpRequest.newBuilder(uri).timeout(timeout);
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
     }
 }
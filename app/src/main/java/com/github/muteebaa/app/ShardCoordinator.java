@@ -0,0 +1,191 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Accepts the votes of the shards a follower coordinates. Each voter is deduplicated and counted
+ * here, and accepted votes are forwarded to the leader in batches, the way the leader replicates
+ * its own to followers. The leader applies forwarded votes to the session's tally and replicates
+ * them from there.
+ *
+ * A batch that cannot be sent is kept and sent again with the next one. While no votes arrive an
+ * empty batch is sent every keepalive interval, which tells the leader the coordinator is alive.
+ */
+public class ShardCoordinator {
+    private final NodeCommunication nodeComm;
+    private final Supplier<String> leader;
+    private final String host;
+    private final int port;
+    private final int maxBatchSize;
+    private final long keepaliveNanos;
+    private final UuidSet voters = new UuidSet();
+    private final VoteTally tally;
+    private final ScheduledExecutorService flusher;
+
+    private final Object flushLock = new Object(); // Keeps batches, and the answer to a flush, in order
+    private List<Message.VoteEntry> buffer = new ArrayList<>();
+    private long accepted;
+    private volatile long epoch;
+    private boolean flushQueued;
+    private long lastSent = System.nanoTime(); // Guarded by flushLock
+
+    /**
+     * Creates a coordinator using the configured batch size, flush interval and keepalive interval.
+     *
+     * @param nodeComm The communicator used to reach the leader.
+     * @param leader   Supplies the leader's current address on every flush.
+     * @param host     The host the leader knows this node by.
+     * @param port     The port the leader knows this node by.
+     * @param options  The session's options.
+     */
+    public ShardCoordinator(NodeCommunication nodeComm, Supplier<String> leader, String host, int port,
+            VotingOptions options) {
+        this(nodeComm, leader, host, port, options, NodeConfig.batchSize(), NodeConfig.batchIntervalMs(),
+                NodeConfig.electionIntervalMs());
+    }
+
+    /**
+     * Creates a coordinator and starts its periodic flush.
+     *
+     * @param nodeComm        The communicator used to reach the leader.
+     * @param leader          Supplies the leader's current address on every flush.
+     * @param host            The host the leader knows this node by.
+     * @param port            The port the leader knows this node by.
+     * @param options         The session's options.
+     * @param maxBatchSize    The number of accepted votes that triggers an immediate flush.
+     * @param flushIntervalMs The longest time a vote waits before it is forwarded, in milliseconds.
+     * @param keepaliveMs     The longest time without a batch, in milliseconds.
+     */
+    public ShardCoordinator(NodeCommunication nodeComm, Supplier<String> leader, String host, int port,
+            VotingOptions options, int maxBatchSize, long flushIntervalMs, long keepaliveMs) {
+        this.nodeComm = nodeComm;
+        this.leader = leader;
+        this.host = host;
+        this.port = port;
+        this.tally = new VoteTally(options);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, keepaliveMs));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-coordinator");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, flushIntervalMs);
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deduplicates and counts a vote of one of this node's shards, and queues it for the leader.
+     *
+     * @param uuidMsb The most significant bits of the voter's UUID.
+     * @param uuidLsb The least significant bits of the voter's UUID.
+     * @param option  The voted option.
+     * @return true if the vote was accepted, false if the voter had already voted.
+     */
+    public boolean accept(long uuidMsb, long uuidLsb, String option) {
+        if (!voters.add(uuidMsb, uuidLsb)) {
+            return false;
+        }
+        if (option != null) {
+            tally.increment(option);
+        }
+        boolean full;
+        synchronized (this) {
+            buffer.add(new Message.VoteEntry(uuidMsb, uuidLsb, option));
+            accepted++;
+            full = buffer.size() >= maxBatchSize && !flushQueued;
+            if (full) {
+                flushQueued = true;
+            }
+        }
+        if (full) {
+            flusher.execute(this::flush);
+        }
+        return true;
+    }
+
+    /**
+     * Forwards every queued vote to the leader as one batch, or a keepalive if none were queued for
+     * a while. Returns once the batch is written, so a reply sent afterwards arrives after it.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<Message.VoteEntry> entries;
+            synchronized (this) {
+                flushQueued = false;
+                entries = buffer;
+                buffer = new ArrayList<>();
+            }
+            long now = System.nanoTime();
+            String target = leader.get();
+            if (target == null || entries.isEmpty() && now - lastSent < keepaliveNanos) {
+                requeue(entries);
+                return;
+            }
+            if (nodeComm.sendMessage(Message.shardBatch(host, port, epoch, entries), target)) {
+                lastSent = now;
+            } else {
+                requeue(entries);
+            }
+        }
+    }
+
+    private void requeue(List<Message.VoteEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            entries.addAll(buffer);
+            buffer = entries;
+        }
+    }
+
+    /**
+     * Removes every vote not yet forwarded, e.g. because this node is taking over as the leader.
+     *
+     * @return The removed votes in acceptance order.
+     */
+    public List<Message.VoteEntry> drain() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                List<Message.VoteEntry> entries = buffer;
+                buffer = new ArrayList<>();
+                return entries;
+            }
+        }
+    }
+
+    /**
+     * @param epoch The epoch of the shard map votes are now accepted under.
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * @return The number of votes accepted so far.
+     */
+    public synchronized long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return The tally of the votes accepted here.
+     */
+    public VoteTally getTally() {
+        return tally;
+    }
+
+    /**
+     * Forwards any remaining votes and stops the periodic flush.
+     */
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the voters into shards by a hash of their UUID and names the node coordinating each
+ * shard. A coordinator deduplicates and counts the votes of its shards on its own, so votes are
+ * accepted by several nodes at once instead of all by the leader.
+ *
+ * Maps are immutable. The leader makes a new one, with a higher epoch, whenever a shard moves to
+ * another coordinator.
+ */
+public final class ShardMap {
+    private final long epoch;
+    private final List<String> coordinators;
+
+    /**
+     * @param epoch        The map's version.
+     * @param coordinators The address (host:port) of every shard's coordinator, by shard number.
+     */
+    public ShardMap(long epoch, List<String> coordinators) {
+        if (coordinators.isEmpty()) {
+            throw new IllegalArgumentException("A shard map needs at least one shard");
+        }
+        this.epoch = epoch;
+        this.coordinators = Collections.unmodifiableList(new ArrayList<>(coordinators));
+    }
+
+    /**
+     * Spreads shards over nodes round-robin, in the order given.
+     *
+     * @param shards The number of shards.
+     * @param nodes  The nodes to coordinate them.
+     * @return The first map, with epoch 1.
+     */
+    public static ShardMap assign(int shards, List<String> nodes) {
+        List<String> coordinators = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            coordinators.add(nodes.get(i % nodes.size()));
+        }
+        return new ShardMap(1, coordinators);
+    }
+
+    /**
+     * Reads the map a SHARD_MAP message carries.
+     *
+     * @param message The SHARD_MAP message.
+     * @return The map.
+     */
+    public static ShardMap of(Message message) {
+        return new ShardMap(message.getSequence(), message.getPeers());
+    }
+
+    /**
+     * @return The SHARD_MAP message announcing this map.
+     */
+    public Message toMessage() {
+        return Message.shardMap(epoch, coordinators);
+    }
+
+    /**
+     * Finds the shard of a voter. The hash is independent of the one {@link UuidSet} uses, so a
+     * coordinator's voters still spread evenly over its own table.
+     *
+     * @param uuidMsb The most significant bits of the voter's UUID.
+     * @param uuidLsb The least significant bits of the voter's UUID.
+     * @param shards  The number of shards.
+     * @return The shard, from 0 to shards - 1.
+     */
+    public static int shardOf(long uuidMsb, long uuidLsb, int shards) {
+        long hash = (uuidMsb ^ Long.rotateLeft(uuidLsb, 32)) * 0x9E3779B97F4A7C15L;
+        // Scales the top 32 bits into range, which avoids a division
+        return (int) (((hash >>> 32) * shards) >>> 32);
+    }
+
+    public int shardOf(long uuidMsb, long uuidLsb) {
+        return shardOf(uuidMsb, uuidLsb, coordinators.size());
+    }
+
+    /**
+     * @return The address of the node coordinating the voter's shard.
+     */
+    public String coordinatorOf(long uuidMsb, long uuidLsb) {
+        return coordinators.get(shardOf(uuidMsb, uuidLsb));
+    }
+
+    /**
+     * Moves every shard of a failed coordinator to another node.
+     *
+     * @param failed      The failed coordinator's address.
+     * @param replacement The address of the node taking its shards over.
+     * @return The new map, one epoch later, or this map if the failed node coordinated nothing.
+     */
+    public ShardMap reassign(String failed, String replacement) {
+        if (!coordinators.contains(failed)) {
+            return this;
+        }
+        List<String> moved = new ArrayList<>(coordinators);
+        moved.replaceAll(coordinator -> coordinator.equals(failed) ? replacement : coordinator);
+        return new ShardMap(epoch + 1, moved);
+    }
+
+    /**
+     * @param address A node's address.
+     * @return true if the node coordinates at least one shard.
+     */
+    public boolean isCoordinator(String address) {
+        return coordinators.contains(address);
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int size() {
+        return coordinators.size();
+    }
+
+    /**
+     * @return The coordinator of every shard, by shard number.
+     */
+    public List<String> getCoordinators() {
+        return coordinators;
+    }
+
+    @Override
+    public String toString() {
+        return "epoch " + epoch + " " + coordinators;
+    }
+}
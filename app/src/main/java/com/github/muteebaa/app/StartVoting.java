@@ -1,19 +1,22 @@
 package com.github.muteebaa.app;
 
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 public class StartVoting {
     private static final Scanner scanner = new Scanner(System.in);
     private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private static ScheduledFuture<?> beatHandle;
 
     public static void main(String[] args) {
-        System.out.println("1. Start a new election\n2. Join an existing election\n3. View available sessions");
+        if (args.length > 0) {
+            runHeadless(args);
+            return;
+        }
+        System.out.println("1. Start a new election\n2. Join an existing election\n3. View available sessions"
+                + "\n4. Resume leading an election after a restart");
         System.out.print("Enter choice: ");
         int choice = scanner.nextInt();
         scanner.nextLine(); // Consume newline
@@ -28,8 +31,11 @@ public class StartVoting {
             case 3:
                 SessionRegistry.displayAvailableSessions();
                 break;
+            case 4:
+                resumeElection();
+                break;
             default:
-                System.out.println("Invalid choice. Please enter 1, 2, or 3.");
+                System.out.println("Invalid choice. Please enter 1, 2, 3 or 4.");
         }
     }
 
@@ -39,14 +45,14 @@ public class StartVoting {
         int myPort = scanner.nextInt();
         scanner.nextLine(); // Consume newline
 
-        PeerNode peer = new PeerNode(myPort, 1);
-        peer.startPeer();
+        PeerNode peer = new PeerNode(myPort, NodeConfig.nodeId(myPort));
+        peer.startServer();
 
         System.out.print("Enter comma-separated voting options: ");
         String options = scanner.nextLine();
 
         // Generate session code and store it
-        String sessionCode = peer.startNewSession("192.168.1.100", myPort, options); // Replace with actual IP
+        String sessionCode = peer.startNewSession(NodeConfig.host(), myPort, options);
         System.out.println("\nSession created! Share this code: " + sessionCode);
         System.out.println("Voting options: " + options);
 
@@ -54,18 +60,39 @@ public class StartVoting {
         waitForLeaderToEndVoting(peer);
     }
 
+    private static void resumeElection() {
+        System.out.println("\nResuming an election!");
+        System.out.print("Enter session code: ");
+        String sessionCode = scanner.nextLine().trim();
+        System.out.print("Enter your node's port number: ");
+        int myPort = scanner.nextInt();
+        scanner.nextLine(); // Consume newline
+
+        PeerNode peer = new PeerNode(myPort, NodeConfig.nodeId(myPort));
+        peer.startServer();
+
+        if (!peer.resumeSession(sessionCode)) {
+            System.out.println("No logged state found for session " + sessionCode
+                    + ". Sessions are only logged while voting.wal is on.");
+            return;
+        }
+        System.out.println("Session resumed! Share this code: " + sessionCode);
+
+        waitForLeaderToStartVoting(peer);
+        waitForLeaderToEndVoting(peer);
+    }
+
     private static void joinExistingElection() {
         System.out.println("\nJoining an existing election!");
         System.out.print("Enter session code: ");
         String sessionCode = scanner.nextLine();
 
-        Map<String, String> sessions = SessionRegistry.loadSessions();
-
-        if (sessions.containsKey(sessionCode)) {
+        // Asks the registry about this one code (or not at all if it is cached) instead of listing every session
+        if (SessionRegistry.findSession(sessionCode).isPresent()) {
             System.out.print("Enter your node's port number: ");
             int myPort = scanner.nextInt();
 
-            PeerNode peer = new PeerNode(myPort, 1);
+            PeerNode peer = new PeerNode(myPort, NodeConfig.nodeId(myPort));
             peer.setSessionCode(sessionCode);
             peer.startPeer();
 
@@ -76,8 +103,7 @@ public class StartVoting {
     }
 
     private static void waitForLeaderToStartVoting(PeerNode peer) {
-        Runnable heartbeat = new SessionHeartbeat(peer);
-        beatHandle = scheduler.scheduleAtFixedRate(heartbeat, 10, 10, TimeUnit.SECONDS);
+        peer.startHeartbeat(scheduler);
 
         while (true) {
             System.out.print("Enter 'start' to begin voting: ");
@@ -104,4 +130,63 @@ public class StartVoting {
             System.out.println("Invalid input. Type 'end' to end voting.");
         }
     }
+
+    /**
+     * Runs a node without the menu, configured by arguments of the form --key=value, each setting
+     * the system property voting.key, and optionally by a properties file given as --config=file.
+     * E.g. --port=5001 --role=join --session=ABC123 --control.port=8081.
+     */
+    private static void runHeadless(String[] args) {
+        String config = null;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                if (!arg.equals("--headless")) {
+                    System.err.println("Ignoring argument '" + arg + "', expected --key=value.");
+                }
+                continue;
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            if (key.equals("config")) {
+                config = value;
+            } else {
+                System.setProperty(key.startsWith("voting.") ? key : "voting." + key, value);
+            }
+        }
+        if (config != null) {
+            try {
+                NodeConfig.load(Paths.get(config));
+            } catch (IOException e) {
+                System.err.println("Failed to read configuration " + config + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (NodeConfig.role() == NodeConfig.Role.NONE && NodeConfig.controlPort() == 0) {
+            System.err.println("Nothing to do: set voting.role or voting.control.port.");
+            System.exit(1);
+        }
+
+        HeadlessNode node = new HeadlessNode(NodeConfig.port());
+        ControlServer control = null;
+        try {
+            if (NodeConfig.controlPort() > 0) {
+                control = new ControlServer(node, NodeConfig.controlHost(), NodeConfig.controlPort());
+                System.out.println("Serving the control API at http://" + NodeConfig.controlHost() + ":"
+                        + control.getPort() + "/");
+            }
+            node.startRole();
+            node.awaitShutdown();
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Failed to start the node: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (control != null) {
+                control.close();
+            }
+        }
+        System.exit(0);
+    }
 }
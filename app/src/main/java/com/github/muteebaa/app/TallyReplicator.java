@@ -0,0 +1,229 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Replicates the votes accepted by the leader to every follower in numbered batches.
+ * Votes are buffered and sent as a single UPDATE_VOTE_BATCH message per peer once the buffer holds
+ * enough votes or the flush interval elapses, whichever comes first.
+ *
+ * The most recent batches are kept, so a follower that missed some (it joined late or was cut off)
+ * is sent just those again. A follower further behind gets a snapshot of the replicated state
+ * instead, so catching up costs what was missed, bounded by the size of the election.
+ */
+public class TallyReplicator {
+    // Voters per SYNC_SNAPSHOT message, keeping each well under the 1 MB message limit in either format
+    static final int SNAPSHOT_CHUNK = 16384;
+
+    private final NodeCommunication nodeComm;
+    private final Supplier<List<String>> peers;
+    private final int maxBatchSize;
+    private final int historySize;
+    private final ScheduledExecutorService flusher;
+
+    // Keeps batches cut and kept in sequence order. They are sent after it is released; the rare one
+    // overtaken by the next, flushed from another thread, is put back in order by the followers
+    private final Object flushLock = new Object();
+    private List<Message.VoteEntry> buffer = new ArrayList<>();
+    private long sequence;
+    private boolean flushQueued;
+
+    // Guarded by flushLock: what followers have been sent, as of the last batch
+    private final ArrayDeque<Message> history = new ArrayDeque<>();
+    private final Map<String, Long> replicatedCounts = new LinkedHashMap<>();
+
+    /**
+     * Creates a replicator and starts its periodic flush.
+     *
+     * @param nodeComm        The communicator used to send batches.
+     * @param peers           Supplies the current peer list on every flush.
+     * @param maxBatchSize    The number of buffered votes that triggers an immediate flush.
+     * @param flushIntervalMs The longest time a vote stays buffered, in milliseconds.
+     */
+    public TallyReplicator(NodeCommunication nodeComm, Supplier<List<String>> peers, int maxBatchSize,
+            long flushIntervalMs) {
+        this(nodeComm, peers, maxBatchSize, flushIntervalMs, NodeConfig.syncHistory());
+    }
+
+    /**
+     * Creates a replicator and starts its periodic flush.
+     *
+     * @param nodeComm        The communicator used to send batches.
+     * @param peers           Supplies the current peer list on every flush.
+     * @param maxBatchSize    The number of buffered votes that triggers an immediate flush.
+     * @param flushIntervalMs The longest time a vote stays buffered, in milliseconds.
+     * @param historySize     The number of recent batches kept for followers that missed them.
+     */
+    public TallyReplicator(NodeCommunication nodeComm, Supplier<List<String>> peers, int maxBatchSize,
+            long flushIntervalMs, int historySize) {
+        this.nodeComm = nodeComm;
+        this.peers = peers;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.historySize = Math.max(0, historySize);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tally-replicator");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, flushIntervalMs);
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues an accepted vote for replication.
+     *
+     * @param uuidMsb The most significant bits of the voter's UUID.
+     * @param uuidLsb The least significant bits of the voter's UUID.
+     * @param option  The voted option.
+     */
+    public void add(long uuidMsb, long uuidLsb, String option) {
+        boolean full;
+        synchronized (this) {
+            buffer.add(new Message.VoteEntry(uuidMsb, uuidLsb, option));
+            full = buffer.size() >= maxBatchSize && !flushQueued;
+            if (full) {
+                flushQueued = true;
+            }
+        }
+        // Flush on the replicator thread so the caller (usually about to ACK a voter) never waits on the network
+        if (full) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    /**
+     * Sends every buffered vote as one batch. Does nothing if the buffer is empty.
+     */
+    public void flush() {
+        Message batch;
+        synchronized (flushLock) {
+            synchronized (this) {
+                flushQueued = false;
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                batch = Message.voteBatch(++sequence, buffer);
+                buffer = new ArrayList<>();
+            }
+            for (Message.VoteEntry entry : batch.getEntries()) {
+                if (entry.option != null) {
+                    replicatedCounts.merge(entry.option, 1L, Long::sum);
+                }
+            }
+            if (historySize > 0) {
+                if (history.size() == historySize) {
+                    history.removeFirst();
+                }
+                history.addLast(batch);
+            }
+        }
+        // Outside the lock, so the next batch is cut while this one is handed to the senders
+        try {
+            nodeComm.broadcastMessageAsync(batch, peers.get());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Brings a follower up to date: resends the batches it missed if they are still kept, or else
+     * sends a snapshot of the replicated state. Batches flushed while this runs reach the follower
+     * through the regular broadcast, after what is sent here.
+     *
+     * @param follower     The follower's address.
+     * @param fromSequence The last batch the follower applied.
+     * @param voters       Every voter the leader accepted, a superset of the replicated ones.
+     * @return true if missed batches were resent, false if a snapshot was sent.
+     */
+    public boolean sync(String follower, long fromSequence, UuidSet voters) {
+        long snapshotSequence;
+        Map<String, Long> counts;
+        List<Message> missed = new ArrayList<>();
+        synchronized (flushLock) {
+            Message oldest = history.peekFirst();
+            boolean kept = fromSequence >= sequence || oldest != null && oldest.getSequence() <= fromSequence + 1;
+            snapshotSequence = sequence;
+            counts = kept ? null : new LinkedHashMap<>(replicatedCounts);
+            if (kept) {
+                for (Message batch : history) {
+                    if (batch.getSequence() > fromSequence) {
+                        missed.add(batch);
+                    }
+                }
+            }
+        }
+        if (counts == null) {
+            // Sent outside the lock so replication to everyone else goes on meanwhile
+            missed.forEach(batch -> nodeComm.sendMessage(batch, follower));
+            return true;
+        }
+
+        // Voters accepted after the cut are included too, which is harmless: replaying their batch
+        // adds them again as a no-op, and their votes are counted only then.
+        // They are copied first, so the set is not locked while the network is slow.
+        List<long[]> chunks = new ArrayList<>();
+        int[] filled = { SNAPSHOT_CHUNK * 2 };
+        voters.forEach((msb, lsb) -> {
+            if (filled[0] == SNAPSHOT_CHUNK * 2) {
+                chunks.add(new long[SNAPSHOT_CHUNK * 2]);
+                filled[0] = 0;
+            }
+            long[] chunk = chunks.get(chunks.size() - 1);
+            chunk[filled[0]++] = msb;
+            chunk[filled[0]++] = lsb;
+        });
+        if (chunks.isEmpty()) {
+            chunks.add(new long[0]);
+        } else {
+            int last = chunks.size() - 1;
+            chunks.set(last, Arrays.copyOf(chunks.get(last), filled[0]));
+        }
+
+        for (int i = 0; i < chunks.size(); i++) {
+            nodeComm.sendMessage(Message.syncSnapshot(snapshotSequence, i == 0 ? counts : null, chunks.get(i),
+                    i + 1 < chunks.size()), follower);
+        }
+        return false;
+    }
+
+    /**
+     * Picks up replication where a previous leader left off, so followers apply this leader's
+     * batches right after the ones they already have. Must be called before the first vote is added.
+     *
+     * @param sequence The last batch the previous leader replicated, as applied here.
+     * @param counts   The vote counts as of that batch.
+     */
+    public void continueFrom(long sequence, Map<String, Long> counts) {
+        synchronized (flushLock) {
+            synchronized (this) {
+                this.sequence = sequence;
+            }
+            replicatedCounts.clear();
+            replicatedCounts.putAll(counts);
+        }
+    }
+
+    /**
+     * @return The sequence number of the last batch sent.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Flushes any remaining votes and stops the periodic flush.
+     */
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,362 @@
+package com.github.muteebaa.app;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Concurrent set of 128-bit UUIDs stored as pairs of longs.
+ *
+ * The set is split into independently locked segments, each an open-addressing table with linear
+ * probing, so a voter costs 16 bytes of table space (about 32 bytes at the worst load factor)
+ * instead of a String plus a skip list node. Tables can optionally live off-heap in direct buffers
+ * to keep very large voter sets out of the garbage collector's way.
+ *
+ * A set can also sit on top of a {@link VoterSnapshot} base, e.g. after a restart: the snapshot's
+ * voters count as members without being copied into the tables, and only later voters are added.
+ */
+public class UuidSet {
+    private static final int SEGMENT_BITS = 5;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int MIN_SEGMENT_CAPACITY = 16; // Slots, always a power of two
+    private static final double MAX_LOAD = 0.6;
+
+    /**
+     * Receives the UUIDs of a set without boxing them.
+     */
+    @FunctionalInterface
+    public interface UuidVisitor {
+        void accept(long msb, long lsb);
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final boolean offHeap;
+    private volatile VoterSnapshot base;
+
+    /**
+     * Creates an empty on-heap set.
+     */
+    public UuidSet() {
+        this(0, false);
+    }
+
+    /**
+     * Creates an empty set.
+     *
+     * @param expectedSize The number of UUIDs to size the tables for up front.
+     * @param offHeap      Whether to keep the tables in direct buffers outside the Java heap.
+     */
+    public UuidSet(int expectedSize, boolean offHeap) {
+        this.offHeap = offHeap;
+        int perSegment = (int) Math.ceil(expectedSize / (double) SEGMENTS / MAX_LOAD);
+        int capacity = Math.max(MIN_SEGMENT_CAPACITY, Integer.highestOneBit(Math.max(1, perSegment - 1)) << 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * Adds a UUID unless it is already present, as a single atomic step.
+     *
+     * @param msb The most significant bits of the UUID.
+     * @param lsb The least significant bits of the UUID.
+     * @return true if the UUID was added, false if it was already present.
+     */
+    public boolean add(long msb, long lsb) {
+        VoterSnapshot b = base;
+        if (b != null && b.contains(msb, lsb)) {
+            return false;
+        }
+        long hash = hash(msb, lsb);
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))].add(msb, lsb, hash);
+    }
+
+    public boolean add(UUID uuid) {
+        return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Removes a UUID added to the tables, e.g. to take back a vote that could not be logged.
+     * Voters of the base snapshot stay members.
+     *
+     * @param msb The most significant bits of the UUID.
+     * @param lsb The least significant bits of the UUID.
+     * @return true if the UUID was removed, false if it was not in the tables.
+     */
+    public boolean remove(long msb, long lsb) {
+        long hash = hash(msb, lsb);
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))].remove(msb, lsb, hash);
+    }
+
+    /**
+     * @param msb The most significant bits of the UUID.
+     * @param lsb The least significant bits of the UUID.
+     * @return true if the UUID is present.
+     */
+    public boolean contains(long msb, long lsb) {
+        VoterSnapshot b = base;
+        if (b != null && b.contains(msb, lsb)) {
+            return true;
+        }
+        long hash = hash(msb, lsb);
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))].contains(msb, lsb, hash);
+    }
+
+    public boolean contains(UUID uuid) {
+        return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @return The number of UUIDs in the set.
+     */
+    public long size() {
+        VoterSnapshot b = base;
+        long size = b == null ? 0 : b.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The bytes currently allocated for the tables.
+     */
+    public long tableBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.capacity() * 16L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Visits every UUID, one segment at a time. UUIDs added concurrently may or may not be visited.
+     *
+     * @param visitor Receives the most and least significant bits of each UUID.
+     */
+    public void forEach(UuidVisitor visitor) {
+        VoterSnapshot b = base;
+        if (b != null) {
+            b.forEach(visitor);
+        }
+        for (Segment segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    /**
+     * Copies every UUID added to the tables into an array, leaving out those of the base snapshot.
+     * UUIDs added concurrently may or may not be included.
+     *
+     * @return The most and least significant bits of each UUID, one pair after the other.
+     */
+    public long[] toArray() {
+        long tableSize = 0;
+        for (Segment segment : segments) {
+            tableSize += segment.size();
+        }
+        long[][] pairs = { new long[(int) Math.min(Integer.MAX_VALUE - 8, tableSize * 2)] };
+        int[] length = new int[1];
+        UuidVisitor copy = (msb, lsb) -> {
+            if (length[0] + 2 > pairs[0].length) {
+                pairs[0] = Arrays.copyOf(pairs[0], Math.max(16, pairs[0].length * 2));
+            }
+            pairs[0][length[0]++] = msb;
+            pairs[0][length[0]++] = lsb;
+        };
+        for (Segment segment : segments) {
+            segment.forEach(copy);
+        }
+        return length[0] == pairs[0].length ? pairs[0] : Arrays.copyOf(pairs[0], length[0]);
+    }
+
+    /**
+     * Makes a snapshot's voters members of this set. Must be called before any UUID is added.
+     *
+     * @param base The snapshot, or null for none.
+     */
+    public void setBase(VoterSnapshot base) {
+        this.base = base;
+    }
+
+    /**
+     * @return The snapshot whose voters are members of this set, or null.
+     */
+    public VoterSnapshot getBase() {
+        return base;
+    }
+
+    // Murmur3 finalizer over both halves, so that both the segment (top bits) and slot (low bits) are well mixed
+    private static long hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One independently locked open-addressing table.
+     * Slot i occupies longs 2i and 2i+1; the all-zero UUID marks an empty slot and is tracked separately.
+     */
+    private class Segment {
+        private LongBuffer table;
+        private int mask;
+        private int size;
+        private boolean containsZero;
+
+        Segment(int capacity) {
+            table = allocate(capacity);
+            mask = capacity - 1;
+        }
+
+        private LongBuffer allocate(int slots) {
+            if (offHeap) {
+                return ByteBuffer.allocateDirect(slots * 16).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+            return LongBuffer.allocate(slots * 2);
+        }
+
+        synchronized boolean add(long msb, long lsb, long hash) {
+            if (msb == 0 && lsb == 0) {
+                if (containsZero) {
+                    return false;
+                }
+                containsZero = true;
+                size++;
+                return true;
+            }
+
+            int slot = (int) hash & mask;
+            while (true) {
+                long m = table.get(slot * 2);
+                long l = table.get(slot * 2 + 1);
+                if (m == 0 && l == 0) {
+                    break;
+                }
+                if (m == msb && l == lsb) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            table.put(slot * 2, msb);
+            table.put(slot * 2 + 1, lsb);
+            size++;
+            if (size > (mask + 1) * MAX_LOAD) {
+                resize();
+            }
+            return true;
+        }
+
+        synchronized boolean contains(long msb, long lsb, long hash) {
+            if (msb == 0 && lsb == 0) {
+                return containsZero;
+            }
+
+            int slot = (int) hash & mask;
+            while (true) {
+                long m = table.get(slot * 2);
+                long l = table.get(slot * 2 + 1);
+                if (m == 0 && l == 0) {
+                    return false;
+                }
+                if (m == msb && l == lsb) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        synchronized boolean remove(long msb, long lsb, long hash) {
+            if (msb == 0 && lsb == 0) {
+                if (!containsZero) {
+                    return false;
+                }
+                containsZero = false;
+                size--;
+                return true;
+            }
+
+            int hole = (int) hash & mask;
+            while (true) {
+                long m = table.get(hole * 2);
+                long l = table.get(hole * 2 + 1);
+                if (m == 0 && l == 0) {
+                    return false;
+                }
+                if (m == msb && l == lsb) {
+                    break;
+                }
+                hole = (hole + 1) & mask;
+            }
+
+            // Shift later entries of the probe run back into the hole, so lookups never stop short of them
+            int slot = (hole + 1) & mask;
+            while (true) {
+                long m = table.get(slot * 2);
+                long l = table.get(slot * 2 + 1);
+                if (m == 0 && l == 0) {
+                    break;
+                }
+                int home = (int) hash(m, l) & mask;
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    table.put(hole * 2, m);
+                    table.put(hole * 2 + 1, l);
+                    hole = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table.put(hole * 2, 0);
+            table.put(hole * 2 + 1, 0);
+            size--;
+            return true;
+        }
+
+        private void resize() {
+            LongBuffer old = table;
+            int oldCapacity = mask + 1;
+            table = allocate(oldCapacity * 2);
+            mask = oldCapacity * 2 - 1;
+
+            for (int i = 0; i < oldCapacity; i++) {
+                long m = old.get(i * 2);
+                long l = old.get(i * 2 + 1);
+                if (m == 0 && l == 0) {
+                    continue;
+                }
+                int slot = (int) hash(m, l) & mask;
+                while (table.get(slot * 2) != 0 || table.get(slot * 2 + 1) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table.put(slot * 2, m);
+                table.put(slot * 2 + 1, l);
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int capacity() {
+            return mask + 1;
+        }
+
+        synchronized void forEach(UuidVisitor visitor) {
+            if (containsZero) {
+                visitor.accept(0, 0);
+            }
+            for (int i = 0; i <= mask; i++) {
+                long m = table.get(i * 2);
+                long l = table.get(i * 2 + 1);
+                if (m != 0 || l != 0) {
+                    visitor.accept(m, l);
+                }
+            }
+        }
+    }
+}
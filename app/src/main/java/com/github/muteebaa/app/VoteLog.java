@@ -0,0 +1,680 @@
+package com.github.muteebaa.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead log of a leader's election state: the session, accepted votes and peers.
+ *
+ * Records are checksummed and appended to the current segment through a {@link FileChannel}.
+ * Appends never block: each returns a future completed once its record is on disk. A single
+ * flusher thread writes and syncs everything appended while the previous sync was running in one
+ * go, so concurrently accepted votes share an fsync (group commit). A batch that fails to be
+ * written fails all its futures and is cut off the segment again; if that fails too, the log
+ * refuses every later append.
+ *
+ * Every {@code snapshotRecords} records the caller should write a {@link Snapshot} of the full
+ * state. Writing one starts a new segment and deletes the segments it covers, so recovery reads
+ * the latest snapshot plus only the records appended after it.
+ *
+ * Files, in the log's own directory:
+ * <pre>
+ *   wal-{first sequence}.log      records: length (4), CRC32C of body (4), body
+ *   snapshot-{sequence}.snap      the state after every record up to that sequence, see {@link VoterSnapshot}
+ * </pre>
+ * A record body is its sequence number (8), type (1) and payload.
+ */
+public class VoteLog implements Closeable {
+    private static final byte SESSION = 1;
+    private static final byte VOTE = 2;
+    private static final byte PEER = 3;
+
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    /**
+     * The complete election state up to a sequence number, as written to or read from a snapshot.
+     */
+    public static final class Snapshot {
+        final long sequence;
+        final String sessionCode;
+        final String host;
+        final int port;
+        final List<String> options;
+        final Map<String, Long> counts;
+        final List<String> peers;
+        final VoterSnapshot base;
+        final long[] voters; // Pairs of most and least significant bits
+
+        /**
+         * @param sequence    The last record reflected in the state.
+         * @param sessionCode The session code.
+         * @param host        The leader's host.
+         * @param port        The leader's port.
+         * @param options     The session's voting options.
+         * @param counts      The vote count of every voted option.
+         * @param peers       The registered peers.
+         * @param base        The snapshot holding the voters recovered at startup, or null.
+         * @param voters      The other voters' UUIDs as pairs of most and least significant bits.
+         */
+        public Snapshot(long sequence, String sessionCode, String host, int port, List<String> options,
+                Map<String, Long> counts, List<String> peers, VoterSnapshot base, long[] voters) {
+            this.sequence = sequence;
+            this.sessionCode = sessionCode;
+            this.host = host;
+            this.port = port;
+            this.options = options;
+            this.counts = counts;
+            this.peers = peers;
+            this.base = base;
+            this.voters = voters;
+        }
+    }
+
+    /**
+     * The election state rebuilt from a log directory.
+     */
+    public static final class Recovery {
+        private String sessionCode;
+        private String host;
+        private int port;
+        private List<String> options = List.of();
+        private final Map<String, Long> counts = new LinkedHashMap<>();
+        private final LinkedHashSet<String> peers = new LinkedHashSet<>();
+        private long sequence;
+        private long snapshotSequence;
+        private long replayed;
+
+        public String getSessionCode() {
+            return sessionCode;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public List<String> getOptions() {
+            return options;
+        }
+
+        /**
+         * @return The vote count of every voted option.
+         */
+        public Map<String, Long> getCounts() {
+            return counts;
+        }
+
+        public List<String> getPeers() {
+            return new ArrayList<>(peers);
+        }
+
+        /**
+         * @return The last sequence number in the log.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return The sequence number of the snapshot recovery started from, 0 if there was none.
+         */
+        public long getSnapshotSequence() {
+            return snapshotSequence;
+        }
+
+        /**
+         * @return The number of records replayed on top of the snapshot.
+         */
+        public long getReplayed() {
+            return replayed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("session %s: %s from snapshot %d + %d record(s), %d peer(s)", sessionCode, counts,
+                    snapshotSequence, replayed, peers.size());
+        }
+    }
+
+    private final Path dir;
+    private final int snapshotRecords;
+    private final Thread flusher;
+
+    // Guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    private long sequence;
+    private int recordStart;
+    private long recordsSinceSnapshot;
+    private CompletableFuture<Void> rollPending; // Completed once later records go to a new segment
+    private boolean closed;
+    private boolean failed; // A failed write could not be undone, so nothing may follow it
+
+    // Only touched by the flusher thread once it runs
+    private FileChannel segment;
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+
+    private volatile long syncs; // Written by the flusher only
+    private volatile long syncedRecords;
+
+    private VoteLog(Path dir, long sequence, int snapshotRecords, long recordsSinceSnapshot) throws IOException {
+        this.dir = dir;
+        this.sequence = sequence;
+        this.snapshotRecords = Math.max(1, snapshotRecords);
+        this.recordsSinceSnapshot = recordsSinceSnapshot;
+        this.segment = openSegment(dir, sequence, true);
+        this.flusher = new Thread(this::flushLoop, "vote-log-" + dir.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens the log in a directory, recovering what it already holds into {@code voters}.
+     *
+     * @param dir             The log's directory, created if missing.
+     * @param voters          Receives every recovered voter.
+     * @param snapshotRecords The number of records after which a snapshot is due.
+     * @param recovery        Receives the rest of the recovered state, may be null.
+     * @return The log, ready for appends after the last recovered record.
+     * @throws IOException If the directory cannot be used, or a record other than the last is corrupt.
+     */
+    public static VoteLog open(Path dir, UuidSet voters, int snapshotRecords, Recovery recovery) throws IOException {
+        Files.createDirectories(dir);
+        Recovery state = recovery != null ? recovery : new Recovery();
+        recover(dir, voters, state);
+        return new VoteLog(dir, state.sequence, snapshotRecords, state.replayed);
+    }
+
+    /**
+     * Starts an empty log in a directory, deleting whatever an earlier log there held without
+     * recovering it. For a node whose state already is the latest, such as a newly elected leader,
+     * which should write a snapshot of that state right away.
+     *
+     * @param dir             The log's directory, created if missing.
+     * @param snapshotRecords The number of records after which a snapshot is due.
+     * @return The log, ready for appends.
+     * @throws IOException If the directory cannot be used or the earlier log cannot be deleted.
+     */
+    public static VoteLog create(Path dir, int snapshotRecords) throws IOException {
+        Files.createDirectories(dir);
+        // Newest first, so a crash part way leaves an earlier state of the old log, never a gap in it
+        List<Path> segments = list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Files.deleteIfExists(segments.get(i));
+        }
+        for (Path old : list(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            Files.deleteIfExists(old);
+        }
+        return new VoteLog(dir, 0, snapshotRecords, 0);
+    }
+
+    /**
+     * Rebuilds the election state held in a log directory without opening the log for writing.
+     *
+     * @param dir    The log's directory.
+     * @param voters Receives every recovered voter.
+     * @return The recovered state.
+     * @throws IOException If the directory cannot be read, or a record other than the last is corrupt.
+     */
+    public static Recovery recover(Path dir, UuidSet voters) throws IOException {
+        Recovery state = new Recovery();
+        recover(dir, voters, state);
+        return state;
+    }
+
+    private static void recover(Path dir, UuidSet voters, Recovery state) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> snapshots = list(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            try {
+                readSnapshot(snapshots.get(i), voters, state);
+                break;
+            } catch (IOException e) {
+                // An interrupted snapshot write leaves the previous snapshot and its segments in place
+                System.err.println("Skipping unreadable snapshot " + snapshots.get(i) + ": " + e.getMessage());
+            }
+        }
+
+        List<Path> segments = list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i < segments.size(); i++) {
+            // Segments ending before the snapshot are skipped unread
+            if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= state.snapshotSequence + 1) {
+                continue;
+            }
+            replay(segments.get(i), voters, state, i == segments.size() - 1);
+        }
+    }
+
+    private static void replay(Path file, UuidSet voters, Recovery state, boolean last) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // Read the whole segment
+            }
+            data.flip();
+
+            CRC32C crc = new CRC32C();
+            while (data.hasRemaining()) {
+                int start = data.position();
+                String error = null;
+                if (data.remaining() < RECORD_HEADER) {
+                    error = "truncated record header";
+                } else {
+                    int length = data.getInt();
+                    int checksum = data.getInt();
+                    if (length < 9 || length > data.remaining()) {
+                        error = "truncated record";
+                    } else {
+                        ByteBuffer body = data.slice();
+                        body.limit(length);
+                        crc.reset();
+                        crc.update(body.duplicate());
+                        if ((int) crc.getValue() != checksum) {
+                            error = "checksum mismatch";
+                        } else {
+                            apply(body, voters, state);
+                            data.position(data.position() + length);
+                        }
+                    }
+                }
+                if (error != null) {
+                    if (!last) {
+                        throw new IOException("Corrupt vote log " + file + " at byte " + start + ": " + error);
+                    }
+                    // A crash mid-write leaves a partial last record, which was never acknowledged
+                    System.err.println("Truncating vote log " + file + " at byte " + start + ": " + error);
+                    channel.truncate(start);
+                    channel.force(true);
+                    return;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed record in vote log " + file, e);
+        }
+    }
+
+    private static void apply(ByteBuffer body, UuidSet voters, Recovery state) {
+        long seq = body.getLong();
+        byte type = body.get();
+        if (seq <= state.snapshotSequence) {
+            return; // Already part of the snapshot
+        }
+        switch (type) {
+            case SESSION:
+                state.sessionCode = getString(body);
+                state.host = getString(body);
+                state.port = body.getInt();
+                int count = Short.toUnsignedInt(body.getShort());
+                List<String> options = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    options.add(getString(body));
+                }
+                state.options = Collections.unmodifiableList(options);
+                break;
+            case VOTE: {
+                long msb = body.getLong();
+                long lsb = body.getLong();
+                String option = getString(body);
+                if (voters.add(msb, lsb)) {
+                    state.counts.merge(option, 1L, Long::sum);
+                }
+                break;
+            }
+            case PEER:
+                state.peers.add(getString(body));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown record type " + type);
+        }
+        state.sequence = seq;
+        state.replayed++;
+    }
+
+    /**
+     * Logs the session this leader runs.
+     *
+     * @return A future completed once the record is on disk.
+     */
+    public CompletableFuture<Void> appendSession(String sessionCode, String host, int port, List<String> options) {
+        byte[] code = bytes(sessionCode);
+        byte[] hostBytes = bytes(host);
+        List<byte[]> optionBytes = new ArrayList<>(options.size());
+        int size = 4 + code.length + hostBytes.length + 4 + 2;
+        for (String option : options) {
+            byte[] b = bytes(option);
+            optionBytes.add(b);
+            size += 2 + b.length;
+        }
+        synchronized (this) {
+            ByteBuffer out = begin(SESSION, size);
+            putBytes(out, code);
+            putBytes(out, hostBytes);
+            out.putInt(port).putShort((short) optionBytes.size());
+            for (byte[] option : optionBytes) {
+                putBytes(out, option);
+            }
+            return end(out);
+        }
+    }
+
+    /**
+     * Logs an accepted vote.
+     *
+     * @return A future completed once the record is on disk.
+     */
+    public CompletableFuture<Void> appendVote(long uuidMsb, long uuidLsb, String option) {
+        byte[] optionBytes = bytes(option);
+        synchronized (this) {
+            ByteBuffer out = begin(VOTE, 16 + 2 + optionBytes.length);
+            out.putLong(uuidMsb).putLong(uuidLsb);
+            putBytes(out, optionBytes);
+            return end(out);
+        }
+    }
+
+    /**
+     * Logs a newly registered peer.
+     *
+     * @return A future completed once the record is on disk.
+     */
+    public CompletableFuture<Void> appendPeer(String address) {
+        byte[] addressBytes = bytes(address);
+        synchronized (this) {
+            ByteBuffer out = begin(PEER, 2 + addressBytes.length);
+            putBytes(out, addressBytes);
+            return end(out);
+        }
+    }
+
+    private ByteBuffer begin(byte type, int payloadSize) {
+        if (closed) {
+            throw new IllegalStateException("Vote log is closed");
+        }
+        if (failed) {
+            throw new IllegalStateException("Vote log failed, a partly written batch could not be removed");
+        }
+        int needed = RECORD_HEADER + 9 + payloadSize;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        recordStart = pending.position();
+        pending.putInt(9 + payloadSize).putInt(0).putLong(++sequence).put(type);
+        return pending;
+    }
+
+    private CompletableFuture<Void> end(ByteBuffer out) {
+        // Fill in the checksum of the body just written
+        ByteBuffer body = out.duplicate();
+        body.position(recordStart + RECORD_HEADER).limit(out.position());
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        out.putInt(recordStart + 4, (int) crc.getValue());
+
+        recordsSinceSnapshot++;
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        waiters.add(durable);
+        if (waiters.size() == 1) {
+            notifyAll(); // The flusher may be idle
+        }
+        return durable;
+    }
+
+    /**
+     * @return The sequence number of the last record appended.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Whether enough records were appended since the last snapshot that a new one is due.
+     */
+    public synchronized boolean isSnapshotDue() {
+        return recordsSinceSnapshot >= snapshotRecords;
+    }
+
+    /**
+     * Marks the point a snapshot is about to be taken at: records appended from now on go to a new
+     * segment. Must be called while no record can be appended, i.e. while the state the snapshot is
+     * taken from cannot change, and be followed by {@link #writeSnapshot} for the returned sequence.
+     *
+     * @return The sequence number of the last record the snapshot must reflect.
+     */
+    public synchronized long cut() {
+        if (rollPending == null) {
+            rollPending = new CompletableFuture<>();
+            notifyAll();
+        }
+        recordsSinceSnapshot = 0;
+        return sequence;
+    }
+
+    /**
+     * Writes a snapshot and deletes the segments and older snapshots it makes obsolete. Runs on the
+     * caller's thread, while appends continue.
+     *
+     * @param snapshot The state as of a sequence number returned by {@link #cut}.
+     * @throws IOException If the snapshot cannot be written. The log stays recoverable without it.
+     */
+    public void writeSnapshot(Snapshot snapshot) throws IOException {
+        CompletableFuture<Void> rolled;
+        synchronized (this) {
+            rolled = rollPending;
+        }
+        if (rolled != null) {
+            rolled.join(); // So the segments the snapshot covers are complete and can be deleted
+        }
+
+        Path file = dir.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, snapshot.sequence, SNAPSHOT_SUFFIX));
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        VoterSnapshot.write(tmp, snapshot);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Only what the new snapshot covers is deleted, a crash part way leaves extra files, never missing ones
+        for (Path old : list(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (firstSequence(old) < snapshot.sequence) {
+                Files.deleteIfExists(old);
+            }
+        }
+        List<Path> segments = list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequence(segments.get(i + 1)) <= snapshot.sequence + 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    private static void readSnapshot(Path file, UuidSet voters, Recovery state) throws IOException {
+        VoterSnapshot snapshot = VoterSnapshot.open(file);
+        snapshot.verify();
+        state.snapshotSequence = snapshot.getSequence();
+        state.sequence = state.snapshotSequence;
+        state.sessionCode = snapshot.getSessionCode();
+        state.host = snapshot.getHost();
+        state.port = snapshot.getPort();
+        state.options = snapshot.getOptions();
+        state.counts.putAll(snapshot.getCounts());
+        state.peers.addAll(snapshot.getPeers());
+        // Voters stay in the mapped file instead of being inserted into the set one by one
+        voters.setBase(snapshot);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<CompletableFuture<Void>> batch;
+            CompletableFuture<Void> roll;
+            long lastSequence;
+            boolean usable;
+            synchronized (this) {
+                while (waiters.isEmpty() && rollPending == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (waiters.isEmpty() && rollPending == null && closed) {
+                    return;
+                }
+                // Swap buffers, so appends continue into the other one while this batch is synced
+                ByteBuffer full = pending;
+                pending = writing;
+                pending.clear();
+                writing = full;
+                writing.flip();
+                batch = waiters;
+                waiters = new ArrayList<>();
+                roll = rollPending;
+                rollPending = null;
+                lastSequence = sequence;
+                usable = !failed;
+            }
+
+            long start = -1; // Where this batch begins in the segment, until it is synced
+            try {
+                if (!usable) {
+                    throw new IOException("an earlier write could not be undone");
+                }
+                start = segment.position();
+                while (writing.hasRemaining()) {
+                    segment.write(writing);
+                }
+                segment.force(false);
+                start = -1;
+                syncs++;
+                syncedRecords += batch.size();
+                batch.forEach(f -> f.complete(null));
+                if (roll != null) {
+                    segment.close();
+                    segment = openSegment(dir, lastSequence, false);
+                    roll.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Vote log write failed: " + e.getMessage());
+                // Records after a partial batch would turn it into corruption in the middle of the log
+                if (start < 0 || !truncate(start)) {
+                    synchronized (this) {
+                        failed = true;
+                    }
+                }
+                batch.forEach(f -> f.completeExceptionally(e));
+                if (roll != null) {
+                    roll.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    // Removes what a failed write left of its batch, returns whether the segment ends at a record again
+    private boolean truncate(long position) {
+        try {
+            segment.truncate(position);
+            segment.position(position);
+            segment.force(false);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Vote log could not be truncated to byte " + position + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // A new segment is named after the first sequence it will hold
+    private static FileChannel openSegment(Path dir, long lastSequence, boolean reuseLast) throws IOException {
+        List<Path> segments = reuseLast ? list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX) : List.of();
+        Path file = !segments.isEmpty() ? segments.get(segments.size() - 1)
+                : dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, lastSequence + 1, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * @return The number of fsyncs and the average number of records each one made durable.
+     */
+    public synchronized String getStats() {
+        return String.format("%d record(s), %d sync(s), %.1f record(s) per sync", sequence, syncs,
+                syncs == 0 ? 0.0 : syncedRecords / (double) syncs);
+    }
+
+    /**
+     * Syncs every appended record and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+
+    private static List<Path> list(Path dir, String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static long firstSequence(Path file) {
+        String name = file.getFileName().toString();
+        int start = name.indexOf('-') + 1;
+        return Long.parseLong(name.substring(start, name.indexOf('.', start)));
+    }
+
+    static byte[] bytes(String value) {
+        byte[] b = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) {
+            throw new IllegalArgumentException("String field exceeds 65535 bytes");
+        }
+        return b;
+    }
+
+    static void putBytes(ByteBuffer out, byte[] value) {
+        out.putShort((short) value.length).put(value);
+    }
+
+    static String getString(ByteBuffer in) {
+        int length = Short.toUnsignedInt(in.getShort());
+        byte[] b = new byte[length];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
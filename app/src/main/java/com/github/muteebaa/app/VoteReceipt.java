@@ -0,0 +1,108 @@
+package com.github.muteebaa.app;
+
+/**
+ * The leader's answer to a request sent through a {@link RequestTracker}.
+ *
+ * A request resent after its answer was lost is answered like the first copy, as the leader
+ * remembers the requests its recently accepted votes arrived in. Only a resend that reaches a newly
+ * elected leader comes back as a duplicate of the vote the old leader counted, which
+ * {@link #getAttempts()} tells apart from a voter voting twice.
+ */
+public class VoteReceipt {
+    /**
+     * How the leader answered.
+     */
+    public enum Status {
+        /** The leader acknowledged the request. */
+        ACCEPTED,
+        /** The leader had already seen a vote from the same UUID. */
+        DUPLICATE,
+        /** The vote was for an option the session does not have, so it was not counted. */
+        INVALID,
+        /**
+         * The voter belongs to a shard coordinated by another node. Only seen in a bulk vote's
+         * results when resending the vote to the right node failed as well.
+         */
+        MOVED;
+
+        /**
+         * @param initial The first letter of a status's name, as sent in a BULK_VOTE_RESULT.
+         * @return The status.
+         * @throws IllegalArgumentException If no status starts with the letter.
+         */
+        public static Status fromInitial(char initial) {
+            for (Status status : values()) {
+                if (status.name().charAt(0) == initial) {
+                    return status;
+                }
+            }
+            throw new IllegalArgumentException("Unknown vote status " + initial);
+        }
+    }
+
+    private final long requestId;
+    private final Status status;
+    private final Message response;
+    private final long latencyNanos;
+    private final int attempts;
+
+    VoteReceipt(long requestId, Message response, long latencyNanos, int attempts) {
+        this(requestId, statusOf(response), response, latencyNanos, attempts);
+    }
+
+    /**
+     * Creates the receipt of one vote of a bulk vote, which shares its request's response.
+     */
+    VoteReceipt(long requestId, Status status, Message response, long latencyNanos, int attempts) {
+        this.requestId = requestId;
+        this.status = status;
+        this.response = response;
+        this.latencyNanos = latencyNanos;
+        this.attempts = attempts;
+    }
+
+    private static Status statusOf(Message response) {
+        switch (response.getType()) {
+            case DUPLICATE:
+                return Status.DUPLICATE;
+            case INVALID:
+                return Status.INVALID;
+            default:
+                return Status.ACCEPTED;
+        }
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The leader's ACK, DUPLICATE or INVALID message, or the BULK_VOTE_RESULT answering a bulk vote.
+     */
+    public Message getResponse() {
+        return response;
+    }
+
+    /**
+     * @return The time from the first send to the response, in nanoseconds.
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return The number of times the request was sent, 1 if no retry was needed.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s after %d attempt(s) in %dus", requestId, status, attempts, latencyNanos / 1000);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.muteebaa.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe vote counter for a single session.
+ *
+ * Every session option owns a fixed slot holding a {@link LongAdder}, so concurrent votes for the
+ * same option do not contend on a single counter. Votes for options outside the session (followers
+ * that have not learned the options yet, or invalid input) are counted in a separate map.
+ *
+ * Increments take the shared side of one of several striped locks, which is uncontended unless a
+ * snapshot is being taken. {@link #snapshot()} takes the exclusive side of every stripe, so the
+ * counts it returns all come from the same instant even while votes are in flight.
+ */
+public class VoteTally {
+    private final VotingOptions options;
+    private final LongAdder[] counts;
+    private final Map<String, LongAdder> otherCounts = new ConcurrentHashMap<>();
+    private final StampedLock[] stripes;
+
+    /**
+     * Creates an empty tally.
+     *
+     * @param options The session's options, which get a dedicated counter each.
+     */
+    public VoteTally(VotingOptions options) {
+        this.options = options;
+        this.counts = new LongAdder[options.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) * 2;
+        this.stripes = new StampedLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new StampedLock();
+        }
+    }
+
+    public VotingOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Counts a single vote.
+     *
+     * @param option The voted option.
+     */
+    public void increment(String option) {
+        add(option, 1);
+    }
+
+    /**
+     * Adds a number of votes for an option.
+     *
+     * @param option The voted option.
+     * @param votes  The number of votes to add.
+     */
+    public void add(String option, long votes) {
+        Objects.requireNonNull(option, "option");
+        int index = options.indexOf(option);
+        LongAdder counter = index >= 0 ? counts[index] : otherCounts.computeIfAbsent(option, k -> new LongAdder());
+
+        StampedLock stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        long stamp = stripe.readLock();
+        try {
+            counter.add(votes);
+        } finally {
+            stripe.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Counts a single vote by option index, skipping the name lookup.
+     *
+     * @param index The index of the voted option in the session's options.
+     */
+    public void increment(int index) {
+        StampedLock stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        long stamp = stripe.readLock();
+        try {
+            counts[index].increment();
+        } finally {
+            stripe.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param option The option to look up.
+     * @return The current (not necessarily consistent) count of an option.
+     */
+    public long get(String option) {
+        int index = options.indexOf(option);
+        if (index >= 0) {
+            return counts[index].sum();
+        }
+        LongAdder counter = otherCounts.get(option);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Takes a consistent snapshot of every count. Briefly blocks votes while the counts are read.
+     *
+     * @return The counts of the session options in session order, followed by any other voted options.
+     */
+    public Map<String, Long> snapshot() {
+        long[] stamps = new long[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stamps[i] = stripes[i].writeLock();
+        }
+        try {
+            Map<String, Long> snapshot = new LinkedHashMap<>();
+            for (int i = 0; i < counts.length; i++) {
+                snapshot.put(options.get(i), counts[i].sum());
+            }
+            otherCounts.forEach((option, count) -> snapshot.put(option, count.sum()));
+            return snapshot;
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The total number of votes in a consistent snapshot.
+     */
+    public long total() {
+        return snapshot().values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
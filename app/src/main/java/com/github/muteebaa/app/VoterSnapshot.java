@@ -0,0 +1,426 @@
+package com.github.muteebaa.app;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only snapshot of an election's state whose voters are queried in place through a
+ * memory-mapped file instead of being loaded onto the heap.
+ *
+ * Voters are stored as a sorted array of 128-bit UUIDs, compared as unsigned most then least
+ * significant bits, after a fan-out table holding the number of voters whose UUID starts with each
+ * 12-bit prefix. A membership test looks up its prefix's range in the table and binary searches only
+ * that range, so a million voters take about eight probes, all within a page or two. Opening a
+ * snapshot reads the header and fan-out table; the voters are paged in by the OS as they are used.
+ *
+ * Layout, big-endian:
+ * <pre>
+ *   magic (4), version (2), reserved (2), sequence (8), voter count (8), header length (4)
+ *   header: session code, host, port, options, counts, peers
+ *   fan-out: 4096 cumulative voter counts (4 each)
+ *   CRC32C of everything above (4), zero padding to a multiple of 16
+ *   voters: msb (8), lsb (8) each, sorted
+ *   CRC32C of the voters (4)
+ * </pre>
+ */
+public final class VoterSnapshot {
+    private static final int MAGIC = 0x56534E50; // "VSNP"
+    private static final short VERSION = 1;
+    private static final int FIXED_HEADER = 28;
+    private static final int FANOUT_BITS = 12;
+    private static final int FANOUT = 1 << FANOUT_BITS;
+
+    private final Path file;
+    private final long sequence;
+    private final String sessionCode;
+    private final String host;
+    private final int port;
+    private final List<String> options;
+    private final Map<String, Long> counts;
+    private final List<String> peers;
+    private final int[] fanout; // Voters before the end of each prefix, kept on the heap (16 KB)
+    private final LongBuffer voters;
+    private final int voterCount;
+    private final int votersChecksum;
+
+    private VoterSnapshot(Path file, long sequence, String sessionCode, String host, int port, List<String> options,
+            Map<String, Long> counts, List<String> peers, int[] fanout, LongBuffer voters, int voterCount,
+            int votersChecksum) {
+        this.file = file;
+        this.sequence = sequence;
+        this.sessionCode = sessionCode;
+        this.host = host;
+        this.port = port;
+        this.options = options;
+        this.counts = counts;
+        this.peers = peers;
+        this.fanout = fanout;
+        this.voters = voters;
+        this.voterCount = voterCount;
+        this.votersChecksum = votersChecksum;
+    }
+
+    /**
+     * Maps a snapshot file. Only the header is checked; see {@link #verify} for the voters.
+     *
+     * @param file The snapshot file.
+     * @return The mapped snapshot, usable after the file is deleted.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    public static VoterSnapshot open(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + channel.size() + " bytes");
+            }
+            // The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (data.getInt(0) != MAGIC) {
+                throw new IOException("Not a voter snapshot: " + file);
+            }
+            if (data.getShort(4) != VERSION) {
+                throw new IOException("Unsupported voter snapshot version " + data.getShort(4) + ": " + file);
+            }
+            long sequence = data.getLong(8);
+            long count = data.getLong(16);
+            int headerLength = data.getInt(24);
+            int headEnd = FIXED_HEADER + headerLength + FANOUT * 4;
+            if (headerLength < 0 || count < 0 || headEnd + 4 > data.limit()) {
+                throw new IOException("Truncated voter snapshot: " + file);
+            }
+            int votersOffset = align(headEnd + 4);
+            if ((long) votersOffset + count * 16 + 4 != data.limit()) {
+                throw new IOException("Voter snapshot size does not match its voter count: " + file);
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(data.duplicate().position(0).limit(headEnd));
+            if ((int) crc.getValue() != data.getInt(headEnd)) {
+                throw new IOException("Voter snapshot header checksum mismatch: " + file);
+            }
+
+            ByteBuffer header = data.duplicate().position(FIXED_HEADER).limit(FIXED_HEADER + headerLength);
+            String sessionCode = VoteLog.getString(header);
+            String host = VoteLog.getString(header);
+            int port = header.getInt();
+            int optionCount = Short.toUnsignedInt(header.getShort());
+            List<String> options = new ArrayList<>(optionCount);
+            for (int i = 0; i < optionCount; i++) {
+                options.add(VoteLog.getString(header));
+            }
+            int countCount = header.getInt();
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (int i = 0; i < countCount; i++) {
+                counts.put(VoteLog.getString(header), header.getLong());
+            }
+            int peerCount = header.getInt();
+            List<String> peers = new ArrayList<>(peerCount);
+            for (int i = 0; i < peerCount; i++) {
+                peers.add(VoteLog.getString(header));
+            }
+
+            int[] fanout = new int[FANOUT];
+            data.duplicate().position(FIXED_HEADER + headerLength).asIntBuffer().get(fanout);
+            if (fanout[FANOUT - 1] != count) {
+                throw new IOException("Voter snapshot fan-out does not match its voter count: " + file);
+            }
+
+            LongBuffer voters = data.slice(votersOffset, (int) (count * 16)).asLongBuffer();
+            return new VoterSnapshot(file, sequence, sessionCode, host, port, Collections.unmodifiableList(options),
+                    Collections.unmodifiableMap(counts), Collections.unmodifiableList(peers), fanout, voters,
+                    (int) count, data.getInt(data.limit() - 4));
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed voter snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Writes a snapshot file and syncs it to disk. The voters are those of {@code state.base} plus
+     * {@code state.voters}, which is sorted in place.
+     *
+     * @param file  The file to write, replaced if it exists.
+     * @param state The state to write.
+     * @return The number of voters written.
+     * @throws IOException If the file cannot be written.
+     */
+    public static long write(Path file, VoteLog.Snapshot state) throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        strings.add(VoteLog.bytes(state.sessionCode));
+        strings.add(VoteLog.bytes(state.host));
+        state.options.forEach(o -> strings.add(VoteLog.bytes(o)));
+        state.counts.keySet().forEach(o -> strings.add(VoteLog.bytes(o)));
+        state.peers.forEach(p -> strings.add(VoteLog.bytes(p)));
+        // Port, option count, count count, counts, peer count
+        int headerLength = 4 + 2 + 4 + 8 * state.counts.size() + 4;
+        for (byte[] b : strings) {
+            headerLength += 2 + b.length;
+        }
+        int headEnd = FIXED_HEADER + headerLength + FANOUT * 4;
+        int votersOffset = align(headEnd + 4);
+
+        int added = state.voters.length / 2;
+        sort(state.voters, 0, added);
+        VoterSnapshot base = state.base;
+        int baseCount = base == null ? 0 : base.voterCount;
+        if ((long) votersOffset + (baseCount + (long) added) * 16 + 4 > Integer.MAX_VALUE) {
+            throw new IOException("Too many voters for one snapshot: " + (baseCount + (long) added));
+        }
+
+        int[] fanout = new int[FANOUT];
+        CRC32C crc = new CRC32C();
+        long written = 0;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Voters first, merging the two sorted runs, then the header once their count is known
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            out.position(votersOffset);
+            int i = 0;
+            int j = 0;
+            long lastMsb = 0;
+            long lastLsb = 0;
+            while (i < baseCount || j < added) {
+                long msb;
+                long lsb;
+                if (j == added || i < baseCount && compare(base.voters.get(i * 2), base.voters.get(i * 2 + 1),
+                        state.voters[j * 2], state.voters[j * 2 + 1]) <= 0) {
+                    msb = base.voters.get(i * 2);
+                    lsb = base.voters.get(i * 2 + 1);
+                    i++;
+                } else {
+                    msb = state.voters[j * 2];
+                    lsb = state.voters[j * 2 + 1];
+                    j++;
+                }
+                if (written > 0 && msb == lastMsb && lsb == lastLsb) {
+                    continue; // Cannot happen while the dedup set is consistent, but must not break the search
+                }
+                if (!chunk.hasRemaining()) {
+                    flush(out, chunk, crc);
+                }
+                chunk.putLong(msb).putLong(lsb);
+                fanout[(int) (msb >>> (64 - FANOUT_BITS))]++;
+                lastMsb = msb;
+                lastLsb = lsb;
+                written++;
+            }
+            flush(out, chunk, crc);
+            out.write(ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()));
+
+            ByteBuffer head = ByteBuffer.allocate(votersOffset);
+            head.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(state.sequence).putLong(written)
+                    .putInt(headerLength);
+            int s = 0;
+            VoteLog.putBytes(head, strings.get(s++));
+            VoteLog.putBytes(head, strings.get(s++));
+            head.putInt(state.port).putShort((short) state.options.size());
+            for (int o = 0; o < state.options.size(); o++) {
+                VoteLog.putBytes(head, strings.get(s++));
+            }
+            head.putInt(state.counts.size());
+            for (long count : state.counts.values()) {
+                VoteLog.putBytes(head, strings.get(s++));
+                head.putLong(count);
+            }
+            head.putInt(state.peers.size());
+            for (int p = 0; p < state.peers.size(); p++) {
+                VoteLog.putBytes(head, strings.get(s++));
+            }
+            int total = 0;
+            for (int f = 0; f < FANOUT; f++) {
+                total += fanout[f];
+                head.putInt(total);
+            }
+            crc.reset();
+            crc.update(head.array(), 0, headEnd);
+            head.putInt((int) crc.getValue());
+            head.clear(); // Padding up to the voters is already zero
+            out.position(0);
+            while (head.hasRemaining()) {
+                out.write(head);
+            }
+            out.force(true);
+        }
+        return written;
+    }
+
+    private static void flush(FileChannel out, ByteBuffer chunk, CRC32C crc) throws IOException {
+        chunk.flip();
+        crc.update(chunk.duplicate());
+        while (chunk.hasRemaining()) {
+            out.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Checks the voters against their checksum, reading every page of them once.
+     *
+     * @throws IOException If the voters are corrupt.
+     */
+    public void verify() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < voterCount; i++) {
+            if (!bytes.hasRemaining()) {
+                crc.update(bytes.flip());
+                bytes.clear();
+            }
+            bytes.putLong(voters.get(i * 2)).putLong(voters.get(i * 2 + 1));
+        }
+        crc.update(bytes.flip());
+        if ((int) crc.getValue() != votersChecksum) {
+            throw new IOException("Voter snapshot checksum mismatch: " + file);
+        }
+    }
+
+    /**
+     * @param msb The most significant bits of the UUID.
+     * @param lsb The least significant bits of the UUID.
+     * @return true if the UUID is one of the snapshot's voters.
+     */
+    public boolean contains(long msb, long lsb) {
+        int prefix = (int) (msb >>> (64 - FANOUT_BITS));
+        int low = prefix == 0 ? 0 : fanout[prefix - 1];
+        int high = fanout[prefix] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(voters.get(mid * 2), voters.get(mid * 2 + 1), msb, lsb);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits every voter in sorted order.
+     *
+     * @param visitor Receives the most and least significant bits of each UUID.
+     */
+    public void forEach(UuidSet.UuidVisitor visitor) {
+        for (int i = 0; i < voterCount; i++) {
+            visitor.accept(voters.get(i * 2), voters.get(i * 2 + 1));
+        }
+    }
+
+    /**
+     * @return The number of voters.
+     */
+    public int size() {
+        return voterCount;
+    }
+
+    /**
+     * @return The sequence number of the last vote log record the snapshot reflects.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getSessionCode() {
+        return sessionCode;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public List<String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return The vote count of every voted option.
+     */
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private static int align(int offset) {
+        return (offset + 15) & ~15;
+    }
+
+    private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        int c = Long.compareUnsigned(msb1, msb2);
+        return c != 0 ? c : Long.compareUnsigned(lsb1, lsb2);
+    }
+
+    /**
+     * Sorts the UUIDs from index {@code from} to {@code to} of an array of msb/lsb pairs. Quicksort
+     * with random pivots and three-way partitioning, recursing only into the smaller side.
+     */
+    static void sort(long[] pairs, int from, int to) {
+        while (to - from > 16) {
+            int pivot = from + ThreadLocalRandom.current().nextInt(to - from);
+            long pivotMsb = pairs[pivot * 2];
+            long pivotLsb = pairs[pivot * 2 + 1];
+            int lt = from;
+            int i = from;
+            int gt = to;
+            while (i < gt) {
+                int c = compare(pairs[i * 2], pairs[i * 2 + 1], pivotMsb, pivotLsb);
+                if (c < 0) {
+                    swap(pairs, lt++, i++);
+                } else if (c > 0) {
+                    swap(pairs, i, --gt);
+                } else {
+                    i++;
+                }
+            }
+            if (lt - from < to - gt) {
+                sort(pairs, from, lt);
+                from = gt;
+            } else {
+                sort(pairs, gt, to);
+                to = lt;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int k = i; k > from && compare(pairs[k * 2 - 2], pairs[k * 2 - 1], pairs[k * 2], pairs[k * 2 + 1]) > 0;
+                    k--) {
+                swap(pairs, k - 1, k);
+            }
+        }
+    }
+
+    private static void swap(long[] pairs, int a, int b) {
+        long msb = pairs[a * 2];
+        long lsb = pairs[a * 2 + 1];
+        pairs[a * 2] = pairs[b * 2];
+        pairs[a * 2 + 1] = pairs[b * 2 + 1];
+        pairs[b * 2] = msb;
+        pairs[b * 2 + 1] = lsb;
+    }
+}
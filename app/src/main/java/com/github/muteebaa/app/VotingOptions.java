@@ -0,0 +1,82 @@
+package com.github.muteebaa.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ordered, immutable list of options of a voting session.
+ * Gives every option a fixed index so votes can refer to options by number instead of by name.
+ */
+public final class VotingOptions {
+    private final List<String> options;
+    private final Map<String, Integer> indices;
+
+    private VotingOptions(List<String> options) {
+        this.options = Collections.unmodifiableList(options);
+        this.indices = new HashMap<>();
+        for (int i = 0; i < options.size(); i++) {
+            indices.putIfAbsent(options.get(i), i);
+        }
+    }
+
+    /**
+     * Creates an option table, trimming whitespace and dropping blank or repeated options.
+     *
+     * @param options The options in session order.
+     * @return The option table.
+     */
+    public static VotingOptions of(Collection<String> options) {
+        List<String> cleaned = new ArrayList<>();
+        for (String option : options) {
+            String trimmed = option.trim();
+            if (!trimmed.isEmpty() && !cleaned.contains(trimmed)) {
+                cleaned.add(trimmed);
+            }
+        }
+        return new VotingOptions(cleaned);
+    }
+
+    /**
+     * Creates an option table from user input.
+     *
+     * @param options Comma-separated voting options.
+     * @return The option table.
+     */
+    public static VotingOptions parse(String options) {
+        return of(List.of(options.split(",")));
+    }
+
+    /**
+     * @param option The option name.
+     * @return The option's index, or -1 if it is not part of the session.
+     */
+    public int indexOf(String option) {
+        Integer index = indices.get(option);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param index The option index.
+     * @return The option name, or null if the index is out of range.
+     */
+    public String get(int index) {
+        return index >= 0 && index < options.size() ? options.get(index) : null;
+    }
+
+    public int size() {
+        return options.size();
+    }
+
+    public List<String> asList() {
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return options.toString();
+    }
+}
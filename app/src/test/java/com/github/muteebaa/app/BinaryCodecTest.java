@@ -0,0 +1,233 @@
+package com.github.muteebaa.app;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round-trips every message type through the text format and the binary codec, with and without a
+ * request ID, and checks that malformed input is rejected rather than half decoded.
+ */
+class BinaryCodecTest {
+    private static final VotingOptions OPTIONS = VotingOptions.parse("cat,dog,bird");
+    private static final UUID VOTER = UUID.fromString("0f1e2d3c-4b5a-6978-8796-a5b4c3d2e1f0");
+    // An option missing from the table, which is sent by name, and one with the separator in it
+    private static final List<Message.VoteEntry> ENTRIES = List.of(
+            new Message.VoteEntry(1, 2, "cat"),
+            new Message.VoteEntry(-1, Long.MIN_VALUE, "fi:sh"),
+            new Message.VoteEntry(VOTER.getMostSignificantBits(), VOTER.getLeastSignificantBits(), "bird"));
+
+    private static List<Message> samples() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        counts.put("cat", 3L);
+        counts.put("d:og", 0L);
+        List<String> peers = List.of("localhost:5000", "10.0.0.2:5001");
+        List<Message> samples = new ArrayList<>();
+        samples.add(Message.parse("REGISTER:localhost:5000"));
+        samples.add(Message.updateNewPeer(4, peers));
+        samples.add(Message.ack(" Your vote was counted."));
+        samples.add(Message.vote("localhost", 5001, "dog", VOTER));
+        samples.add(Message.vote("localhost", 5001, "not:listed", VOTER));
+        samples.add(Message.duplicate(" You already voted."));
+        samples.add(Message.updateVoteTally(VOTER, "bird"));
+        samples.add(Message.startVoting("cat,dog,bird"));
+        samples.add(Message.votingEnded("cat: 3, dog: 0"));
+        samples.add(Message.voteBatch(7, ENTRIES));
+        samples.add(Message.voteBatch(8, List.of()));
+        samples.add(Message.relay(peers, Message.voteBatch(9, ENTRIES)));
+        samples.add(Message.leaderChanged("10.0.0.3", 65535));
+        samples.add(Message.syncRequest("localhost", 5002, 11, 2));
+        samples.add(Message.syncSnapshot(12, counts, new long[] { 1, 2, -3, -4 }, true));
+        samples.add(Message.syncSnapshot(13, null, new long[0], false));
+        samples.add(Message.election(MessageType.ELECTION, "localhost", 5000, 3, 14, 15));
+        samples.add(Message.election(MessageType.ELECTION_ANSWER, "localhost", 5001, 4, 16, 17));
+        samples.add(Message.election(MessageType.COORDINATOR, "localhost", 5002, 5, 18, 19));
+        samples.add(Message.election(MessageType.HEARTBEAT, "localhost", 5003, 6, 20, 21));
+        samples.add(Message.shardMap(22, peers));
+        samples.add(Message.shardBatch("localhost", 5004, 23, ENTRIES));
+        samples.add(Message.shardFlush("localhost", 5005));
+        samples.add(Message.bulkVote("host:x", 5006, ENTRIES));
+        samples.add(Message.bulkVoteResult(List.of(VoteReceipt.Status.ACCEPTED, VoteReceipt.Status.DUPLICATE,
+                VoteReceipt.Status.INVALID, VoteReceipt.Status.MOVED)));
+        samples.add(Message.invalid(" Your vote is not for one of the session's options."));
+        return samples;
+    }
+
+    @Test
+    void samplesCoverEveryType() {
+        Set<MessageType> covered = EnumSet.noneOf(MessageType.class);
+        samples().forEach(message -> covered.add(message.getType()));
+        assertEquals(EnumSet.allOf(MessageType.class), covered);
+    }
+
+    @Test
+    void textRoundTrip() {
+        for (Message message : samples()) {
+            for (long requestId : new long[] { 0, 1, Long.MAX_VALUE }) {
+                Message sent = message.withRequestId(requestId);
+                Message received = Message.parse(sent.toText());
+                assertRoundTrip(sent, received);
+            }
+        }
+    }
+
+    @Test
+    void binaryRoundTrip() {
+        for (Message message : samples()) {
+            for (long requestId : new long[] { 0, 1, -1, Long.MAX_VALUE }) {
+                Message sent = message.withRequestId(requestId);
+                List<Message> received = decode(new BinaryCodec.Encoder().encode(sent, OPTIONS));
+                assertEquals(1, received.size(), sent.toText());
+                assertRoundTrip(sent, received.get(0));
+            }
+        }
+    }
+
+    @Test
+    void binaryRoundTripWithoutOptionTable() {
+        Message sent = Message.voteBatch(1, ENTRIES).withRequestId(5);
+        Message received = decode(new BinaryCodec.Encoder().encode(sent, null)).get(0);
+        assertRoundTrip(sent, received);
+    }
+
+    @Test
+    void optionTableIsOnlySentWhenItChanges() {
+        BinaryCodec.Encoder encoder = new BinaryCodec.Encoder();
+        Message vote = Message.vote("localhost", 5001, "dog", VOTER);
+        int first = encoder.encode(vote, OPTIONS).remaining();
+        ByteBuffer second = encoder.encode(vote, OPTIONS);
+        assertTrue(second.remaining() < first);
+
+        // A decoder that missed the table cannot resolve the index
+        Message unresolved = new BinaryCodec.Decoder().decode(second.get(0), body(second));
+        assertEquals(1, unresolved.getOptionIndex());
+        assertNull(unresolved.getOption());
+
+        encoder.reset();
+        assertEquals(first, encoder.encode(vote, OPTIONS).remaining());
+    }
+
+    @Test
+    void decodesConsecutiveFramesAndLeavesPartialFrameUnread() {
+        BinaryCodec.Encoder encoder = new BinaryCodec.Encoder();
+        List<Message> sent = samples();
+        ByteBuffer stream = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < sent.size(); i++) {
+            stream.put(encoder.encode(sent.get(i).withRequestId(i), OPTIONS));
+        }
+        stream.flip();
+
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+        List<Message> received = new ArrayList<>();
+        ByteBuffer partial = stream.duplicate();
+        partial.limit(stream.limit() - 1);
+        decoder.decodeAll(partial, received::add);
+        assertEquals(sent.size() - 1, received.size());
+        assertTrue(partial.hasRemaining());
+
+        ByteBuffer rest = stream.duplicate();
+        rest.position(partial.position());
+        decoder.decodeAll(rest, received::add);
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertRoundTrip(sent.get(i).withRequestId(i), received.get(i));
+        }
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        // Negative and oversized lengths
+        assertThrows(IllegalArgumentException.class, () -> decode(frame(MessageType.ACK.tag, -1, new byte[0])));
+        assertThrows(IllegalArgumentException.class,
+                () -> decode(frame(MessageType.ACK.tag, BinaryCodec.MAX_FRAME_SIZE + 1, new byte[0])));
+        // Unknown type
+        assertThrows(IllegalArgumentException.class, () -> decode(frame((byte) 0x60, 0, new byte[0])));
+        // A body shorter than its type's layout
+        assertThrows(IllegalArgumentException.class, () -> decode(frame(MessageType.VOTE.tag, 3, new byte[3])));
+        assertThrows(IllegalArgumentException.class,
+                () -> decode(frame((byte) (MessageType.ACK.tag | 0x80), 4, new byte[4])));
+        // A request ID on the option table
+        assertThrows(IllegalArgumentException.class, () -> decode(frame((byte) 0xFF, 10, new byte[10])));
+        // A snapshot claiming more voters than it holds
+        ByteBuffer snapshot = new BinaryCodec.Encoder().encode(Message.syncSnapshot(1, null, new long[0], false), null);
+        snapshot.putInt(snapshot.limit() - 4, 2);
+        assertThrows(IllegalArgumentException.class, () -> decode(snapshot));
+        // A relay whose inner frame runs past the relay
+        ByteBuffer relay = new BinaryCodec.Encoder().encode(Message.relay(List.of(), Message.ack("hi")), null);
+        relay.putInt(BinaryCodec.HEADER_SIZE + 5, 100);
+        assertThrows(IllegalArgumentException.class, () -> decode(relay));
+    }
+
+    @Test
+    void rejectsMalformedText() {
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("NOPE:x"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("ACK#x1: hi"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("REGISTER:localhost:port"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("VOTE:localhost:5000:cat:not-a-uuid"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("UPDATE_VOTE_BATCH:1:2:"));
+        // Counts far beyond what the message holds are rejected, not allocated
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("UPDATE_VOTE_BATCH:1:2147483647:"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("UPDATE_VOTE_BATCH:1:-1:"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("SYNC_SNAPSHOT:1:0:-1:1073741823"));
+        assertThrows(IllegalArgumentException.class, () -> Message.parse("BULK_VOTE_RESULT:AX").getResults());
+    }
+
+    private static void assertRoundTrip(Message sent, Message received) {
+        assertEquals(sent.getType(), received.getType());
+        assertEquals(sent.getRequestId(), received.getRequestId());
+        assertEquals(sent.toText(), received.toText());
+        if (sent.getEntries() != null) {
+            assertEquals(sent.getEntries().size(), received.getEntries().size());
+            for (int i = 0; i < sent.getEntries().size(); i++) {
+                Message.VoteEntry expected = sent.getEntries().get(i);
+                Message.VoteEntry actual = received.getEntries().get(i);
+                assertEquals(expected.getUuid(), actual.getUuid());
+                assertEquals(expected.option, actual.option);
+            }
+        }
+        if (sent.getSync() != null) {
+            assertArrayEquals(sent.getSync().voters, received.getSync().voters);
+            assertEquals(sent.getSync().counts, received.getSync().counts);
+        }
+        if (sent.getType() == MessageType.BULK_VOTE_RESULT) {
+            assertEquals(sent.getResults(), received.getResults());
+        }
+        if (sent.getType() == MessageType.VOTE || sent.getType() == MessageType.UPDATE_VOTE_TALLY) {
+            assertEquals(sent.getUuid(), received.getUuid());
+            assertEquals(sent.getOption(), received.getOption());
+        }
+    }
+
+    private static List<Message> decode(ByteBuffer buffer) {
+        List<Message> received = new ArrayList<>();
+        new BinaryCodec.Decoder().decodeAll(buffer, received::add);
+        assertFalse(buffer.hasRemaining(), "trailing bytes");
+        return received;
+    }
+
+    private static ByteBuffer body(ByteBuffer frame) {
+        ByteBuffer body = frame.duplicate();
+        body.position(frame.position() + BinaryCodec.HEADER_SIZE);
+        return body.slice();
+    }
+
+    private static ByteBuffer frame(byte tag, int length, byte[] body) {
+        ByteBuffer frame = ByteBuffer.allocate(BinaryCodec.HEADER_SIZE + body.length);
+        frame.put(tag).putInt(length).put(body);
+        return frame.flip();
+    }
+}
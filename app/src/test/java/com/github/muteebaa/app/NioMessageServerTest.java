@@ -0,0 +1,81 @@
+package com.github.muteebaa.app;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a handler thread that stops keeping up only holds up the connections pinned to it.
+ */
+class NioMessageServerTest {
+    private static final int MESSAGES = 2000;
+
+    @Test
+    void stalledHandlerPausesOnlyItsOwnConnections() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch othersHandled = new CountDownLatch(MESSAGES);
+        List<String> stalled = new CopyOnWriteArrayList<>();
+        NioMessageServer server = new NioMessageServer(0, line -> {
+            try {
+                if (line.startsWith("A")) {
+                    release.await();
+                    stalled.add(line);
+                } else {
+                    othersHandled.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, message -> {
+        }, 2, 8);
+        Thread selector = new Thread(server::run, "nio-test-selector");
+        selector.start();
+
+        // Connections are pinned to the workers in turn, so these two get one each
+        try (Socket a = new Socket("127.0.0.1", server.getLocalPort());
+                Socket b = new Socket("127.0.0.1", server.getLocalPort())) {
+            Thread writer = new Thread(() -> write(a, "A"));
+            writer.setDaemon(true);
+            writer.start();
+            Thread.sleep(200); // Let the first connection fill its worker's queue
+            write(b, "B");
+
+            assertTrue(othersHandled.await(10, TimeUnit.SECONDS), "the second connection was not read");
+
+            release.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (stalled.size() < MESSAGES && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(MESSAGES, stalled.size());
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals("A" + i, stalled.get(i));
+            }
+        } finally {
+            release.countDown();
+            server.close();
+            selector.join(5000);
+        }
+    }
+
+    private static void write(Socket socket, String prefix) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < MESSAGES; i++) {
+                out.write((prefix + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.muteebaa.app;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a session of three nodes on loopback with the vote log on, stops the leader and checks that
+ * the elected follower logs on its own and counts exactly the voters it deduplicates.
+ */
+class PeerNodeFailoverTest {
+    private static final int BASE_PORT = 16100;
+    private static final String SESSION = "WAL001";
+    private static final String[] OPTIONS = { "cat", "dog", "bird" };
+
+    @TempDir
+    Path home;
+
+    private HttpServer registry;
+    private final List<PeerNode> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(home.resolve(".uuid"));
+        Files.writeString(home.resolve(".uuid").resolve("uuid.txt"), "11111111-2222-3333-4444-555555555555");
+        System.setProperty("user.home", home.toString());
+        System.setProperty("voting.wal", "true");
+        System.setProperty("voting.wal.dir", home.resolve("wal").toString());
+        System.setProperty("voting.election.interval", "100");
+        System.setProperty("voting.election.timeout", "500");
+        System.setProperty("voting.request.timeout", "500");
+        System.setProperty("voting.request.retries", "10");
+        System.setProperty("voting.registry.servers", StubRegistry.URL);
+        registry = StubRegistry.start(SESSION);
+    }
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(PeerNode::shutdown);
+        registry.stop(0);
+        System.clearProperty("voting.wal");
+        System.clearProperty("voting.wal.dir");
+    }
+
+    @Test
+    void electedLeaderLogsOnItsOwnAndCountsEveryVoter() throws Exception {
+        // A log each follower left from leading the session earlier, which the replicated state supersedes
+        UUID stale = new UUID(7, 7);
+        for (int i = 1; i <= 2; i++) {
+            try (VoteLog log = VoteLog.create(walDir(BASE_PORT + i), 100)) {
+                log.appendSession(SESSION, "127.0.0.1", BASE_PORT + i, List.of(OPTIONS)).join();
+                log.appendVote(stale.getMostSignificantBits(), stale.getLeastSignificantBits(), "cat").join();
+            }
+        }
+
+        PeerNode leader = new PeerNode(BASE_PORT, BASE_PORT);
+        nodes.add(leader);
+        leader.startServer();
+        assertEquals(SESSION, leader.startNewSession("127.0.0.1", BASE_PORT, String.join(",", OPTIONS)));
+        List<PeerNode> followers = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            PeerNode follower = new PeerNode(BASE_PORT + i, BASE_PORT + i);
+            nodes.add(follower);
+            follower.setSessionCode(SESSION);
+            follower.setVotePrompt(options -> {
+            });
+            follower.startPeer();
+            followers.add(follower);
+        }
+        PeerNode client = followers.get(1);
+
+        assertAccepted(vote(client, 1, 200));
+        for (PeerNode follower : followers) {
+            await(() -> follower.getVoteTally().total() == 200, "replication to " + follower.getAddress());
+        }
+
+        leader.shutdown();
+        nodes.remove(leader);
+        await(() -> followers.stream().anyMatch(PeerNode::hasLeaderToken), "an election");
+        PeerNode elected = followers.stream().filter(PeerNode::hasLeaderToken).findFirst().orElseThrow();
+        await(() -> elected.getVoteLog() != null, "the new leader's log");
+
+        List<CompletableFuture<VoteReceipt>> after = vote(client, 2, 100);
+        after.add(client.submitVote("dog", stale));
+        assertAccepted(after);
+
+        assertEquals(301, elected.getVoteTally().total());
+        assertEquals(elected.getVoteTally().total(), elected.getUuidSet().size());
+        assertTrue(Files.isDirectory(walDir(BASE_PORT)), "the old leader's own log");
+
+        // The elected leader's log alone holds the whole election
+        Path dir = walDir(Integer.parseInt(elected.getAddress().substring(elected.getAddress().indexOf(':') + 1)));
+        await(() -> hasSnapshot(dir), "the promotion snapshot");
+        elected.shutdown();
+        nodes.remove(elected);
+        UuidSet voters = new UuidSet();
+        VoteLog.Recovery recovery = VoteLog.recover(dir, voters);
+        assertEquals(SESSION, recovery.getSessionCode());
+        assertEquals(301, recovery.getCounts().values().stream().mapToLong(Long::longValue).sum());
+        assertEquals(301, voters.size());
+        assertTrue(voters.contains(stale));
+        assertFalse(voters.contains(new UUID(9, 9)));
+    }
+
+    private Path walDir(int nodeId) {
+        return home.resolve("wal").resolve(SESSION).resolve(Integer.toString(nodeId));
+    }
+
+    private static List<CompletableFuture<VoteReceipt>> vote(PeerNode client, long batch, int count) {
+        List<CompletableFuture<VoteReceipt>> sent = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            sent.add(client.submitVote(OPTIONS[i % OPTIONS.length], new UUID(batch, i)));
+        }
+        return sent;
+    }
+
+    private static void assertAccepted(List<CompletableFuture<VoteReceipt>> sent) {
+        for (CompletableFuture<VoteReceipt> receipt : sent) {
+            assertEquals(VoteReceipt.Status.ACCEPTED, receipt.join().getStatus());
+        }
+    }
+
+    private static boolean hasSnapshot(Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.anyMatch(p -> p.getFileName().toString().endsWith(".snap"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+}
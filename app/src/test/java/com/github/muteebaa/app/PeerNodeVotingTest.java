@@ -0,0 +1,154 @@
+package com.github.muteebaa.app;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a session of a leader and one follower on loopback and votes from the follower's vote prompt,
+ * which waits for the leader's answer the way the console prompt does.
+ */
+class PeerNodeVotingTest {
+    private static final String SESSION = "VOTE01";
+    private static final long REQUEST_TIMEOUT_MS = 1000;
+
+    @TempDir
+    Path home;
+
+    private HttpServer registry;
+    private final List<PeerNode> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(home.resolve(".uuid"));
+        Files.writeString(home.resolve(".uuid").resolve("uuid.txt"), "11111111-2222-3333-4444-555555555555");
+        System.setProperty("user.home", home.toString());
+        System.setProperty("voting.election.interval", "100");
+        System.setProperty("voting.election.timeout", "500");
+        System.setProperty("voting.request.timeout", Long.toString(REQUEST_TIMEOUT_MS));
+        System.setProperty("voting.request.retries", "3");
+        System.setProperty("voting.registry.servers", StubRegistry.URL);
+        registry = StubRegistry.start(SESSION);
+    }
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(PeerNode::shutdown);
+        registry.stop(0);
+        System.clearProperty("voting.server.mode");
+        System.clearProperty("voting.wal");
+        System.clearProperty("voting.wal.dir");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "blocking", "nio" })
+    void voteFromThePromptIsAnsweredWhileHeartbeatsKeepComing(String serverMode) throws Exception {
+        System.setProperty("voting.server.mode", serverMode);
+        int basePort = serverMode.equals("nio") ? 16210 : 16200;
+        PeerNode leader = new PeerNode(basePort, basePort);
+        nodes.add(leader);
+        leader.startServer();
+        assertEquals(SESSION, leader.startNewSession("127.0.0.1", basePort, "cat,dog"));
+
+        PeerNode follower = new PeerNode(basePort + 1, basePort + 1);
+        nodes.add(follower);
+        follower.setSessionCode(SESSION);
+        CompletableFuture<VoteReceipt> answered = new CompletableFuture<>();
+        // Waits for the answer, which arrives on the same connection as the START_VOTING
+        follower.setVotePrompt(options -> {
+            try {
+                answered.complete(follower.submitVote("cat", new UUID(1, 1)).join());
+            } catch (RuntimeException e) {
+                answered.completeExceptionally(e);
+            }
+        });
+        follower.startPeer();
+
+        leader.startVoting();
+        VoteReceipt receipt = answered.get(10, TimeUnit.SECONDS);
+        assertEquals(VoteReceipt.Status.ACCEPTED, receipt.getStatus());
+        assertEquals(1, receipt.getAttempts());
+        assertTrue(receipt.getLatencyNanos() < TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS));
+
+        // Longer than the election timeout, so a follower no longer reading the heartbeats would stand
+        Thread.sleep(1500);
+        assertTrue(leader.hasLeaderToken());
+        assertFalse(follower.hasLeaderToken());
+        assertEquals(1, leader.getVoteTally().total());
+    }
+
+    @Test
+    void resentVotesAreAnsweredLikeTheFirstCopy() throws Exception {
+        // Logged, so the answers wait for the vote log like they would in production
+        System.setProperty("voting.wal", "true");
+        System.setProperty("voting.wal.dir", home.resolve("wal").toString());
+        PeerNode leader = new PeerNode(16220, 16220);
+        nodes.add(leader);
+        leader.startServer();
+        assertEquals(SESSION, leader.startNewSession("127.0.0.1", 16220, "cat,dog"));
+
+        // Stands in for a voter, taking the leader's answers on its own port
+        try (ServerSocket answers = new ServerSocket(16221);
+                Socket out = new Socket("127.0.0.1", 16220)) {
+            answers.setSoTimeout(10_000);
+            OutputStream votes = out.getOutputStream();
+            UUID voter = new UUID(2, 2);
+            Message vote = Message.vote("127.0.0.1", 16221, "cat", voter);
+            send(votes, vote.withRequestId(7));
+            try (Socket in = answers.accept()) {
+                in.setSoTimeout(10_000);
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(in.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals(MessageType.ACK, Message.parse(reader.readLine()).getType());
+
+                // The same request again, as after a lost ACK, and then a second vote by the same voter
+                send(votes, vote.withRequestId(7));
+                Message resent = Message.parse(reader.readLine());
+                assertEquals(MessageType.ACK, resent.getType());
+                assertEquals(7, resent.getRequestId());
+                send(votes, vote.withRequestId(8));
+                assertEquals(MessageType.DUPLICATE, Message.parse(reader.readLine()).getType());
+
+                Message bulk = Message.bulkVote("127.0.0.1", 16221, List.of(
+                        new Message.VoteEntry(3, 3, "dog"), new Message.VoteEntry(2, 2, "dog"))).withRequestId(9);
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    send(votes, bulk);
+                    Message results = Message.parse(reader.readLine());
+                    assertEquals(MessageType.BULK_VOTE_RESULT, results.getType());
+                    assertEquals(List.of(VoteReceipt.Status.ACCEPTED, VoteReceipt.Status.DUPLICATE),
+                            results.getResults());
+                }
+            }
+        }
+        assertEquals(2, leader.getVoteTally().total());
+    }
+
+    private static void send(OutputStream out, Message message) throws IOException {
+        out.write((message.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
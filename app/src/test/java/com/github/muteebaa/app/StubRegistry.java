@@ -0,0 +1,81 @@
+package com.github.muteebaa.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A session registry on loopback serving a single session: created by POST, read by GET, moved by
+ * PATCH and restored by PUT.
+ */
+final class StubRegistry {
+    // The registry list is read once per JVM, so every test's registry takes the same port
+    static final int PORT = 12021;
+    static final String URL = "http://127.0.0.1:" + PORT;
+
+    private StubRegistry() {
+    }
+
+    /**
+     * Starts serving on {@link #PORT}.
+     *
+     * @param sessionCode The code every created session gets.
+     * @return The started server.
+     */
+    static HttpServer start(String sessionCode) throws IOException {
+        Gson gson = new Gson();
+        JsonObject[] session = new JsonObject[1];
+        HttpServer registry = HttpServer.create(new InetSocketAddress("127.0.0.1", PORT), 0);
+        registry.createContext("/sessions", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            synchronized (session) {
+                switch (exchange.getRequestMethod()) {
+                    case "POST":
+                        session[0] = gson.fromJson(body, JsonObject.class);
+                        session[0].addProperty("id", sessionCode);
+                        respond(exchange, 200, "\"" + sessionCode + "\"");
+                        break;
+                    case "PUT":
+                        session[0] = gson.fromJson(body, JsonObject.class);
+                        session[0].addProperty("id", path.substring(path.lastIndexOf('/') + 1));
+                        respond(exchange, 200, "");
+                        break;
+                    case "PATCH":
+                        if (session[0] == null) {
+                            respond(exchange, 404, "");
+                            break;
+                        }
+                        gson.fromJson(body, JsonObject.class).entrySet()
+                                .forEach(e -> session[0].add(e.getKey(), e.getValue()));
+                        respond(exchange, 200, "");
+                        break;
+                    default:
+                        if (path.equals("/sessions")) {
+                            respond(exchange, 200, session[0] == null ? "[]" : "[" + session[0] + "]");
+                        } else if (session[0] != null) {
+                            respond(exchange, 200, session[0].toString());
+                        } else {
+                            respond(exchange, 404, "");
+                        }
+                }
+            }
+        });
+        registry.start();
+        return registry;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
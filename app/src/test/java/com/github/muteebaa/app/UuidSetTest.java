@@ -0,0 +1,176 @@
+package com.github.muteebaa.app;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Checks the voter dedup set against a {@link HashSet}, on and off the heap, across resizes,
+ * removals and a snapshot base.
+ */
+class UuidSetTest {
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void addsAndFindsEachUuidOnce(boolean offHeap) {
+        UuidSet set = new UuidSet(0, offHeap);
+        UUID zero = new UUID(0, 0);
+        assertFalse(set.contains(zero));
+        assertTrue(set.add(zero));
+        assertFalse(set.add(zero));
+        assertTrue(set.add(new UUID(1, 2)));
+        assertFalse(set.add(1, 2));
+        assertTrue(set.add(2, 1));
+        assertTrue(set.contains(zero));
+        assertTrue(set.contains(1, 2));
+        assertFalse(set.contains(1, 1));
+        assertEquals(3, set.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void growsWithoutLosingUuids(boolean offHeap) {
+        UuidSet set = new UuidSet(0, offHeap);
+        long initialBytes = set.tableBytes();
+        int count = 100_000;
+        for (int i = 0; i < count; i++) {
+            assertTrue(set.add(i, ~i));
+        }
+        assertTrue(set.tableBytes() > initialBytes, "the tables should have grown");
+        // Never fuller than the maximum load
+        assertTrue(count * 16L <= set.tableBytes() * 0.6);
+        assertEquals(count, set.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(set.contains(i, ~i));
+            assertFalse(set.add(i, ~i));
+            assertFalse(set.contains(~i, i));
+        }
+        assertEquals(count * 2, set.toArray().length);
+    }
+
+    @Test
+    void sizedUpFrontDoesNotGrow() {
+        UuidSet set = new UuidSet(10_000, true);
+        long bytes = set.tableBytes();
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < 10_000; i++) {
+            set.add(random.nextLong(), random.nextLong());
+        }
+        assertEquals(bytes, set.tableBytes());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void matchesHashSetUnderRandomAddsAndRemoves(boolean offHeap) {
+        // Few distinct UUIDs, so probe runs are long and removals often shift entries back
+        UuidSet set = new UuidSet(0, offHeap);
+        Set<UUID> model = new HashSet<>();
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < 200_000; i++) {
+            UUID uuid = new UUID(random.nextInt(4), random.nextInt(2_000));
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(model.add(uuid), set.add(msb, lsb), uuid.toString());
+                    break;
+                case 1:
+                    assertEquals(model.remove(uuid), set.remove(msb, lsb), uuid.toString());
+                    break;
+                default:
+                    assertEquals(model.contains(uuid), set.contains(msb, lsb), uuid.toString());
+            }
+        }
+        assertEquals(model.size(), set.size());
+        Set<UUID> visited = new HashSet<>();
+        set.forEach((msb, lsb) -> assertTrue(visited.add(new UUID(msb, lsb))));
+        assertEquals(model, visited);
+    }
+
+    @Test
+    void removesOnlyWhatWasAdded() {
+        UuidSet set = new UuidSet();
+        assertFalse(set.remove(0, 0));
+        assertFalse(set.remove(1, 2));
+        set.add(0, 0);
+        set.add(1, 2);
+        assertTrue(set.remove(0, 0));
+        assertFalse(set.contains(0, 0));
+        assertTrue(set.remove(1, 2));
+        assertFalse(set.remove(1, 2));
+        assertEquals(0, set.size());
+        assertTrue(set.add(1, 2));
+    }
+
+    @Test
+    void baseVotersAreMembersThatCannotBeRemoved() throws Exception {
+        Path file = dir.resolve("voters.snap");
+        VoterSnapshot.write(file, new VoteLog.Snapshot(1, "ABC123", "127.0.0.1", 5000, List.of("cat", "dog"),
+                Map.of("cat", 2L), List.of(), null, new long[] { 1, 1, 2, 2 }));
+        UuidSet set = new UuidSet(0, true);
+        set.setBase(VoterSnapshot.open(file));
+
+        assertTrue(set.contains(1, 1));
+        assertFalse(set.add(2, 2));
+        assertTrue(set.add(3, 3));
+        assertEquals(3, set.size());
+        assertFalse(set.remove(1, 1));
+        assertTrue(set.contains(1, 1));
+
+        // Only the UUIDs added to the tables are copied, yet all are visited
+        assertArrayEquals(new long[] { 3, 3 }, set.toArray());
+        AtomicInteger visited = new AtomicInteger();
+        set.forEach((msb, lsb) -> visited.incrementAndGet());
+        assertEquals(3, visited.get());
+    }
+
+    @Test
+    void concurrentAddsAcceptEachUuidOnce() throws Exception {
+        UuidSet set = new UuidSet();
+        int threads = 4;
+        int count = 50_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] adders = new Future<?>[threads];
+            AtomicInteger added = new AtomicInteger();
+            for (int t = 0; t < threads; t++) {
+                // Every thread adds the same UUIDs
+                adders[t] = pool.submit(() -> {
+                    for (int i = 0; i < count; i++) {
+                        if (set.add(i, i)) {
+                            added.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            for (Future<?> adder : adders) {
+                adder.get(60, TimeUnit.SECONDS);
+            }
+            assertEquals(count, added.get());
+            assertEquals(count, set.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.muteebaa.app;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Counts votes from many threads while snapshots are taken and checks that nothing is lost and that
+ * every snapshot comes from a single instant.
+ */
+class VoteTallyTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 50_000;
+
+    @Test
+    void countsExactlyAndSnapshotsAreConsistent() throws Exception {
+        VoteTally tally = new VoteTally(VotingOptions.parse("cat,dog,bird"));
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean voting = new AtomicBoolean(true);
+        try {
+            // Every voter votes cat, dog, bird, then fish (which is not a session option) in turn, through
+            // each way of counting a vote. A snapshot of a single instant therefore has each count at
+            // most the one before it, and at least the first count less one per voter.
+            List<Future<?>> voters = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                voters.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < ROUNDS; i++) {
+                        tally.increment(0);
+                        tally.increment("dog");
+                        tally.add("bird", 1);
+                        tally.add("fish", 1);
+                    }
+                    return null;
+                }));
+            }
+            Future<Integer> reader = pool.submit(() -> {
+                start.await();
+                int snapshots = 0;
+                long lastTotal = 0;
+                while (voting.get()) {
+                    Map<String, Long> snapshot = tally.snapshot();
+                    long cat = snapshot.get("cat");
+                    long dog = snapshot.get("dog");
+                    long bird = snapshot.get("bird");
+                    long fish = snapshot.getOrDefault("fish", 0L);
+                    String seen = "Torn snapshot " + snapshot;
+                    assertTrue(cat >= dog && dog >= bird && bird >= fish, seen);
+                    assertTrue(fish >= cat - THREADS, seen);
+                    long total = cat + dog + bird + fish;
+                    assertTrue(total >= lastTotal, "Total went back from " + lastTotal + " to " + total);
+                    lastTotal = total;
+                    snapshots++;
+                }
+                return snapshots;
+            });
+
+            start.countDown();
+            for (Future<?> voter : voters) {
+                voter.get(60, TimeUnit.SECONDS);
+            }
+            voting.set(false);
+            assertTrue(reader.get(60, TimeUnit.SECONDS) > 0);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long expected = (long) THREADS * ROUNDS;
+        assertEquals(Map.of("cat", expected, "dog", expected, "bird", expected, "fish", expected), tally.snapshot());
+        assertEquals(List.of("cat", "dog", "bird", "fish"), new ArrayList<>(tally.snapshot().keySet()));
+        assertEquals(expected, tally.get("cat"));
+        assertEquals(expected, tally.get("fish"));
+        assertEquals(0, tally.get("owl"));
+        assertEquals(4 * expected, tally.total());
+    }
+
+    @Test
+    void takesBackVotes() {
+        VoteTally tally = new VoteTally(VotingOptions.parse("cat,dog"));
+        tally.add("cat", 3);
+        tally.add("cat", -1);
+        tally.add("owl", 2);
+        tally.add("owl", -2);
+        assertEquals(2, tally.get("cat"));
+        assertEquals(0, tally.get("owl"));
+        assertEquals(2, tally.total());
+    }
+}
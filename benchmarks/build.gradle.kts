@@ -0,0 +1,51 @@
+plugins {
+    id("buildlogic.java-application-conventions")
+}
+
+application {
+    // Compares platform and virtual threads, run with e.g. ./gradlew :benchmarks:run -PjavaVersion=21 --args="5000 20"
+    mainClass = "com.github.muteebaa.bench.ThreadModeBenchmark"
+}
+
+// Compares the whole and streamed session list, run with e.g. ./gradlew :benchmarks:sessionListBenchmark --args="100000"
+tasks.register<JavaExec>("sessionListBenchmark") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "com.github.muteebaa.bench.SessionListBenchmark"
+}
+
+// Times writing, opening and querying a memory-mapped voter snapshot, run with e.g. ./gradlew :benchmarks:voterSnapshotBenchmark --args="1000000"
+tasks.register<JavaExec>("voterSnapshotBenchmark") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "com.github.muteebaa.bench.VoterSnapshotBenchmark"
+}
+
+// Compares the dedup set's memory with a ConcurrentSkipListSet of the same voters, run with e.g. ./gradlew :benchmarks:uuidSetFootprintBenchmark --args="1000000"
+tasks.register<JavaExec>("uuidSetFootprintBenchmark") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "com.github.muteebaa.bench.UuidSetFootprintBenchmark"
+}
+
+// Crashes the leader of an in-process session under load and times the failover, run with e.g. ./gradlew :benchmarks:failoverBenchmark --args="5 3 5"
+tasks.register<JavaExec>("failoverBenchmark") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "com.github.muteebaa.bench.FailoverBenchmark"
+}
+
+// Compares vote throughput across shard counts, run with e.g. ./gradlew :benchmarks:shardScalingBenchmark --args="1,2,4"
+tasks.register<JavaExec>("shardScalingBenchmark") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "com.github.muteebaa.bench.ShardScalingBenchmark"
+}
+
+// Drives a whole in-process election with steady, burst or herd voting, run with e.g. ./gradlew :benchmarks:loadGenerator --args="herd 10 2000"
+tasks.register<JavaExec>("loadGenerator") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "com.github.muteebaa.bench.LoadGenerator"
+    // Forward node configuration, e.g. -Dvoting.shards=4
+    systemProperties(providers.systemPropertiesPrefixedBy("voting.").get())
+}
+
+dependencies {
+    implementation(project(":app"))
+    implementation("com.google.code.gson:gson:2.12.1")
+}
@@ -0,0 +1,230 @@
+package com.github.muteebaa.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.muteebaa.app.PeerNode;
+import com.github.muteebaa.app.VoteReceipt;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures leader failover under load. Runs a session of several nodes on loopback in this process,
+ * with a stand-in registry on the first registry port, and keeps a stream of votes going through
+ * one follower. Partway through, the leader is stopped as if it crashed, and the harness reports
+ * how long the followers took to elect a new leader, how long votes went unanswered, and whether
+ * every surviving node ends up with the same tally.
+ *
+ * Votes acknowledged by the old leader but still waiting in its replication batch when it stopped
+ * are lost, and are reported as such.
+ *
+ * Usage: FailoverBenchmark [nodes] [seconds before the crash] [seconds after it] [votes in flight]
+ */
+public final class FailoverBenchmark {
+    private static final int BASE_PORT = 15000;
+    private static final String[] OPTIONS = { "cat", "dog", "bird" };
+
+    private static volatile boolean stopping;
+
+    private FailoverBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        double before = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+        double after = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        int inFlight = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        // Quicker than the interactive defaults, unless set on the command line
+        System.setProperty("voting.wal", System.getProperty("voting.wal", "false"));
+        System.setProperty("voting.election.interval", System.getProperty("voting.election.interval", "100"));
+        System.setProperty("voting.election.timeout", System.getProperty("voting.election.timeout", "500"));
+        System.setProperty("voting.request.timeout", System.getProperty("voting.request.timeout", "500"));
+        System.setProperty("voting.request.retries", System.getProperty("voting.request.retries", "10"));
+        System.setProperty("voting.registry.servers", "http://127.0.0.1:12020");
+
+        PrintStream out = System.out;
+        HttpServer registry = startRegistry();
+        // The nodes narrate every peer and election change, which would drown out the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<PeerNode> peers = new ArrayList<>();
+        PeerNode leader = new PeerNode(BASE_PORT, BASE_PORT);
+        leader.startServer();
+        Thread.sleep(200);
+        String code = leader.startNewSession("127.0.0.1", BASE_PORT, String.join(",", OPTIONS));
+        peers.add(leader);
+        for (int i = 1; i < nodes; i++) {
+            PeerNode peer = new PeerNode(BASE_PORT + i, BASE_PORT + i);
+            peer.setSessionCode(code);
+            peer.startPeer();
+            peers.add(peer);
+        }
+        PeerNode client = peers.get(peers.size() - 1);
+
+        LongAdder accepted = new LongAdder();
+        LongAdder failed = new LongAdder();
+        Map<String, LongAdder> ackedCounts = new ConcurrentHashMap<>();
+        AtomicLong lastAck = new AtomicLong(System.nanoTime());
+        AtomicLong longestGap = new AtomicLong();
+        AtomicLong crashedAt = new AtomicLong(Long.MAX_VALUE);
+        AtomicLong firstAckAfterCrash = new AtomicLong(Long.MAX_VALUE);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        Semaphore window = new Semaphore(inFlight);
+
+        Thread load = new Thread(() -> {
+            int n = 0;
+            while (!stopping) {
+                window.acquireUninterruptibly();
+                String option = OPTIONS[n++ % OPTIONS.length];
+                long sent = System.nanoTime();
+                client.submitVote(option, UUID.randomUUID()).whenComplete((receipt, error) -> {
+                    long now = System.nanoTime();
+                    if (error == null && receipt.getStatus() == VoteReceipt.Status.ACCEPTED) {
+                        accepted.increment();
+                        ackedCounts.computeIfAbsent(option, k -> new LongAdder()).increment();
+                        latencies.add(now - sent);
+                        long previous = lastAck.getAndSet(now);
+                        longestGap.accumulateAndGet(now - previous, Math::max);
+                        if (sent > crashedAt.get()) {
+                            firstAckAfterCrash.accumulateAndGet(now, Math::min);
+                        }
+                    } else {
+                        failed.increment();
+                    }
+                    window.release();
+                });
+            }
+        }, "failover-load");
+        load.start();
+
+        Thread.sleep((long) (before * 1000));
+        long acceptedBefore = accepted.sum();
+        crashedAt.set(System.nanoTime());
+        leader.shutdown();
+        List<PeerNode> survivors = peers.subList(1, peers.size());
+
+        PeerNode elected = null;
+        while (elected == null) {
+            for (PeerNode peer : survivors) {
+                if (peer.hasLeaderToken()) {
+                    elected = peer;
+                }
+            }
+            Thread.onSpinWait();
+        }
+        long electedAt = System.nanoTime();
+
+        Thread.sleep((long) (after * 1000));
+        stopping = true;
+        load.join();
+        window.acquireUninterruptibly(inFlight); // Every vote answered or given up on
+        Thread.sleep(500); // The last batch reaches the followers
+
+        System.setOut(out);
+        out.printf("%d nodes, %d votes in flight, leader on port %d stopped after %.1f s%n", nodes, inFlight,
+                BASE_PORT, before);
+        out.printf("new leader    port %d, elected %.0f ms after the crash%n", BASE_PORT + peers.indexOf(elected),
+                (electedAt - crashedAt.get()) / 1e6);
+        out.printf("first ack     %.0f ms after the crash for a vote sent after it%n",
+                (firstAckAfterCrash.get() - crashedAt.get()) / 1e6);
+        out.printf("longest gap   %.0f ms between acknowledgements%n", longestGap.get() / 1e6);
+        out.printf("votes         %d acknowledged (%d before the crash), %d failed%n", accepted.sum(),
+                acceptedBefore, failed.sum());
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        out.printf("latency       p50 %.2f ms, p99 %.2f ms, max %.0f ms%n", percentile(sorted, 0.50) / 1e6,
+                percentile(sorted, 0.99) / 1e6, sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+
+        Map<String, Long> acked = new TreeMap<>();
+        ackedCounts.forEach((option, count) -> acked.put(option, count.sum()));
+        out.println("acknowledged  " + acked);
+        long ackedTotal = acked.values().stream().mapToLong(Long::longValue).sum();
+        for (PeerNode peer : survivors) {
+            Map<String, Long> tally = new TreeMap<>(peer.getVoteTally().snapshot());
+            tally.values().removeIf(count -> count == 0);
+            long total = tally.values().stream().mapToLong(Long::longValue).sum();
+            out.printf("node %d%s %s, %d acknowledged votes missing%n", BASE_PORT + peers.indexOf(peer),
+                    peer == elected ? " (L)" : "    ", tally, ackedTotal - total);
+        }
+
+        for (PeerNode peer : survivors) {
+            peer.shutdown();
+        }
+        registry.stop(0);
+        System.exit(0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /**
+     * Serves a single session: created by POST, read by GET, moved by PATCH and restored by PUT.
+     */
+    private static HttpServer startRegistry() throws IOException {
+        Gson gson = new Gson();
+        JsonObject[] session = new JsonObject[1];
+        HttpServer registry = HttpServer.create(new InetSocketAddress("127.0.0.1", 12020), 0);
+        registry.createContext("/sessions", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            synchronized (session) {
+                switch (exchange.getRequestMethod()) {
+                    case "POST":
+                        session[0] = gson.fromJson(body, JsonObject.class);
+                        session[0].addProperty("id", "FAIL01");
+                        respond(exchange, 200, "\"FAIL01\"");
+                        break;
+                    case "PUT":
+                        session[0] = gson.fromJson(body, JsonObject.class);
+                        session[0].addProperty("id", path.substring(path.lastIndexOf('/') + 1));
+                        respond(exchange, 200, "");
+                        break;
+                    case "PATCH":
+                        if (session[0] == null) {
+                            respond(exchange, 404, "");
+                            break;
+                        }
+                        gson.fromJson(body, JsonObject.class).entrySet()
+                                .forEach(e -> session[0].add(e.getKey(), e.getValue()));
+                        respond(exchange, 200, "");
+                        break;
+                    default:
+                        if (path.equals("/sessions")) {
+                            respond(exchange, 200, session[0] == null ? "[]" : "[" + session[0] + "]");
+                        } else if (session[0] != null) {
+                            respond(exchange, 200, session[0].toString());
+                        } else {
+                            respond(exchange, 404, "");
+                        }
+                }
+            }
+        });
+        registry.start();
+        return registry;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.muteebaa.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.github.muteebaa.app.PeerNode;
+import com.github.muteebaa.app.VoteReceipt;
+import com.github.muteebaa.app.VotingOptions;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Drives a whole election headlessly. Runs a leader and several voting peers on loopback in this
+ * process, with a stand-in registry on the first registry port, and starts voting. Every peer
+ * casts its share of the votes as soon as START_VOTING reaches it, in one of three patterns:
+ *
+ * <ul>
+ * <li>steady: the given rate, spread evenly over time and peers;</li>
+ * <li>burst: the same average rate, but each second's votes sent together at its start;</li>
+ * <li>herd: every vote sent at once, the moment voting starts.</li>
+ * </ul>
+ *
+ * Votes are sent without waiting for earlier answers, and latency is measured from the moment a
+ * vote was due to its answer, so a stalled node shows up as latency instead of a lower send rate.
+ * A share of the voters vote twice at once, with different options: the dedup check must accept
+ * exactly one vote of each voter. At the end the leader's tally is checked against the votes
+ * acknowledged, and every peer's tally against the leader's.
+ *
+ * Usage: LoadGenerator [steady|burst|herd] [peers] [voters per peer] [votes/s] [% of voters voting twice]
+ */
+public final class LoadGenerator {
+    private static final int BASE_PORT = 17000;
+    private static final String[] OPTIONS = { "cat", "dog", "bird" };
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String pattern = args.length > 0 ? args[0] : "steady";
+        int peerCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int votersPerPeer = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 20000;
+        double twicePercent = args.length > 4 ? Double.parseDouble(args[4]) : 5;
+        if (!List.of("steady", "burst", "herd").contains(pattern)) {
+            System.err.println("Unknown pattern " + pattern + ", expected steady, burst or herd");
+            System.exit(1);
+        }
+
+        System.setProperty("voting.wal", System.getProperty("voting.wal", "false"));
+        System.setProperty("voting.registry.servers", "http://127.0.0.1:12020");
+
+        PrintStream out = System.out;
+        HttpServer registry = startRegistry();
+        // The nodes narrate every peer and vote, which would drown out the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        PeerNode leader = new PeerNode(BASE_PORT, BASE_PORT);
+        leader.startServer();
+        Thread.sleep(200);
+        String code = leader.startNewSession("127.0.0.1", BASE_PORT, String.join(",", OPTIONS));
+        List<PeerNode> peers = new ArrayList<>();
+        for (int i = 1; i <= peerCount; i++) {
+            PeerNode peer = new PeerNode(BASE_PORT + i, BASE_PORT + i);
+            peer.setSessionCode(code);
+            peer.startPeer();
+            peers.add(peer);
+        }
+
+        int voterCount = peerCount * votersPerPeer;
+        UUID[] voters = new UUID[voterCount];
+        boolean[] votesTwice = new boolean[voterCount];
+        SplittableRandom random = new SplittableRandom(42);
+        int twice = 0;
+        for (int i = 0; i < voterCount; i++) {
+            voters[i] = new UUID(random.nextLong(), random.nextLong());
+            votesTwice[i] = random.nextDouble() * 100 < twicePercent;
+            twice += votesTwice[i] ? 1 : 0;
+        }
+
+        Load load = new Load(voterCount + twice);
+        AtomicIntegerArray acceptedPerVoter = new AtomicIntegerArray(voterCount);
+        for (int p = 0; p < peerCount; p++) {
+            PeerNode peer = peers.get(p);
+            int first = p * votersPerPeer;
+            int phase = p;
+            peer.setVotePrompt(options -> {
+                // Handler threads must not block, so each peer votes from a thread of its own
+                Thread t = new Thread(() -> {
+                    long start = System.nanoTime();
+                    for (int k = 0; k < votersPerPeer; k++) {
+                        long due = start + offsetNanos(pattern, k, phase, peerCount, rate);
+                        while (System.nanoTime() - due < 0) {
+                            LockSupport.parkNanos(due - System.nanoTime());
+                        }
+                        int voter = first + k;
+                        vote(peer, options, voters, voter, k, due, load, acceptedPerVoter);
+                        if (votesTwice[voter]) {
+                            vote(peer, options, voters, voter, k + 1, due, load, acceptedPerVoter);
+                        }
+                    }
+                }, "load-" + peer.getAddress());
+                t.start();
+            });
+        }
+
+        long startedAt = System.nanoTime();
+        leader.startVoting();
+        load.answered.await();
+        double elapsed = (load.lastAnswer.get() - startedAt) / 1e9;
+        leader.endVoting();
+        Thread.sleep(500); // The last batch reaches the followers
+
+        System.setOut(out);
+        out.printf("%s pattern, %d peers x %d voters%s, %.1f%% of voters vote twice%n", pattern, peerCount,
+                votersPerPeer, pattern.equals("herd") ? "" : String.format(" at %.0f votes/s", rate), twicePercent);
+        out.printf("throughput    %.0f votes/s (%d answers in %.2f s)%n", load.latencies.length / elapsed,
+                load.latencies.length, elapsed);
+        long[] sorted = Arrays.copyOf(load.latencies, load.recorded.get());
+        Arrays.sort(sorted);
+        out.printf("latency       p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms (from each vote's due time)%n",
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6,
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+        out.printf("answers       %d accepted, %d duplicate, %d failed, %d needed a retry%n", load.accepted.sum(),
+                load.duplicates.sum(), load.failed.sum(), load.retried.sum());
+
+        int acceptedTwice = 0;
+        int neverAccepted = 0;
+        for (int i = 0; i < voterCount; i++) {
+            acceptedTwice += acceptedPerVoter.get(i) > 1 ? 1 : 0;
+            neverAccepted += acceptedPerVoter.get(i) == 0 ? 1 : 0;
+        }
+        out.printf("dedup         %s: %d of %d voters voted twice, %d voters accepted twice, %d never accepted%n",
+                acceptedTwice == 0 && neverAccepted == 0 ? "correct" : "WRONG", twice, voterCount, acceptedTwice,
+                neverAccepted);
+
+        Map<String, Long> acked = new TreeMap<>();
+        load.ackedCounts.forEach((option, count) -> acked.put(option, count.sum()));
+        Map<String, Long> tally = tally(leader);
+        int matching = 0;
+        for (PeerNode peer : peers) {
+            matching += tally(peer).equals(tally) ? 1 : 0;
+        }
+        out.printf("tally         leader %s %s the acknowledged votes, %d of %d peers match the leader%n", tally,
+                tally.equals(acked) ? "matches" : "DOES NOT MATCH " + acked, matching, peerCount);
+
+        for (PeerNode peer : peers) {
+            peer.shutdown();
+        }
+        leader.shutdown();
+        registry.stop(0);
+        System.exit(0);
+    }
+
+    /**
+     * The answers of every vote cast, shared by the peers' load threads.
+     */
+    private static final class Load {
+        final long[] latencies;
+        final AtomicInteger recorded = new AtomicInteger();
+        final CountDownLatch answered;
+        final AtomicLong lastAnswer = new AtomicLong();
+        final LongAdder accepted = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder retried = new LongAdder();
+        final Map<String, LongAdder> ackedCounts = new ConcurrentHashMap<>();
+
+        Load(int votes) {
+            latencies = new long[votes];
+            answered = new CountDownLatch(votes);
+        }
+    }
+
+    private static void vote(PeerNode peer, VotingOptions options, UUID[] voters, int voter, int choice, long due,
+            Load load, AtomicIntegerArray acceptedPerVoter) {
+        String option = options.get(choice % options.size());
+        peer.submitVote(option, voters[voter]).whenComplete((receipt, error) -> {
+            long now = System.nanoTime();
+            if (error != null) {
+                load.failed.increment();
+            } else {
+                load.latencies[load.recorded.getAndIncrement()] = now - due;
+                if (receipt.getAttempts() > 1) {
+                    load.retried.increment();
+                }
+                if (receipt.getStatus() == VoteReceipt.Status.ACCEPTED) {
+                    load.accepted.increment();
+                    load.ackedCounts.computeIfAbsent(option, k -> new LongAdder()).increment();
+                    acceptedPerVoter.incrementAndGet(voter);
+                } else {
+                    load.duplicates.increment();
+                }
+            }
+            load.lastAnswer.accumulateAndGet(now, Math::max);
+            load.answered.countDown();
+        });
+    }
+
+    /**
+     * @return When a peer's k-th vote is due, counted from the moment voting started for it.
+     */
+    private static long offsetNanos(String pattern, int k, int peer, int peers, double rate) {
+        switch (pattern) {
+            case "steady":
+                // Peers take turns, so together they send at an even pace
+                return (long) ((k * (double) peers + peer) * 1e9 / rate);
+            case "burst":
+                return (long) Math.floor(k / (rate / peers)) * 1_000_000_000L;
+            default:
+                return 0;
+        }
+    }
+
+    private static Map<String, Long> tally(PeerNode node) {
+        Map<String, Long> tally = new TreeMap<>(node.getVoteTally().snapshot());
+        tally.values().removeIf(count -> count == 0);
+        return tally;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /**
+     * Serves a single session: created by POST and read by GET.
+     */
+    private static HttpServer startRegistry() throws IOException {
+        Gson gson = new Gson();
+        JsonObject[] session = new JsonObject[1];
+        HttpServer registry = HttpServer.create(new InetSocketAddress("127.0.0.1", 12020), 0);
+        registry.createContext("/sessions", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            synchronized (session) {
+                if (exchange.getRequestMethod().equals("POST")) {
+                    session[0] = gson.fromJson(body, JsonObject.class);
+                    session[0].addProperty("id", "LOAD01");
+                    respond(exchange, 200, "\"LOAD01\"");
+                } else if (session[0] != null) {
+                    respond(exchange, 200, session[0].toString());
+                } else {
+                    respond(exchange, 404, "");
+                }
+            }
+        });
+        registry.start();
+        return registry;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
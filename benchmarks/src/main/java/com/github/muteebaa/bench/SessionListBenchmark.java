@@ -0,0 +1,138 @@
+package com.github.muteebaa.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.muteebaa.app.Session;
+import com.github.muteebaa.app.SessionRegistry;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares reading the registry's session list whole (the original loadSessions) against
+ * {@link SessionRegistry#streamSessions}.
+ *
+ * Serves a large session list from a local stand-in on the first registry port, then reports the
+ * time and bytes allocated by each approach, including the cost of reading just the first page.
+ *
+ * Usage: SessionListBenchmark [sessions] [rounds]
+ */
+public final class SessionListBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private SessionListBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        byte[] body = sessionList(sessions);
+        HttpServer registry = HttpServer.create(new InetSocketAddress("127.0.0.1", 12020), 0);
+        registry.createContext("/sessions", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (IOException ignored) {
+                // The streaming client hangs up early when it only wants one page
+            }
+        });
+        registry.start();
+        System.out.printf("%d sessions, %.1f MB of JSON%n", sessions, body.length / 1e6);
+
+        for (int round = 0; round < rounds; round++) {
+            boolean report = round == rounds - 1; // Earlier rounds warm up the JIT
+            measure("whole", report, () -> readWhole().size());
+            measure("streamed", report, () -> {
+                Map<String, String> details = new HashMap<>();
+                SessionRegistry.streamSessions(s -> true, 0, Integer.MAX_VALUE,
+                        e -> details.put(e.getId(), String.format("%s:%d,%s", e.host, e.port,
+                                String.join(",", e.options))));
+                return details.size();
+            });
+            AtomicInteger page = new AtomicInteger();
+            measure("streamed page", report, () -> SessionRegistry.streamSessions(
+                    s -> s.options.contains("dog"), 100, 20, s -> page.incrementAndGet()));
+        }
+        registry.stop(0);
+        System.exit(0);
+    }
+
+    /**
+     * The original loadSessions: the whole body as a String, a Session collection, then the details map.
+     */
+    private static Map<String, String> readWhole() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:12020/sessions")).build();
+        HttpResponse<String> resp = HttpClient.newHttpClient().send(req, HttpResponse.BodyHandlers.ofString());
+        Collection<Session> sessionList = new Gson().fromJson(resp.body(), new TypeToken<Collection<Session>>() {
+        });
+        Map<String, String> sessions = new HashMap<>();
+        sessionList.forEach(e -> sessions.put(e.getId(),
+                String.format("%s:%d,%s", e.host, e.port, String.join(",", e.options))));
+        return sessions;
+    }
+
+    private interface Run {
+        int run() throws Exception;
+    }
+
+    private static void measure(String name, boolean report, Run run) throws Exception {
+        System.gc();
+        Map<Long, Long> before = allocatedBytes();
+        long start = System.nanoTime();
+        int count = run.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : allocatedBytes().entrySet()) {
+            allocated += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+        }
+        if (report) {
+            System.out.printf("%-14s %7d sessions in %6.1f ms, %7.1f MB allocated%n", name, count,
+                    elapsed / 1e6, allocated / 1e6);
+        }
+    }
+
+    // Covers the HTTP client's threads too, since that is where a String body is accumulated
+    private static Map<Long, Long> allocatedBytes() {
+        long[] ids = THREADS.getAllThreadIds();
+        long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    private static byte[] sessionList(int count) {
+        Gson gson = new Gson();
+        StringBuilder json = new StringBuilder("[");
+        List<String> options = List.of("cat", "dog", "horse");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            Session session = new Session("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 5000 + i % 1000,
+                    i % 3 == 0 ? options : options.subList(0, 2));
+            session.setId(String.format("%06X", i));
+            json.append(gson.toJson(session));
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
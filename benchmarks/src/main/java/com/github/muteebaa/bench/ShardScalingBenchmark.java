@@ -0,0 +1,197 @@
+package com.github.muteebaa.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.muteebaa.app.MessageType;
+import com.github.muteebaa.app.PeerNode;
+import com.github.muteebaa.app.VoteReceipt;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures vote throughput as voters are split over more shards. For every shard count, runs a
+ * session on loopback in this process (a leader, one coordinator per shard and several voting
+ * clients), keeps a fixed number of votes in flight from every client, and reports the votes
+ * acknowledged per second, how many of them the leader handled one by one, and how evenly the
+ * coordinators shared the rest. At the end of every run the leader's merged tally is checked
+ * against the votes acknowledged.
+ *
+ * With a single shard the leader accepts every vote itself, as without sharding. Every node shares
+ * this machine's cores, so throughput can only grow with the shard count while cores are idle.
+ *
+ * Usage: ShardScalingBenchmark [shard counts, e.g. 1,2,4] [seconds per run] [clients] [votes in flight per client]
+ */
+public final class ShardScalingBenchmark {
+    private static final String[] OPTIONS = { "cat", "dog", "bird" };
+
+    private static volatile boolean stopping;
+
+    private ShardScalingBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] shardCounts = (args.length > 0 ? args[0] : "1,2,4").split(",");
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int inFlight = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        System.setProperty("voting.wal", System.getProperty("voting.wal", "false"));
+        System.setProperty("voting.registry.servers", "http://127.0.0.1:12020");
+
+        PrintStream out = System.out;
+        HttpServer registry = HttpServer.create(new InetSocketAddress("127.0.0.1", 12020), 0);
+        Gson gson = new Gson();
+        JsonObject[] session = new JsonObject[1];
+        registry.createContext("/sessions", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            synchronized (session) {
+                // Each run's leader posts its own session, which is what its peers then look up
+                if (exchange.getRequestMethod().equals("POST")) {
+                    session[0] = gson.fromJson(body, JsonObject.class);
+                    session[0].addProperty("id", "SHARD1");
+                    respond(exchange, "\"SHARD1\"");
+                } else if (exchange.getRequestMethod().equals("GET") && session[0] != null) {
+                    respond(exchange, session[0].toString());
+                } else {
+                    respond(exchange, "");
+                }
+            }
+        });
+        registry.start();
+        // The nodes narrate every peer and shard change, which would drown out the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        out.printf("%d cores, %d clients with %d votes in flight each, %.0f s per run%n",
+                Runtime.getRuntime().availableProcessors(), clients, inFlight, seconds);
+        for (int run = 0; run < shardCounts.length; run++) {
+            int shards = Integer.parseInt(shardCounts[run].trim());
+            out.println(measure(16000 + run * 100, shards, seconds, clients, inFlight));
+        }
+        registry.stop(0);
+        System.exit(0);
+    }
+
+    private static String measure(int basePort, int shards, double seconds, int clientCount, int inFlight)
+            throws Exception {
+        List<PeerNode> nodes = new ArrayList<>();
+        PeerNode leader = new PeerNode(basePort, basePort);
+        leader.startServer();
+        Thread.sleep(200);
+        String code = leader.startNewSession("127.0.0.1", basePort, String.join(",", OPTIONS));
+        nodes.add(leader);
+
+        List<PeerNode> coordinators = new ArrayList<>();
+        if (shards > 1) {
+            for (int i = 1; i <= shards; i++) {
+                coordinators.add(join(basePort + i, code, nodes));
+            }
+            leader.shardVoting(shards);
+        }
+        List<PeerNode> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            PeerNode client = join(basePort + 50 + i, code, nodes);
+            clients.add(client);
+            // Clients joining after the split learn the shard map from the leader
+            while (shards > 1 && client.getShardMap() == null) {
+                Thread.sleep(10);
+            }
+        }
+
+        LongAdder accepted = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<Thread> load = new ArrayList<>();
+        List<Semaphore> windows = new ArrayList<>();
+        stopping = false;
+        for (PeerNode client : clients) {
+            Semaphore window = new Semaphore(inFlight);
+            windows.add(window);
+            Thread t = new Thread(() -> {
+                int n = 0;
+                while (!stopping) {
+                    window.acquireUninterruptibly();
+                    client.submitVote(OPTIONS[n++ % OPTIONS.length], UUID.randomUUID())
+                            .whenComplete((receipt, error) -> {
+                                if (error == null && receipt.getStatus() == VoteReceipt.Status.ACCEPTED) {
+                                    accepted.increment();
+                                } else {
+                                    failed.increment();
+                                }
+                                window.release();
+                            });
+                }
+            }, "shard-load");
+            load.add(t);
+            t.start();
+        }
+
+        Thread.sleep(1000); // Warm-up
+        long startVotes = accepted.sum();
+        long leaderVotesBefore = leader.getMessageStats().getCount(MessageType.VOTE);
+        long cpuBefore = cpuTime();
+        long start = System.nanoTime();
+        Thread.sleep((long) (seconds * 1000));
+        long votes = accepted.sum() - startVotes;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long leaderVotes = leader.getMessageStats().getCount(MessageType.VOTE) - leaderVotesBefore;
+        double cpu = (cpuTime() - cpuBefore) / 1e9;
+
+        stopping = true;
+        for (int i = 0; i < load.size(); i++) {
+            load.get(i).join();
+            windows.get(i).acquireUninterruptibly(inFlight);
+        }
+        leader.endVoting();
+        long tallied = leader.getVoteTally().snapshot().values().stream().mapToLong(Long::longValue).sum();
+
+        StringBuilder share = new StringBuilder();
+        for (PeerNode coordinator : coordinators) {
+            long coordinated = coordinator.getShardCoordinator() == null ? 0
+                    : coordinator.getShardCoordinator().getAccepted();
+            share.append(share.length() == 0 ? "" : " ").append(Math.round(100.0 * coordinated / tallied))
+                    .append('%');
+        }
+        for (PeerNode node : nodes) {
+            node.shutdown();
+        }
+
+        return String.format("%d shard(s): %8.0f votes/s, %.2f ms CPU per vote, leader handled %3.0f%% of votes"
+                + " itself%s, tally %s (%d tallied, %d acknowledged, %d failed)",
+                shards, votes / elapsed, cpu * 1000 / Math.max(1, votes), 100.0 * leaderVotes / Math.max(1, votes),
+                share.length() == 0 ? "" : ", coordinators " + share,
+                tallied == accepted.sum() ? "consistent" : "MISMATCH", tallied, accepted.sum(), failed.sum());
+    }
+
+    private static PeerNode join(int port, String code, List<PeerNode> nodes) {
+        PeerNode peer = new PeerNode(port, port);
+        peer.setSessionCode(code);
+        peer.startPeer();
+        nodes.add(peer);
+        return peer;
+    }
+
+    private static long cpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.muteebaa.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.muteebaa.app.Message;
+import com.github.muteebaa.app.NodeCommunication;
+import com.github.muteebaa.app.NodeConfig;
+import com.github.muteebaa.app.NodeExecutors;
+
+/**
+ * Compares the blocking server on platform threads against virtual threads.
+ *
+ * Opens many peer connections to one node at once, keeps them all open, and has every peer send
+ * votes with a short pause between them, like many slow peers would. Reports how long it took to
+ * get every connection open, the message throughput and the most threads alive at once.
+ *
+ * Usage: ThreadModeBenchmark [connections] [messages per connection] [pause ms] [platform|virtual|both]
+ */
+public final class ThreadModeBenchmark {
+    private ThreadModeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long pauseMs = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        String modes = args.length > 3 ? args[3] : "both";
+
+        for (NodeConfig.ThreadMode mode : NodeConfig.ThreadMode.values()) {
+            if (!modes.equals("both") && !modes.equalsIgnoreCase(mode.name())) {
+                continue;
+            }
+            if (mode == NodeConfig.ThreadMode.VIRTUAL && !NodeExecutors.virtualThreadsAvailable()) {
+                System.out.println("virtual: skipped, needs Java 21 or newer (build with -PjavaVersion=21)");
+                continue;
+            }
+            run(mode, connections, messages, pauseMs);
+        }
+        System.exit(0);
+    }
+
+    private static void run(NodeConfig.ThreadMode mode, int connections, int messages, long pauseMs)
+            throws Exception {
+        NodeExecutors executors = new NodeExecutors(mode);
+        LongAdder received = new LongAdder();
+        NodeCommunication server = new NodeCommunication(NodeConfig.ServerMode.BLOCKING, NodeConfig.WireFormat.TEXT,
+                executors);
+        Thread acceptor = new Thread(() -> server.startServer(0, message -> received.increment()), "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        while (server.getLocalPort() < 0) {
+            Thread.sleep(10);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        String line = Message.vote("localhost", 1, "a", UUID.randomUUID()).toText() + "\n";
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+
+        long begin = System.nanoTime();
+        ExecutorService clients = executors.newExecutor("bench-client", connections);
+        for (int i = 0; i < connections; i++) {
+            clients.execute(() -> {
+                try (Socket socket = new Socket("localhost", server.getLocalPort());
+                        BufferedWriter out = new BufferedWriter(
+                                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                    connected.countDown();
+                    start.await();
+                    for (int m = 0; m < messages; m++) {
+                        out.write(line);
+                        out.flush();
+                        Thread.sleep(pauseMs);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    failures.incrementAndGet();
+                    connected.countDown();
+                }
+            });
+        }
+        connected.await();
+        long connectedAt = System.nanoTime();
+        start.countDown();
+
+        long expected = (long) (connections - failures.get()) * messages;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (received.sum() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        long end = System.nanoTime();
+        clients.shutdown();
+
+        System.out.printf("%s: %d connections (%d failed) open in %d ms, %d/%d messages in %d ms = %.0f msg/s, "
+                + "peak threads %d%n", mode.name().toLowerCase(), connections, failures.get(),
+                TimeUnit.NANOSECONDS.toMillis(connectedAt - begin), received.sum(), expected,
+                TimeUnit.NANOSECONDS.toMillis(end - connectedAt),
+                received.sum() / ((end - connectedAt) / 1e9), threads.getPeakThreadCount());
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.muteebaa.bench;
+
+import java.lang.ref.Reference;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.github.muteebaa.app.UuidSet;
+
+/**
+ * Compares the memory the voter dedup set takes with that of a {@link ConcurrentSkipListSet} of
+ * {@link UUID}s holding the same voters, which boxes every voter and adds a skip-list node for each.
+ * {@link UuidSet} is measured on the heap and off it, where its tables are direct buffers that the
+ * heap does not see.
+ *
+ * Usage: UuidSetFootprintBenchmark [voters] [rounds]
+ */
+public final class UuidSetFootprintBenchmark {
+    private UuidSetFootprintBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int voters = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        long[] uuids = new long[voters * 2];
+        SplittableRandom random = new SplittableRandom(559);
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = random.nextLong();
+        }
+        System.out.printf("%d voters%n", voters);
+
+        for (int round = 0; round < rounds; round++) {
+            boolean report = round == rounds - 1; // Earlier rounds warm up the JIT
+
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            UuidSet onHeap = new UuidSet();
+            for (int i = 0; i < voters; i++) {
+                onHeap.add(uuids[i * 2], uuids[i * 2 + 1]);
+            }
+            long onHeapTime = System.nanoTime() - start;
+            long onHeapBytes = usedHeap() - heapBefore;
+            long onHeapTables = onHeap.tableBytes();
+            Reference.reachabilityFence(onHeap);
+            onHeap = null;
+
+            heapBefore = usedHeap();
+            start = System.nanoTime();
+            UuidSet offHeap = new UuidSet(0, true);
+            for (int i = 0; i < voters; i++) {
+                offHeap.add(uuids[i * 2], uuids[i * 2 + 1]);
+            }
+            long offHeapTime = System.nanoTime() - start;
+            long offHeapBytes = usedHeap() - heapBefore;
+            long offHeapTables = offHeap.tableBytes();
+            Reference.reachabilityFence(offHeap);
+            offHeap = null;
+
+            heapBefore = usedHeap();
+            start = System.nanoTime();
+            ConcurrentSkipListSet<UUID> skipList = new ConcurrentSkipListSet<>();
+            for (int i = 0; i < voters; i++) {
+                skipList.add(new UUID(uuids[i * 2], uuids[i * 2 + 1]));
+            }
+            long skipListTime = System.nanoTime() - start;
+            long skipListBytes = usedHeap() - heapBefore;
+            if (skipList.size() != voters) {
+                throw new IllegalStateException(skipList.size() + " of " + voters + " voters in the skip list");
+            }
+            Reference.reachabilityFence(skipList);
+            skipList = null;
+
+            if (report) {
+                System.out.printf("UuidSet on heap        %8.1f MB heap, %5.1f B/voter, add %6.1f ms%n",
+                        onHeapBytes / 1e6, (double) onHeapBytes / voters, onHeapTime / 1e6);
+                System.out.printf("UuidSet off heap       %8.1f MB heap + %.1f MB direct, %5.1f B/voter, add %6.1f ms%n",
+                        offHeapBytes / 1e6, offHeapTables / 1e6, (double) (offHeapBytes + offHeapTables) / voters,
+                        offHeapTime / 1e6);
+                System.out.printf("ConcurrentSkipListSet  %8.1f MB heap, %5.1f B/voter, add %6.1f ms%n",
+                        skipListBytes / 1e6, (double) skipListBytes / voters, skipListTime / 1e6);
+                System.out.printf("UuidSet tables         %8.1f MB, %.0f%% full%n", onHeapTables / 1e6,
+                        100.0 * voters * 16 / onHeapTables);
+            }
+        }
+    }
+
+    // Collects first, so only live objects are counted
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.muteebaa.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import com.github.muteebaa.app.UuidSet;
+import com.github.muteebaa.app.VoteLog;
+import com.github.muteebaa.app.VoterSnapshot;
+
+/**
+ * Measures the memory-mapped voter snapshot: how long writing one takes, how long opening it takes
+ * compared with rebuilding the in-memory dedup set from the same voters, and how many membership
+ * lookups per second it answers compared with {@link UuidSet}.
+ *
+ * Usage: VoterSnapshotBenchmark [voters] [lookups] [rounds]
+ */
+public final class VoterSnapshotBenchmark {
+    private VoterSnapshotBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int voters = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        long[] uuids = randomUuids(voters, 559);
+        long[] misses = randomUuids(lookups / 2, 1559);
+        Path dir = Files.createTempDirectory("voter-snapshot");
+        Path file = dir.resolve("snapshot.snap");
+        System.out.printf("%d voters, %d lookups (half hits, half misses)%n", voters, lookups);
+
+        for (int round = 0; round < rounds; round++) {
+            boolean report = round == rounds - 1; // Earlier rounds warm up the JIT
+
+            long start = System.nanoTime();
+            VoterSnapshot.write(file, new VoteLog.Snapshot(1, "ABC123", "127.0.0.1", 5000, List.of("cat", "dog"),
+                    Map.of("cat", voters / 2L, "dog", voters - voters / 2L), List.of(), null, uuids.clone()));
+            long written = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            VoterSnapshot snapshot = VoterSnapshot.open(file);
+            long opened = System.nanoTime() - start;
+            start = System.nanoTime();
+            snapshot.verify();
+            long verified = System.nanoTime() - start;
+
+            System.gc();
+            long heapBefore = usedHeap();
+            start = System.nanoTime();
+            UuidSet set = new UuidSet();
+            for (int i = 0; i < voters; i++) {
+                set.add(uuids[i * 2], uuids[i * 2 + 1]);
+            }
+            long rebuilt = System.nanoTime() - start;
+            System.gc();
+            long setHeap = usedHeap() - heapBefore;
+
+            long mappedRate = lookupRate(uuids, misses, lookups, snapshot::contains);
+            long setRate = lookupRate(uuids, misses, lookups, set::contains);
+
+            if (report) {
+                System.out.printf("write   %8.1f ms, %6.1f MB file%n", written / 1e6, Files.size(file) / 1e6);
+                System.out.printf("open    %8.3f ms (+ %.1f ms to verify the voters' checksum)%n", opened / 1e6,
+                        verified / 1e6);
+                System.out.printf("rebuild %8.1f ms, %6.1f MB heap (UuidSet from the same voters)%n", rebuilt / 1e6,
+                        setHeap / 1e6);
+                System.out.printf("lookups %8.1f M/s mapped snapshot, %.1f M/s UuidSet%n", mappedRate / 1e6,
+                        setRate / 1e6);
+            }
+        }
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    private interface Lookup {
+        boolean contains(long msb, long lsb);
+    }
+
+    private static long lookupRate(long[] hits, long[] misses, int lookups, Lookup lookup) {
+        SplittableRandom random = new SplittableRandom(7);
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            long[] source = (i & 1) == 0 ? hits : misses;
+            int k = random.nextInt(source.length / 2);
+            if (lookup.contains(source[k * 2], source[k * 2 + 1])) {
+                found++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found < lookups / 2) {
+            throw new IllegalStateException("Only " + found + " of " + lookups / 2 + " voters found");
+        }
+        return (long) (lookups / (elapsed / 1e9));
+    }
+
+    private static long[] randomUuids(int count, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] uuids = new long[count * 2];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = random.nextLong();
+        }
+        return uuids;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -14,9 +14,10 @@ dependencies {
 }
 
 // Apply a specific Java toolchain to ease working on different environments.
+// Pass -PjavaVersion=21 (or newer) to build and run on a toolchain with virtual threads.
 java {
     toolchain {
-        languageVersion = JavaLanguageVersion.of(17)
+        languageVersion = JavaLanguageVersion.of(providers.gradleProperty("javaVersion").getOrElse("17"))
     }
 }
 
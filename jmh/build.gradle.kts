@@ -0,0 +1,24 @@
+plugins {
+    id("buildlogic.java-common-conventions")
+}
+
+val jmhVersion = "1.37"
+
+dependencies {
+    implementation(project(":app"))
+    implementation("com.google.code.gson:gson:2.12.1")
+    implementation("org.openjdk.jmh:jmh-core:$jmhVersion")
+    // Generates the benchmark harness and the benchmark list read by org.openjdk.jmh.Main
+    annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+// Runs the benchmarks and writes their results as JSON, run with e.g. ./gradlew :jmh:jmh --args="MessageParse -f 1"
+// Pass -PjmhResults=<file> to keep a release's results for comparison with the next one
+tasks.register<JavaExec>("jmh") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.openjdk.jmh.Main"
+    val results = providers.gradleProperty("jmhResults").map { file(it) }
+        .orElse(layout.buildDirectory.file("results/jmh/results.json").map { it.asFile })
+    argumentProviders.add(CommandLineArgumentProvider { listOf("-rf", "json", "-rff", results.get().path) })
+    doFirst { results.get().parentFile.mkdirs() }
+}
@@ -0,0 +1,92 @@
+package com.github.muteebaa.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.muteebaa.app.BroadcastResult;
+import com.github.muteebaa.app.Message;
+import com.github.muteebaa.app.MessageType;
+import com.github.muteebaa.app.NodeCommunication;
+import com.github.muteebaa.app.NodeConfig;
+
+/**
+ * Times sending a vote, and broadcasting a vote batch, over loopback to nodes running in this
+ * process. Sends return once the message is written, so the receivers' pace shows up only once
+ * the socket buffers fill.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int PEERS = 4;
+
+    @Param({ "BLOCKING", "NIO" })
+    public NodeConfig.ServerMode serverMode;
+
+    @Param({ "TEXT", "BINARY" })
+    public NodeConfig.WireFormat wireFormat;
+
+    private final List<NodeCommunication> receivers = new ArrayList<>();
+    private final List<String> peers = new ArrayList<>();
+    private NodeCommunication sender;
+    private Message vote;
+    private Message batch;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        for (int i = 0; i < PEERS; i++) {
+            NodeCommunication receiver = new NodeCommunication(serverMode, wireFormat);
+            receiver.setVotingOptions(MessageParseBenchmark.OPTIONS);
+            receivers.add(receiver);
+            // A blocking server accepts on the calling thread until stopped
+            Thread server = new Thread(() -> receiver.startServer(0, message -> {
+            }), "loopback-receiver-" + i);
+            server.setDaemon(true);
+            server.start();
+            while (receiver.getLocalPort() < 0) {
+                Thread.sleep(1);
+            }
+            peers.add("127.0.0.1:" + receiver.getLocalPort());
+        }
+        sender = new NodeCommunication(serverMode, wireFormat);
+        sender.setVotingOptions(MessageParseBenchmark.OPTIONS);
+        vote = Message.vote("127.0.0.1", 5001, "dog", UUID.randomUUID());
+        batch = MessageParseBenchmark.sample(MessageType.UPDATE_VOTE_BATCH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.stop();
+        for (NodeCommunication receiver : receivers) {
+            receiver.stop();
+        }
+    }
+
+    @Benchmark
+    public boolean sendVote() {
+        return sender.sendMessage(vote, peers.get(0));
+    }
+
+    @Benchmark
+    public BroadcastResult broadcastBatch() {
+        return sender.broadcastMessage(batch, peers);
+    }
+}
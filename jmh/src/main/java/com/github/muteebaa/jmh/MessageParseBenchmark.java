@@ -0,0 +1,140 @@
+package com.github.muteebaa.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.muteebaa.app.BinaryCodec;
+import com.github.muteebaa.app.Message;
+import com.github.muteebaa.app.MessageDispatcher;
+import com.github.muteebaa.app.MessageType;
+import com.github.muteebaa.app.VoteReceipt;
+import com.github.muteebaa.app.VotingOptions;
+
+/**
+ * Times reading and writing one message of each common type in both wire formats, and handing a
+ * received text line to its handler the way {@link com.github.muteebaa.app.PeerNode#handleMessage(String)}
+ * does (parse, then dispatch), with a handler that does nothing but consume the message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParseBenchmark {
+    static final VotingOptions OPTIONS = VotingOptions.parse("cat,dog,bird");
+    static final int BATCH_SIZE = 64;
+
+    @Param({ "REGISTER", "VOTE", "ACK", "UPDATE_NEW_PEER", "UPDATE_VOTE_BATCH", "SYNC_REQUEST", "HEARTBEAT",
+            "SHARD_BATCH", "BULK_VOTE", "BULK_VOTE_RESULT" })
+    public MessageType type;
+
+    private Message message;
+    private String text;
+    private ByteBuffer frame;
+    private final BinaryCodec.Encoder encoder = new BinaryCodec.Encoder();
+    private final BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        message = sample(type);
+        text = message.toText();
+        // The first frame also announces the option table, which a connection only does once
+        decoder.decodeAll(encoder.encode(message, OPTIONS), decoded -> {
+        });
+        frame = encoder.encode(message, OPTIONS);
+        for (MessageType t : MessageType.values()) {
+            dispatcher.register(t, blackhole::consume);
+        }
+    }
+
+    /**
+     * @return A typical message of the type, as a node sends it.
+     */
+    static Message sample(MessageType type) {
+        switch (type) {
+            case REGISTER:
+                return Message.register("127.0.0.1", 5001).withRequestId(7);
+            case VOTE:
+                return Message.vote("127.0.0.1", 5001, "dog", UUID.randomUUID()).withRequestId(7);
+            case ACK:
+                return Message.ack("Vote received").withRequestId(7);
+            case UPDATE_NEW_PEER:
+                List<String> peers = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    peers.add("127.0.0.1:" + (5001 + i));
+                }
+                return Message.updateNewPeer(peers);
+            case UPDATE_VOTE_BATCH:
+                return Message.voteBatch(42, entries());
+            case SYNC_REQUEST:
+                return Message.syncRequest("127.0.0.1", 5001, 42, 16);
+            case HEARTBEAT:
+                return Message.election(MessageType.HEARTBEAT, "127.0.0.1", 5000, 5000, 3, 42);
+            case SHARD_BATCH:
+                return Message.shardBatch("127.0.0.1", 5001, 1, entries());
+            case BULK_VOTE:
+                return Message.bulkVote("127.0.0.1", 5001, entries()).withRequestId(7);
+            case BULK_VOTE_RESULT:
+                List<VoteReceipt.Status> results = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    results.add(i % 16 == 0 ? VoteReceipt.Status.DUPLICATE : VoteReceipt.Status.ACCEPTED);
+                }
+                return Message.bulkVoteResult(results).withRequestId(7);
+            default:
+                throw new IllegalArgumentException("No sample message of type " + type);
+        }
+    }
+
+    private static List<Message.VoteEntry> entries() {
+        List<Message.VoteEntry> entries = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            UUID voter = UUID.randomUUID();
+            entries.add(new Message.VoteEntry(voter.getMostSignificantBits(), voter.getLeastSignificantBits(),
+                    OPTIONS.get(i % OPTIONS.size())));
+        }
+        return entries;
+    }
+
+    @Benchmark
+    public Message parseText() {
+        return Message.parse(text);
+    }
+
+    @Benchmark
+    public String formatText() {
+        return message.toText();
+    }
+
+    @Benchmark
+    public void decodeBinary(Blackhole blackhole) {
+        decoder.decodeAll(frame.duplicate(), blackhole::consume);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        return encoder.encode(message, OPTIONS);
+    }
+
+    @Benchmark
+    public boolean handleText() {
+        return dispatcher.dispatch(Message.parse(text));
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.muteebaa.jmh;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.muteebaa.app.Session;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Times the registry's JSON handling the way the session registry does it: writing a new session,
+ * reading a single one, and streaming a session list one session at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionJsonBenchmark {
+    @Param({ "100" })
+    public int sessions;
+
+    private final Gson gson = new Gson();
+    private Session session;
+    private String json;
+    private String list;
+
+    @Setup
+    public void setUp() {
+        session = new Session("192.168.1.20", 5000, List.of("cat", "dog", "bird", "fish"));
+        session.setId("ABC123");
+        json = gson.toJson(session);
+        List<Session> all = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Session s = new Session("192.168.1." + (i % 250), 5000 + i, List.of("cat", "dog", "bird", "fish"));
+            s.setId(String.format("S%05d", i));
+            all.add(s);
+        }
+        list = gson.toJson(all);
+    }
+
+    @Benchmark
+    public String writeSession() {
+        return gson.toJson(session);
+    }
+
+    @Benchmark
+    public Session readSession() {
+        return gson.fromJson(json, Session.class);
+    }
+
+    @Benchmark
+    public int streamSessionList(Blackhole blackhole) throws IOException {
+        int read = 0;
+        try (JsonReader reader = new JsonReader(new StringReader(list))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                blackhole.consume(gson.fromJson(reader, Session.class));
+                read++;
+            }
+        }
+        return read;
+    }
+}
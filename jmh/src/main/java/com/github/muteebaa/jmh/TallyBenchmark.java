@@ -0,0 +1,99 @@
+package com.github.muteebaa.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.muteebaa.app.UuidSet;
+import com.github.muteebaa.app.VoteTally;
+
+/**
+ * Times the leader's per-vote work under contention: counting a vote in the shared tally, as
+ * {@link com.github.muteebaa.app.PeerNode#updateVoteTally(String)} does, and checking the voter
+ * against the shared dedup set, for both a new voter and one who already voted. Every benchmark
+ * runs on four threads; pass e.g. -t 1 to compare against a single uncontended thread.
+ *
+ * The dedup set starts every iteration with about a million voters. New voters are timed in
+ * batches of 250,000 per thread, scored per batch, so the set never grows past a few million.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class TallyBenchmark {
+    private static final int NEW_VOTERS = 250_000; // Per thread and iteration
+    private static final int KNOWN_VOTERS = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Tally {
+        final VoteTally tally = new VoteTally(MessageParseBenchmark.OPTIONS);
+        final String[] options = MessageParseBenchmark.OPTIONS.asList().toArray(new String[0]);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Voters {
+        @Param({ "false", "true" })
+        public boolean offHeap;
+
+        UuidSet voters;
+        long[] known; // Pairs of msb, lsb
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            SplittableRandom random = new SplittableRandom(42);
+            known = new long[KNOWN_VOTERS * 2];
+            for (int i = 0; i < known.length; i++) {
+                known[i] = random.nextLong();
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void newSet() {
+            voters = new UuidSet(0, offHeap);
+            for (int i = 0; i < known.length; i += 2) {
+                voters.add(known[i], known[i + 1]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Voter {
+        final SplittableRandom random = new SplittableRandom();
+        int next;
+    }
+
+    @Benchmark
+    public void countVote(Tally tally, Voter voter) {
+        tally.tally.increment(tally.options[voter.next++ % tally.options.length]);
+    }
+
+    @Benchmark
+    public boolean addKnownVoter(Voters voters, Voter voter) {
+        int i = (voter.next++ & (KNOWN_VOTERS - 1)) * 2;
+        return voters.voters.add(voters.known[i], voters.known[i + 1]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5, batchSize = NEW_VOTERS)
+    @Measurement(iterations = 10, batchSize = NEW_VOTERS)
+    public boolean addNewVoter(Voters voters, Voter voter) {
+        return voters.voters.add(voter.random.nextLong(), voter.random.nextLong());
+    }
+}
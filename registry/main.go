@@ -11,6 +11,7 @@ import (
 	"os"
 	"os/signal"
 	"syscall"
+	"time"
 
 	"github.com/go-chi/chi/v5"
 	"github.com/go-chi/chi/v5/middleware"
@@ -23,8 +24,10 @@ const sessDir = "session"
 func main() {
 	port := flag.Int("port", 12020, "Port number the server should listen on")
 	rawlogLvl := flag.Int("level", 2, "Minimum level of logs to output (0 -> 3)")
+	lease := flag.Duration("lease", 60*time.Second, "How long a session is listed without being renewed (0 disables leases)")
 
 	flag.Parse()
+	leaseDuration = *lease
 
 	var logLvl slog.Level
 	switch *rawlogLvl {
@@ -117,6 +120,7 @@ func service(logOpts httplog.Options) http.Handler {
 	// Specifying API endpoints
 	r.Get(fmt.Sprintf("/sessions/{sess:%s}", sessIdRegex), getSingleSession)
 	r.Patch(fmt.Sprintf("/sessions/{sess:%s}", sessIdRegex), updateSession)
+	r.Put(fmt.Sprintf("/sessions/{sess:%s}", sessIdRegex), putSession)
 	r.Get("/sessions", getAllSessions)
 	r.Post("/sessions", addSession)
 	r.Get("/sessions/all", getAllSessionInfo)
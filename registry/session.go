@@ -1,6 +1,7 @@
 package main
 
 import (
+	"crypto/sha256"
 	"encoding/json"
 	"errors"
 	"fmt"
@@ -11,7 +12,9 @@ import (
 	"os"
 	"path/filepath"
 	"regexp"
+	"strconv"
 	"strings"
+	"time"
 
 	"github.com/go-chi/chi/v5"
 	"github.com/go-chi/httplog/v2"
@@ -31,6 +34,20 @@ type SessId string
 // Validating regex for a session ID
 const sessIdRegex = `^[A-Z0-9]{6}$`
 
+// How long a session stays listed after it was last written (created, restored
+// or renewed). Zero disables leases, keeping every session forever
+var leaseDuration time.Duration
+
+// Reports whether the lease of the session stored in the described file ran out
+func leaseExpired(info fs.FileInfo) bool {
+	return leaseDuration > 0 && time.Since(info.ModTime()) > leaseDuration
+}
+
+// Tells the leader how long its session lasts before it must be renewed
+func setLeaseHeader(w http.ResponseWriter) {
+	w.Header().Set("Session-Lease", strconv.Itoa(int(leaseDuration.Seconds())))
+}
+
 // TODO: Find out if session ids need to more random
 func genId() SessId {
 	const chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"
@@ -76,8 +93,8 @@ func (s1 *Session) updateSession(s2 *Session) {
 func getSingleSession(w http.ResponseWriter, r *http.Request) {
 	logger := httplog.LogEntry(r.Context())
 	sessId := chi.URLParam(r, "sess")
-	_, err := os.Stat(fmt.Sprintf("%s/%s.json", sessDir, sessId))
-	if err != nil && errors.Is(err, fs.ErrNotExist) {
+	info, err := os.Stat(fmt.Sprintf("%s/%s.json", sessDir, sessId))
+	if err != nil && errors.Is(err, fs.ErrNotExist) || err == nil && leaseExpired(info) {
 		logger.Debug(fmt.Sprintf("Session %s could not be located", sessId))
 		http.Error(w, "File not found", http.StatusNotFound)
 		return
@@ -90,6 +107,14 @@ func getSingleSession(w http.ResponseWriter, r *http.Request) {
 		return
 	}
 
+	// Lets clients revalidate a cached session without downloading it again
+	etag := fmt.Sprintf(`"%x"`, sha256.Sum256(d))
+	w.Header().Set("ETag", etag)
+	if r.Header.Get("If-None-Match") == etag {
+		w.WriteHeader(http.StatusNotModified)
+		return
+	}
+
 	w.Header().Set("Content-Type", "application/json")
 	w.WriteHeader(http.StatusOK)
 	w.Write(d)
@@ -137,6 +162,10 @@ func getAllSessions(w http.ResponseWriter, r *http.Request) {
 		}
 		defer data.Close()
 
+		if info, err := data.Stat(); err == nil && leaseExpired(info) {
+			continue
+		}
+
 		dec := json.NewDecoder(data)
 		var session Session
 		if err := dec.Decode(&session); err != nil {
@@ -162,7 +191,7 @@ func findSessionFiles(dir string) ([]string, error) {
 	}
 	defer f.Close()
 
-	fileInfo, err := f.Readdirnames(0)
+	fileInfo, err := f.Readdir(0)
 	if err != nil {
 		return files, err
 	}
@@ -170,8 +199,8 @@ func findSessionFiles(dir string) ([]string, error) {
 	validRegex := strings.TrimSuffix(sessIdRegex, "$") + `\.json$`
 	idValidator := regexp.MustCompile(validRegex)
 	for _, file := range fileInfo {
-		if idValidator.MatchString(file) {
-			files = append(files, strings.TrimSuffix(file, ".json"))
+		if idValidator.MatchString(file.Name()) && !leaseExpired(file) {
+			files = append(files, strings.TrimSuffix(file.Name(), ".json"))
 		}
 	}
 
@@ -224,15 +253,63 @@ func addSession(w http.ResponseWriter, r *http.Request) {
 	}
 
 	logger.Debug("Saved session: " + fmt.Sprintf("%#v", s))
+	setLeaseHeader(w)
 	w.Header().Set("Content-Type", "application/json")
 	w.WriteHeader(http.StatusOK)
 
 	json.NewEncoder(w).Encode(newId)
 }
 
+// Stores a [Session] under the ID contained within the URL, replacing any
+// session already stored under it. Lets a leader whose registry failed move its
+// session to another registry without its peers having to learn a new code.
+// Expects the same JSON-encoded [Session] as [addSession] and returns the ID as a
+// JSON string
+func putSession(w http.ResponseWriter, r *http.Request) {
+	logger := httplog.LogEntry(r.Context())
+	var s Session
+	dec := json.NewDecoder(r.Body)
+	if err := dec.Decode(&s); err != nil {
+		logger.Error("Session metadata could not be decoded")
+		http.Error(w, err.Error(), http.StatusBadRequest)
+		return
+	}
+
+	if s.Host == nil || s.Port == 0 || s.Options == nil {
+		logger.Error("Invalid session metadata received")
+		http.Error(w, "Missing required fields", http.StatusBadRequest)
+		return
+	}
+
+	s.Id = SessId(chi.URLParam(r, "sess"))
+
+	filepath := fmt.Sprintf("%s/%s.json", sessDir, s.Id)
+	d, err := json.Marshal(s)
+	if err != nil {
+		logger.Error("Session metadata could not be encoded to JSON")
+		http.Error(w, "Failed to marshal JSON", http.StatusInternalServerError)
+		return
+	}
+
+	// FIXME: Errors may leave an invalid session file
+	if err = os.WriteFile(filepath, d, 0o644); err != nil {
+		logger.Error(fmt.Sprintf(`Session file "%s" could not be written to`, filepath))
+		http.Error(w, "Failed to write file", http.StatusInternalServerError)
+		return
+	}
+
+	logger.Debug("Restored session: " + fmt.Sprintf("%#v", s))
+	setLeaseHeader(w)
+	w.Header().Set("Content-Type", "application/json")
+	w.WriteHeader(http.StatusOK)
+
+	json.NewEncoder(w).Encode(s.Id)
+}
+
 // Updates the requested [Session] (ID in URL) with the new leader nodes
 // (potentially partial) information. That is, only the Host and Port may be
-// updated for a session
+// updated for a session. Every update renews the session's lease, so an empty
+// update ({}) is how a leader keeps its session listed
 func updateSession(w http.ResponseWriter, r *http.Request) {
 	logger := httplog.LogEntry(r.Context())
 	var s1 Session
@@ -244,8 +321,8 @@ func updateSession(w http.ResponseWriter, r *http.Request) {
 	}
 
 	sessId := chi.URLParam(r, "sess")
-	_, err := os.Stat(fmt.Sprintf("%s/%s.json", sessDir, sessId))
-	if err != nil && errors.Is(err, fs.ErrNotExist) {
+	info, err := os.Stat(fmt.Sprintf("%s/%s.json", sessDir, sessId))
+	if err != nil && errors.Is(err, fs.ErrNotExist) || err == nil && leaseExpired(info) {
 		logger.Debug(fmt.Sprintf("Session %s could not be located", sessId))
 		http.Error(w, "File not found", http.StatusNotFound)
 		return
@@ -269,7 +346,9 @@ func updateSession(w http.ResponseWriter, r *http.Request) {
 	}
 
 	s1.updateSession(&s2)
-	d, err := json.Marshal(s1)
+	file.Close()
+	// The stored session keeps its ID and options, only the leader's address changes
+	d, err := json.Marshal(s2)
 	if err != nil {
 		logger.Error("Session metadata could not be encoded to JSON")
 		http.Error(w, "Failed to marshal JSON", http.StatusInternalServerError)
@@ -283,5 +362,6 @@ func updateSession(w http.ResponseWriter, r *http.Request) {
 		return
 	}
 
+	setLeaseHeader(w)
 	w.WriteHeader(http.StatusOK)
 }
@@ -10,3 +10,5 @@ plugins {
 
 rootProject.name = "distributed-voting-system"
 include("app")
+include("benchmarks")
+include("jmh")